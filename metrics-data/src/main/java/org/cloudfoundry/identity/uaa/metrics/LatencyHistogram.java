@@ -0,0 +1,161 @@
+/*
+ * ****************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ * ****************************************************************************
+ */
+package org.cloudfoundry.identity.uaa.metrics;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory, log-linear histogram of request times in milliseconds, in the style of
+ * HdrHistogram. Every power of two is split into {@link #SUB_BUCKET_COUNT} linear buckets,
+ * so values up to {@code 2 * SUB_BUCKET_COUNT} are exact and larger values are reported
+ * with a relative error of at most {@code 1 / SUB_BUCKET_COUNT} (about 3%). Values above
+ * {@link #MAX_TRACKABLE_VALUE} are recorded in the last bucket.
+ * <p>
+ * Recording is lock free. Histograms with the same layout can be added and subtracted,
+ * which allows totals across status code groups and percentiles for an interval.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 22;
+    static final long MAX_TRACKABLE_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    public LatencyHistogram() {
+    }
+
+    @JsonCreator
+    public LatencyHistogram(@JsonProperty("counts") Map<Integer, Long> counts) {
+        if (counts != null) {
+            counts.forEach((index, count) -> {
+                if (index != null && count != null && index >= 0 && index < BUCKET_COUNT) {
+                    this.counts.addAndGet(index, count);
+                }
+            });
+        }
+    }
+
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(value));
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+    }
+
+    /**
+     * @return a new histogram with the values recorded in this histogram since {@code previous}
+     * was copied from it
+     */
+    public LatencyHistogram minus(LatencyHistogram previous) {
+        LatencyHistogram result = copy();
+        if (previous != null) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                long count = previous.counts.get(i);
+                if (count != 0) {
+                    result.counts.set(i, Math.max(0, result.counts.get(i) - count));
+                }
+            }
+        }
+        return result;
+    }
+
+    public LatencyHistogram copy() {
+        LatencyHistogram result = new LatencyHistogram();
+        result.add(this);
+        return result;
+    }
+
+    @JsonProperty("counts")
+    public Map<Integer, Long> getCounts() {
+        Map<Integer, Long> result = new TreeMap<>();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = counts.get(i);
+            if (count != 0) {
+                result.put(i, count);
+            }
+        }
+        return result;
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value equivalent to the recorded value at the given percentile,
+     * or 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        double fraction = Math.min(100.0, Math.max(0.0, percentile)) / 100.0;
+        long target = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return highestEquivalentValue(BUCKET_COUNT - 1);
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int) Math.max(0, value);
+        }
+        long clamped = Math.min(value, MAX_TRACKABLE_VALUE);
+        int shift = 63 - Long.numberOfLeadingZeros(clamped) - SUB_BUCKET_BITS;
+        int subBucket = (int) (clamped >>> shift);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket - SUB_BUCKET_COUNT;
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -19,119 +19,110 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import org.cloudfoundry.identity.uaa.metrics.MetricsUtil.MutableDouble;
-import org.cloudfoundry.identity.uaa.metrics.MetricsUtil.MutableLong;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static com.fasterxml.jackson.annotation.JsonInclude.Include.NON_NULL;
-import static java.util.Optional.ofNullable;
-import static org.cloudfoundry.identity.uaa.metrics.MetricsUtil.addAverages;
 
+/**
+ * Keeps the last {@link #MAX_ENTRIES} requests and a {@link RequestMetricSummary} per
+ * {@link StatusCodeGroup}. The last requests are kept in a fixed size ring and the
+ * summaries in a slot per status code group, so recording a request neither allocates
+ * nor takes a lock.
+ */
 @JsonIgnoreProperties(ignoreUnknown = true)
 @JsonInclude(NON_NULL)
 public class MetricsQueue  {
 
     public static final int MAX_ENTRIES = 5;
 
-    private ConcurrentLinkedDeque<RequestMetric> queue;
-    private Map<StatusCodeGroup, RequestMetricSummary> statistics;
+    private final AtomicReferenceArray<RequestMetric> lastRequests = new AtomicReferenceArray<>(MAX_ENTRIES);
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicReferenceArray<RequestMetricSummary> statistics = new AtomicReferenceArray<>(StatusCodeGroup.values().length);
 
     public MetricsQueue() {
         this(null,null);
     }
 
     @JsonCreator
-    public MetricsQueue(@JsonProperty("lastRequests") ConcurrentLinkedDeque<RequestMetric> queue,
+    public MetricsQueue(@JsonProperty("lastRequests") List<RequestMetric> queue,
                         @JsonProperty("detailed") Map<StatusCodeGroup, RequestMetricSummary> statistics) {
-        this.queue = ofNullable(queue).orElse(new ConcurrentLinkedDeque<>());
-        this.statistics = ofNullable(statistics).orElse(new ConcurrentHashMap<>());
+        if (queue != null) {
+            queue.stream().skip(Math.max(0, queue.size() - MAX_ENTRIES)).forEach(this::addLastRequest);
+        }
+        if (statistics != null) {
+            statistics.forEach((group, summary) -> this.statistics.set(group.ordinal(), summary));
+        }
     }
 
     public boolean offer(RequestMetric metric) {
-        queue.offer(metric);
-        //remove earliest entries
-        while (queue.size() > MAX_ENTRIES) {
-            queue.removeFirst();
-        }
+        addLastRequest(metric);
 
-        StatusCodeGroup statusCode = StatusCodeGroup.valueOf(metric.getStatusCode());
-        if (!statistics.containsKey(statusCode)) {
-            statistics.putIfAbsent(statusCode, new RequestMetricSummary());
-        }
-        RequestMetricSummary totals = statistics.get(statusCode);
+        RequestMetricSummary totals = getOrCreateSummary(StatusCodeGroup.valueOf(metric.getStatusCode()));
         long time = metric.getRequestCompleteTime() - metric.getRequestStartTime();
         totals.add(time,
                    time < metric.getUriGroup().getLimit(),
                    metric.getNrOfDatabaseQueries(),
                    metric.getDatabaseQueryTime(),
-                   metric.getQueries().stream().filter(QueryMetric::isIntolerable).count(),
-                   metric.getQueries().stream().filter(QueryMetric::isIntolerable).mapToLong(q -> q.getRequestCompleteTime()-q.getRequestStartTime()).sum()
+                   metric.intolerableQueryCount(),
+                   metric.intolerableQueryTime()
         );
         return true;
     }
 
-    public Map<StatusCodeGroup, RequestMetricSummary> getDetailed() {
-        return statistics;
+    private void addLastRequest(RequestMetric metric) {
+        //overwrite the earliest entry
+        lastRequests.set((int) (offered.getAndIncrement() % MAX_ENTRIES), metric);
+    }
+
+    private RequestMetricSummary getOrCreateSummary(StatusCodeGroup group) {
+        int slot = group.ordinal();
+        RequestMetricSummary summary = statistics.get(slot);
+        if (summary == null) {
+            statistics.compareAndSet(slot, null, new RequestMetricSummary());
+            summary = statistics.get(slot);
+        }
+        return summary;
     }
 
+    public Map<StatusCodeGroup, RequestMetricSummary> getDetailed() {
+        Map<StatusCodeGroup, RequestMetricSummary> detailed = new EnumMap<>(StatusCodeGroup.class);
+        for (StatusCodeGroup group : StatusCodeGroup.values()) {
+            RequestMetricSummary summary = statistics.get(group.ordinal());
+            if (summary != null) {
+                detailed.put(group, summary);
+            }
+        }
+        return detailed;
+    }
 
-    public ConcurrentLinkedDeque<RequestMetric> getLastRequests() {
-        return queue;
+    public List<RequestMetric> getLastRequests() {
+        long end = offered.get();
+        List<RequestMetric> result = new ArrayList<>(MAX_ENTRIES);
+        for (long i = Math.max(0, end - MAX_ENTRIES); i < end; i++) {
+            RequestMetric metric = lastRequests.get((int) (i % MAX_ENTRIES));
+            if (metric != null) {
+                result.add(metric);
+            }
+        }
+        return result;
     }
 
     @JsonProperty("summary")
     public RequestMetricSummary getTotals() {
-        MutableLong count = new MutableLong(0);
-        MutableDouble averageTime = new MutableDouble(0);
-        MutableLong intolerableCount = new MutableLong(0);
-        MutableDouble averageIntolerableTime = new MutableDouble(0);
-        MutableLong databaseQueryCount = new MutableLong(0);
-        MutableDouble averageDatabaseQueryTime = new MutableDouble(0);
-        MutableLong databaseIntolerableQueryCount = new MutableLong(0);
-        MutableDouble averageDatabaseIntolerableQueryTime = new MutableDouble(0);
-        statistics.forEach((key, summary) -> {
-            averageTime.set(addAverages(count.get(),
-                    averageTime.get(),
-                    summary.getCount(),
-                    summary.getAverageTime())
-            );
-            count.add(summary.getCount());
-
-            averageIntolerableTime.set(addAverages(intolerableCount.get(),
-                    averageIntolerableTime.get(),
-                    summary.getIntolerableCount(),
-                    summary.getAverageIntolerableTime())
-            );
-            intolerableCount.add(summary.getIntolerableCount());
-
-            averageDatabaseQueryTime.set(addAverages(databaseQueryCount.get(),
-                    averageDatabaseQueryTime.get(),
-                    summary.getDatabaseQueryCount(),
-                    summary.getAverageDatabaseQueryTime()
-                    )
-            );
-            databaseQueryCount.add(summary.getDatabaseQueryCount());
-
-            averageDatabaseIntolerableQueryTime.set(addAverages(databaseIntolerableQueryCount.get(),
-                    averageDatabaseIntolerableQueryTime.get(),
-                    summary.getDatabaseIntolerableQueryCount(),
-                    summary.getAverageDatabaseIntolerableQueryTime()
-                    )
-            );
-            databaseIntolerableQueryCount.add(summary.getDatabaseIntolerableQueryCount());
-
-        });
-        return new RequestMetricSummary(count.get(),
-                                        averageTime.get(),
-                                        intolerableCount.get(),
-                                        averageIntolerableTime.get(),
-                                        databaseQueryCount.get(),
-                                        averageDatabaseQueryTime.get(),
-                                        databaseIntolerableQueryCount.get(),
-                                        averageDatabaseIntolerableQueryTime.get());
+        RequestMetricSummary totals = new RequestMetricSummary();
+        for (int i = 0; i < statistics.length(); i++) {
+            RequestMetricSummary summary = statistics.get(i);
+            if (summary != null) {
+                summary.addTo(totals);
+            }
+        }
+        return totals;
     }
 
 }
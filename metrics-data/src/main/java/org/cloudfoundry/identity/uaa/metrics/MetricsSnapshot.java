@@ -0,0 +1,194 @@
+/*
+ * ****************************************************************************
+ *     Cloud Foundry
+ *     Copyright (c) [2009-2017] Pivotal Software, Inc. All Rights Reserved.
+ *
+ *     This product is licensed to you under the Apache License, Version 2.0 (the "License").
+ *     You may not use this product except in compliance with the License.
+ *
+ *     This product includes a number of subcomponents with
+ *     separate copyright notices and license terms. Your use of these
+ *     subcomponents is subject to the terms and conditions of the
+ *     subcomponent's license, as noted in the LICENSE file.
+ * ****************************************************************************
+ */
+package org.cloudfoundry.identity.uaa.metrics;
+
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Point in time copy of the server request metrics, transported over JMX as
+ * {@link CompositeData}. Open types only contain JDK classes, so the snapshot can be
+ * read by a consumer deployed with its own class loader, and it only carries the
+ * totals and the non empty latency buckets of every URL group and status code group.
+ */
+public class MetricsSnapshot {
+
+    private static final String[] SUMMARY_ITEMS = {
+            "count",
+            "totalTime",
+            "intolerableCount",
+            "totalIntolerableTime",
+            "databaseQueryCount",
+            "totalDatabaseQueryTime",
+            "databaseIntolerableQueryCount",
+            "totalDatabaseIntolerableQueryTime",
+            "latencyBuckets",
+            "latencyCounts"
+    };
+    private static final String[] ROW_ITEMS = {"group", "status", "summary"};
+    private static final String[] SNAPSHOT_ITEMS = {"inflightCount", "idleTime", "upTime", "requests"};
+
+    private static final CompositeType SUMMARY_TYPE;
+    private static final CompositeType ROW_TYPE;
+    private static final TabularType REQUESTS_TYPE;
+    private static final CompositeType SNAPSHOT_TYPE;
+
+    static {
+        try {
+            OpenType<?>[] summaryTypes = new OpenType<?>[SUMMARY_ITEMS.length];
+            for (int i = 0; i < summaryTypes.length - 2; i++) {
+                summaryTypes[i] = SimpleType.LONG;
+            }
+            summaryTypes[summaryTypes.length - 2] = ArrayType.getPrimitiveArrayType(int[].class);
+            summaryTypes[summaryTypes.length - 1] = ArrayType.getPrimitiveArrayType(long[].class);
+            SUMMARY_TYPE = new CompositeType("RequestMetricSummary", "Request totals and latency histogram", SUMMARY_ITEMS, SUMMARY_ITEMS, summaryTypes);
+            ROW_TYPE = new CompositeType("UrlGroupStatusMetrics", "Request metrics of a URL group and status code group", ROW_ITEMS, ROW_ITEMS,
+                    new OpenType<?>[]{SimpleType.STRING, SimpleType.STRING, SUMMARY_TYPE});
+            REQUESTS_TYPE = new TabularType("UrlGroupMetrics", "Request metrics per URL group and status code group", ROW_TYPE, new String[]{"group", "status"});
+            SNAPSHOT_TYPE = new CompositeType("ServerRequestsSnapshot", "Server request metrics", SNAPSHOT_ITEMS, SNAPSHOT_ITEMS,
+                    new OpenType<?>[]{SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, REQUESTS_TYPE});
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final long inflightCount;
+    private final long idleTime;
+    private final long upTime;
+    private final Map<String, MetricsQueue> requests;
+
+    public MetricsSnapshot(long inflightCount, long idleTime, long upTime, Map<String, MetricsQueue> requests) {
+        this.inflightCount = inflightCount;
+        this.idleTime = idleTime;
+        this.upTime = upTime;
+        this.requests = Collections.unmodifiableMap(new LinkedHashMap<>(requests));
+    }
+
+    public long getInflightCount() {
+        return inflightCount;
+    }
+
+    public long getIdleTime() {
+        return idleTime;
+    }
+
+    public long getUpTime() {
+        return upTime;
+    }
+
+    /**
+     * @return the URL groups with metrics, including {@link MetricsUtil#GLOBAL_GROUP}
+     */
+    public Set<String> getUrlGroups() {
+        return requests.keySet();
+    }
+
+    /**
+     * @return the metrics of the URL group, without the last requests, or an empty queue
+     */
+    public MetricsQueue getMetrics(String urlGroup) {
+        MetricsQueue queue = requests.get(urlGroup);
+        return queue != null ? queue : new MetricsQueue();
+    }
+
+    public CompositeData toCompositeData() {
+        try {
+            TabularData rows = new TabularDataSupport(REQUESTS_TYPE);
+            for (Map.Entry<String, MetricsQueue> entry : requests.entrySet()) {
+                for (Map.Entry<StatusCodeGroup, RequestMetricSummary> detail : entry.getValue().getDetailed().entrySet()) {
+                    rows.put(new CompositeDataSupport(ROW_TYPE, ROW_ITEMS, new Object[]{
+                            entry.getKey(),
+                            detail.getKey().name(),
+                            toCompositeData(detail.getValue())
+                    }));
+                }
+            }
+            return new CompositeDataSupport(SNAPSHOT_TYPE, SNAPSHOT_ITEMS, new Object[]{inflightCount, idleTime, upTime, rows});
+        } catch (OpenDataException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static MetricsSnapshot from(CompositeData data) {
+        Map<String, Map<StatusCodeGroup, RequestMetricSummary>> detailed = new HashMap<>();
+        TabularData rows = (TabularData) data.get("requests");
+        for (Object value : rows.values()) {
+            CompositeData row = (CompositeData) value;
+            StatusCodeGroup status;
+            try {
+                status = StatusCodeGroup.valueOf((String) row.get("status"));
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            detailed.computeIfAbsent((String) row.get("group"), group -> new EnumMap<>(StatusCodeGroup.class))
+                    .put(status, fromCompositeData((CompositeData) row.get("summary")));
+        }
+        Map<String, MetricsQueue> requests = new HashMap<>();
+        detailed.forEach((group, statistics) -> requests.put(group, new MetricsQueue(null, statistics)));
+        return new MetricsSnapshot(
+                (Long) data.get("inflightCount"),
+                (Long) data.get("idleTime"),
+                (Long) data.get("upTime"),
+                requests
+        );
+    }
+
+    private static CompositeData toCompositeData(RequestMetricSummary summary) throws OpenDataException {
+        long[] totals = summary.getTotals();
+        Map<Integer, Long> counts = summary.getLatency().getCounts();
+        int[] buckets = new int[counts.size()];
+        long[] bucketCounts = new long[counts.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+            buckets[i] = entry.getKey();
+            bucketCounts[i++] = entry.getValue();
+        }
+        Object[] values = new Object[SUMMARY_ITEMS.length];
+        for (i = 0; i < totals.length; i++) {
+            values[i] = totals[i];
+        }
+        values[values.length - 2] = buckets;
+        values[values.length - 1] = bucketCounts;
+        return new CompositeDataSupport(SUMMARY_TYPE, SUMMARY_ITEMS, values);
+    }
+
+    private static RequestMetricSummary fromCompositeData(CompositeData data) {
+        long[] totals = new long[SUMMARY_ITEMS.length - 2];
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = (Long) data.get(SUMMARY_ITEMS[i]);
+        }
+        int[] buckets = (int[]) data.get("latencyBuckets");
+        long[] bucketCounts = (long[]) data.get("latencyCounts");
+        Map<Integer, Long> counts = new HashMap<>();
+        for (int i = 0; i < buckets.length; i++) {
+            counts.put(buckets[i], bucketCounts[i]);
+        }
+        return RequestMetricSummary.fromTotals(totals, new LatencyHistogram(counts));
+    }
+}
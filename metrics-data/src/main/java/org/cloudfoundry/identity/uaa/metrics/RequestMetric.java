@@ -18,7 +18,8 @@ package org.cloudfoundry.identity.uaa.metrics;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -28,7 +29,10 @@ public class RequestMetric {
     private int statusCode;
     private long requestStartTime;
     private long requestCompleteTime;
-    private List<QueryMetric> queries = new LinkedList<>();
+    private List<QueryMetric> queries = Collections.emptyList();
+    private long databaseQueryTime;
+    private long intolerableQueryCount;
+    private long intolerableQueryTime;
 
     public static RequestMetric start(String uri, UrlGroup group, long start) {
         RequestMetric metric = new RequestMetric();
@@ -44,7 +48,16 @@ public class RequestMetric {
     }
 
     public void addQuery(QueryMetric query) {
+        if (queries.isEmpty()) {
+            queries = new ArrayList<>();
+        }
         queries.add(query);
+        long time = query.getRequestCompleteTime() - query.getRequestStartTime();
+        databaseQueryTime += time;
+        if (query.isIntolerable()) {
+            intolerableQueryCount++;
+            intolerableQueryTime += time;
+        }
     }
 
     @JsonIgnore
@@ -73,7 +86,15 @@ public class RequestMetric {
     }
 
     public long getDatabaseQueryTime() {
-        return queries.stream().mapToLong(q -> q.getRequestCompleteTime() - q.getRequestStartTime()).sum();
+        return databaseQueryTime;
+    }
+
+    long intolerableQueryCount() {
+        return intolerableQueryCount;
+    }
+
+    long intolerableQueryTime() {
+        return intolerableQueryTime;
     }
 
     public UrlGroup getUriGroup() {
@@ -18,20 +18,28 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
-import static org.cloudfoundry.identity.uaa.metrics.MetricsUtil.addToAverage;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Request counts and times for one group of requests. Totals are kept in striped
+ * {@link LongAdder}s so that concurrent requests do not contend on a lock; averages
+ * are derived from the totals when read. Request times are also recorded in a
+ * {@link LatencyHistogram} to report percentiles.
+ */
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class RequestMetricSummary {
-    long count = 0;
-    double averageTime = 0;
-    long intolerableCount = 0;
-    double averageIntolerableTime = 0;
-    long databaseQueryCount = 0;
-    double averageDatabaseQueryTime = 0;
-    long databaseIntolerableQueryCount = 0;
-    double averageDatabaseIntolerableQueryTime = 0;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder totalTime = new LongAdder();
+    private final LongAdder intolerableRequests = new LongAdder();
+    private final LongAdder totalIntolerableTime = new LongAdder();
+    private final LongAdder databaseQueries = new LongAdder();
+    private final LongAdder totalDatabaseQueryTime = new LongAdder();
+    private final LongAdder intolerableDatabaseQueries = new LongAdder();
+    private final LongAdder totalIntolerableDatabaseQueryTime = new LongAdder();
+    private final LatencyHistogram latency;
 
     public RequestMetricSummary() {
+        this.latency = new LatencyHistogram();
     }
 
     @JsonCreator
@@ -42,60 +50,116 @@ public class RequestMetricSummary {
                                 @JsonProperty("databaseQueryCount") long databaseQueryCount,
                                 @JsonProperty("averageDatabaseQueryTime") double averageDatabaseQueryTime,
                                 @JsonProperty("databaseIntolerableQueryCount") long databaseIntolerableQueryCount,
-                                @JsonProperty("averageDatabaseIntolerableQueryTime") double averageDatabaseIntolerableQueryTime) {
-        this.count = count;
-        this.averageTime = averageTime;
-        this.intolerableCount = intolerableCount;
-        this.averageIntolerableTime = averageIntolerableTime;
-        this.databaseQueryCount = databaseQueryCount;
-        this.averageDatabaseQueryTime = averageDatabaseQueryTime;
-        this.databaseIntolerableQueryCount = databaseIntolerableQueryCount;
-        this.averageDatabaseIntolerableQueryTime = averageDatabaseIntolerableQueryTime;
-    }
-
-    public synchronized void add(long time, boolean tolerable, long dbQueries, long dbTime, long failedDbQueries, long failedDbQueryTime) {
-        averageTime = addToAverage(count, averageTime, 1, time);
-        count++;
+                                @JsonProperty("averageDatabaseIntolerableQueryTime") double averageDatabaseIntolerableQueryTime,
+                                @JsonProperty("latency") LatencyHistogram latency) {
+        this.latency = latency != null ? latency : new LatencyHistogram();
+        this.requests.add(count);
+        this.totalTime.add(Math.round(averageTime * count));
+        this.intolerableRequests.add(intolerableCount);
+        this.totalIntolerableTime.add(Math.round(averageIntolerableTime * intolerableCount));
+        this.databaseQueries.add(databaseQueryCount);
+        this.totalDatabaseQueryTime.add(Math.round(averageDatabaseQueryTime * databaseQueryCount));
+        this.intolerableDatabaseQueries.add(databaseIntolerableQueryCount);
+        this.totalIntolerableDatabaseQueryTime.add(Math.round(averageDatabaseIntolerableQueryTime * databaseIntolerableQueryCount));
+    }
+
+    static RequestMetricSummary fromTotals(long[] totals, LatencyHistogram latency) {
+        RequestMetricSummary summary = new RequestMetricSummary(0, 0, 0, 0, 0, 0, 0, 0, latency);
+        summary.requests.add(totals[0]);
+        summary.totalTime.add(totals[1]);
+        summary.intolerableRequests.add(totals[2]);
+        summary.totalIntolerableTime.add(totals[3]);
+        summary.databaseQueries.add(totals[4]);
+        summary.totalDatabaseQueryTime.add(totals[5]);
+        summary.intolerableDatabaseQueries.add(totals[6]);
+        summary.totalIntolerableDatabaseQueryTime.add(totals[7]);
+        return summary;
+    }
+
+    /**
+     * @return the totals in the order accepted by {@link #fromTotals(long[], LatencyHistogram)}
+     */
+    long[] getTotals() {
+        return new long[]{
+                requests.sum(),
+                totalTime.sum(),
+                intolerableRequests.sum(),
+                totalIntolerableTime.sum(),
+                databaseQueries.sum(),
+                totalDatabaseQueryTime.sum(),
+                intolerableDatabaseQueries.sum(),
+                totalIntolerableDatabaseQueryTime.sum()
+        };
+    }
+
+    public void add(long time, boolean tolerable, long dbQueries, long dbTime, long failedDbQueries, long failedDbQueryTime) {
+        requests.increment();
+        totalTime.add(time);
+        latency.record(time);
         if (!tolerable) {
-            averageIntolerableTime = addToAverage(intolerableCount, averageIntolerableTime, 1, time);
-            ++intolerableCount;
+            intolerableRequests.increment();
+            totalIntolerableTime.add(time);
         }
-        averageDatabaseQueryTime = addToAverage(databaseQueryCount, averageDatabaseQueryTime, dbQueries, dbTime);
-        databaseQueryCount += dbQueries;
+        if (dbQueries != 0) {
+            databaseQueries.add(dbQueries);
+            totalDatabaseQueryTime.add(dbTime);
+        }
+        if (failedDbQueries != 0) {
+            intolerableDatabaseQueries.add(failedDbQueries);
+            totalIntolerableDatabaseQueryTime.add(failedDbQueryTime);
+        }
+    }
 
-        averageDatabaseIntolerableQueryTime = addToAverage(databaseIntolerableQueryCount, averageDatabaseIntolerableQueryTime, failedDbQueries, failedDbQueryTime);
-        databaseIntolerableQueryCount += failedDbQueries;
+    void addTo(RequestMetricSummary other) {
+        other.requests.add(requests.sum());
+        other.totalTime.add(totalTime.sum());
+        other.intolerableRequests.add(intolerableRequests.sum());
+        other.totalIntolerableTime.add(totalIntolerableTime.sum());
+        other.databaseQueries.add(databaseQueries.sum());
+        other.totalDatabaseQueryTime.add(totalDatabaseQueryTime.sum());
+        other.intolerableDatabaseQueries.add(intolerableDatabaseQueries.sum());
+        other.totalIntolerableDatabaseQueryTime.add(totalIntolerableDatabaseQueryTime.sum());
+        other.latency.add(latency);
     }
 
     public long getCount() {
-        return count;
+        return requests.sum();
     }
 
     public double getAverageTime() {
-        return averageTime;
+        return average(totalTime, requests);
     }
 
     public long getIntolerableCount() {
-        return intolerableCount;
+        return intolerableRequests.sum();
     }
 
     public double getAverageIntolerableTime() {
-        return averageIntolerableTime;
+        return average(totalIntolerableTime, intolerableRequests);
     }
 
     public long getDatabaseQueryCount() {
-        return databaseQueryCount;
+        return databaseQueries.sum();
     }
 
     public double getAverageDatabaseQueryTime() {
-        return averageDatabaseQueryTime;
+        return average(totalDatabaseQueryTime, databaseQueries);
     }
 
     public long getDatabaseIntolerableQueryCount() {
-        return databaseIntolerableQueryCount;
+        return intolerableDatabaseQueries.sum();
     }
 
     public double getAverageDatabaseIntolerableQueryTime() {
-        return averageDatabaseIntolerableQueryTime;
+        return average(totalIntolerableDatabaseQueryTime, intolerableDatabaseQueries);
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    private static double average(LongAdder total, LongAdder count) {
+        long n = count.sum();
+        return n == 0 ? 0 : ((double) total.sum()) / n;
     }
 }
@@ -22,6 +22,8 @@ public enum StatusCodeGroup {
     CLIENT_ERROR("4xx",4),
     SERVER_ERROR("5xx",5);
 
+    private static final StatusCodeGroup[] BY_SERIES = {null, INFORMATIONAL, SUCCESS, REDIRECT, CLIENT_ERROR, SERVER_ERROR};
+
     private final String name;
     private final int value;
 
@@ -36,10 +38,8 @@ public enum StatusCodeGroup {
 
     public static StatusCodeGroup valueOf(int statusCode) {
         int seriesCode = statusCode / 100;
-        for (StatusCodeGroup series : values()) {
-            if (series.value == seriesCode) {
-                return series;
-            }
+        if (seriesCode > 0 && seriesCode < BY_SERIES.length) {
+            return BY_SERIES[seriesCode];
         }
         throw new IllegalArgumentException("No matching constant for [" + statusCode + "]");
     }
@@ -15,6 +15,7 @@
 
 package org.cloudfoundry.identity.uaa.metrics;
 
+import javax.management.openmbean.CompositeData;
 import java.util.Map;
 
 public interface UaaMetrics {
@@ -28,4 +29,9 @@ public interface UaaMetrics {
     Map<String, String> getSummary();
 
     String getGlobals();
+
+    /**
+     * @return all request metrics in one read, see {@link MetricsSnapshot#from(CompositeData)}
+     */
+    CompositeData getSnapshot();
 }
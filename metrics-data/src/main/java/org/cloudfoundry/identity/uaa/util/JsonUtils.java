@@ -15,12 +15,14 @@
 
 package org.cloudfoundry.identity.uaa.util;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.Map;
 
@@ -103,6 +105,17 @@ public class JsonUtils {
         }
     }
 
+    /**
+     * A generator that writes values one at a time, with the same configuration as the other methods.
+     */
+    public static JsonGenerator createGenerator(OutputStream out) {
+        try {
+            return objectMapper.getFactory().createGenerator(out);
+        } catch (IOException e) {
+            throw new JsonUtilException(e);
+        }
+    }
+
     public static JsonNode readTree(JsonParser p) {
         try {
             return objectMapper.readTree(p);
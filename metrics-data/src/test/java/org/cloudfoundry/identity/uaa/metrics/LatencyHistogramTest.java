@@ -0,0 +1,113 @@
+package org.cloudfoundry.identity.uaa.metrics;
+
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LatencyHistogramTest {
+
+    private LatencyHistogram histogram;
+
+    @BeforeEach
+    void setup() {
+        histogram = new LatencyHistogram();
+    }
+
+    @Test
+    void small_values_are_exact() {
+        for (long value = 0; value < 2 * LatencyHistogram.SUB_BUCKET_COUNT; value++) {
+            assertEquals(value, LatencyHistogram.highestEquivalentValue(LatencyHistogram.indexOf(value)));
+        }
+    }
+
+    @Test
+    void large_values_are_within_relative_error() {
+        for (long value = 1; value <= LatencyHistogram.MAX_TRACKABLE_VALUE; value = value * 3 / 2 + 1) {
+            long reported = LatencyHistogram.highestEquivalentValue(LatencyHistogram.indexOf(value));
+            assertThat(reported, greaterThanOrEqualTo(value));
+            assertThat((double) (reported - value), lessThanOrEqualTo((double) value / LatencyHistogram.SUB_BUCKET_COUNT));
+        }
+    }
+
+    @Test
+    void out_of_range_values_are_clamped() {
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    void percentiles() {
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(1000, histogram.getTotalCount());
+        assertWithinError(500, histogram.getValueAtPercentile(50));
+        assertWithinError(990, histogram.getValueAtPercentile(99));
+        assertWithinError(999, histogram.getValueAtPercentile(99.9));
+        assertWithinError(1000, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    void empty_histogram_reports_zero() {
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    void add_and_minus() {
+        histogram.record(10);
+        LatencyHistogram previous = histogram.copy();
+        histogram.record(2000);
+        histogram.record(2000);
+
+        LatencyHistogram interval = histogram.minus(previous);
+        assertEquals(2, interval.getTotalCount());
+        assertWithinError(2000, interval.getValueAtPercentile(50));
+
+        LatencyHistogram total = new LatencyHistogram();
+        total.add(previous);
+        total.add(interval);
+        assertEquals(histogram.getCounts(), total.getCounts());
+        assertEquals(3, histogram.minus(null).getTotalCount());
+    }
+
+    @Test
+    void json_serialize() {
+        histogram.record(3);
+        histogram.record(3);
+        histogram.record(4500);
+        String json = JsonUtils.writeValueAsString(histogram);
+        LatencyHistogram deserialized = JsonUtils.readValue(json, LatencyHistogram.class);
+        assertEquals(histogram.getCounts(), deserialized.getCounts());
+        assertEquals(2, histogram.getCounts().size());
+    }
+
+    @Test
+    void concurrent_record() throws Exception {
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 10_000; j++) {
+                    histogram.record(j % 300);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40_000, histogram.getTotalCount());
+    }
+
+    private static void assertWithinError(long expected, long actual) {
+        assertThat(actual, greaterThanOrEqualTo(expected));
+        assertThat(actual, lessThanOrEqualTo(expected + expected / LatencyHistogram.SUB_BUCKET_COUNT));
+    }
+}
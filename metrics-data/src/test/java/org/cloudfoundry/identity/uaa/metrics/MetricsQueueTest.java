@@ -59,6 +59,8 @@ class MetricsQueueTest {
         assertEquals(3, summary.getAverageDatabaseQueryTime(), DELTA);
         assertEquals(2, summary.getDatabaseIntolerableQueryCount());
         assertEquals(3.5, summary.getAverageDatabaseIntolerableQueryTime(), DELTA);
+        assertEquals(3, summary.getLatency().getTotalCount());
+        assertEquals(5, summary.getLatency().getValueAtPercentile(50));
     }
 
     @Test
@@ -134,6 +136,9 @@ class MetricsQueueTest {
         assertEquals(0, fiveHundredResponses.getAverageDatabaseIntolerableQueryTime(), DELTA);
 
         assertEquals(3, queue.getLastRequests().size());
+        assertEquals(2, twoHundredResponses.getLatency().getTotalCount());
+        assertEquals(2, twoHundredResponses.getLatency().getValueAtPercentile(50));
+        assertEquals(1, fiveHundredResponses.getLatency().getTotalCount());
     }
 
 }
\ No newline at end of file
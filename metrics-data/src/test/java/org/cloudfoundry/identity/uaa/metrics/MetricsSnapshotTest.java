@@ -0,0 +1,82 @@
+package org.cloudfoundry.identity.uaa.metrics;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.openmbean.CompositeData;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsSnapshotTest {
+
+    private UrlGroup uriGroup = new UrlGroup()
+            .setGroup("/uri")
+            .setLimit(100)
+            .setPattern("/uri")
+            .setCategory("test");
+
+    private Map<String, MetricsQueue> queues;
+
+    @BeforeEach
+    void setup() {
+        MetricsQueue queue = new MetricsQueue();
+        offer(queue, 200, 10, true);
+        offer(queue, 200, 150, false);
+        offer(queue, 404, 7, true);
+        queues = new HashMap<>();
+        queues.put("/uri", queue);
+        queues.put(MetricsUtil.GLOBAL_GROUP, queue);
+    }
+
+    @Test
+    void round_trip() {
+        CompositeData data = new MetricsSnapshot(2, 30, 40, queues).toCompositeData();
+        MetricsSnapshot snapshot = MetricsSnapshot.from(data);
+
+        assertEquals(2, snapshot.getInflightCount());
+        assertEquals(30, snapshot.getIdleTime());
+        assertEquals(40, snapshot.getUpTime());
+        assertEquals(queues.keySet(), snapshot.getUrlGroups());
+
+        MetricsQueue expected = queues.get("/uri");
+        MetricsQueue actual = snapshot.getMetrics("/uri");
+        assertEquals(expected.getDetailed().keySet(), actual.getDetailed().keySet());
+        assertSummaryEquals(expected.getTotals(), actual.getTotals());
+        for (StatusCodeGroup group : expected.getDetailed().keySet()) {
+            assertSummaryEquals(expected.getDetailed().get(group), actual.getDetailed().get(group));
+        }
+        assertTrue(actual.getLastRequests().isEmpty());
+    }
+
+    @Test
+    void missing_group_is_empty() {
+        MetricsSnapshot snapshot = MetricsSnapshot.from(new MetricsSnapshot(0, 0, 0, Collections.emptyMap()).toCompositeData());
+        assertTrue(snapshot.getUrlGroups().isEmpty());
+        assertEquals(0, snapshot.getMetrics(MetricsUtil.GLOBAL_GROUP).getTotals().getCount());
+    }
+
+    private void offer(MetricsQueue queue, int status, long time, boolean query) {
+        RequestMetric metric = RequestMetric.start("/uri", uriGroup, 0);
+        if (query) {
+            metric.addQuery(new QueryMetric("query", 0, 3, false));
+        }
+        metric.stop(status, time);
+        queue.offer(metric);
+    }
+
+    private static void assertSummaryEquals(RequestMetricSummary expected, RequestMetricSummary actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getAverageTime(), actual.getAverageTime());
+        assertEquals(expected.getIntolerableCount(), actual.getIntolerableCount());
+        assertEquals(expected.getAverageIntolerableTime(), actual.getAverageIntolerableTime());
+        assertEquals(expected.getDatabaseQueryCount(), actual.getDatabaseQueryCount());
+        assertEquals(expected.getAverageDatabaseQueryTime(), actual.getAverageDatabaseQueryTime());
+        assertEquals(expected.getDatabaseIntolerableQueryCount(), actual.getDatabaseIntolerableQueryCount());
+        assertEquals(expected.getAverageDatabaseIntolerableQueryTime(), actual.getAverageDatabaseIntolerableQueryTime());
+        assertEquals(expected.getLatency().getCounts(), actual.getLatency().getCounts());
+    }
+}
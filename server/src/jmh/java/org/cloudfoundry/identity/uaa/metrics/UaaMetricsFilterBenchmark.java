@@ -0,0 +1,101 @@
+package org.cloudfoundry.identity.uaa.metrics;
+
+import org.cloudfoundry.identity.uaa.util.TimeServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+
+import javax.servlet.FilterChain;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per request cost of {@link UaaMetricsFilter}, single threaded and under contention.
+ * <p>
+ * ./gradlew :cloudfoundry-identity-server:jmh -Pjmh.include=UaaMetricsFilterBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UaaMetricsFilterBenchmark {
+
+    private static final FilterChain NOOP_CHAIN = (request, response) -> {
+    };
+
+    @State(Scope.Benchmark)
+    public static class FilterState {
+        UaaMetricsFilter filter;
+        List<UrlGroup> urlGroups;
+        UrlGroupMatcher matcher;
+        AntPathRequestMatcher[] requestMatchers;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            filter = new UaaMetricsFilter(true, false, new TimeServiceImpl());
+            urlGroups = filter.getUrlGroups();
+            matcher = new UrlGroupMatcher(urlGroups);
+            requestMatchers = urlGroups.stream()
+                    .map(group -> new AntPathRequestMatcher(group.getPattern()))
+                    .toArray(AntPathRequestMatcher[]::new);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class RequestState {
+        @Param({"/oauth/token", "/Users/abc", "/saml/idp/initiate", "/unknown/path"})
+        String path;
+
+        MockHttpServletRequest request;
+        MockHttpServletResponse response;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            request = new MockHttpServletRequest("GET", path);
+            request.setServletPath(path);
+            response = new MockHttpServletResponse();
+        }
+    }
+
+    @Benchmark
+    public MockHttpServletResponse filter(FilterState state, RequestState request) throws Exception {
+        state.filter.doFilterInternal(request.request, request.response, NOOP_CHAIN);
+        return request.response;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public MockHttpServletResponse filterContended(FilterState state, RequestState request) throws Exception {
+        state.filter.doFilterInternal(request.request, request.response, NOOP_CHAIN);
+        return request.response;
+    }
+
+    @Benchmark
+    public UrlGroup matchUrlGroup(FilterState state, RequestState request) {
+        return state.matcher.match(request.request);
+    }
+
+    @Benchmark
+    public UrlGroup matchUrlGroupLinear(FilterState state, RequestState request) {
+        for (int i = 0; i < state.requestMatchers.length; i++) {
+            if (state.requestMatchers[i].matches(request.request)) {
+                return state.urlGroups.get(i);
+            }
+        }
+        return null;
+    }
+}
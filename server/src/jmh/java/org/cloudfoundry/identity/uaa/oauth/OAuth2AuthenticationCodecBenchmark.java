@@ -0,0 +1,100 @@
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.datasource.SimpleDriverDataSource;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.util.OAuth2Utils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.TokenRequest;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+import org.springframework.util.LinkedMultiValueMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link OAuth2AuthenticationCodec} with the JSON written by {@link UaaTokenStore} for the
+ * authentication stored with an authorization code. The size difference is
+ * asserted by OAuth2AuthenticationCodecTests.
+ * <p>
+ * ./gradlew :cloudfoundry-identity-server:jmh -Pjmh.include=OAuth2AuthenticationCodecBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OAuth2AuthenticationCodecBenchmark {
+
+    UaaTokenStore store;
+    OAuth2Authentication authentication;
+    byte[] json;
+    byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        store = new UaaTokenStore(new SimpleDriverDataSource());
+
+        UaaPrincipal principal = new UaaPrincipal("2f2b9f2e-7c3a-4a8e-9a39-0c1f3b6e2d10", "marissa", "marissa@test.org", OriginKeys.UAA, null, IdentityZone.getUaaZoneId());
+        UaaAuthentication userAuthentication = new UaaAuthentication(principal,
+                Arrays.asList(new SimpleGrantedAuthority("openid"), new SimpleGrantedAuthority("uaa.user")),
+                new UaaAuthenticationDetails(false, "app", OriginKeys.UAA, "5f1e3c8a-0b9d-4d7e-8c21-6a4f2e9b7d35"));
+        userAuthentication.setExternalGroups(new HashSet<>(Arrays.asList("admins", "developers")));
+        userAuthentication.setAuthenticationMethods(new HashSet<>(Arrays.asList("pwd")));
+        LinkedMultiValueMap<String, String> userAttributes = new LinkedMultiValueMap<>();
+        userAttributes.put("cost_center", Arrays.asList("denver"));
+        userAuthentication.setUserAttributes(userAttributes);
+
+        BaseClientDetails client = new BaseClientDetails("app", null, "openid,uaa.user,cloud_controller.read", "authorization_code", "uaa.resource", "http://localhost:8080/app/**");
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(OAuth2Utils.CLIENT_ID, client.getClientId());
+        parameters.put(OAuth2Utils.RESPONSE_TYPE, "code");
+        parameters.put(OAuth2Utils.REDIRECT_URI, "http://localhost:8080/app/callback");
+        parameters.put(OAuth2Utils.STATE, "af0ifjsldkj");
+        parameters.put(OAuth2Utils.SCOPE, "openid uaa.user");
+        TokenRequest tokenRequest = new TokenRequest(parameters, client.getClientId(), client.getScope(), "authorization_code");
+        authentication = new OAuth2Authentication(tokenRequest.createOAuth2Request(client), userAuthentication);
+
+        json = store.serializeOauth2Authentication(authentication);
+        encoded = OAuth2AuthenticationCodec.encode(authentication);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        return store.serializeOauth2Authentication(authentication);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return OAuth2AuthenticationCodec.encode(authentication);
+    }
+
+    @Benchmark
+    public OAuth2Authentication decodeJson() {
+        return store.deserializeOauth2Authentication(json);
+    }
+
+    @Benchmark
+    public OAuth2Authentication decodeBinary() {
+        return OAuth2AuthenticationCodec.decode(encoded);
+    }
+}
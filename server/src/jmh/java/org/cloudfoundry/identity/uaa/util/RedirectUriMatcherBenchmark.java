@@ -0,0 +1,94 @@
+package org.cloudfoundry.identity.uaa.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.AntPathMatcher;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link UaaUrlUtils#findMatchingRedirectUri} with trying every redirect URI pattern of a
+ * client with a new {@link AntPathMatcher}, for a URI matching the last pattern and for one matching
+ * none of them.
+ * <p>
+ * ./gradlew :cloudfoundry-identity-server:jmh -Pjmh.include=RedirectUriMatcherBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RedirectUriMatcherBenchmark {
+
+    private static final String FALLBACK = "https://uaa.example.com/home";
+
+    @Param({"1", "50", "500"})
+    int patterns;
+
+    Set<String> redirectUris;
+    String matching;
+    String notMatching;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        redirectUris = new LinkedHashSet<>();
+        for (int i = 0; i < patterns; i++) {
+            switch (i % 3) {
+                case 0:
+                    redirectUris.add("https://app" + i + ".example.com/callback");
+                    break;
+                case 1:
+                    redirectUris.add("https://*.tenant" + i + ".example.com/**");
+                    break;
+                default:
+                    redirectUris.add("https://example.com/app" + i + "/**");
+            }
+        }
+        String last = redirectUris.stream().reduce((first, second) -> second).orElseThrow(IllegalStateException::new);
+        matching = last.replace("*.", "login.").replace("**", "oauth/callback");
+        notMatching = "https://attacker.example.org/oauth/callback";
+    }
+
+    @Benchmark
+    public String antPathMatcherMatching() {
+        return antPathMatcher(matching);
+    }
+
+    @Benchmark
+    public String antPathMatcherNotMatching() {
+        return antPathMatcher(notMatching);
+    }
+
+    @Benchmark
+    public String compiledMatching() {
+        return UaaUrlUtils.findMatchingRedirectUri(redirectUris, matching, FALLBACK);
+    }
+
+    @Benchmark
+    public String compiledNotMatching() {
+        return UaaUrlUtils.findMatchingRedirectUri(redirectUris, notMatching, FALLBACK);
+    }
+
+    private String antPathMatcher(String requestedRedirectUri) {
+        AntPathMatcher matcher = new AntPathMatcher();
+        for (String pattern : redirectUris) {
+            if (matcher.match(pattern, requestedRedirectUri)) {
+                return requestedRedirectUri;
+            }
+        }
+        return FALLBACK;
+    }
+}
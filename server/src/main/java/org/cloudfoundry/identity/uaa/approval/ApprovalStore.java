@@ -12,12 +12,26 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.approval;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 public interface ApprovalStore {
 
     boolean addApproval(Approval approval, final String zoneId);
 
+    /**
+     * Adds or updates several approvals at once, such as the approved and denied scopes of one consent.
+     */
+    default boolean addApprovals(Collection<Approval> approvals, final String zoneId) {
+        boolean added = true;
+        for (Approval approval : approvals) {
+            added &= addApproval(approval, zoneId);
+        }
+        return added;
+    }
+
     boolean revokeApproval(Approval approval, final String zoneId);
 
     boolean revokeApprovalsForUser(String userId, final String zoneId);
@@ -31,4 +45,13 @@ public interface ApprovalStore {
     List<Approval> getApprovalsForUser(String userId, final String zoneId);
 
     List<Approval> getApprovalsForClient(String clientId, final String zoneId);
+
+    /**
+     * The approvals of several users at once, grouped by user id. Users without approvals are left out.
+     */
+    default Map<String, List<Approval>> getApprovalsForUsers(Collection<String> userIds, final String zoneId) {
+        return userIds.stream()
+                .flatMap(userId -> getApprovalsForUser(userId, zoneId).stream())
+                .collect(Collectors.groupingBy(Approval::getUserId));
+    }
 }
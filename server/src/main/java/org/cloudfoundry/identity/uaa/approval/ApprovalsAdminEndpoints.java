@@ -138,10 +138,9 @@ public class ApprovalsAdminEndpoints implements InitializingBean {
             } else {
                 approval.setUserId(currentUserId);
             }
-            if (approvalStore.addApproval(approval, IdentityZoneHolder.get().getId())) {
-                result.add(approval);
-            }
+            result.add(approval);
         }
+        approvalStore.addApprovals(result, IdentityZoneHolder.get().getId());
         return result;
     }
 
@@ -160,8 +159,8 @@ public class ApprovalsAdminEndpoints implements InitializingBean {
             } else {
                 approval.setUserId(currentUserId);
             }
-            approvalStore.addApproval(approval, IdentityZoneHolder.get().getId());
         }
+        approvalStore.addApprovals(Arrays.asList(approvals), IdentityZoneHolder.get().getId());
         return approvalStore.getApprovals(currentUserId, clientId, IdentityZoneHolder.get().getId());
     }
 
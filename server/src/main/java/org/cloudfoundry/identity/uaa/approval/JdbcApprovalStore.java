@@ -12,28 +12,46 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.approval;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.cloudfoundry.identity.uaa.approval.Approval.ApprovalStatus;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
 import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
 import org.cloudfoundry.identity.uaa.audit.event.SystemDeletable;
+import org.cloudfoundry.identity.uaa.cache.CacheGeneration;
+import org.cloudfoundry.identity.uaa.db.Vendor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.util.Assert;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import static org.cloudfoundry.identity.uaa.approval.Approval.ApprovalStatus.APPROVED;
 
@@ -58,6 +76,30 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         String.format("update %s set lastModifiedAt=?, expiresAt=?, status=? where user_id=? and client_Id=? and scope=? and identity_zone_id=?",
                       TABLE_NAME);
 
+    private static final String POSTGRESQL_UPSERT_AUTHZ_SQL =
+        String.format("insert into %s ( %s ) values (?,?,?,?,?,?,?) on conflict (user_id, client_id, scope) " +
+                      "do update set lastModifiedAt=excluded.lastModifiedAt, expiresAt=excluded.expiresAt, status=excluded.status " +
+                      "where %s.identity_zone_id=excluded.identity_zone_id",
+                      TABLE_NAME,
+                      FIELDS,
+                      TABLE_NAME);
+
+    private static final String HSQLDB_UPSERT_AUTHZ_SQL =
+        String.format("merge into %s using (values (cast(? as varchar(36)), cast(? as varchar(255)), cast(? as varchar(255)), " +
+                      "cast(? as timestamp), cast(? as varchar(50)), cast(? as timestamp), cast(? as varchar(36)))) as vals ( %s ) " +
+                      "on %s.user_id=vals.user_id and %s.client_id=vals.client_id and %s.scope=vals.scope " +
+                      "when matched and %s.identity_zone_id=vals.identity_zone_id then update set " +
+                      "lastModifiedAt=vals.lastModifiedAt, expiresAt=vals.expiresAt, status=vals.status " +
+                      "when not matched then insert ( %s ) values (vals.user_id, vals.client_id, vals.scope, " +
+                      "vals.expiresAt, vals.status, vals.lastModifiedAt, vals.identity_zone_id)",
+                      TABLE_NAME,
+                      FIELDS,
+                      TABLE_NAME,
+                      TABLE_NAME,
+                      TABLE_NAME,
+                      TABLE_NAME,
+                      FIELDS);
+
     private static final String GET_AUTHZ_SQL = String.format("select %s from %s", FIELDS, TABLE_NAME);
 
     private static final String DELETE_AUTHZ_SQL = String.format("delete from %s", TABLE_NAME);
@@ -73,8 +115,16 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
     public static final String DELETE_OF_USER_APPROVALS_BY_PROVIDER = "delete from authz_approvals where user_id in (select id from users where origin = ? and identity_zone_id = ?)";
 
 
+    private static final int DEFAULT_MAX_CACHE_ENTRIES = 10_000;
+
+    @Value("${database.maxParameters:-1}")
+    private int maxSqlParameters;
+
     private boolean handleRevocationsAsExpiry = false;
     private ApplicationEventPublisher applicationEventPublisher;
+    private String upsertSql;
+    private Cache<List<String>, List<Approval>> approvalsCache;
+    private final CacheGeneration generation = new CacheGeneration();
 
     public JdbcApprovalStore(JdbcTemplate jdbcTemplate) {
         Assert.notNull(jdbcTemplate);
@@ -85,6 +135,55 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         this.handleRevocationsAsExpiry = handleRevocationsAsExpiry;
     }
 
+    public void setMaxSqlParameters(int maxSqlParameters) {
+        this.maxSqlParameters = maxSqlParameters;
+    }
+
+    /**
+     * Stores approvals with a single upsert statement of the given database instead of an update
+     * followed by an insert, batching the approvals of one consent into one round trip. Without a
+     * database type every approval is updated and, when missing, inserted.
+     * <p>
+     * MySQL keeps the update followed by an insert. Connector/J reports found rather than changed
+     * rows, so an upsert skipped because the approval belongs to another zone can not be told apart
+     * from one that was applied.
+     */
+    public void setDatabaseType(Vendor databaseType) {
+        if (databaseType == null) {
+            this.upsertSql = null;
+            return;
+        }
+        switch (databaseType) {
+            case postgresql:
+                this.upsertSql = POSTGRESQL_UPSERT_AUTHZ_SQL;
+                break;
+            case mysql:
+                this.upsertSql = null;
+                break;
+            default:
+                this.upsertSql = HSQLDB_UPSERT_AUTHZ_SQL;
+        }
+    }
+
+    /**
+     * Caches the approvals of a user for a client, looked up on every authorization request, for the
+     * given number of seconds. Entries are evicted when approvals are added, revoked or deleted on this
+     * node, including on an {@link ApprovalModifiedEvent}, changes made on other nodes are seen once the
+     * entry expires. Zero, the default, disables the cache.
+     */
+    public void setCacheExpirationSeconds(int cacheExpirationSeconds) {
+        generation.increment();
+        if (cacheExpirationSeconds <= 0) {
+            this.approvalsCache = null;
+            return;
+        }
+        this.approvalsCache = CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(cacheExpirationSeconds, TimeUnit.SECONDS)
+                .maximumSize(DEFAULT_MAX_CACHE_ENTRIES)
+                .build();
+    }
+
     public boolean refreshApproval(final Approval approval, final String zoneId) {
         logger.debug(String.format("refreshing approval: [%s]", approval));
         int refreshed = jdbcTemplate.update(REFRESH_AUTHZ_SQL, ps -> {
@@ -104,6 +203,9 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     @Override
     public boolean addApproval(final Approval approval, final String zoneId) {
+        if (upsertSql != null) {
+            return addApprovals(Collections.singletonList(approval), zoneId);
+        }
         logger.debug(String.format("adding approval: [%s]", approval));
         try {
             refreshApproval(approval, zoneId); // try to refresh the approval
@@ -120,11 +222,55 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
             });
             if (count == 0) throw new EmptyResultDataAccessException("Approval add failed", 1);
         }
+        evict(key -> key.equals(cacheKey(approval.getUserId(), approval.getClientId(), zoneId)));
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
         publish(new ApprovalModifiedEvent(approval, authentication));
         return true;
     }
 
+    @Override
+    public boolean addApprovals(final Collection<Approval> approvals, final String zoneId) {
+        if (upsertSql == null) {
+            return ApprovalStore.super.addApprovals(approvals, zoneId);
+        }
+        if (approvals.isEmpty()) {
+            return true;
+        }
+        logger.debug(String.format("adding approvals: %s", approvals));
+        final List<Approval> batch = new ArrayList<>(approvals);
+        int[] counts = jdbcTemplate.batchUpdate(upsertSql, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                Approval approval = batch.get(i);
+                ps.setString(1, approval.getUserId());
+                ps.setString(2, approval.getClientId());
+                ps.setString(3, approval.getScope());
+                ps.setTimestamp(4, new Timestamp(approval.getExpiresAt().getTime()));
+                ps.setString(5, (approval.getStatus() == null ? APPROVED : approval.getStatus()).toString());
+                ps.setTimestamp(6, new Timestamp(approval.getLastUpdatedAt().getTime()));
+                ps.setString(7, zoneId);
+            }
+
+            @Override
+            public int getBatchSize() {
+                return batch.size();
+            }
+        });
+        Set<List<String>> modified = batch.stream()
+                .map(approval -> cacheKey(approval.getUserId(), approval.getClientId(), zoneId))
+                .collect(Collectors.toSet());
+        evict(modified::contains);
+        for (int count : counts) {
+            //the row exists in another zone
+            if (count == 0) throw new DataIntegrityViolationException("Approval add failed");
+        }
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        for (Approval approval : batch) {
+            publish(new ApprovalModifiedEvent(approval, authentication));
+        }
+        return true;
+    }
+
     @Override
     public boolean revokeApproval(Approval approval, final String zoneId) {
         String sql = handleRevocationsAsExpiry ? EXPIRE_AUTHZ_SQL : DELETE_AUTHZ_SQL;
@@ -136,6 +282,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
             ps.setString(pos++, approval.getScope());
             ps.setString(pos++, zoneId);
         });
+        evict(key -> key.equals(cacheKey(approval.getUserId(), approval.getClientId(), zoneId)));
         return count > 0;
     }
 
@@ -148,6 +295,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
             ps.setString(pos++, userId);
             ps.setString(pos++, zoneId);
         });
+        evict(forUser(userId, zoneId));
         return count > 0;
     }
 
@@ -160,6 +308,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
             ps.setString(pos++, clientId);
             ps.setString(pos++, zoneId);
         });
+        evict(forClient(clientId, zoneId));
         return count > 0;
     }
 
@@ -173,6 +322,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
             ps.setString(pos++, clientId);
             ps.setString(pos++, zoneId);
         });
+        evict(key -> key.equals(cacheKey(userId, clientId, zoneId)));
         return count > 0;
     }
 
@@ -184,6 +334,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
                                                   ps.setTimestamp(1, new Timestamp(new Date().getTime()));
                                               });
             logger.debug(deleted + " expired approvals deleted");
+            evict(key -> true);
         } catch (DataAccessException ex) {
             logger.error("Error purging expired approvals", ex);
             return false;
@@ -205,6 +356,25 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         );
     }
 
+    @Override
+    public Map<String, List<Approval>> getApprovalsForUsers(Collection<String> userIds, final String zoneId) {
+        if (userIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<Approval> approvals = new ArrayList<>();
+        List<String> userList = new ArrayList<>(userIds);
+        while (!userList.isEmpty()) {
+            int size = maxSqlParameters > 1 ? Math.min(maxSqlParameters - 1, userList.size()) : userList.size();
+            String sql = GET_AUTHZ_SQL + " WHERE user_id IN (" + userList.subList(0, size).stream().map(id -> "?").collect(Collectors.joining(",")) +
+                    ") AND identity_zone_id = ?";
+            List<Object> args = new ArrayList<>(userList.subList(0, size));
+            args.add(zoneId);
+            approvals.addAll(jdbcTemplate.query(sql, rowMapper, args.toArray()));
+            userList = userList.subList(size, userList.size());
+        }
+        return approvals.stream().collect(Collectors.groupingBy(Approval::getUserId));
+    }
+
     @Override
     public List<Approval> getApprovalsForClient(String clientId, final String zoneId) {
         String sql = GET_AUTHZ_SQL + " WHERE client_id = ? AND identity_zone_id = ?";
@@ -221,6 +391,21 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
 
     @Override
     public List<Approval> getApprovals(String userId, String clientId, final String zoneId) {
+        if (approvalsCache == null) {
+            return queryApprovals(userId, clientId, zoneId);
+        }
+        List<String> key = cacheKey(userId, clientId, zoneId);
+        List<Approval> approvals = approvalsCache.getIfPresent(key);
+        if (approvals == null) {
+            long current = generation.current();
+            approvals = queryApprovals(userId, clientId, zoneId);
+            generation.putIfUnchanged(approvalsCache, current, key, approvals);
+        }
+        //callers may modify the approvals they get
+        return approvals.stream().map(JdbcApprovalStore::copyOf).collect(Collectors.toList());
+    }
+
+    private List<Approval> queryApprovals(String userId, String clientId, final String zoneId) {
         String sql = GET_AUTHZ_SQL + " WHERE user_id = ? AND client_id = ? AND identity_zone_id = ?";
         return jdbcTemplate.query(
             sql,
@@ -239,6 +424,15 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         this.applicationEventPublisher = applicationEventPublisher;
     }
 
+    @Override
+    public void onApplicationEvent(AbstractUaaEvent event) {
+        if (event instanceof ApprovalModifiedEvent) {
+            Approval approval = ((ApprovalModifiedEvent) event).getSource();
+            evict(key -> key.equals(cacheKey(approval.getUserId(), approval.getClientId(), event.getIdentityZoneId())));
+        }
+        SystemDeletable.super.onApplicationEvent(event);
+    }
+
     public void publish(ApplicationEvent event) {
         if (applicationEventPublisher != null) {
             applicationEventPublisher.publishEvent(event);
@@ -248,6 +442,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
     @Override
     public int deleteByIdentityZone(String zoneId) {
         int approvalCount = jdbcTemplate.update(DELETE_ZONE_APPROVALS, zoneId);
+        evict(key -> Objects.equals(zoneId, key.get(2)));
         getLogger().debug(String.format("Deleted zone approvals '%s' and count:%s", zoneId, approvalCount));
         return approvalCount;
     }
@@ -255,6 +450,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
     @Override
     public int deleteByOrigin(String origin, String zoneId) {
         int approvalCount = jdbcTemplate.update(DELETE_OF_USER_APPROVALS_BY_PROVIDER, origin, zoneId);
+        evict(key -> Objects.equals(zoneId, key.get(2)));
         getLogger().debug(String.format("Deleted provider approvals '%s'/%s and count:%s", origin, zoneId, approvalCount));
         return approvalCount;
     }
@@ -262,6 +458,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
     @Override
     public int deleteByClient(String clientId, String zoneId) {
         int approvalCount = jdbcTemplate.update(DELETE_CLIENT_APPROVALS, clientId, zoneId);
+        evict(forClient(clientId, zoneId));
         getLogger().debug(String.format("Deleted client '%s' and %s approvals", clientId, approvalCount));
         return approvalCount;
     }
@@ -269,6 +466,7 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
     @Override
     public int deleteByUser(String userId, String zoneId) {
         int approvalCount = jdbcTemplate.update(DELETE_USER_APPROVALS, userId, zoneId);
+        evict(forUser(userId, zoneId));
         getLogger().debug(String.format("Deleted user '%s' and %s approvals", userId, approvalCount));
         return approvalCount;
     }
@@ -278,6 +476,36 @@ public class JdbcApprovalStore implements ApprovalStore, ApplicationEventPublish
         return logger;
     }
 
+    private void evict(Predicate<List<String>> keys) {
+        generation.increment();
+        Cache<List<String>, List<Approval>> cache = approvalsCache;
+        if (cache != null) {
+            cache.asMap().keySet().removeIf(keys);
+        }
+    }
+
+    private static List<String> cacheKey(String userId, String clientId, String zoneId) {
+        return Arrays.asList(userId, clientId, zoneId);
+    }
+
+    private static Predicate<List<String>> forUser(String userId, String zoneId) {
+        return key -> Objects.equals(userId, key.get(0)) && Objects.equals(zoneId, key.get(2));
+    }
+
+    private static Predicate<List<String>> forClient(String clientId, String zoneId) {
+        return key -> Objects.equals(clientId, key.get(1)) && Objects.equals(zoneId, key.get(2));
+    }
+
+    private static Approval copyOf(Approval approval) {
+        return new Approval()
+            .setUserId(approval.getUserId())
+            .setClientId(approval.getClientId())
+            .setScope(approval.getScope())
+            .setExpiresAt(new Date(approval.getExpiresAt().getTime()))
+            .setStatus(approval.getStatus())
+            .setLastUpdatedAt(new Date(approval.getLastUpdatedAt().getTime()));
+    }
+
     private static class AuthorizationRowMapper implements RowMapper<Approval> {
 
         @Override
@@ -12,19 +12,87 @@
  *******************************************************************************/
 package org.cloudfoundry.identity.uaa.audit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.support.MetricType;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
 
+/**
+ * By default every {@link #log(AuditEvent, String)} inserts the event on the calling thread.
+ * <p>
+ * With {@link #setAsync(boolean) async} enabled, events are put on a bounded queue and inserted
+ * with JDBC batch statements by a background thread every {@link #setFlushInterval(long) flush interval}
+ * or once {@link #setBatchSize(int) batch size} events are pending. When the queue is full the
+ * {@link #setOverflowPolicy(OverflowPolicy) overflow policy} decides whether the event is inserted on
+ * the calling thread or dropped. Queued events are returned by {@link #find(String, long, String)} on this
+ * node, other nodes do not see them until they have been flushed, and they are lost if the node dies
+ * before the flush.
+ */
+public class JdbcAuditService implements UaaAuditService, InitializingBean, DisposableBean {
 
-public class JdbcAuditService implements UaaAuditService {
+    public enum OverflowPolicy {
+        /**
+         * Insert the event on the calling thread.
+         */
+        CALLER_RUNS,
+        /**
+         * Drop the event that does not fit.
+         */
+        DISCARD_NEWEST,
+        /**
+         * Drop the oldest queued event to make room.
+         */
+        DISCARD_OLDEST
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(JdbcAuditService.class);
+
+    private static final String INSERT_QUERY = "insert into sec_audit (principal_id, event_type, origin, event_data, identity_zone_id) values (?,?,?,?,?)";
+    private static final String INSERT_WITH_CREATED_QUERY = "insert into sec_audit (principal_id, event_type, origin, event_data, identity_zone_id, created) values (?,?,?,?,?,?)";
+    private static final String DELETE_PRINCIPAL_EVENTS_QUERY = "delete from sec_audit where principal_id=? and identity_zone_id=? and event_type=?";
 
     private final JdbcTemplate template;
 
+    private boolean async = false;
+    private int queueSize = 10_000;
+    private int batchSize = 100;
+    private Duration flushInterval = Duration.ofMillis(50L);
+    private OverflowPolicy overflowPolicy = OverflowPolicy.CALLER_RUNS;
+
+    private volatile BlockingQueue<QueuedAuditEvent> queuedEvents;
+    //held for reading while queued events are merged with the database, and for writing while they move there
+    private final ReadWriteLock queueLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private ScheduledExecutorService backgroundWorker;
+
+    private final LongAdder writtenEvents = new LongAdder();
+    private final LongAdder droppedEvents = new LongAdder();
+    private final LongAdder callerRunsEvents = new LongAdder();
+    private final LongAdder failedEvents = new LongAdder();
+
     public JdbcAuditService(JdbcTemplate template) {
         this.template = template;
     }
@@ -33,8 +101,64 @@ public class JdbcAuditService implements UaaAuditService {
         return template;
     }
 
+    @Override
+    public void afterPropertiesSet() {
+        if (!async) {
+            return;
+        }
+        queuedEvents = new ArrayBlockingQueue<>(queueSize);
+        long interval = flushInterval.toMillis();
+        getBackgroundWorker().scheduleWithFixedDelay(this::flushQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (backgroundWorker != null) {
+            backgroundWorker.shutdown();
+            backgroundWorker.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        //events logged from now on are inserted on the calling thread
+        BlockingQueue<QueuedAuditEvent> queue = queuedEvents;
+        queuedEvents = null;
+        flush(queue);
+    }
+
+    /**
+     * The thread that writes queued events, created on first use.
+     */
+    private synchronized ScheduledExecutorService getBackgroundWorker() {
+        if (backgroundWorker == null) {
+            backgroundWorker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "audit-event-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return backgroundWorker;
+    }
+
     @Override
     public List<AuditEvent> find(String principalId, long after, String zoneId) {
+        BlockingQueue<QueuedAuditEvent> queue = queuedEvents;
+        if (queue == null) {
+            return query(principalId, after, zoneId);
+        }
+        queueLock.readLock().lock();
+        try {
+            List<AuditEvent> events = new ArrayList<>(query(principalId, after, zoneId));
+            for (QueuedAuditEvent event : queue) {
+                if (event.matches(principalId, zoneId) && event.created.getTime() > after) {
+                    events.add(event.toAuditEvent());
+                }
+            }
+            events.sort(Comparator.comparingLong(AuditEvent::getTime).reversed());
+            return events;
+        } finally {
+            queueLock.readLock().unlock();
+        }
+    }
+
+    private List<AuditEvent> query(String principalId, long after, String zoneId) {
         return template.query("select event_type, principal_id, origin, event_data, created, identity_zone_id from sec_audit where " +
             "principal_id=? and identity_zone_id=? and created > ? order by created desc", new AuditEventRowMapper(), principalId
             , zoneId, new Timestamp(after));
@@ -42,15 +166,207 @@ public class JdbcAuditService implements UaaAuditService {
 
     @Override
     public void log(AuditEvent auditEvent, String zoneId) {
-        String origin = auditEvent.getOrigin();
-        String data = auditEvent.getData();
-        origin = origin == null ? "" : origin;
-        origin = origin.length() > 255 ? origin.substring(0, 255) : origin;
-        data = data == null ? "" : data;
-        data = data.length() > 255 ? data.substring(0, 255) : data;
-        template.update("insert into sec_audit (principal_id, event_type, origin, event_data, identity_zone_id) values (?,?,?,?,?)",
-                        auditEvent.getPrincipalId(), auditEvent.getType().getCode(), origin,
-                        data, zoneId);
+        QueuedAuditEvent event = new QueuedAuditEvent(auditEvent, zoneId);
+        BlockingQueue<QueuedAuditEvent> queue = queuedEvents;
+        if (queue == null) {
+            template.update(INSERT_QUERY, event.principalId, event.eventType.getCode(), event.origin, event.data, event.zoneId);
+            return;
+        }
+        if (!queue.offer(event) && !handleOverflow(queue, event)) {
+            return;
+        }
+        if (queue.size() >= batchSize) {
+            scheduleFlush();
+        }
+    }
+
+    private boolean handleOverflow(BlockingQueue<QueuedAuditEvent> queue, QueuedAuditEvent event) {
+        switch (overflowPolicy) {
+            case CALLER_RUNS:
+                callerRunsEvents.increment();
+                insert(event);
+                return false;
+            case DISCARD_OLDEST:
+                if (queue.poll() != null) {
+                    droppedEvents.increment();
+                }
+                if (queue.offer(event)) {
+                    return true;
+                }
+                break;
+            default:
+                break;
+        }
+        droppedEvents.increment();
+        logger.debug("Audit event queue is full, dropping event.");
+        return false;
+    }
+
+    /**
+     * Deletes the events of a principal, including queued ones, so an event queued before the
+     * delete can not be written after it.
+     */
+    protected void deleteEvents(String principalId, String zoneId, AuditEventType eventType) {
+        BlockingQueue<QueuedAuditEvent> queue = queuedEvents;
+        if (queue == null) {
+            template.update(DELETE_PRINCIPAL_EVENTS_QUERY, principalId, zoneId, eventType.getCode());
+            return;
+        }
+        queueLock.writeLock().lock();
+        try {
+            queue.removeIf(event -> event.matches(principalId, zoneId) && event.eventType == eventType);
+            template.update(DELETE_PRINCIPAL_EVENTS_QUERY, principalId, zoneId, eventType.getCode());
+        } finally {
+            queueLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts all events queued by async mode.
+     */
+    public void flush() {
+        flush(queuedEvents);
+    }
+
+    private void flush(BlockingQueue<QueuedAuditEvent> queue) {
+        if (queue == null) {
+            return;
+        }
+        List<QueuedAuditEvent> batch = new ArrayList<>(batchSize);
+        while (!queue.isEmpty()) {
+            //release the lock between batches so lookups are not held up by a long queue
+            queueLock.writeLock().lock();
+            try {
+                queue.drainTo(batch, batchSize);
+                insertBatch(batch);
+            } finally {
+                queueLock.writeLock().unlock();
+            }
+            batch.clear();
+        }
+    }
+
+    private void insertBatch(List<QueuedAuditEvent> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            template.batchUpdate(INSERT_WITH_CREATED_QUERY, batch.stream().map(QueuedAuditEvent::insertArgs).collect(Collectors.toList()));
+            writtenEvents.add(batch.size());
+        } catch (DataAccessException e) {
+            //a single bad row fails the whole batch, so retry row by row to keep the others
+            logger.warn("Batch insert of " + batch.size() + " audit events failed, inserting one by one.", e);
+            batch.forEach(this::insert);
+        }
+    }
+
+    private void insert(QueuedAuditEvent event) {
+        try {
+            template.update(INSERT_WITH_CREATED_QUERY, event.insertArgs());
+            writtenEvents.increment();
+        } catch (DataAccessException e) {
+            failedEvents.increment();
+            logger.error("Unable to insert audit event for principal " + event.principalId + ", dropping it.", e);
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            getBackgroundWorker().execute(() -> {
+                flushScheduled.set(false);
+                flushQuietly();
+            });
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            logger.error("Unable to flush queued audit events.", e);
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Queued Audit Events")
+    public int getQueueDepth() {
+        BlockingQueue<QueuedAuditEvent> queue = queuedEvents;
+        return queue == null ? 0 : queue.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Written From Queue")
+    public long getWrittenEventCount() {
+        return writtenEvents.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Dropped On Full Queue")
+    public long getDroppedEventCount() {
+        return droppedEvents.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Written By Caller On Full Queue")
+    public long getCallerRunsEventCount() {
+        return callerRunsEvents.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Audit Events Failed To Write")
+    public long getFailedEventCount() {
+        return failedEvents.sum();
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = Duration.ofMillis(Math.max(1, flushInterval));
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    private static final class QueuedAuditEvent {
+        private final AuditEventType eventType;
+        private final String principalId;
+        private final String origin;
+        private final String data;
+        private final String zoneId;
+        private final Timestamp created;
+
+        private QueuedAuditEvent(AuditEvent auditEvent, String zoneId) {
+            String origin = auditEvent.getOrigin();
+            String data = auditEvent.getData();
+            origin = origin == null ? "" : origin;
+            origin = origin.length() > 255 ? origin.substring(0, 255) : origin;
+            data = data == null ? "" : data;
+            data = data.length() > 255 ? data.substring(0, 255) : data;
+            this.eventType = auditEvent.getType();
+            this.principalId = auditEvent.getPrincipalId();
+            this.origin = origin;
+            this.data = data;
+            this.zoneId = zoneId;
+            this.created = new Timestamp(auditEvent.getTime());
+        }
+
+        private boolean matches(String principalId, String zoneId) {
+            return this.principalId != null && this.principalId.equals(principalId) && this.zoneId != null && this.zoneId.equals(zoneId);
+        }
+
+        private Object[] insertArgs() {
+            return new Object[]{principalId, eventType.getCode(), origin, data, zoneId, created};
+        }
+
+        private AuditEvent toAuditEvent() {
+            return new AuditEvent(eventType, principalId, origin, data, created.getTime(), zoneId, null, null);
+        }
     }
 
     private class AuditEventRowMapper implements RowMapper<AuditEvent> {
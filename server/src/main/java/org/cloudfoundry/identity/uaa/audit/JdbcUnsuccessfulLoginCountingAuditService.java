@@ -1,9 +1,9 @@
 package org.cloudfoundry.identity.uaa.audit;
 
+import org.cloudfoundry.identity.uaa.resources.jdbc.ExpiredRowSweeper;
 import org.cloudfoundry.identity.uaa.util.TimeService;
-import org.cloudfoundry.identity.uaa.util.TimeServiceImpl;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.stereotype.Component;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
 import java.sql.Timestamp;
 import java.time.Duration;
@@ -16,10 +16,18 @@ import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticat
  * An audit service that subscribes to audit events but only saves enough data
  * to answer queries about consecutive
  * failed logins.
+ * <p>
+ * Events older than a day are purged at most every 30 seconds, inline on the thread logging a failure,
+ * or by the {@link #setExpiredRowSweeper(ExpiredRowSweeper) expired row sweeper} if one is set.
  */
-@Component("jdbcAuditService")
+@ManagedResource(
+        objectName = "cloudfoundry.identity:name=UaaAuditWriter",
+        description = "UAA Audit Writer Metrics"
+)
 public class JdbcUnsuccessfulLoginCountingAuditService extends JdbcAuditService {
 
+    private static final String DELETE_EXPIRED_QUERY = "delete from sec_audit where created < ?";
+
     private final TimeService timeService;
 
     private final Duration saveDataPeriod;
@@ -27,6 +35,8 @@ public class JdbcUnsuccessfulLoginCountingAuditService extends JdbcAuditService
 
     private AtomicLong lastDelete;
 
+    private boolean purgeInBackground = false;
+
     public JdbcUnsuccessfulLoginCountingAuditService(
             final JdbcTemplate template,
             final TimeService timeService) {
@@ -63,17 +73,26 @@ public class JdbcUnsuccessfulLoginCountingAuditService extends JdbcAuditService
     }
 
     private void resetAuthenticationEvents(AuditEvent auditEvent, String zoneId, AuditEventType eventType) {
-        getJdbcTemplate().update("delete from sec_audit where principal_id=? and identity_zone_id=? and event_type=?", auditEvent.getPrincipalId(), zoneId, eventType.getCode());
+        deleteEvents(auditEvent.getPrincipalId(), zoneId, eventType);
     }
 
     protected void periodicDelete() {
+        if (purgeInBackground) {
+            return;
+        }
         long now = timeService.getCurrentTimeMillis();
         long lastCheck = lastDelete.get();
         if (now - lastCheck > timeBetweenDelete.toMillis() && lastDelete.compareAndSet(lastCheck, now)) {
-            getJdbcTemplate().update("delete from sec_audit where created < ?",
+            getJdbcTemplate().update(DELETE_EXPIRED_QUERY,
                     new Timestamp(System.currentTimeMillis()
                             - saveDataPeriod.toMillis()));
         }
     }
 
+    public void setExpiredRowSweeper(ExpiredRowSweeper expiredRowSweeper) {
+        this.purgeInBackground = expiredRowSweeper.register("sec_audit", "id", "created", timeBetweenDelete.toMillis(),
+                () -> new Timestamp(timeService.getCurrentTimeMillis() - saveDataPeriod.toMillis()));
+    }
+
+
 }
@@ -0,0 +1,188 @@
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.AuditEventType;
+import org.cloudfoundry.identity.uaa.audit.UaaAuditService;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.cache.TimeServiceTicker;
+import org.cloudfoundry.identity.uaa.provider.LockoutPolicy;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.springframework.context.ApplicationListener;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PasswordChangeSuccess;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAccountUnlockedEvent;
+import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationSuccess;
+
+/**
+ * {@link CommonLoginPolicy} that keeps the most recent failures of each principal in memory instead of
+ * reading them from the audit table on every login attempt. The failures of a principal are read from
+ * the audit service on first use and then maintained from the audit events published on this node.
+ * They are read again after {@code refreshSeconds}, which picks up failures recorded by other nodes.
+ * <p>
+ * Failures are reset by the same events that make the audit service delete them, so the lockout
+ * decision is the same as with {@link CommonLoginPolicy}. Zones allowing more failures than are kept
+ * in memory are checked against the audit service.
+ */
+public class SlidingWindowLoginPolicy extends CommonLoginPolicy implements ApplicationListener<AbstractUaaEvent> {
+
+    static final int MAX_RECORDED_FAILURES = 64;
+
+    private final UaaAuditService auditService;
+    private final AuditEventType successEventType;
+    private final AuditEventType failureEventType;
+    private final TimeService timeService;
+    private final boolean enabled;
+    private final boolean cacheEnabled;
+    private final Cache<String, FailureWindow> failures;
+
+    public SlidingWindowLoginPolicy(UaaAuditService auditService,
+                                    LockoutPolicyRetriever lockoutPolicyRetriever,
+                                    AuditEventType successEventType,
+                                    AuditEventType failureEventType,
+                                    TimeService timeService,
+                                    boolean enabled,
+                                    int maxEntries,
+                                    int refreshSeconds) {
+        super(auditService, lockoutPolicyRetriever, successEventType, failureEventType, timeService, enabled);
+        this.auditService = auditService;
+        this.successEventType = successEventType;
+        this.failureEventType = failureEventType;
+        this.timeService = timeService;
+        this.enabled = enabled;
+        this.cacheEnabled = maxEntries > 0 && refreshSeconds > 0;
+        Ticker ticker = new TimeServiceTicker(timeService);
+        this.failures = CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(Math.max(0, refreshSeconds), TimeUnit.SECONDS)
+                .maximumSize(Math.max(0, maxEntries))
+                .ticker(ticker)
+                .build();
+    }
+
+    @Override
+    public Result isAllowed(String principalId) {
+        if (!enabled || !cacheEnabled) {
+            return super.isAllowed(principalId);
+        }
+        LockoutPolicy lockoutPolicy = getLockoutPolicyRetriever().getLockoutPolicy();
+        if (lockoutPolicy.getLockoutAfterFailures() > MAX_RECORDED_FAILURES) {
+            return super.isAllowed(principalId);
+        }
+        String zoneId = IdentityZoneHolder.get().getId();
+        long now = timeService.getCurrentTimeMillis();
+        long eventsAfter = now - lockoutPolicy.getCountFailuresWithin() * 1000;
+        FailureWindow window;
+        try {
+            window = failures.get(key(principalId, zoneId), () -> load(principalId, zoneId, eventsAfter));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            //let the audit service report the error
+            return super.isAllowed(principalId);
+        }
+        int failureCount = window.countAfter(eventsAfter);
+        if (failureCount >= lockoutPolicy.getLockoutAfterFailures()
+                && window.mostRecent() > now - lockoutPolicy.getLockoutPeriodSeconds() * 1000) {
+            return new Result(false, failureCount);
+        }
+        return new Result(true, failureCount);
+    }
+
+    @Override
+    public void onApplicationEvent(AbstractUaaEvent event) {
+        if (!cacheEnabled) {
+            return;
+        }
+        AuditEvent auditEvent = event.getAuditEvent();
+        if (auditEvent.getPrincipalId() == null) {
+            return;
+        }
+        String key = key(auditEvent.getPrincipalId(), auditEvent.getIdentityZoneId());
+        if (auditEvent.getType() == failureEventType) {
+            //principals without a window are read from the audit service on their next check
+            FailureWindow window = failures.getIfPresent(key);
+            if (window != null) {
+                window.add(auditEvent.getTime());
+            }
+        } else if (isReset(auditEvent.getType())) {
+            //the audit service may not have deleted the failures yet, so do not read them again
+            failures.put(key, new FailureWindow());
+        }
+    }
+
+    /**
+     * The events the audit service deletes the failures of a principal on.
+     */
+    private boolean isReset(AuditEventType type) {
+        return type == successEventType
+                || type == UserAccountUnlockedEvent
+                || (type == PasswordChangeSuccess && successEventType == UserAuthenticationSuccess);
+    }
+
+    private FailureWindow load(String principalId, String zoneId, long eventsAfter) {
+        List<AuditEvent> events = auditService.find(principalId, eventsAfter, zoneId);
+        //events are ordered newest first, only failures after the last success count
+        int sequentialEvents = 0;
+        while (sequentialEvents < events.size() && events.get(sequentialEvents).getType() != successEventType) {
+            sequentialEvents++;
+        }
+        FailureWindow window = new FailureWindow();
+        for (int i = sequentialEvents - 1; i >= 0; i--) {
+            if (events.get(i).getType() == failureEventType) {
+                window.add(events.get(i).getTime());
+            }
+        }
+        return window;
+    }
+
+    private static String key(String principalId, String zoneId) {
+        return zoneId + ":" + principalId;
+    }
+
+    /**
+     * The times of the most recent failures of a principal, kept in a ring that grows
+     * up to {@link #MAX_RECORDED_FAILURES} entries.
+     */
+    static final class FailureWindow {
+        private long[] times = new long[4];
+        private int next;
+        private int size;
+
+        synchronized void add(long time) {
+            if (size == times.length && times.length < MAX_RECORDED_FAILURES) {
+                //the ring is full and in order, so the next slot is at the end
+                times = Arrays.copyOf(times, Math.min(times.length * 2, MAX_RECORDED_FAILURES));
+                next = size;
+            }
+            times[next] = time;
+            next = (next + 1) % times.length;
+            size = Math.min(size + 1, times.length);
+        }
+
+        synchronized int countAfter(long after) {
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (times[i] > after) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        synchronized long mostRecent() {
+            long mostRecent = 0;
+            for (int i = 0; i < size; i++) {
+                mostRecent = Math.max(mostRecent, times[i]);
+            }
+            return mostRecent;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.cloudfoundry.identity.uaa.cache;
+
+import com.google.common.cache.Cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the evictions of a cache, so a value read from the database is not cached when an
+ * eviction happened while it was read.
+ * <p>
+ * Read {@link #current()} before loading the value, call {@link #increment()} before evicting
+ * entries and cache the loaded value with {@link #putIfUnchanged(Cache, long, Object, Object)}.
+ */
+public final class CacheGeneration {
+
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @return the generation to pass to {@link #isCurrent(long)} once the value is loaded
+     */
+    public long current() {
+        return generation.get();
+    }
+
+    /**
+     * Marks values loaded so far as stale, to be called before entries are evicted.
+     */
+    public void increment() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @return whether no eviction happened since the given generation was read
+     */
+    public boolean isCurrent(long expectedGeneration) {
+        return generation.get() == expectedGeneration;
+    }
+
+    /**
+     * Caches a loaded value unless an eviction happened since the given generation was read.
+     * An eviction racing with the put removes the entry again. Null values are not cached.
+     */
+    public <K, V> void putIfUnchanged(Cache<K, V> cache, long expectedGeneration, K key, V value) {
+        //skip caching a value that may have been read before a concurrent eviction
+        if (value == null || !isCurrent(expectedGeneration)) {
+            return;
+        }
+        cache.put(key, value);
+        if (!isCurrent(expectedGeneration)) {
+            cache.invalidate(key);
+        }
+    }
+}
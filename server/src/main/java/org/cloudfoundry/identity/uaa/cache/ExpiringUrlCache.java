@@ -6,7 +6,17 @@ import com.google.common.cache.CacheBuilder;
 import org.cloudfoundry.identity.uaa.util.TimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
@@ -15,16 +25,47 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Caches the content of metadata URLs for {@link #cacheExpiration}.
+ * <p>
+ * Once an entry has used up four fifths of its lifetime it is fetched again in the background while
+ * callers keep getting the cached content. Concurrent callers of an URI that is not cached, or has
+ * expired, wait for a single fetch. The fetch is conditional when the server sent an ETag or
+ * Last-Modified header. When the fetch of an expired entry fails the expired content is returned for
+ * up to {@link #maxStale} longer.
+ */
 @Component
-public class ExpiringUrlCache implements UrlContentCache {
+@ManagedResource(
+        objectName = "cloudfoundry.identity:name=ExpiringUrlCache",
+        description = "UAA Metadata URL Cache Metrics"
+)
+public class ExpiringUrlCache implements UrlContentCache, InitializingBean, DisposableBean {
     private static final Logger logger = LoggerFactory.getLogger(ExpiringUrlCache.class);
     private static final int DEFAULT_MAX_ENTRIES = 10_000;
 
     private final Duration cacheExpiration;
+    private final Duration refreshAfter;
+    private final Duration maxStale;
     private final TimeService timeService;
     private final Cache<String, CacheEntry> cache;
+    private final ConcurrentMap<String, CompletableFuture<CacheEntry>> inFlight = new ConcurrentHashMap<>();
+
+    private ExecutorService refreshWorker;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
 
     @Autowired
     public ExpiringUrlCache(final TimeService timeService) {
@@ -35,40 +76,150 @@ public class ExpiringUrlCache implements UrlContentCache {
             final Duration cacheExpiration,
             final TimeService timeService,
             final int maxEntries) {
+        this(cacheExpiration, Duration.ofHours(1), timeService, maxEntries);
+    }
+
+    public ExpiringUrlCache(
+            final Duration cacheExpiration,
+            final Duration maxStale,
+            final TimeService timeService,
+            final int maxEntries) {
         this.cacheExpiration = cacheExpiration;
+        this.refreshAfter = cacheExpiration.multipliedBy(4).dividedBy(5);
+        this.maxStale = maxStale;
         this.timeService = timeService;
         this.cache = CacheBuilder
                 .newBuilder()
-                .expireAfterWrite(this.cacheExpiration.toMillis(), TimeUnit.MILLISECONDS)
+                .expireAfterWrite(this.cacheExpiration.plus(this.maxStale).toMillis(), TimeUnit.MILLISECONDS)
                 .maximumSize(maxEntries)
                 .ticker(Ticker.systemTicker())
                 .build();
     }
 
+    @Override
+    public void afterPropertiesSet() {
+        refreshWorker = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "url-cache-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (refreshWorker != null) {
+            refreshWorker.shutdownNow();
+            refreshWorker.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
     @Override
     public byte[] getUrlContent(String uri, final RestTemplate template) {
+        final URI netUri;
+        try {
+            netUri = new URI(uri);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+        CacheEntry entry = cache.getIfPresent(uri);
+        if (entry == null) {
+            misses.increment();
+            return load(uri, netUri, template, null).data;
+        }
+        Duration age = getAge(entry);
+        if (age.compareTo(cacheExpiration) > 0) {
+            misses.increment();
+            try {
+                return load(uri, netUri, template, entry).data;
+            } catch (RestClientException x) {
+                if (age.compareTo(cacheExpiration.plus(maxStale)) > 0) {
+                    throw x;
+                }
+                staleHits.increment();
+                logger.warn("Using expired metadata for " + uri + ", fetching it failed.");
+                return entry.data;
+            }
+        }
+        hits.increment();
+        if (age.compareTo(refreshAfter) > 0) {
+            refreshInBackground(uri, netUri, template, entry);
+        }
+        return entry.data;
+    }
+
+    private CacheEntry load(String uri, URI netUri, RestTemplate template, CacheEntry current) {
+        CompletableFuture<CacheEntry> future = new CompletableFuture<>();
+        CompletableFuture<CacheEntry> existing = inFlight.putIfAbsent(uri, future);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
         try {
-            final URI netUri = new URI(uri);
-            CacheEntry entry = cache.getIfPresent(uri);
-            byte[] metadata = entry != null ? entry.data : null;
-            if (metadata == null || isEntryExpired(entry)) {
-                logger.debug("Fetching metadata for " + uri);
-                metadata = template.getForObject(netUri, byte[].class);
-                Instant now = Instant.ofEpochMilli(timeService.getCurrentTimeMillis());
-                cache.put(uri, new CacheEntry(now, metadata));
+            CacheEntry loaded = fetch(uri, netUri, template, current);
+            cache.put(uri, loaded);
+            future.complete(loaded);
+            return loaded;
+        } catch (RuntimeException x) {
+            future.completeExceptionally(x);
+            throw x;
+        } finally {
+            inFlight.remove(uri, future);
+        }
+    }
+
+    private CacheEntry fetch(String uri, URI netUri, RestTemplate template, CacheEntry current) {
+        HttpHeaders headers = new HttpHeaders();
+        if (current != null && current.etag != null) {
+            headers.setIfNoneMatch(current.etag);
+        }
+        if (current != null && current.lastModified > 0) {
+            headers.setIfModifiedSince(current.lastModified);
+        }
+        try {
+            logger.debug("Fetching metadata for " + uri);
+            ResponseEntity<byte[]> response = template.exchange(netUri, HttpMethod.GET, new HttpEntity<>(headers), byte[].class);
+            Instant now = Instant.ofEpochMilli(timeService.getCurrentTimeMillis());
+            if (current != null && response.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                notModified.increment();
+                return new CacheEntry(now, current.data, current.etag, current.lastModified);
             }
-            return metadata;
+            HttpHeaders responseHeaders = response.getHeaders();
+            return new CacheEntry(now, response.getBody(), responseHeaders.getETag(), responseHeaders.getLastModified());
         } catch (RestClientException x) {
             logger.warn("Unable to fetch metadata for " + uri, x);
             throw x;
-        } catch (URISyntaxException e) {
-            throw new IllegalArgumentException(e);
         }
     }
 
-    private boolean isEntryExpired(CacheEntry entry) {
+    private void refreshInBackground(String uri, URI netUri, RestTemplate template, CacheEntry current) {
+        if (inFlight.containsKey(uri)) {
+            return;
+        }
+        Runnable refresh = () -> {
+            try {
+                load(uri, netUri, template, current);
+                refreshes.increment();
+            } catch (RestClientException x) {
+                //the entry is fetched again once it expires
+            }
+        };
+        if (refreshWorker == null) {
+            refresh.run();
+            return;
+        }
+        try {
+            refreshWorker.execute(refresh);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Not refreshing metadata for " + uri + ", the cache is shutting down.");
+        }
+    }
+
+    private Duration getAge(CacheEntry entry) {
         Instant now = Instant.ofEpochMilli(timeService.getCurrentTimeMillis());
-        return Duration.between(entry.timeEntered, now).compareTo(cacheExpiration) > 0;
+        return Duration.between(entry.timeEntered, now);
     }
 
     @Override
@@ -81,13 +232,42 @@ public class ExpiringUrlCache implements UrlContentCache {
         return cache.size();
     }
 
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "URL Cache Hits")
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "URL Cache Misses")
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "URL Cache Background Refreshes")
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "URL Cache Not Modified Responses")
+    public long getNotModifiedCount() {
+        return notModified.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "URL Cache Expired Entries Served On Error")
+    public long getStaleHitCount() {
+        return staleHits.sum();
+    }
+
     static class CacheEntry {
         final Instant timeEntered;
         final byte[] data;
+        final String etag;
+        final long lastModified;
 
-        CacheEntry(Instant timeEntered, byte[] data) {
+        CacheEntry(Instant timeEntered, byte[] data, String etag, long lastModified) {
             this.timeEntered = timeEntered;
             this.data = data;
+            this.etag = etag;
+            this.lastModified = lastModified;
         }
     }
 }
@@ -0,0 +1,24 @@
+package org.cloudfoundry.identity.uaa.cache;
+
+import com.google.common.base.Ticker;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Ticker} reading the {@link TimeService}, so cache expiry follows the same clock as
+ * the rest of the UAA and can be moved forward in tests.
+ */
+public final class TimeServiceTicker extends Ticker {
+
+    private final TimeService timeService;
+
+    public TimeServiceTicker(TimeService timeService) {
+        this.timeService = timeService;
+    }
+
+    @Override
+    public long read() {
+        return TimeUnit.MILLISECONDS.toNanos(timeService.getCurrentTimeMillis());
+    }
+}
@@ -1,6 +1,7 @@
 package org.cloudfoundry.identity.uaa.client;
 
 import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
+import org.cloudfoundry.identity.uaa.resources.KeysetPage;
 import org.cloudfoundry.identity.uaa.resources.QueryableResourceManager;
 import org.cloudfoundry.identity.uaa.resources.jdbc.AbstractQueryable;
 import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingListFactory;
@@ -87,7 +88,15 @@ public class JdbcQueryableClientDetailsService
         return client;
     }
 
+    /**
+     * Clients have no id column to break ties between rows, so they can not be paged with a cursor.
+     */
     @Override
+    public KeysetPage<ClientDetails> queryPage(String filter, String sortBy, boolean ascending, String cursor, int count, String zoneId) {
+        throw new IllegalArgumentException("Paging with a cursor is not supported for clients");
+    }
+
+        @Override
     protected void validateOrderBy(String orderBy) throws IllegalArgumentException {
         super.validateOrderBy(orderBy, CLIENT_FIELDS.replace("client_secret,", ""));
     }
@@ -14,6 +14,7 @@ package org.cloudfoundry.identity.uaa.codestore;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.cloudfoundry.identity.uaa.resources.jdbc.ExpiredRowSweeper;
 import org.cloudfoundry.identity.uaa.util.TimeService;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.EmptyResultDataAccessException;
@@ -52,6 +53,7 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
 
     private AtomicLong lastExpired = new AtomicLong();
     private long expirationInterval = 60 * 1000; // once a minute
+    private boolean purgeInBackground = false;
 
     public long getExpirationInterval() {
         return expirationInterval;
@@ -78,6 +80,14 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
         this.timeService = timeService;
     }
 
+    /**
+     * Lets the sweeper delete expired codes instead of the request thread.
+     */
+    public void setExpiredRowSweeper(ExpiredRowSweeper expiredRowSweeper) {
+        this.purgeInBackground = expiredRowSweeper.register(tableName, "code", "expiresat",
+                expirationInterval, () -> timeService.getCurrentTimeMillis());
+    }
+
     @Override
     public ExpiringCode generateCode(String data, Timestamp expiresAt, String intent, String zoneId) {
         cleanExpiredEntries();
@@ -146,6 +156,9 @@ public class JdbcExpiringCodeStore implements ExpiringCodeStore {
     }
 
     public int cleanExpiredEntries() {
+        if (purgeInBackground) {
+            return 0;
+        }
         long now = timeService.getCurrentTimeMillis();
         long lastCheck = lastExpired.get();
 
@@ -1,5 +1,6 @@
 package org.cloudfoundry.identity.uaa.impl.config;
 
+import org.cloudfoundry.identity.uaa.util.HttpConnectionPool;
 import org.cloudfoundry.identity.uaa.util.UaaHttpRequestUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -11,13 +12,35 @@ public class RestTemplateConfig {
     @Value("${rest.template.timeout:10000}")
     public int timeout;
 
+    @Value("${rest.template.maxTotal:200}")
+    public int maxTotal = 200;
+
+    @Value("${rest.template.maxPerRoute:20}")
+    public int maxPerRoute = 20;
+
+    @Value("${rest.template.maxKeepAliveMillis:60000}")
+    public long maxKeepAlive = 60000;
+
+    @Value("${rest.template.maxIdleMillis:30000}")
+    public long maxIdle = 30000;
+
+    @Bean
+    public HttpConnectionPool nonTrustingConnectionPool() {
+        return new HttpConnectionPool(false, maxTotal, maxPerRoute, maxKeepAlive, maxIdle);
+    }
+
+    @Bean
+    public HttpConnectionPool trustingConnectionPool() {
+        return new HttpConnectionPool(true, maxTotal, maxPerRoute, maxKeepAlive, maxIdle);
+    }
+
     @Bean
     public RestTemplate nonTrustingRestTemplate() {
-        return new RestTemplate(UaaHttpRequestUtils.createRequestFactory(false, timeout));
+        return new RestTemplate(UaaHttpRequestUtils.createRequestFactory(nonTrustingConnectionPool(), timeout));
     }
 
     @Bean
     public RestTemplate trustingRestTemplate() {
-        return new RestTemplate(UaaHttpRequestUtils.createRequestFactory(true, timeout));
+        return new RestTemplate(UaaHttpRequestUtils.createRequestFactory(trustingConnectionPool(), timeout));
     }
 }
@@ -18,50 +18,69 @@ package org.cloudfoundry.identity.uaa.metrics;
 import org.cloudfoundry.identity.uaa.util.TimeService;
 import org.cloudfoundry.identity.uaa.util.TimeServiceImpl;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Calculates the time that a server is idle (no requests processing)
  * The idle time calculator starts as soon as this object is created.
+ * <p>
+ * The number of inflight requests and the start of the current idle period are packed
+ * into a single {@link AtomicLong} so that starting and ending a request is lock free.
  */
 public class IdleTimer {
 
-    TimeService timeService = new TimeServiceImpl();
+    private static final int INFLIGHT_BITS = 20;
+    private static final long INFLIGHT_MASK = (1L << INFLIGHT_BITS) - 1;
 
-    private long inflightRequests = 0;
-    private long idleTime = 0;
+    TimeService timeService = new TimeServiceImpl();
 
-    private long lastIdleStart = timeService.getCurrentTimeMillis();
+    private final AtomicLong state = new AtomicLong(pack(timeService.getCurrentTimeMillis(), 0));
+    private final LongAdder idleTime = new LongAdder();
+    private final LongAdder requestCount = new LongAdder();
     private final long startTime = timeService.getCurrentTimeMillis();
-    private long requestCount = 0;
-
-    public synchronized void endRequest() {
-        switch ((int) --inflightRequests) {
-            case 0:
-                lastIdleStart = timeService.getCurrentTimeMillis();
-                break;
-            case -1:
+
+    public void endRequest() {
+        long current;
+        long next;
+        do {
+            current = state.get();
+            long inflight = inflight(current) - 1;
+            if (inflight < 0) {
                 throw new IllegalStateException("Illegal end request invocation, no request in flight");
-            default:
-                break;
-        }
-        requestCount++;
+            }
+            long lastIdleStart = inflight == 0 ? timeService.getCurrentTimeMillis() : lastIdleStart(current);
+            next = pack(lastIdleStart, inflight);
+        } while (!state.compareAndSet(current, next));
+        requestCount.increment();
     }
 
-    public synchronized void startRequest() {
-        if ((int) ++inflightRequests == 1) {
-            idleTime += (timeService.getCurrentTimeMillis() - lastIdleStart);
+    public void startRequest() {
+        long current;
+        long next;
+        long idle;
+        do {
+            current = state.get();
+            long inflight = inflight(current) + 1;
+            idle = inflight == 1 ? timeService.getCurrentTimeMillis() - lastIdleStart(current) : 0;
+            next = pack(lastIdleStart(current), inflight);
+        } while (!state.compareAndSet(current, next));
+        if (idle > 0) {
+            idleTime.add(idle);
         }
     }
 
 
     public long getInflightRequests() {
-        return inflightRequests;
+        return inflight(state.get());
     }
 
-    public synchronized long getIdleTime() {
-        if (inflightRequests == 0) {
-            return (timeService.getCurrentTimeMillis() - lastIdleStart) + idleTime;
+    public long getIdleTime() {
+        long current = state.get();
+        if (inflight(current) == 0) {
+            return (timeService.getCurrentTimeMillis() - lastIdleStart(current)) + idleTime.sum();
         } else {
-            return idleTime;
+            return idleTime.sum();
         }
     }
 
@@ -70,10 +89,22 @@ public class IdleTimer {
     }
 
     protected long getRequestCount() {
-        return requestCount;
+        return requestCount.sum();
     }
 
     public void setTimeService(TimeService timeService) {
         this.timeService = timeService;
     }
+
+    private static long pack(long lastIdleStart, long inflight) {
+        return (lastIdleStart << INFLIGHT_BITS) | inflight;
+    }
+
+    private static long inflight(long state) {
+        return state & INFLIGHT_MASK;
+    }
+
+    private static long lastIdleStart(long state) {
+        return state >>> INFLIGHT_BITS;
+    }
 }
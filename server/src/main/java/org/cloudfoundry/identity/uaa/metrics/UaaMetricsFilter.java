@@ -6,24 +6,23 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 import org.springframework.jmx.export.annotation.ManagedMetric;
 import org.springframework.jmx.export.annotation.ManagedResource;
 import org.springframework.jmx.export.notification.NotificationPublisher;
 import org.springframework.jmx.export.notification.NotificationPublisherAware;
 import org.springframework.lang.NonNull;
-import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
 import org.springframework.web.filter.OncePerRequestFilter;
 import org.yaml.snakeyaml.Yaml;
 
 import javax.management.Notification;
+import javax.management.openmbean.CompositeData;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -46,7 +45,8 @@ public class UaaMetricsFilter extends OncePerRequestFilter implements UaaMetrics
     private final TimeService timeService;
     private final IdleTimer inflight;
     private final Map<String, MetricsQueue> perUriMetrics;
-    private final LinkedHashMap<AntPathRequestMatcher, UrlGroup> urlGroups;
+    private final MetricsQueue globalMetrics;
+    private final UrlGroupMatcher urlGroups;
     private final boolean enabled;
     private final boolean perRequestMetrics;
 
@@ -61,12 +61,9 @@ public class UaaMetricsFilter extends OncePerRequestFilter implements UaaMetrics
         this.perRequestMetrics = perRequestMetrics;
         this.timeService = timeService;
         this.perUriMetrics = new ConcurrentHashMap<>();
-        this.perUriMetrics.put(MetricsUtil.GLOBAL_GROUP, new MetricsQueue());
-        this.urlGroups = new LinkedHashMap<>();
-        List<UrlGroup> groups = getUrlGroups();
-        groups.forEach(
-                group -> urlGroups.put(new AntPathRequestMatcher(group.getPattern()), group)
-        );
+        this.globalMetrics = new MetricsQueue();
+        this.perUriMetrics.put(MetricsUtil.GLOBAL_GROUP, globalMetrics);
+        this.urlGroups = new UrlGroupMatcher(getUrlGroups());
         this.inflight = new IdleTimer();
     }
 
@@ -89,10 +86,8 @@ public class UaaMetricsFilter extends OncePerRequestFilter implements UaaMetrics
                 if (perRequestMetrics) {
                     sendRequestTime(uriGroup.getGroup(), metric.getRequestCompleteTime() - metric.getRequestStartTime());
                 }
-                for (String group : Arrays.asList(uriGroup.getGroup(), MetricsUtil.GLOBAL_GROUP)) {
-                    MetricsQueue queue = getMetricsQueue(group);
-                    queue.offer(metric);
-                }
+                getMetricsQueue(uriGroup.getGroup()).offer(metric);
+                globalMetrics.offer(metric);
             }
         } else {
             filterChain.doFilter(request, response);
@@ -100,29 +95,25 @@ public class UaaMetricsFilter extends OncePerRequestFilter implements UaaMetrics
     }
 
     protected MetricsQueue getMetricsQueue(String uri) {
-        if (!perUriMetrics.containsKey(uri)) {
-            perUriMetrics.putIfAbsent(uri, new MetricsQueue());
+        MetricsQueue queue = perUriMetrics.get(uri);
+        if (queue == null) {
+            queue = perUriMetrics.computeIfAbsent(uri, key -> new MetricsQueue());
         }
-        return perUriMetrics.get(uri);
+        return queue;
     }
 
     /**
      * @return null if this request should not be measured.
      */
     protected UrlGroup getUriGroup(final HttpServletRequest request) {
-        if (urlGroups != null) {
-            String uri = request.getRequestURI();
-            for (Map.Entry<AntPathRequestMatcher, UrlGroup> entry : urlGroups.entrySet()) {
-                if (entry.getKey().matches(request)) {
-                    UrlGroup group = entry.getValue();
-                    logger.debug(String.format("Successfully matched URI: %s to a group: %s", uri, group.getGroup()));
-                    return group;
-                }
-            }
-            return FALLBACK;
-        } else {
+        UrlGroup group = urlGroups != null ? urlGroups.match(request) : null;
+        if (group == null) {
             return FALLBACK;
         }
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Successfully matched URI: %s to a group: %s", request.getRequestURI(), group.getGroup()));
+        }
+        return group;
     }
 
     @Override
@@ -157,6 +148,12 @@ public class UaaMetricsFilter extends OncePerRequestFilter implements UaaMetrics
         return JsonUtils.writeValueAsString(perUriMetrics.get(MetricsUtil.GLOBAL_GROUP));
     }
 
+    @Override
+    @ManagedAttribute(description = "Server request metrics snapshot")
+    public CompositeData getSnapshot() {
+        return new MetricsSnapshot(getInflightCount(), getIdleTime(), getUpTime(), perUriMetrics).toCompositeData();
+    }
+
     public List<UrlGroup> getUrlGroups() throws IOException {
         ClassPathResource resource = new ClassPathResource("performance-url-groups.yml");
         Yaml yaml = new Yaml();
@@ -0,0 +1,198 @@
+package org.cloudfoundry.identity.uaa.metrics;
+
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.StringUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Resolves the {@link UrlGroup} of a request with the same semantics as checking an
+ * {@link org.springframework.security.web.util.matcher.AntPathRequestMatcher} per group
+ * in order, but without walking every pattern for every request.
+ * <p>
+ * The patterns are compiled once. Patterns ending in a single {@code /**} are compared as
+ * plain strings, everything else is handed to an {@link AntPathMatcher}. Candidate patterns
+ * are indexed by the hash of their first path segment, so a request only evaluates the
+ * patterns that can match its first segment, plus the patterns that start with a wildcard.
+ * Matching does not allocate.
+ */
+class UrlGroupMatcher {
+
+    private static final String MATCH_ALL = "/**";
+
+    private enum Kind {MATCH_ALL, SUBPATH, ANT}
+
+    private final UrlGroup[] groups;
+    private final Kind[] kinds;
+    private final String[] patterns;
+    private final AntPathMatcher antPathMatcher;
+
+    private final int[] allCandidates;
+    private final int[] wildcardCandidates;
+    private final int mask;
+    private final int[] segmentHashes;
+    private final int[][] segmentCandidates;
+
+    UrlGroupMatcher(List<UrlGroup> urlGroups) {
+        int size = urlGroups.size();
+        groups = urlGroups.toArray(new UrlGroup[0]);
+        kinds = new Kind[size];
+        patterns = new String[size];
+        antPathMatcher = new AntPathMatcher();
+        antPathMatcher.setTrimTokens(false);
+
+        List<String> segments = new ArrayList<>(size);
+        TreeSet<Integer> wildcards = new TreeSet<>();
+        for (int i = 0; i < size; i++) {
+            String pattern = groups[i].getPattern();
+            if (MATCH_ALL.equals(pattern)) {
+                kinds[i] = Kind.MATCH_ALL;
+                patterns[i] = pattern;
+            } else if (isSubpath(pattern)) {
+                kinds[i] = Kind.SUBPATH;
+                patterns[i] = pattern.substring(0, pattern.length() - MATCH_ALL.length());
+            } else {
+                kinds[i] = Kind.ANT;
+                patterns[i] = pattern;
+            }
+            String segment = firstSegment(pattern);
+            segments.add(segment);
+            if (segment == null) {
+                wildcards.add(i);
+            }
+        }
+
+        allCandidates = new int[size];
+        for (int i = 0; i < size; i++) {
+            allCandidates[i] = i;
+        }
+        wildcardCandidates = toArray(wildcards);
+
+        int capacity = Integer.highestOneBit(Math.max(1, size) * 4);
+        mask = capacity - 1;
+        segmentHashes = new int[capacity];
+        segmentCandidates = new int[capacity][];
+        for (String segment : segments) {
+            if (segment == null || segment.isEmpty()) {
+                continue;
+            }
+            int hash = segment.hashCode();
+            int slot = slotFor(hash);
+            if (segmentCandidates[slot] != null) {
+                continue;
+            }
+            //every pattern whose first segment shares this hash, in configuration order
+            TreeSet<Integer> candidates = new TreeSet<>(wildcards);
+            for (int i = 0; i < size; i++) {
+                String other = segments.get(i);
+                if (other != null && other.hashCode() == hash) {
+                    candidates.add(i);
+                }
+            }
+            segmentHashes[slot] = hash;
+            segmentCandidates[slot] = toArray(candidates);
+        }
+    }
+
+    /**
+     * @return the first matching group, or null if no pattern matches
+     */
+    UrlGroup match(HttpServletRequest request) {
+        return match(getRequestPath(request));
+    }
+
+    UrlGroup match(String path) {
+        if (path == null) {
+            return null;
+        }
+        for (int i : candidatesFor(path)) {
+            if (matches(i, path)) {
+                return groups[i];
+            }
+        }
+        return null;
+    }
+
+    private boolean matches(int i, String path) {
+        switch (kinds[i]) {
+            case MATCH_ALL:
+                return true;
+            case SUBPATH:
+                String subpath = patterns[i];
+                return path.startsWith(subpath) && (path.length() == subpath.length() || path.charAt(subpath.length()) == '/');
+            default:
+                return antPathMatcher.match(patterns[i], path);
+        }
+    }
+
+    private int[] candidatesFor(String path) {
+        //paths without a plain first segment, like "/" or "//x", are evaluated against every pattern
+        if (path.length() < 2 || path.charAt(0) != '/' || path.charAt(1) == '/') {
+            return allCandidates;
+        }
+        int hash = 0;
+        for (int i = 1; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '/') {
+                break;
+            }
+            hash = 31 * hash + c;
+        }
+        int slot = hash & mask;
+        while (segmentCandidates[slot] != null) {
+            if (segmentHashes[slot] == hash) {
+                return segmentCandidates[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return wildcardCandidates;
+    }
+
+    private int slotFor(int hash) {
+        int slot = hash & mask;
+        while (segmentCandidates[slot] != null && segmentHashes[slot] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return the literal first segment of the pattern, an empty string for patterns without
+     * a first segment, or null when the first segment may match more than one value
+     */
+    private static String firstSegment(String pattern) {
+        if (!pattern.startsWith("/") || pattern.startsWith("//")) {
+            return null;
+        }
+        int end = pattern.indexOf('/', 1);
+        String segment = end < 0 ? pattern.substring(1) : pattern.substring(1, end);
+        if (segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0 || segment.indexOf('{') >= 0) {
+            return null;
+        }
+        return segment;
+    }
+
+    private static boolean isSubpath(String pattern) {
+        return pattern.endsWith(MATCH_ALL) &&
+                pattern.indexOf('?') == -1 &&
+                pattern.indexOf('{') == -1 &&
+                pattern.indexOf('}') == -1 &&
+                pattern.indexOf('*') == pattern.length() - 2;
+    }
+
+    private static String getRequestPath(HttpServletRequest request) {
+        String url = request.getServletPath();
+        String pathInfo = request.getPathInfo();
+        if (pathInfo != null) {
+            url = StringUtils.hasLength(url) ? url + pathInfo : pathInfo;
+        }
+        return url;
+    }
+
+    private static int[] toArray(TreeSet<Integer> indexes) {
+        return indexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
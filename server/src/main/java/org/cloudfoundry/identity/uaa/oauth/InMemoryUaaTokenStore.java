@@ -0,0 +1,128 @@
+package org.cloudfoundry.identity.uaa.oauth;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import org.cloudfoundry.identity.uaa.cache.TimeServiceTicker;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.util.TimeServiceImpl;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+
+import javax.sql.DataSource;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link UaaTokenStore} that keeps authorization codes in memory on the node that issued them instead
+ * of writing them to the database. A code can only be consumed once, on the node that issued it, so
+ * this store requires the token request to be routed to the same node as the authorization request.
+ * <p>
+ * Codes that are not found in memory are looked up in the database, which covers codes issued before
+ * the store was enabled and codes written to the database because the store was full. Codes are kept
+ * encoded, so the authentication handed out is the same as one read from the database.
+ * <p>
+ * The number of codes in memory is limited by counting them rather than by the size of the cache, so
+ * a code that was handed out stays until it is consumed or expires and is never evicted to make room.
+ */
+public class InMemoryUaaTokenStore extends UaaTokenStore {
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final Cache<String, StoredCode> cache;
+    private final ConcurrentMap<String, StoredCode> codes;
+    private final AtomicInteger count = new AtomicInteger();
+    private final RandomValueStringGenerator generator = new RandomValueStringGenerator(10);
+    private final TimeService timeService;
+
+    public InMemoryUaaTokenStore(DataSource dataSource, int maxEntries) {
+        this(dataSource, maxEntries, new TimeServiceImpl());
+    }
+
+    public InMemoryUaaTokenStore(DataSource dataSource, int maxEntries, TimeService timeService) {
+        this(dataSource, EXPIRATION_TIME, maxEntries, timeService);
+    }
+
+    public InMemoryUaaTokenStore(DataSource dataSource, long expirationTime, int maxEntries, TimeService timeService) {
+        super(dataSource, expirationTime);
+        this.enabled = maxEntries > 0;
+        this.maxEntries = maxEntries;
+        this.timeService = timeService;
+        this.cache = CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(expirationTime, TimeUnit.MILLISECONDS)
+                .ticker(new TimeServiceTicker(timeService))
+                .removalListener(notification -> {
+                    if (notification.getCause() != RemovalCause.REPLACED) {
+                        count.decrementAndGet();
+                    }
+                })
+                .build();
+        this.codes = cache.asMap();
+    }
+
+    @Override
+    public String createAuthorizationCode(OAuth2Authentication authentication) {
+        //a full store writes to the database rather than evicting codes that were handed out
+        if (!enabled || !reserve()) {
+            return super.createAuthorizationCode(authentication);
+        }
+        //codes in memory are never read by another version, so they always use the compact encoding
+        byte[] data = OAuth2AuthenticationCodec.canEncode(authentication) ?
+                OAuth2AuthenticationCodec.encode(authentication) :
+                serializeOauth2Authentication(authentication);
+        StoredCode stored = new StoredCode(data, timeService.getCurrentTimeMillis() + getExpirationTime());
+        String code = generator.generate();
+        while (codes.putIfAbsent(code, stored) != null) {
+            code = generator.generate();
+        }
+        return code;
+    }
+
+    @Override
+    public OAuth2Authentication consumeAuthorizationCode(String code) throws InvalidGrantException {
+        StoredCode stored = code == null ? null : codes.remove(code);
+        if (stored == null) {
+            return super.consumeAuthorizationCode(code);
+        }
+        //removed entries are returned even when they have expired
+        if (stored.expiresAt < timeService.getCurrentTimeMillis()) {
+            logger.debug("[oauth_code] Found code in memory, but it expired");
+            throw new InvalidGrantException("Authorization code expired: " + code);
+        }
+        return deserializeOauth2Authentication(stored.authentication);
+    }
+
+    public int getInMemoryCodeCount() {
+        return count.get();
+    }
+
+    private boolean reserve() {
+        if (tryReserve()) {
+            return true;
+        }
+        //expired codes keep their slot until the cache cleans them up
+        cache.cleanUp();
+        return tryReserve();
+    }
+
+    private boolean tryReserve() {
+        if (count.incrementAndGet() <= maxEntries) {
+            return true;
+        }
+        count.decrementAndGet();
+        return false;
+    }
+
+    private static final class StoredCode {
+        private final byte[] authentication;
+        private final long expiresAt;
+
+        private StoredCode(byte[] authentication, long expiresAt) {
+            this.authentication = authentication;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
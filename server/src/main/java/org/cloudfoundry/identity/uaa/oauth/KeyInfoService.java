@@ -14,18 +14,35 @@
  */
 package org.cloudfoundry.identity.uaa.oauth;
 
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
 import org.cloudfoundry.identity.uaa.impl.config.LegacyTokenKey;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneConfiguration;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
+import org.springframework.context.ApplicationListener;
 import org.springframework.util.StringUtils;
 
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.cloudfoundry.identity.uaa.util.UaaUrlUtils.addSubdomainToUrl;
 
-public class KeyInfoService {
-    private String uaaBaseURL;
+/**
+ * Resolves the signing and verification keys of the current zone.
+ * <p>
+ * Parsing the PEM encoded keys is expensive, so the built {@link KeyInfo}s are cached per zone.
+ * A cached entry is only reused while the zone the keys were read from has the same version,
+ * last modified date and signing keys, and the entry is evicted when the zone is modified or deleted.
+ */
+public class KeyInfoService implements ApplicationListener<AbstractUaaEvent> {
+    private final String uaaBaseURL;
+    private final Map<String, ZoneKeys> keysByZoneId = new ConcurrentHashMap<>();
 
     public KeyInfoService(String uaaBaseURL) {
         this.uaaBaseURL = uaaBaseURL;
@@ -36,22 +53,36 @@ public class KeyInfoService {
     }
 
     public Map<String, KeyInfo> getKeys() {
-        IdentityZoneConfiguration config = IdentityZoneHolder.get().getConfig();
+        IdentityZone zone = IdentityZoneHolder.get();
+        IdentityZone keySource = zone;
+        IdentityZoneConfiguration config = zone.getConfig();
         if (config == null || config.getTokenPolicy().getKeys() == null || config.getTokenPolicy().getKeys().isEmpty()) {
-            config = IdentityZoneHolder.getUaaZone().getConfig();
+            keySource = IdentityZoneHolder.getUaaZone();
+            config = keySource.getConfig();
+        }
+
+        Map<String, String> signingKeys = config.getTokenPolicy().getKeys();
+        if (signingKeys.isEmpty()) {
+            return Collections.singletonMap(LegacyTokenKey.LEGACY_TOKEN_KEY_ID, LegacyTokenKey.getLegacyTokenKeyInfo());
+        }
+
+        String keyUrl = addSubdomainToUrl(uaaBaseURL, zone.getSubdomain());
+        ZoneKeys cached = zone.getId() == null ? null : keysByZoneId.get(zone.getId());
+        if (cached != null && cached.isCurrent(keySource, signingKeys, keyUrl)) {
+            return cached.keys;
         }
 
         Map<String, KeyInfo> keys = new HashMap<>();
-        for (Map.Entry<String, String> entry : config.getTokenPolicy().getKeys().entrySet()) {
-            KeyInfo keyInfo = KeyInfoBuilder.build(entry.getKey(), entry.getValue(), addSubdomainToUrl(uaaBaseURL, IdentityZoneHolder.get().getSubdomain()));
+        for (Map.Entry<String, String> entry : signingKeys.entrySet()) {
+            KeyInfo keyInfo = KeyInfoBuilder.build(entry.getKey(), entry.getValue(), keyUrl);
             keys.put(entry.getKey(), keyInfo);
         }
 
-        if (keys.isEmpty()) {
-            keys.put(LegacyTokenKey.LEGACY_TOKEN_KEY_ID, LegacyTokenKey.getLegacyTokenKeyInfo());
+        ZoneKeys zoneKeys = new ZoneKeys(keySource, signingKeys, keyUrl, keys);
+        if (zone.getId() != null) {
+            keysByZoneId.put(zone.getId(), zoneKeys);
         }
-
-        return keys;
+        return zoneKeys.keys;
     }
 
     public KeyInfo getActiveKey() {
@@ -78,4 +109,49 @@ public class KeyInfoService {
 
         return activeKeyId;
     }
+
+    @Override
+    public void onApplicationEvent(AbstractUaaEvent event) {
+        IdentityZone zone = null;
+        if (event instanceof IdentityZoneModifiedEvent) {
+            zone = (IdentityZone) event.getSource();
+        } else if (event instanceof EntityDeletedEvent && event.getSource() instanceof IdentityZone) {
+            zone = (IdentityZone) event.getSource();
+        }
+        if (zone == null) {
+            return;
+        }
+        if (zone.isUaa()) {
+            //other zones may fall back to the keys of the default zone
+            keysByZoneId.clear();
+        } else if (zone.getId() != null) {
+            keysByZoneId.remove(zone.getId());
+        }
+    }
+
+    private static class ZoneKeys {
+        private final String sourceZoneId;
+        private final int sourceVersion;
+        private final Date sourceLastModified;
+        private final Map<String, String> signingKeys;
+        private final String keyUrl;
+        private final Map<String, KeyInfo> keys;
+
+        ZoneKeys(IdentityZone keySource, Map<String, String> signingKeys, String keyUrl, Map<String, KeyInfo> keys) {
+            this.sourceZoneId = keySource.getId();
+            this.sourceVersion = keySource.getVersion();
+            this.sourceLastModified = keySource.getLastModified();
+            this.signingKeys = signingKeys;
+            this.keyUrl = keyUrl;
+            this.keys = Collections.unmodifiableMap(keys);
+        }
+
+        boolean isCurrent(IdentityZone keySource, Map<String, String> signingKeys, String keyUrl) {
+            return Objects.equals(sourceZoneId, keySource.getId()) &&
+                    sourceVersion == keySource.getVersion() &&
+                    Objects.equals(sourceLastModified, keySource.getLastModified()) &&
+                    this.keyUrl.equals(keyUrl) &&
+                    this.signingKeys.equals(signingKeys);
+        }
+    }
 }
@@ -0,0 +1,332 @@
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaLoginHint;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary encoding of the {@link OAuth2Authentication} stored with an authorization code. It holds the
+ * same fields as the JSON written by {@link UaaTokenStore#serializeOauth2Authentication(OAuth2Authentication)}
+ * in a single pass, without nesting the user authentication as a JSON string.
+ * <p>
+ * Encoded values start with a zero byte, which JSON never does, followed by a format version. Strings
+ * are written as a length and UTF-8 bytes, lengths and counts as variable length integers and a length
+ * of -1 stands for null.
+ */
+public final class OAuth2AuthenticationCodec {
+
+    static final byte MARKER = 0;
+    static final byte VERSION = 1;
+
+    private static final byte NO_USER = 0;
+    private static final byte UAA_AUTHENTICATION = 1;
+    private static final byte UAA_PRINCIPAL = 2;
+
+    private OAuth2AuthenticationCodec() {
+    }
+
+    /**
+     * Whether the authentication can be encoded. Only user authentications with a
+     * {@link UaaPrincipal} can be.
+     */
+    public static boolean canEncode(OAuth2Authentication authentication) {
+        Authentication userAuthentication = authentication.getUserAuthentication();
+        return userAuthentication == null || userAuthentication.getPrincipal() instanceof UaaPrincipal;
+    }
+
+    public static boolean isEncoded(byte[] data) {
+        return data != null && data.length > 1 && data[0] == MARKER;
+    }
+
+    public static byte[] encode(OAuth2Authentication authentication) {
+        if (!canEncode(authentication)) {
+            throw new IllegalArgumentException("Unable to encode user authentication of type " + authentication.getUserAuthentication().getClass().getName());
+        }
+        Writer out = new Writer();
+        out.writeByte(MARKER);
+        out.writeByte(VERSION);
+
+        Authentication userAuthentication = authentication.getUserAuthentication();
+        if (userAuthentication == null) {
+            out.writeByte(NO_USER);
+        } else if (userAuthentication instanceof UaaAuthentication) {
+            UaaAuthentication uaaAuthentication = (UaaAuthentication) userAuthentication;
+            out.writeByte(UAA_AUTHENTICATION);
+            writePrincipal(out, uaaAuthentication.getPrincipal());
+            out.writeStrings(UaaStringUtils.getStringsFromAuthorities(uaaAuthentication.getAuthorities()));
+            out.writeStrings(uaaAuthentication.getExternalGroups());
+            out.writeLong(uaaAuthentication.getExpiresAt());
+            out.writeLong(uaaAuthentication.getAuthenticatedTime());
+            out.writeByte(uaaAuthentication.isAuthenticated() ? 1 : 0);
+            Long lastLoginSuccessTime = uaaAuthentication.getLastLoginSuccessTime();
+            //read back as -1 from JSON as well
+            out.writeLong(lastLoginSuccessTime == null ? -1 : lastLoginSuccessTime);
+            Map<String, List<String>> userAttributes = uaaAuthentication.getUserAttributesAsMap();
+            out.writeLength(userAttributes.size());
+            for (Map.Entry<String, List<String>> entry : userAttributes.entrySet()) {
+                out.writeString(entry.getKey());
+                out.writeStrings(entry.getValue());
+            }
+            out.writeStrings(uaaAuthentication.getAuthenticationMethods());
+            out.writeStrings(uaaAuthentication.getAuthContextClassRef());
+            if (uaaAuthentication.getDetails() instanceof UaaAuthenticationDetails) {
+                UaaAuthenticationDetails details = (UaaAuthenticationDetails) uaaAuthentication.getDetails();
+                out.writeByte(1);
+                out.writeByte(details.isAddNew() ? 1 : 0);
+                out.writeString(details.getClientId());
+                out.writeString(details.getOrigin());
+                out.writeString(details.getSessionId());
+                out.writeString(details.getLoginHint() == null ? null : details.getLoginHint().getOrigin());
+            } else {
+                out.writeByte(0);
+            }
+        } else {
+            out.writeByte(UAA_PRINCIPAL);
+            writePrincipal(out, (UaaPrincipal) userAuthentication.getPrincipal());
+            out.writeStrings(UaaStringUtils.getStringsFromAuthorities(userAuthentication.getAuthorities()));
+        }
+
+        OAuth2Request request = authentication.getOAuth2Request();
+        Map<String, String> parameters = request.getRequestParameters();
+        out.writeLength(parameters == null ? -1 : parameters.size());
+        if (parameters != null) {
+            for (Map.Entry<String, String> entry : parameters.entrySet()) {
+                out.writeString(entry.getKey());
+                out.writeString(entry.getValue());
+            }
+        }
+        out.writeString(request.getClientId());
+        out.writeStrings(UaaStringUtils.getStringsFromAuthorities(request.getAuthorities()));
+        out.writeByte(request.isApproved() ? 1 : 0);
+        out.writeStrings(request.getScope());
+        out.writeStrings(request.getResourceIds());
+        out.writeString(request.getRedirectUri());
+        out.writeStrings(request.getResponseTypes());
+        return out.toByteArray();
+    }
+
+    public static OAuth2Authentication decode(byte[] data) {
+        if (!isEncoded(data)) {
+            throw new IllegalArgumentException("Not an encoded authentication");
+        }
+        if (data[1] != VERSION) {
+            throw new IllegalArgumentException("Unsupported authentication encoding version: " + data[1]);
+        }
+        try {
+            return decode(new Reader(data, 2));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated authentication encoding", e);
+        }
+    }
+
+    private static OAuth2Authentication decode(Reader in) {
+        Authentication userAuthentication = null;
+        byte userType = in.readByte();
+        if (userType == UAA_AUTHENTICATION) {
+            UaaPrincipal principal = readPrincipal(in);
+            List<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings(in.readStrings(new ArrayList<>()));
+            Set<String> externalGroups = in.readStrings(new LinkedHashSet<>());
+            long expiresAt = in.readLong();
+            long authenticatedTime = in.readLong();
+            boolean authenticated = in.readByte() == 1;
+            long lastLoginSuccessTime = in.readLong();
+            int attributeCount = in.readLength();
+            Map<String, List<String>> userAttributes = new HashMap<>();
+            for (int i = 0; i < attributeCount; i++) {
+                userAttributes.put(in.readString(), in.readStrings(new ArrayList<>()));
+            }
+            Set<String> authenticationMethods = in.readStrings(new LinkedHashSet<>());
+            Set<String> authContextClassRef = in.readStrings(new LinkedHashSet<>());
+            UaaAuthenticationDetails details = null;
+            if (in.readByte() == 1) {
+                boolean addNew = in.readByte() == 1;
+                details = new UaaAuthenticationDetails(addNew, in.readString(), in.readString(), in.readString());
+                String loginHintOrigin = in.readString();
+                if (loginHintOrigin != null) {
+                    details.setLoginHint(new UaaLoginHint(loginHintOrigin));
+                }
+            }
+            UaaAuthentication uaaAuthentication = new UaaAuthentication(principal,
+                    null,
+                    authorities,
+                    externalGroups == null ? Collections.emptySet() : externalGroups,
+                    userAttributes,
+                    details,
+                    authenticated,
+                    authenticatedTime,
+                    expiresAt);
+            uaaAuthentication.setAuthenticationMethods(authenticationMethods == null ? Collections.emptySet() : authenticationMethods);
+            uaaAuthentication.setAuthContextClassRef(authContextClassRef);
+            uaaAuthentication.setLastLoginSuccessTime(lastLoginSuccessTime);
+            userAuthentication = uaaAuthentication;
+        } else if (userType == UAA_PRINCIPAL) {
+            UaaPrincipal principal = readPrincipal(in);
+            List<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings(in.readStrings(new ArrayList<>()));
+            userAuthentication = new UaaAuthentication(principal, authorities, UaaAuthenticationDetails.UNKNOWN);
+        } else if (userType != NO_USER) {
+            throw new IllegalArgumentException("Unknown user authentication type: " + userType);
+        }
+
+        int parameterCount = in.readLength();
+        Map<String, String> parameters = parameterCount < 0 ? null : new LinkedHashMap<>();
+        for (int i = 0; i < parameterCount; i++) {
+            parameters.put(in.readString(), in.readString());
+        }
+        String clientId = in.readString();
+        Collection<? extends GrantedAuthority> authorities = UaaStringUtils.getAuthoritiesFromStrings(in.readStrings(new ArrayList<>()));
+        boolean approved = in.readByte() == 1;
+        Set<String> scope = in.readStrings(new HashSet<>());
+        Set<String> resourceIds = in.readStrings(new HashSet<>());
+        String redirectUri = in.readString();
+        Set<String> responseTypes = in.readStrings(new HashSet<>());
+
+        OAuth2Request request = new OAuth2Request(
+                parameters,
+                clientId,
+                authorities,
+                approved,
+                scope == null ? new HashSet<>() : scope,
+                resourceIds == null ? new HashSet<>() : resourceIds,
+                redirectUri,
+                responseTypes == null ? new HashSet<>() : responseTypes,
+                new HashMap<String, Serializable>()
+        );
+        return new OAuth2Authentication(request, userAuthentication);
+    }
+
+    private static void writePrincipal(Writer out, UaaPrincipal principal) {
+        out.writeString(principal.getId());
+        out.writeString(principal.getName());
+        out.writeString(principal.getEmail());
+        out.writeString(principal.getOrigin());
+        out.writeString(principal.getExternalId());
+        out.writeString(principal.getZoneId());
+    }
+
+    private static UaaPrincipal readPrincipal(Reader in) {
+        return new UaaPrincipal(in.readString(), in.readString(), in.readString(), in.readString(), in.readString(), in.readString());
+    }
+
+    private static final class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+
+        void writeByte(int value) {
+            out.write(value);
+        }
+
+        void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (value >>> shift));
+            }
+        }
+
+        /**
+         * Writes a count or length, shifted by one so that -1 takes a single byte.
+         */
+        void writeLength(int length) {
+            int value = length + 1;
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeLength(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeLength(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void writeStrings(Collection<String> values) {
+            writeLength(values == null ? -1 : values.size());
+            if (values != null) {
+                for (String value : values) {
+                    writeString(value);
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer buffer;
+
+        Reader(byte[] data, int offset) {
+            this.buffer = ByteBuffer.wrap(data, offset, data.length - offset);
+        }
+
+        byte readByte() {
+            return buffer.get();
+        }
+
+        long readLong() {
+            return buffer.getLong();
+        }
+
+        int readLength() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (shift > 28) {
+                    throw new IllegalArgumentException("Malformed length in authentication encoding");
+                }
+                b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value - 1;
+        }
+
+        String readString() {
+            int length = readLength();
+            if (length < 0) {
+                return null;
+            }
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+
+        <T extends Collection<String>> T readStrings(T values) {
+            int count = readLength();
+            if (count < 0) {
+                return null;
+            }
+            for (int i = 0; i < count; i++) {
+                values.add(readString());
+            }
+            return values;
+        }
+    }
+}
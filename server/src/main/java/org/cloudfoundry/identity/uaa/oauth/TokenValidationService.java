@@ -1,9 +1,14 @@
 package org.cloudfoundry.identity.uaa.oauth;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
 import org.cloudfoundry.identity.uaa.oauth.token.RevocableToken;
 import org.cloudfoundry.identity.uaa.oauth.token.RevocableTokenProvisioning;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.util.TimeServiceImpl;
 import org.cloudfoundry.identity.uaa.util.TokenValidation;
 import org.cloudfoundry.identity.uaa.util.UaaTokenUtils;
 import org.cloudfoundry.identity.uaa.zone.MultitenantClientServices;
@@ -11,10 +16,12 @@ import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.security.oauth2.provider.ClientDetails;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import static org.cloudfoundry.identity.uaa.oauth.token.ClaimConstants.EXP;
 import static org.cloudfoundry.identity.uaa.util.TokenValidation.buildAccessTokenValidator;
 import static org.cloudfoundry.identity.uaa.util.TokenValidation.buildRefreshTokenValidator;
 
@@ -24,19 +31,44 @@ public class TokenValidationService {
     private UaaUserDatabase userDatabase;
     private MultitenantClientServices multitenantClientServices;
     private KeyInfoService keyInfoService;
+    private final TimeService timeService;
+    private final Cache<String, VerifiedToken> verifiedTokens;
 
     public TokenValidationService(RevocableTokenProvisioning revocableTokenProvisioning,
                                   TokenEndpointBuilder tokenEndpointBuilder,
                                   UaaUserDatabase userDatabase,
                                   MultitenantClientServices multitenantClientServices,
                                   KeyInfoService keyInfoService) {
+        this(revocableTokenProvisioning, tokenEndpointBuilder, userDatabase, multitenantClientServices, keyInfoService, new TimeServiceImpl(), 0);
+    }
+
+    /**
+     * @param verifiedTokenCacheSize number of access tokens whose signature and claims are kept
+     *                               after a successful validation, 0 disables the cache
+     */
+    public TokenValidationService(RevocableTokenProvisioning revocableTokenProvisioning,
+                                  TokenEndpointBuilder tokenEndpointBuilder,
+                                  UaaUserDatabase userDatabase,
+                                  MultitenantClientServices multitenantClientServices,
+                                  KeyInfoService keyInfoService,
+                                  TimeService timeService,
+                                  int verifiedTokenCacheSize) {
         this.revocableTokenProvisioning = revocableTokenProvisioning;
         this.tokenEndpointBuilder = tokenEndpointBuilder;
         this.userDatabase = userDatabase;
         this.multitenantClientServices = multitenantClientServices;
         this.keyInfoService = keyInfoService;
+        this.timeService = timeService;
+        this.verifiedTokens = verifiedTokenCacheSize > 0 ?
+                CacheBuilder.newBuilder().maximumSize(verifiedTokenCacheSize).build() : null;
     }
 
+    /**
+     * Access tokens that passed validation are remembered by their hash until they expire,
+     * so validating them again skips decoding and signature verification. All other checks,
+     * including the revocable token store, the issuer, the client, the user and the
+     * revocation signature, are repeated on every call.
+     */
     public TokenValidation validateToken(String token, boolean isAccessToken) {
         if (!UaaTokenUtils.isJwtToken(token)) {
             RevocableToken revocableToken;
@@ -48,8 +80,15 @@ public class TokenValidationService {
             token = revocableToken.getValue();
         }
 
-        TokenValidation tokenValidation = isAccessToken ?
-                buildAccessTokenValidator(token, keyInfoService) : buildRefreshTokenValidator(token, keyInfoService);
+        String cacheKey = isAccessToken && verifiedTokens != null ? getCacheKey(token) : null;
+        TokenValidation cached = cacheKey != null ? getVerifiedToken(cacheKey) : null;
+        TokenValidation tokenValidation;
+        if (cached != null) {
+            tokenValidation = cached;
+        } else {
+            tokenValidation = isAccessToken ?
+                    buildAccessTokenValidator(token, keyInfoService) : buildRefreshTokenValidator(token, keyInfoService);
+        }
         tokenValidation
                 .checkRevocableTokenStore(revocableTokenProvisioning)
                 .checkIssuer(tokenEndpointBuilder.getTokenEndpoint(IdentityZoneHolder.get()));
@@ -73,10 +112,61 @@ public class TokenValidationService {
 
         tokenValidation = tokenValidation.checkRevocationSignature(revocationSignatureList);
 
+        if (cacheKey != null && cached == null) {
+            putVerifiedToken(cacheKey, tokenValidation);
+        }
         return tokenValidation;
     }
 
+    private static String getCacheKey(String token) {
+        return IdentityZoneHolder.get().getId() + ":" + Hashing.sha256().hashString(token, StandardCharsets.UTF_8);
+    }
+
+    private TokenValidation getVerifiedToken(String cacheKey) {
+        VerifiedToken verified = verifiedTokens.getIfPresent(cacheKey);
+        if (verified == null) {
+            return null;
+        }
+        //drop tokens that expired, or whose signing key was removed or changed
+        KeyInfo keyInfo = keyInfoService.getKey(verified.keyId);
+        if (timeService.getCurrentTimeMillis() >= verified.expiresAt ||
+                keyInfo == null ||
+                !verified.verifierKey.equals(keyInfo.verifierKey())) {
+            verifiedTokens.invalidate(cacheKey);
+            return null;
+        }
+        return verified.tokenValidation;
+    }
+
+    private void putVerifiedToken(String cacheKey, TokenValidation tokenValidation) {
+        Object exp = tokenValidation.getClaims().get(EXP);
+        String keyId = tokenValidation.getJwt().getHeader().getKid();
+        if (!(exp instanceof Number) || keyId == null) {
+            return;
+        }
+        long expiresAt = ((Number) exp).longValue() * 1000L;
+        KeyInfo keyInfo = keyInfoService.getKey(keyId);
+        if (keyInfo == null || expiresAt <= timeService.getCurrentTimeMillis()) {
+            return;
+        }
+        verifiedTokens.put(cacheKey, new VerifiedToken(tokenValidation, keyId, keyInfo.verifierKey(), expiresAt));
+    }
+
     public void setUserDatabase(UaaUserDatabase userDatabase) {
         this.userDatabase = userDatabase;
     }
+
+    private static class VerifiedToken {
+        private final TokenValidation tokenValidation;
+        private final String keyId;
+        private final String verifierKey;
+        private final long expiresAt;
+
+        VerifiedToken(TokenValidation tokenValidation, String keyId, String verifierKey, long expiresAt) {
+            this.tokenValidation = tokenValidation;
+            this.keyId = keyId;
+            this.verifierKey = verifierKey;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
@@ -21,6 +21,7 @@ import org.slf4j.LoggerFactory;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
 import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.resources.jdbc.ExpiredRowSweeper;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -75,19 +76,22 @@ public class UaaTokenStore implements AuthorizationCodeServices {
     private static final String SQL_EXPIRE_STATEMENT = "delete from oauth_code where expiresat > 0 AND expiresat < ?";
     private static final String SQL_CLEAN_STATEMENT = "delete from oauth_code where created < ? and expiresat = 0";
 
-    private final DataSource dataSource;
+    private final JdbcTemplate template;
     private final long expirationTime;
     private final RandomValueStringGenerator generator = new RandomValueStringGenerator(10);
     private final RowMapper rowMapper = new TokenCodeRowMapper();
 
     private final AtomicLong lastClean = new AtomicLong(0);
 
+    private boolean compactEncoding = false;
+    private boolean purgeInBackground = false;
+
     public UaaTokenStore(DataSource dataSource) {
         this(dataSource, EXPIRATION_TIME);
     }
 
     public UaaTokenStore(DataSource dataSource, long expirationTime) {
-        this.dataSource = dataSource;
+        this.template = new JdbcTemplate(dataSource);
         this.expirationTime = expirationTime;
     }
 
@@ -95,7 +99,6 @@ public class UaaTokenStore implements AuthorizationCodeServices {
     public String createAuthorizationCode(OAuth2Authentication authentication) {
         final int max_tries = 3;
         performExpirationClean();
-        JdbcTemplate template = new JdbcTemplate(dataSource);
         int tries = 0;
         while ((tries++)<=max_tries) {
             try {
@@ -125,7 +128,6 @@ public class UaaTokenStore implements AuthorizationCodeServices {
     @Override
     public OAuth2Authentication consumeAuthorizationCode(String code) throws InvalidGrantException {
         performExpirationClean();
-        JdbcTemplate template = new JdbcTemplate(dataSource);
         try {
             TokenCode tokenCode = (TokenCode) template.queryForObject(SQL_SELECT_STATEMENT, rowMapper, code);
             if (tokenCode != null) {
@@ -148,6 +150,9 @@ public class UaaTokenStore implements AuthorizationCodeServices {
     }
 
     protected byte[] serializeOauth2Authentication(OAuth2Authentication auth2Authentication) {
+        if (compactEncoding && OAuth2AuthenticationCodec.canEncode(auth2Authentication)) {
+            return OAuth2AuthenticationCodec.encode(auth2Authentication);
+        }
         Authentication userAuthentication = auth2Authentication.getUserAuthentication();
         HashMap<String, Object> data = new HashMap<>();
         if (userAuthentication!=null) {
@@ -176,6 +181,9 @@ public class UaaTokenStore implements AuthorizationCodeServices {
     }
 
     protected OAuth2Authentication deserializeOauth2Authentication(byte[] data) {
+        if (OAuth2AuthenticationCodec.isEncoded(data)) {
+            return OAuth2AuthenticationCodec.decode(data);
+        }
         Map<String,Object> map = JsonUtils.readValue(data, new TypeReference<Map<String,Object>>() {});
         Authentication userAuthentication = null;
         if (map.get(USER_AUTHENTICATION_UAA_AUTHENTICATION) != null) {
@@ -212,13 +220,15 @@ public class UaaTokenStore implements AuthorizationCodeServices {
     }
 
     protected void performExpirationClean() {
+        if (purgeInBackground) {
+            return;
+        }
         long last = lastClean.get();
         //check if we should expire again
         if ((System.currentTimeMillis()-last) > getExpirationTime()) {
             //avoid concurrent deletes from the same UAA - performance improvement
             if (lastClean.compareAndSet(last, last+getExpirationTime())) {
                 try {
-                    JdbcTemplate template = new JdbcTemplate(dataSource);
                     int expired = template.update(SQL_EXPIRE_STATEMENT, System.currentTimeMillis());
                     logger.debug("[oauth_code] Removed "+expired+" expired entries.");
                     expired = template.update(SQL_CLEAN_STATEMENT, new Timestamp(System.currentTimeMillis()-LEGACY_CODE_EXPIRATION_TIME));
@@ -236,6 +246,28 @@ public class UaaTokenStore implements AuthorizationCodeServices {
         return expirationTime;
     }
 
+    /**
+     * Lets the sweeper delete expired codes instead of the request thread. Legacy codes without an
+     * expiration are deleted by the sweeper as well, they can only come from versions that no
+     * longer run against this schema.
+     */
+    public void setExpiredRowSweeper(ExpiredRowSweeper expiredRowSweeper) {
+        this.purgeInBackground = expiredRowSweeper.register("oauth_code", "id", "expiresat",
+                getExpirationTime(), System::currentTimeMillis);
+    }
+
+    public boolean isCompactEncoding() {
+        return compactEncoding;
+    }
+
+    /**
+     * Stores new codes with {@link OAuth2AuthenticationCodec} instead of JSON. Codes in either format
+     * are always read, enable this once no node running an older version consumes codes.
+     */
+    public void setCompactEncoding(boolean compactEncoding) {
+        this.compactEncoding = compactEncoding;
+    }
+
     protected class TokenCodeRowMapper implements RowMapper<TokenCode> {
 
         @Override
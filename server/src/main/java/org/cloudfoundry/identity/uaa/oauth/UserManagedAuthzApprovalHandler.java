@@ -82,6 +82,8 @@ public class UserManagedAuthzApprovalHandler implements UserApprovalHandler {
                 }
             }
 
+            // Store the approvals of all scopes at once
+            List<Approval> approvals = new ArrayList<>();
             if (foundUserApprovalParameter) {
                 authorizationRequest.setScope(approvedScopes);
 
@@ -93,7 +95,7 @@ public class UserManagedAuthzApprovalHandler implements UserApprovalHandler {
                                 .setScope(requestedScope)
                                 .setExpiresAt(expiry)
                                 .setStatus(APPROVED);
-                        approvalStore.addApproval(approval, identityZoneManager.getCurrentIdentityZoneId());
+                        approvals.add(approval);
                     } else {
                         Approval approval = new Approval()
                                 .setUserId(getUserId(userAuthentication))
@@ -101,7 +103,7 @@ public class UserManagedAuthzApprovalHandler implements UserApprovalHandler {
                                 .setScope(requestedScope)
                                 .setExpiresAt(expiry)
                                 .setStatus(DENIED);
-                        approvalStore.addApproval(approval, identityZoneManager.getCurrentIdentityZoneId());
+                        approvals.add(approval);
                     }
                 }
 
@@ -116,10 +118,11 @@ public class UserManagedAuthzApprovalHandler implements UserApprovalHandler {
                                 .setScope(requestedScope)
                                 .setExpiresAt(expiry)
                                 .setStatus(DENIED);
-                        approvalStore.addApproval(approval, identityZoneManager.getCurrentIdentityZoneId());
+                        approvals.add(approval);
                     }
                 }
             }
+            approvalStore.addApprovals(approvals, identityZoneManager.getCurrentIdentityZoneId());
 
             return userAuthentication.isAuthenticated();
 
@@ -2,13 +2,13 @@ package org.cloudfoundry.identity.uaa.oauth.beans;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
+import org.cloudfoundry.identity.uaa.util.RedirectUriMatcher;
 import org.cloudfoundry.identity.uaa.util.UaaUrlUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
 import org.springframework.security.oauth2.common.exceptions.RedirectMismatchException;
 import org.springframework.security.oauth2.provider.ClientDetails;
-import org.springframework.util.AntPathMatcher;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.util.UriComponents;
@@ -16,6 +16,7 @@ import org.springframework.web.util.UriComponentsBuilder;
 
 import java.net.URI;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -195,7 +196,6 @@ public class LegacyRedirectResolver extends org.cloudfoundry.identity.uaa.oauth.
         private Matcher redirectMatcher;
         private boolean isValidRedirect = true;
         private boolean hasWildcardPort = false;
-        private AntPathMatcher matcher;
         private String redirectUri;
 
         ClientRedirectUriPattern(String redirectUri) {
@@ -204,7 +204,6 @@ public class LegacyRedirectResolver extends org.cloudfoundry.identity.uaa.oauth.
             }
 
             this.redirectUri = redirectUri;
-            matcher = new AntPathMatcher();
             this.redirectMatcher = URI_EXTRACTOR.matcher(redirectUri);
             if (!redirectMatcher.matches()) {
                 isValidRedirect = false;
@@ -236,12 +235,17 @@ public class LegacyRedirectResolver extends org.cloudfoundry.identity.uaa.oauth.
         boolean match(URI requestedRedirect) {
             if(hasWildcardPort) {
                  if(requestedRedirect.getPort() > 0) {
-                     return matcher.match(redirectUri, requestedRedirect.toString().replace(String.valueOf(requestedRedirect.getPort()), WILDCARD_PORT));
+                     return match(redirectUri, requestedRedirect.toString().replace(String.valueOf(requestedRedirect.getPort()), WILDCARD_PORT));
                  } else {
-                     return matcher.match(redirectUri.replace(WILDCARD_PORT_PATTERN, StringUtils.EMPTY), requestedRedirect.toString());
+                     return match(redirectUri.replace(WILDCARD_PORT_PATTERN, StringUtils.EMPTY), requestedRedirect.toString());
                  }
             }
-            return matcher.match(redirectUri, requestedRedirect.toString());
+            return match(redirectUri, requestedRedirect.toString());
+        }
+
+        private static boolean match(String pattern, String uri) {
+            //compiled once per pattern and matched with a shared AntPathMatcher
+            return RedirectUriMatcher.forPatterns(Collections.singleton(pattern)).matches(uri);
         }
 
         private boolean isWildcard(String configuredRedirectPattern) {
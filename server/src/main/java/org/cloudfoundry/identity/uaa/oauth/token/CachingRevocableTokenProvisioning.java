@@ -0,0 +1,256 @@
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
+import org.cloudfoundry.identity.uaa.audit.event.SystemDeletable;
+import org.cloudfoundry.identity.uaa.cache.CacheGeneration;
+import org.cloudfoundry.identity.uaa.cache.TimeServiceTicker;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache in front of a {@link RevocableTokenProvisioning} for the token lookups
+ * done by every introspection of an opaque or revocable token. Tokens are cached until they
+ * expire, unknown token ids are remembered for a shorter period. Entries are evicted when
+ * tokens are updated or deleted through this instance. Zone, client and user deletion events
+ * only evict the cache, the delegate receives the same events and deletes the rows itself.
+ * <p>
+ * Deletes also increment a revocation epoch stored in the database. Every node polls the epoch
+ * at most once per poll interval and drops its cache when it changed, which bounds how long a
+ * token revoked on another node can still be served from cache.
+ * <p>
+ * Cached tokens are shared between requests and must be treated as read-only.
+ */
+public class CachingRevocableTokenProvisioning implements RevocableTokenProvisioning, SystemDeletable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachingRevocableTokenProvisioning.class);
+
+    private static final String GET_EPOCH_QUERY = "SELECT epoch FROM revocation_epoch WHERE id=1";
+    private static final String INCREMENT_EPOCH_QUERY = "UPDATE revocation_epoch SET epoch=epoch+1 WHERE id=1";
+
+    private final RevocableTokenProvisioning delegate;
+    private final JdbcTemplate jdbcTemplate;
+    private final TimeService timeService;
+    private final boolean enabled;
+    private final long epochPollIntervalMillis;
+    private final Cache<String, RevocableToken> tokens;
+    private final Cache<String, Boolean> unknownTokens;
+    private final CacheGeneration generation = new CacheGeneration();
+    private final AtomicLong lastEpochPoll = new AtomicLong(Long.MIN_VALUE);
+    private volatile long epoch = -1;
+
+    public CachingRevocableTokenProvisioning(final RevocableTokenProvisioning delegate,
+                                             final JdbcTemplate jdbcTemplate,
+                                             final TimeService timeService,
+                                             final int maxEntries,
+                                             final int notFoundExpirationSeconds,
+                                             final long epochPollIntervalMillis) {
+        this.delegate = delegate;
+        this.jdbcTemplate = jdbcTemplate;
+        this.timeService = timeService;
+        this.enabled = maxEntries > 0;
+        this.epochPollIntervalMillis = epochPollIntervalMillis;
+        Ticker ticker = new TimeServiceTicker(timeService);
+        this.tokens = CacheBuilder
+                .newBuilder()
+                .maximumSize(Math.max(0, maxEntries))
+                .build();
+        this.unknownTokens = CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(Math.max(0, notFoundExpirationSeconds), TimeUnit.SECONDS)
+                .maximumSize(Math.max(0, maxEntries))
+                .ticker(ticker)
+                .build();
+    }
+
+    @Override
+    public List<RevocableToken> retrieveAll(String zoneId) {
+        return delegate.retrieveAll(zoneId);
+    }
+
+    @Override
+    public RevocableToken retrieve(String id, String zoneId) {
+        if (!enabled) {
+            return delegate.retrieve(id, zoneId);
+        }
+        pollEpoch();
+        String key = key(id, zoneId);
+        RevocableToken token = tokens.getIfPresent(key);
+        if (token != null) {
+            if (token.getExpiresAt() >= timeService.getCurrentTimeMillis()) {
+                return token;
+            }
+            //let the delegate delete the expired token
+            tokens.invalidate(key);
+        } else if (unknownTokens.getIfPresent(key) != null) {
+            throw new EmptyResultDataAccessException("Unknown token " + id, 1);
+        }
+        long current = generation.current();
+        try {
+            token = delegate.retrieve(id, zoneId);
+        } catch (EmptyResultDataAccessException e) {
+            generation.putIfUnchanged(unknownTokens, current, key, Boolean.TRUE);
+            throw e;
+        }
+        generation.putIfUnchanged(tokens, current, key, token);
+        return token;
+    }
+
+    @Override
+    public RevocableToken create(RevocableToken resource, String zoneId) {
+        long current = generation.current();
+        RevocableToken created = delegate.create(resource, zoneId);
+        if (enabled) {
+            String key = key(created.getTokenId(), zoneId);
+            unknownTokens.invalidate(key);
+            generation.putIfUnchanged(tokens, current, key, created);
+        }
+        return created;
+    }
+
+    @Override
+    public RevocableToken update(String id, RevocableToken resource, String zoneId) {
+        try {
+            return delegate.update(id, resource, zoneId);
+        } finally {
+            evict(id, zoneId);
+        }
+    }
+
+    @Override
+    public RevocableToken delete(String id, int version, String zoneId) {
+        try {
+            return delegate.delete(id, version, zoneId);
+        } finally {
+            evict(id, zoneId);
+        }
+    }
+
+    @Override
+    public int deleteRefreshTokensForClientAndUserId(String clientId, String userId, String zoneId) {
+        return evictAllIfDeleted(delegate.deleteRefreshTokensForClientAndUserId(clientId, userId, zoneId));
+    }
+
+    @Override
+    public int deleteByIdentityZone(String zoneId) {
+        try {
+            return delegate instanceof SystemDeletable ? ((SystemDeletable) delegate).deleteByIdentityZone(zoneId) : 0;
+        } finally {
+            evictAll();
+        }
+    }
+
+    @Override
+    public int deleteByClient(String clientId, String zoneId) {
+        try {
+            return delegate instanceof SystemDeletable ? ((SystemDeletable) delegate).deleteByClient(clientId, zoneId) : 0;
+        } finally {
+            evictAll();
+        }
+    }
+
+    @Override
+    public int deleteByUser(String userId, String zoneId) {
+        try {
+            return delegate instanceof SystemDeletable ? ((SystemDeletable) delegate).deleteByUser(userId, zoneId) : 0;
+        } finally {
+            evictAll();
+        }
+    }
+
+    /**
+     * The delegate receives the same deletion events and deletes the rows, so they only evict here.
+     */
+    @Override
+    public void onApplicationEvent(EntityDeletedEvent<?> event) {
+        evictAll();
+    }
+
+    @Override
+    public List<RevocableToken> getUserTokens(String userId, String zoneId) {
+        return delegate.getUserTokens(userId, zoneId);
+    }
+
+    @Override
+    public List<RevocableToken> getUserTokens(String userId, String clientId, String zoneId) {
+        return delegate.getUserTokens(userId, clientId, zoneId);
+    }
+
+    @Override
+    public List<RevocableToken> getClientTokens(String clientId, String zoneId) {
+        return delegate.getClientTokens(clientId, zoneId);
+    }
+
+    @Override
+    public Logger getLogger() {
+        return logger;
+    }
+
+    public void clear() {
+        generation.increment();
+        tokens.invalidateAll();
+        unknownTokens.invalidateAll();
+    }
+
+    private void evict(String id, String zoneId) {
+        generation.increment();
+        tokens.invalidate(key(id, zoneId));
+        incrementEpoch();
+    }
+
+    private int evictAllIfDeleted(int deleted) {
+        if (deleted > 0) {
+            evictAll();
+        }
+        return deleted;
+    }
+
+    private void evictAll() {
+        clear();
+        incrementEpoch();
+    }
+
+    private void incrementEpoch() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            jdbcTemplate.update(INCREMENT_EPOCH_QUERY);
+        } catch (DataAccessException e) {
+            logger.warn("Unable to increment the revocation epoch, other nodes may serve revoked tokens until they expire.", e);
+        }
+    }
+
+    private void pollEpoch() {
+        long now = timeService.getCurrentTimeMillis();
+        long lastPoll = lastEpochPoll.get();
+        if ((lastPoll != Long.MIN_VALUE && now - lastPoll < epochPollIntervalMillis) || !lastEpochPoll.compareAndSet(lastPoll, now)) {
+            return;
+        }
+        try {
+            long current = jdbcTemplate.queryForObject(GET_EPOCH_QUERY, Long.class);
+            if (current != epoch) {
+                clear();
+                epoch = current;
+            }
+        } catch (DataAccessException e) {
+            //without the epoch, revocations on other nodes can not be detected
+            logger.warn("Unable to read the revocation epoch, dropping cached revocable tokens.", e);
+            clear();
+        }
+    }
+
+    private static String key(String id, String zoneId) {
+        return zoneId + ":" + id;
+    }
+}
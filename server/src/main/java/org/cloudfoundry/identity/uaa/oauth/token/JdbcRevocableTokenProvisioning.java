@@ -3,24 +3,68 @@ package org.cloudfoundry.identity.uaa.oauth.token;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.cloudfoundry.identity.uaa.audit.event.SystemDeletable;
+import org.cloudfoundry.identity.uaa.resources.jdbc.ExpiredRowSweeper;
 import org.cloudfoundry.identity.uaa.resources.jdbc.LimitSqlAdapter;
 import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.util.StringUtils;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static org.cloudfoundry.identity.uaa.oauth.token.RevocableToken.TokenType.REFRESH_TOKEN;
 import static org.springframework.util.StringUtils.isEmpty;
 
-public class JdbcRevocableTokenProvisioning implements RevocableTokenProvisioning, SystemDeletable {
+/**
+ * By default every {@link #create(RevocableToken, String)} inserts the row and reads it back,
+ * and expired tokens are purged inline on the request thread at most every 30 seconds.
+ * <p>
+ * With {@link #setWriteBehind(boolean) write-behind} enabled, created tokens are returned as
+ * given and queued in memory, then inserted with JDBC batch statements by a background thread
+ * every {@link #setFlushInterval(long) flush interval} or once {@link #setBatchSize(int) batch size}
+ * tokens are pending. Queued tokens are visible to {@link #retrieve(String, String)} on this node,
+ * every other read and update flushes the queue first, deletes remove matching tokens from the
+ * queue. Other nodes do not see a token until it has been flushed, and queued tokens are lost if
+ * the node dies before the flush. A token whose insert fails stays queued and is retried with the
+ * next flush, up to {@link #setMaxInsertAttempts(int) max insert attempts}. Tokens that still can
+ * not be inserted, or that violate a constraint, are dropped and counted in the JMX metrics. Once
+ * {@link #setMaxPendingInserts(int) max pending inserts} tokens are queued, for example while the
+ * database is unavailable, new tokens are inserted directly on the request thread again.
+ * <p>
+ * With an {@link #setExpiredRowSweeper(ExpiredRowSweeper) expired row sweeper} set, expired tokens
+ * are deleted by the sweeper instead of the request thread.
+ */
+@ManagedResource(
+        objectName = "cloudfoundry.identity:name=RevocableTokenProvisioning",
+        description = "UAA Revocable Token Write-Behind Metrics"
+)
+public class JdbcRevocableTokenProvisioning implements RevocableTokenProvisioning, SystemDeletable, InitializingBean, DisposableBean {
 
     private final static String REFRESH_TOKEN_RESPONSE_TYPE = REFRESH_TOKEN.toString();
     private final static String FIELDS = "token_id,client_id,user_id,format,response_type,issued_at,expires_at,scope,data,identity_zone_id";
@@ -47,6 +91,20 @@ public class JdbcRevocableTokenProvisioning implements RevocableTokenProvisionin
     private Duration maxExpirationRuntime = Duration.ofMillis(2500L);
     private final static Duration EXPIRATION_CHECK_INTERVAL = Duration.ofSeconds(30);
 
+    private boolean writeBehind = false;
+    private int batchSize = 100;
+    private Duration flushInterval = Duration.ofMillis(50L);
+    private boolean purgeInBackground = false;
+    private int maxInsertAttempts = 20;
+    private int maxPendingInserts = 10000;
+    private final Map<String, RevocableToken> pendingInserts = new ConcurrentHashMap<>();
+    private final Map<String, Integer> failedInsertAttempts = new HashMap<>();
+    private final LongAdder droppedInserts = new LongAdder();
+    private final LongAdder directInserts = new LongAdder();
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private ScheduledExecutorService backgroundWorker;
+
     public JdbcRevocableTokenProvisioning(JdbcTemplate jdbcTemplate,
                                           LimitSqlAdapter limitSqlAdapter,
                                           TimeService timeService) {
@@ -56,6 +114,29 @@ public class JdbcRevocableTokenProvisioning implements RevocableTokenProvisionin
         this.timeService = timeService;
     }
 
+    @Override
+    public void afterPropertiesSet() {
+        if (!writeBehind) {
+            return;
+        }
+        backgroundWorker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "revocable-token-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        backgroundWorker.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (backgroundWorker == null) {
+            return;
+        }
+        backgroundWorker.shutdown();
+        backgroundWorker.awaitTermination(5, TimeUnit.SECONDS);
+        flush();
+    }
+
     @Override
     public List<RevocableToken> retrieveAll(String zoneId) {
         return null;
@@ -65,7 +146,10 @@ public class JdbcRevocableTokenProvisioning implements RevocableTokenProvisionin
         if (checkExpired) {
             checkExpired();
         }
-        RevocableToken result = template.queryForObject(GET_QUERY, rowMapper, id, zoneId);
+        RevocableToken result = pendingInserts.get(pendingKey(id, zoneId));
+        if (result == null) {
+            result = template.queryForObject(GET_QUERY, rowMapper, id, zoneId);
+        }
         if (checkExpired && result.getExpiresAt() < timeService.getCurrentTimeMillis()) {
             delete(id, 0, zoneId);
             throw new EmptyResultDataAccessException("Token expired.", 1);
@@ -80,12 +164,29 @@ public class JdbcRevocableTokenProvisioning implements RevocableTokenProvisionin
 
     @Override
     public int deleteRefreshTokensForClientAndUserId(String clientId, String userId, String zoneId) {
-        return template.update(DELETE_REFRESH_TOKEN_QUERY, userId, clientId, zoneId);
+        int removed = removePending(t -> t.getResponseType() == REFRESH_TOKEN
+                && Objects.equals(userId, t.getUserId())
+                && Objects.equals(clientId, t.getClientId())
+                && zoneId.equals(t.getZoneId()));
+        return removed + template.update(DELETE_REFRESH_TOKEN_QUERY, userId, clientId, zoneId);
     }
 
     @Override
     public RevocableToken create(RevocableToken t, String zoneId) {
         checkExpired();
+        if (writeBehind && pendingInserts.size() < maxPendingInserts) {
+            t.setZoneId(zoneId);
+            if (pendingInserts.putIfAbsent(pendingKey(t.getTokenId(), zoneId), t) != null) {
+                throw new DuplicateKeyException("Revocable token " + t.getTokenId() + " already exists.");
+            }
+            if (pendingInserts.size() >= batchSize) {
+                scheduleFlush();
+            }
+            return t;
+        }
+        if (writeBehind) {
+            directInserts.increment();
+        }
         template.update(INSERT_QUERY,
                 t.getTokenId(),
                 t.getClientId(),
@@ -102,6 +203,7 @@ public class JdbcRevocableTokenProvisioning implements RevocableTokenProvisionin
 
     @Override
     public RevocableToken update(String id, RevocableToken t, String zoneId) {
+        flush();
         template.update(UPDATE_QUERY,
                 t.getClientId(),
                 t.getUserId(),
@@ -118,24 +220,37 @@ public class JdbcRevocableTokenProvisioning implements RevocableTokenProvisionin
 
     @Override
     public RevocableToken delete(String id, int version, String zoneId) {
-        RevocableToken previous = retrieve(id, false, zoneId);
+        RevocableToken previous = null;
+        if (!pendingInserts.isEmpty()) {
+            String key = pendingKey(id, zoneId);
+            synchronized (flushLock) {
+                previous = pendingInserts.remove(key);
+                failedInsertAttempts.remove(key);
+            }
+        }
+        if (previous == null) {
+            previous = retrieve(id, false, zoneId);
+        }
         template.update(DELETE_QUERY, id, zoneId);
         return previous;
     }
 
     @Override
     public int deleteByIdentityZone(String zoneId) {
-        return template.update(DELETE_BY_ZONE_QUERY, zoneId);
+        int removed = removePending(t -> zoneId.equals(t.getZoneId()));
+        return removed + template.update(DELETE_BY_ZONE_QUERY, zoneId);
     }
 
     @Override
     public int deleteByClient(String clientId, String zoneId) {
-        return template.update(DELETE_BY_CLIENT_QUERY, clientId, zoneId);
+        int removed = removePending(t -> Objects.equals(clientId, t.getClientId()) && zoneId.equals(t.getZoneId()));
+        return removed + template.update(DELETE_BY_CLIENT_QUERY, clientId, zoneId);
     }
 
     @Override
     public int deleteByUser(String userId, String zoneId) {
-        return template.update(DELETE_BY_USER_QUERY, userId, zoneId);
+        int removed = removePending(t -> Objects.equals(userId, t.getUserId()) && zoneId.equals(t.getZoneId()));
+        return removed + template.update(DELETE_BY_USER_QUERY, userId, zoneId);
     }
 
     @Override
@@ -145,6 +260,7 @@ public class JdbcRevocableTokenProvisioning implements RevocableTokenProvisionin
 
     @Override
     public List<RevocableToken> getUserTokens(String userId, String zoneId) {
+        flush();
         return template.query(GET_BY_USER_QUERY, rowMapper, userId, zoneId);
     }
 
@@ -158,10 +274,153 @@ public class JdbcRevocableTokenProvisioning implements RevocableTokenProvisionin
 
     @Override
     public List<RevocableToken> getClientTokens(String clientId, String zoneId) {
+        flush();
         return template.query(GET_BY_CLIENT_QUERY, rowMapper, clientId, zoneId);
     }
 
+    /**
+     * Inserts all tokens queued by write-behind mode.
+     */
+    public void flush() {
+        if (pendingInserts.isEmpty()) {
+            return;
+        }
+        synchronized (flushLock) {
+            List<RevocableToken> batch = new ArrayList<>(batchSize);
+            for (RevocableToken t : pendingInserts.values()) {
+                batch.add(t);
+                if (batch.size() >= batchSize) {
+                    insertBatch(batch);
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty()) {
+                insertBatch(batch);
+            }
+        }
+    }
+
+    private void insertBatch(List<RevocableToken> batch) {
+        try {
+            template.batchUpdate(INSERT_QUERY, batch.stream().map(this::insertArgs).collect(Collectors.toList()));
+        } catch (DataAccessException e) {
+            //a single bad row fails the whole batch, so retry row by row to keep the others
+            logger.warn("Batch insert of " + batch.size() + " revocable tokens failed, inserting one by one.", e);
+            for (RevocableToken t : batch) {
+                try {
+                    template.update(INSERT_QUERY, insertArgs(t));
+                    inserted(t);
+                } catch (DataAccessException rowFailure) {
+                    insertFailed(t, rowFailure);
+                }
+            }
+            return;
+        }
+        //the rows are in the database now, so removing the pending entries never hides a token
+        batch.forEach(this::inserted);
+    }
+
+    private void inserted(RevocableToken t) {
+        String key = pendingKey(t.getTokenId(), t.getZoneId());
+        failedInsertAttempts.remove(key);
+        pendingInserts.remove(key, t);
+    }
+
+    private void insertFailed(RevocableToken t, DataAccessException e) {
+        String key = pendingKey(t.getTokenId(), t.getZoneId());
+        int attempts = failedInsertAttempts.merge(key, 1, Integer::sum);
+        //a constraint violation fails the same way on every retry
+        if (attempts < maxInsertAttempts && !(e instanceof DataIntegrityViolationException)) {
+            logger.warn("Unable to insert revocable token " + t.getTokenId() + ", retrying with the next flush (attempt " + attempts + ").", e);
+            return;
+        }
+        logger.error("Unable to insert revocable token " + t.getTokenId() + " after " + attempts + " attempts, dropping it.", e);
+        failedInsertAttempts.remove(key);
+        pendingInserts.remove(key, t);
+        droppedInserts.increment();
+    }
+
+    /**
+     * Removes queued tokens, including ones waiting for a retry, so a failed insert can not bring
+     * a deleted token back with a later flush. Holds the flush lock, so a token is either removed
+     * here or already inserted and deleted by the caller.
+     */
+    private int removePending(Predicate<RevocableToken> matches) {
+        if (pendingInserts.isEmpty()) {
+            return 0;
+        }
+        int removed = 0;
+        synchronized (flushLock) {
+            Iterator<Map.Entry<String, RevocableToken>> entries = pendingInserts.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, RevocableToken> entry = entries.next();
+                if (matches.test(entry.getValue())) {
+                    entries.remove();
+                    failedInsertAttempts.remove(entry.getKey());
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private Object[] insertArgs(RevocableToken t) {
+        return new Object[]{
+                t.getTokenId(),
+                t.getClientId(),
+                t.getUserId(),
+                t.getFormat(),
+                t.getResponseType().toString(),
+                t.getIssuedAt(),
+                t.getExpiresAt(),
+                t.getScope(),
+                t.getValue(),
+                t.getZoneId()
+        };
+    }
+
+    private void scheduleFlush() {
+        if (backgroundWorker == null) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            backgroundWorker.execute(() -> {
+                flushScheduled.set(false);
+                flushQuietly();
+            });
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            logger.error("Unable to flush pending revocable tokens.", e);
+        }
+    }
+
+    private static String pendingKey(String tokenId, String zoneId) {
+        return zoneId + ":" + tokenId;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Pending Revocable Token Inserts")
+    public int getPendingInsertCount() {
+        return pendingInserts.size();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Dropped Revocable Token Inserts")
+    public long getDroppedInsertCount() {
+        return droppedInserts.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Direct Revocable Token Inserts While Queue Full")
+    public long getDirectInsertCount() {
+        return directInserts.sum();
+    }
+
     private void checkExpired() {
+        if (purgeInBackground) {
+            return;
+        }
         long now = timeService.getCurrentTimeMillis();
         long lastCheck = lastExpiredCheck.get();
         if ((now - lastCheck) > EXPIRATION_CHECK_INTERVAL.toMillis() && lastExpiredCheck.compareAndSet(lastCheck, now)) {
@@ -196,6 +455,31 @@ public class JdbcRevocableTokenProvisioning implements RevocableTokenProvisionin
         this.maxExpirationRuntime = Duration.ofMillis(maxExpirationRuntime);
     }
 
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = Duration.ofMillis(Math.max(1, flushInterval));
+    }
+
+    public void setMaxInsertAttempts(int maxInsertAttempts) {
+        this.maxInsertAttempts = Math.max(1, maxInsertAttempts);
+    }
+
+    public void setMaxPendingInserts(int maxPendingInserts) {
+        this.maxPendingInserts = Math.max(1, maxPendingInserts);
+    }
+
+    public void setExpiredRowSweeper(ExpiredRowSweeper expiredRowSweeper) {
+        this.purgeInBackground = expiredRowSweeper.register(TABLE, "token_id", "expires_at",
+                EXPIRATION_CHECK_INTERVAL.toMillis(), () -> timeService.getCurrentTimeMillis());
+    }
+
     protected static final class RevocableTokenRowMapper implements RowMapper<RevocableToken> {
 
         @Override
@@ -0,0 +1,186 @@
+package org.cloudfoundry.identity.uaa.provider;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
+import org.cloudfoundry.identity.uaa.cache.CacheGeneration;
+import org.cloudfoundry.identity.uaa.cache.TimeServiceTicker;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityProviderModifiedEvent;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link JdbcIdentityProviderProvisioning} that reads all identity providers of a zone with a
+ * single query and keeps the rows for the login page and authentication lookups. Rows are evicted
+ * when a provider of the zone is created, updated or deleted on this node, including deletes
+ * triggered by zone deletion, and expire after a fixed time to bound staleness across nodes.
+ * <p>
+ * Providers are handed out as new instances built from the cached rows, so callers may modify them.
+ * Lookups by id or origin that are not found in the cached rows fall back to the database.
+ */
+@Component("identityProviderProvisioning")
+public class CachingIdentityProviderProvisioning extends JdbcIdentityProviderProvisioning {
+
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private final boolean enabled;
+    private final Cache<String, List<IdentityProviderRecord>> providersByZone;
+    private final CacheGeneration generation = new CacheGeneration();
+
+    public CachingIdentityProviderProvisioning(final JdbcTemplate jdbcTemplate,
+                                               final TimeService timeService,
+                                               final @Value("${identityProviders.cache.expirationSeconds:30}") int expirationSeconds) {
+        super(jdbcTemplate);
+        this.enabled = expirationSeconds > 0;
+        Ticker ticker = new TimeServiceTicker(timeService);
+        this.providersByZone = CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(Math.max(0, expirationSeconds), TimeUnit.SECONDS)
+                .maximumSize(DEFAULT_MAX_ENTRIES)
+                .ticker(ticker)
+                .build();
+    }
+
+    @Override
+    public IdentityProvider retrieve(String id, String zoneId) {
+        if (enabled) {
+            for (IdentityProviderRecord record : getRecords(zoneId)) {
+                if (record.id.equals(id)) {
+                    return record.toIdentityProvider();
+                }
+            }
+        }
+        return super.retrieve(id, zoneId);
+    }
+
+    @Override
+    public List<IdentityProvider> retrieveActive(String zoneId) {
+        if (!enabled) {
+            return super.retrieveActive(zoneId);
+        }
+        return retrieveAll(true, zoneId);
+    }
+
+    @Override
+    public List<IdentityProvider> retrieveAll(boolean activeOnly, String zoneId) {
+        if (!enabled) {
+            return super.retrieveAll(activeOnly, zoneId);
+        }
+        List<IdentityProvider> result = new ArrayList<>();
+        for (IdentityProviderRecord record : getRecords(zoneId)) {
+            if (record.active || !activeOnly) {
+                result.add(record.toIdentityProvider());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public IdentityProvider retrieveByOrigin(String origin, String zoneId) {
+        if (enabled) {
+            for (IdentityProviderRecord record : getRecords(zoneId)) {
+                if (record.active && record.originKey.equals(origin)) {
+                    return record.toIdentityProvider();
+                }
+            }
+        }
+        //the database may compare origin keys ignoring case
+        return super.retrieveByOrigin(origin, zoneId);
+    }
+
+    @Override
+    public IdentityProvider retrieveByOriginIgnoreActiveFlag(String origin, String zoneId) {
+        if (enabled) {
+            for (IdentityProviderRecord record : getRecords(zoneId)) {
+                if (record.originKey.equals(origin)) {
+                    return record.toIdentityProvider();
+                }
+            }
+        }
+        return super.retrieveByOriginIgnoreActiveFlag(origin, zoneId);
+    }
+
+    @Override
+    public IdentityProvider create(IdentityProvider identityProvider, String zoneId) {
+        try {
+            return super.create(identityProvider, zoneId);
+        } finally {
+            evict(zoneId);
+        }
+    }
+
+    @Override
+    public IdentityProvider update(IdentityProvider identityProvider, String zoneId) {
+        try {
+            return super.update(identityProvider, zoneId);
+        } finally {
+            evict(zoneId);
+        }
+    }
+
+    @Override
+    public int deleteByIdentityZone(String zoneId) {
+        try {
+            return super.deleteByIdentityZone(zoneId);
+        } finally {
+            evict(zoneId);
+        }
+    }
+
+    @Override
+    public int deleteByOrigin(String origin, String zoneId) {
+        try {
+            return super.deleteByOrigin(origin, zoneId);
+        } finally {
+            evict(zoneId);
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(AbstractUaaEvent event) {
+        super.onApplicationEvent(event);
+        if (event instanceof IdentityProviderModifiedEvent) {
+            evict(event.getIdentityZoneId());
+            evict(((IdentityProvider) event.getSource()).getIdentityZoneId());
+        } else if (event instanceof EntityDeletedEvent) {
+            Object deleted = ((EntityDeletedEvent<?>) event).getDeleted();
+            if (deleted instanceof IdentityProvider) {
+                evict(((IdentityProvider) deleted).getIdentityZoneId());
+            } else if (deleted instanceof IdentityZone) {
+                evict(((IdentityZone) deleted).getId());
+            }
+        }
+    }
+
+    public void clear() {
+        generation.increment();
+        providersByZone.invalidateAll();
+    }
+
+    private List<IdentityProviderRecord> getRecords(String zoneId) {
+        List<IdentityProviderRecord> records = providersByZone.getIfPresent(zoneId);
+        if (records != null) {
+            return records;
+        }
+        long current = generation.current();
+        records = jdbcTemplate.query(IDENTITY_PROVIDERS_QUERY, IdentityProviderRecord.ROW_MAPPER, zoneId);
+        generation.putIfUnchanged(providersByZone, current, zoneId, records);
+        return records;
+    }
+
+    private void evict(String zoneId) {
+        generation.increment();
+        if (zoneId != null) {
+            providersByZone.invalidate(zoneId);
+        }
+    }
+}
@@ -10,7 +10,6 @@ import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
-import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -21,7 +20,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 
-@Component("identityProviderProvisioning")
 public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisioning, SystemDeletable {
 
     private static Logger logger = LoggerFactory.getLogger(JdbcIdentityProviderProvisioning.class);
@@ -160,16 +158,66 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
     private static final class IdentityProviderRowMapper implements RowMapper<IdentityProvider> {
         @Override
         public IdentityProvider mapRow(ResultSet rs, int rowNum) throws SQLException {
-            IdentityProvider identityProvider = new IdentityProvider();
+            return IdentityProviderRecord.ROW_MAPPER.mapRow(rs, rowNum).toIdentityProvider();
+        }
+    }
+
+    /**
+     * The column values of an {@code identity_provider} row. Immutable, every call to
+     * {@link #toIdentityProvider()} returns a new provider with its own configuration.
+     */
+    static final class IdentityProviderRecord {
+
+        static final RowMapper<IdentityProviderRecord> ROW_MAPPER = (rs, rowNum) -> {
             int pos = 1;
-            identityProvider.setId(rs.getString(pos++).trim());
-            identityProvider.setVersion(rs.getInt(pos++));
-            identityProvider.setCreated(rs.getTimestamp(pos++));
-            identityProvider.setLastModified(rs.getTimestamp(pos++));
-            identityProvider.setName(rs.getString(pos++));
-            identityProvider.setOriginKey(rs.getString(pos++));
-            identityProvider.setType(rs.getString(pos++));
-            String config = rs.getString(pos++);
+            return new IdentityProviderRecord(
+                    rs.getString(pos++).trim(),
+                    rs.getInt(pos++),
+                    rs.getTimestamp(pos++),
+                    rs.getTimestamp(pos++),
+                    rs.getString(pos++),
+                    rs.getString(pos++),
+                    rs.getString(pos++),
+                    rs.getString(pos++),
+                    rs.getString(pos++),
+                    rs.getBoolean(pos)
+            );
+        };
+
+        final String id;
+        final int version;
+        final Timestamp created;
+        final Timestamp lastModified;
+        final String name;
+        final String originKey;
+        final String type;
+        final String config;
+        final String identityZoneId;
+        final boolean active;
+
+        IdentityProviderRecord(String id, int version, Timestamp created, Timestamp lastModified, String name, String originKey,
+                               String type, String config, String identityZoneId, boolean active) {
+            this.id = id;
+            this.version = version;
+            this.created = created;
+            this.lastModified = lastModified;
+            this.name = name;
+            this.originKey = originKey;
+            this.type = type;
+            this.config = config;
+            this.identityZoneId = identityZoneId;
+            this.active = active;
+        }
+
+        IdentityProvider toIdentityProvider() {
+            IdentityProvider identityProvider = new IdentityProvider();
+            identityProvider.setId(id);
+            identityProvider.setVersion(version);
+            identityProvider.setCreated(created == null ? null : (Timestamp) created.clone());
+            identityProvider.setLastModified(lastModified == null ? null : (Timestamp) lastModified.clone());
+            identityProvider.setName(name);
+            identityProvider.setOriginKey(originKey);
+            identityProvider.setType(type);
             if (StringUtils.hasText(config)) {
                 AbstractIdentityProviderDefinition definition;
                 switch (identityProvider.getType()) {
@@ -199,8 +247,8 @@ public class JdbcIdentityProviderProvisioning implements IdentityProviderProvisi
                     identityProvider.setConfig(definition);
                 }
             }
-            identityProvider.setIdentityZoneId(rs.getString(pos++));
-            identityProvider.setActive(rs.getBoolean(pos));
+            identityProvider.setIdentityZoneId(identityZoneId);
+            identityProvider.setActive(active);
             return identityProvider;
         }
     }
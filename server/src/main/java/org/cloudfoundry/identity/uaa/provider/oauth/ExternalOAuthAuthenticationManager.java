@@ -15,6 +15,7 @@ package org.cloudfoundry.identity.uaa.provider.oauth;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
 import org.cloudfoundry.identity.uaa.authentication.manager.ExternalGroupAuthorizationEvent;
 import org.cloudfoundry.identity.uaa.authentication.manager.ExternalLoginAuthenticationManager;
@@ -111,6 +112,7 @@ public class ExternalOAuthAuthenticationManager extends ExternalLoginAuthenticat
 
     private TokenEndpointBuilder tokenEndpointBuilder;
     private KeyInfoService keyInfoService;
+    private TokenKeyCache tokenKeyCache;
 
     //origin is per thread during execution
     private final ThreadLocal<String> origin = ThreadLocal.withInitial(() -> "unknown");
@@ -517,8 +519,7 @@ public class ExternalOAuthAuthenticationManager extends ExternalLoginAuthenticat
             List<SignatureVerifier> signatureVerifiers = getTokenKeyForUaaOrigin();
             validation = buildIdTokenValidator(idToken, new ChainedSignatureVerifier(signatureVerifiers), keyInfoService);
         } else {
-            JsonWebKeySet<JsonWebKey> tokenKeyFromOAuth = getTokenKeyFromOAuth(config);
-            validation = buildIdTokenValidator(idToken, new ChainedSignatureVerifier(tokenKeyFromOAuth), keyInfoService)
+            validation = buildIdTokenValidator(idToken, getTokenKeyVerifier(idToken, config), keyInfoService)
                 .checkIssuer((isEmpty(config.getIssuer()) ? config.getTokenUrl().toString() : config.getIssuer()))
                 .checkAudience(config.getRelyingPartyId());
         }
@@ -537,6 +538,30 @@ public class ExternalOAuthAuthenticationManager extends ExternalLoginAuthenticat
         return key.startsWith("-----BEGIN");
     }
 
+    private SignatureVerifier getTokenKeyVerifier(String idToken, AbstractExternalOAuthIdentityProviderDefinition config) {
+        URL tokenKeyUrl = config.getTokenKeyUrl();
+        if (tokenKeyCache == null || StringUtils.hasText(config.getTokenKey()) || tokenKeyUrl == null || !StringUtils.hasText(tokenKeyUrl.toString())) {
+            return new ChainedSignatureVerifier(getTokenKeyFromOAuth(config));
+        }
+        String kid = JwtHelper.decode(idToken).getHeader().getKid();
+        String cacheKey = getTokenKeyCacheKey(IdentityZoneHolder.get().getId(), getOrigin(), config);
+        return tokenKeyCache.getVerifier(cacheKey, kid, () -> fetchTokenKeys(config, tokenKeyUrl));
+    }
+
+    /**
+     * Keys are cached per zone and provider, so providers sharing a token key URL never share
+     * the fetched keys or the credentials used to fetch them.
+     */
+    static String getTokenKeyCacheKey(String zoneId, String origin, AbstractExternalOAuthIdentityProviderDefinition config) {
+        String credentials = DigestUtils.sha256Hex(config.getRelyingPartyId() + ":" + config.getRelyingPartySecret());
+        return String.join("|",
+                String.valueOf(zoneId),
+                String.valueOf(origin),
+                config.isSkipSslValidation() ? "trusting" : "nontrusting",
+                credentials,
+                String.valueOf(config.getTokenKeyUrl()));
+    }
+
     private JsonWebKeySet<JsonWebKey> getTokenKeyFromOAuth(AbstractExternalOAuthIdentityProviderDefinition config) {
 
         String tokenKey = config.getTokenKey();
@@ -552,6 +577,15 @@ public class ExternalOAuthAuthenticationManager extends ExternalLoginAuthenticat
             return new JsonWebKeySet<>(Collections.emptyList());
         }
 
+        ResponseEntity<String> responseEntity = fetchTokenKeys(config, tokenKeyUrl);
+        if (responseEntity.getStatusCode() == HttpStatus.OK) {
+            return JsonWebKeyHelper.deserialize(responseEntity.getBody());
+        } else {
+            throw new InvalidTokenException("Unable to fetch verification keys, status:" + responseEntity.getStatusCode());
+        }
+    }
+
+    private ResponseEntity<String> fetchTokenKeys(AbstractExternalOAuthIdentityProviderDefinition config, URL tokenKeyUrl) {
         MultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
         headers.add("Authorization", getClientAuthHeader(config));
         headers.add("Accept", "application/json");
@@ -559,11 +593,7 @@ public class ExternalOAuthAuthenticationManager extends ExternalLoginAuthenticat
         logger.debug("Fetching token keys from:"+tokenKeyUrl);
         ResponseEntity<String> responseEntity = getRestTemplate(config).exchange(tokenKeyUrl.toString(), HttpMethod.GET, tokenKeyRequest, String.class);
         logger.debug("Token key response:"+responseEntity.getStatusCode());
-        if (responseEntity.getStatusCode() == HttpStatus.OK) {
-            return JsonWebKeyHelper.deserialize(responseEntity.getBody());
-        } else {
-            throw new InvalidTokenException("Unable to fetch verification keys, status:" + responseEntity.getStatusCode());
-        }
+        return responseEntity;
     }
 
     private String getTokenFromCode(ExternalOAuthCodeToken codeToken, AbstractExternalOAuthIdentityProviderDefinition config) {
@@ -627,6 +657,10 @@ public class ExternalOAuthAuthenticationManager extends ExternalLoginAuthenticat
         this.tokenEndpointBuilder = tokenEndpointBuilder;
     }
 
+    public void setTokenKeyCache(TokenKeyCache tokenKeyCache) {
+        this.tokenKeyCache = tokenKeyCache;
+    }
+
     public KeyInfoService getKeyInfoService() {
         return keyInfoService;
     }
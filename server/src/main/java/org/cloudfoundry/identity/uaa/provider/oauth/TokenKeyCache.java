@@ -0,0 +1,283 @@
+package org.cloudfoundry.identity.uaa.provider.oauth;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.cloudfoundry.identity.uaa.cache.TimeServiceTicker;
+import org.cloudfoundry.identity.uaa.oauth.jwk.JsonWebKey;
+import org.cloudfoundry.identity.uaa.oauth.jwk.JsonWebKeyHelper;
+import org.cloudfoundry.identity.uaa.oauth.jwk.JsonWebKeySet;
+import org.cloudfoundry.identity.uaa.oauth.jwt.ChainedSignatureVerifier;
+import org.cloudfoundry.identity.uaa.oauth.jwt.CommonSignatureVerifier;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Caches the verifiers of the keys fetched from the token key URL of an external OAuth provider, so a
+ * login does not wait for the key set to be fetched and parsed.
+ * <p>
+ * Keys are refreshed after the max-age of the Cache-Control header of the response, bounded by
+ * {@link #setMinRefreshSeconds(int)} and {@link #setMaxRefreshSeconds(int)}, or after
+ * {@link #setRefreshSeconds(int)} without one. The refresh happens in the background, the login that
+ * finds the keys due keeps using them. When the provider can not be reached the last keys are used
+ * until a refresh succeeds.
+ * <p>
+ * A token signed with a kid that is not among the cached keys makes the keys be fetched again right
+ * away, at most once per {@link #setMinRefreshSeconds(int)}, so a key rotation is picked up without
+ * letting tokens with made up kids hit the provider.
+ */
+@ManagedResource(
+        objectName = "cloudfoundry.identity:name=TokenKeyCache",
+        description = "UAA External OAuth Token Key Cache Metrics"
+)
+public class TokenKeyCache implements InitializingBean, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenKeyCache.class);
+    private static final Pattern MAX_AGE = Pattern.compile("(?:^|[,\\s])max-age\\s*=\\s*\"?(\\d+)");
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private final TimeService timeService;
+    private final Cache<String, CachedKeys> cache;
+
+    private int refreshSeconds = 300;
+    private int minRefreshSeconds = 30;
+    private int maxRefreshSeconds = 3600;
+
+    private ExecutorService refreshWorker;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unknownKeyFetches = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder failedRefreshes = new LongAdder();
+
+    public TokenKeyCache(TimeService timeService, int expirationSeconds) {
+        this.timeService = timeService;
+        Ticker ticker = new TimeServiceTicker(timeService);
+        this.cache = CacheBuilder
+                .newBuilder()
+                .expireAfterAccess(Math.max(1, expirationSeconds), TimeUnit.SECONDS)
+                .maximumSize(DEFAULT_MAX_ENTRIES)
+                .ticker(ticker)
+                .build();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        refreshWorker = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "token-key-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (refreshWorker != null) {
+            refreshWorker.shutdownNow();
+            refreshWorker.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Returns the verifier of the key with the given kid, or a verifier trying every key when the token has
+     * no kid or none of the keys has it.
+     *
+     * @param cacheKey identifies the keys, the zone and provider they belong to and how they are fetched
+     * @param fetcher  fetches the key set from the provider
+     */
+    public SignatureVerifier getVerifier(String cacheKey, String kid, Supplier<ResponseEntity<String>> fetcher) {
+        CachedKeys entry = cache.asMap().computeIfAbsent(cacheKey, k -> new CachedKeys());
+        entry.fetcher = fetcher;
+        Keys keys = entry.keys;
+        long now = timeService.getCurrentTimeMillis();
+        if (keys == null) {
+            misses.increment();
+            keys = fetch(entry);
+        } else if (kid != null && !keys.byKid.containsKey(kid) && now - entry.lastFetch >= minRefreshSeconds * 1000L) {
+            unknownKeyFetches.increment();
+            try {
+                keys = fetch(entry);
+            } catch (RuntimeException e) {
+                failedRefreshes.increment();
+                logger.warn("Unable to fetch token keys for unknown kid, using cached keys.", e);
+            }
+        } else {
+            hits.increment();
+            if (now >= keys.refreshAt) {
+                refreshInBackground(entry);
+            }
+        }
+        SignatureVerifier verifier = kid != null ? keys.byKid.get(kid) : null;
+        if (verifier != null) {
+            return verifier;
+        }
+        if (keys.all.isEmpty()) {
+            throw new IllegalArgumentException("keys cannot be null or empty");
+        }
+        return new ChainedSignatureVerifier(keys.all);
+    }
+
+    private Keys fetch(CachedKeys entry) {
+        long generation = entry.generation;
+        synchronized (entry) {
+            if (entry.generation != generation) {
+                //fetched by another thread while this one waited
+                return entry.keys;
+            }
+            entry.lastFetch = timeService.getCurrentTimeMillis();
+            ResponseEntity<String> response = entry.fetcher.get();
+            if (response.getStatusCode() != HttpStatus.OK) {
+                throw new InvalidTokenException("Unable to fetch verification keys, status:" + response.getStatusCode());
+            }
+            JsonWebKeySet<JsonWebKey> keySet = JsonWebKeyHelper.deserialize(response.getBody());
+            long now = timeService.getCurrentTimeMillis();
+            Keys keys = new Keys(keySet, now + getRefreshMillis(response.getHeaders()));
+            entry.keys = keys;
+            entry.generation++;
+            return keys;
+        }
+    }
+
+    private void refreshInBackground(CachedKeys entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        Runnable refresh = () -> {
+            try {
+                fetch(entry);
+                refreshes.increment();
+            } catch (RuntimeException e) {
+                failedRefreshes.increment();
+                logger.warn("Unable to refresh token keys, using cached keys.", e);
+            } finally {
+                entry.refreshing.set(false);
+            }
+        };
+        if (refreshWorker == null) {
+            refresh.run();
+            return;
+        }
+        try {
+            refreshWorker.execute(refresh);
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    long getRefreshMillis(HttpHeaders headers) {
+        int seconds = refreshSeconds;
+        String cacheControl = headers != null ? headers.getCacheControl() : null;
+        if (cacheControl != null) {
+            Matcher matcher = MAX_AGE.matcher(cacheControl.toLowerCase());
+            if (matcher.find()) {
+                try {
+                    seconds = Integer.parseInt(matcher.group(1));
+                } catch (NumberFormatException e) {
+                    seconds = maxRefreshSeconds;
+                }
+            } else if (cacheControl.toLowerCase().contains("no-cache") || cacheControl.toLowerCase().contains("no-store")) {
+                seconds = minRefreshSeconds;
+            }
+        }
+        return Math.min(maxRefreshSeconds, Math.max(minRefreshSeconds, seconds)) * 1000L;
+    }
+
+    public void setRefreshSeconds(int refreshSeconds) {
+        this.refreshSeconds = Math.max(0, refreshSeconds);
+    }
+
+    public void setMinRefreshSeconds(int minRefreshSeconds) {
+        this.minRefreshSeconds = Math.max(0, minRefreshSeconds);
+    }
+
+    public void setMaxRefreshSeconds(int maxRefreshSeconds) {
+        this.maxRefreshSeconds = Math.max(0, maxRefreshSeconds);
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Key Cache Hits")
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Key Cache Misses")
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Key Fetches For Unknown Kid")
+    public long getUnknownKeyFetchCount() {
+        return unknownKeyFetches.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Token Key Background Refreshes")
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Failed Token Key Refreshes")
+    public long getFailedRefreshCount() {
+        return failedRefreshes.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Token Key Cache Size")
+    public long getSize() {
+        return cache.size();
+    }
+
+    private static final class CachedKeys {
+        private volatile Keys keys;
+        private volatile Supplier<ResponseEntity<String>> fetcher;
+        private volatile long lastFetch = Long.MIN_VALUE;
+        private volatile long generation = 0;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+    }
+
+    private static final class Keys {
+        private final Map<String, SignatureVerifier> byKid;
+        private final List<SignatureVerifier> all;
+        private final long refreshAt;
+
+        private Keys(JsonWebKeySet<JsonWebKey> keySet, long refreshAt) {
+            Map<String, SignatureVerifier> byKid = new HashMap<>();
+            List<SignatureVerifier> all = new ArrayList<>();
+            if (keySet != null && keySet.getKeys() != null) {
+                for (JsonWebKey key : keySet.getKeys()) {
+                    SignatureVerifier verifier = new CommonSignatureVerifier(key.getValue());
+                    all.add(verifier);
+                    if (key.getKid() != null) {
+                        byKid.putIfAbsent(key.getKid(), verifier);
+                    }
+                }
+            }
+            this.byKid = Collections.unmodifiableMap(byKid);
+            this.all = Collections.unmodifiableList(all);
+            this.refreshAt = refreshAt;
+        }
+    }
+}
@@ -15,9 +15,19 @@
 
 package org.cloudfoundry.identity.uaa.provider.saml;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
+import org.cloudfoundry.identity.uaa.cache.CacheGeneration;
+import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
 import org.cloudfoundry.identity.uaa.provider.SamlIdentityProviderDefinition;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.util.TimeServiceImpl;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityProviderModifiedEvent;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
 import org.joda.time.DateTime;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.common.Extensions;
@@ -55,6 +65,7 @@ import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationListener;
 import org.springframework.security.saml.key.KeyManager;
 import org.springframework.security.saml.metadata.ExtendedMetadata;
 import org.springframework.security.saml.metadata.ExtendedMetadataDelegate;
@@ -69,17 +80,38 @@ import org.springframework.web.client.RestClientException;
 import org.w3c.dom.Element;
 
 import javax.xml.namespace.QName;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * Metadata manager that resolves the local service provider and the SAML identity providers
+ * of the current zone.
+ * <p>
+ * Initializing an identity provider parses its metadata and sets up signature verification, so the
+ * initialized providers of a zone are kept in an immutable {@link ZoneMetadataIndex} that also maps
+ * entity IDs, aliases and SHA-1 hashes of entity IDs to their provider. The index of a zone is rebuilt
+ * when an identity provider or the zone is created, modified or deleted on this node, when the earliest
+ * {@code validUntil} of its metadata is reached, or after {@code metadataIndexExpirationSeconds}, which
+ * bounds how long changes made on other nodes go unnoticed. The local service provider depends on the
+ * zone configuration and its keys, and is still generated for every lookup.
+ */
+public class NonSnarlMetadataManager extends MetadataManager implements ExtendedMetadataProvider, InitializingBean, DisposableBean, ApplicationListener<AbstractUaaEvent> {
 
-public class NonSnarlMetadataManager extends MetadataManager implements ExtendedMetadataProvider, InitializingBean, DisposableBean {
+    private static final int DEFAULT_MAX_ZONES = 10_000;
 
     // Class logger
     protected final Logger log = LoggerFactory.getLogger(NonSnarlMetadataManager.class);
@@ -92,6 +124,11 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
     private final SamlIdentityProviderConfigurator configurator;
     private ZoneAwareMetadataGenerator generator;
 
+    private final Cache<String, ZoneMetadataIndex> indexes = CacheBuilder.newBuilder().maximumSize(DEFAULT_MAX_ZONES).build();
+    private final CacheGeneration generation = new CacheGeneration();
+    private TimeService timeService = new TimeServiceImpl();
+    private long metadataIndexExpirationMillis = 60_000;
+
     public NonSnarlMetadataManager(SamlIdentityProviderConfigurator configurator) throws MetadataProviderException {
         super(Collections.EMPTY_LIST);
         this.configurator = configurator;
@@ -99,6 +136,36 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
         super.setRefreshCheckInterval(0);
     }
 
+    @Override
+    public void onApplicationEvent(AbstractUaaEvent event) {
+        if (event instanceof IdentityProviderModifiedEvent) {
+            evict(event.getIdentityZoneId());
+            evict(((IdentityProvider) event.getSource()).getIdentityZoneId());
+        } else if (event instanceof IdentityZoneModifiedEvent) {
+            //the zone keys are the trust anchors for metadata signatures
+            evict(((IdentityZone) event.getSource()).getId());
+        } else if (event instanceof EntityDeletedEvent) {
+            Object deleted = ((EntityDeletedEvent<?>) event).getDeleted();
+            if (deleted instanceof IdentityProvider) {
+                evict(((IdentityProvider) deleted).getIdentityZoneId());
+            } else if (deleted instanceof IdentityZone) {
+                evict(((IdentityZone) deleted).getId());
+            }
+        }
+    }
+
+    public void clear() {
+        generation.increment();
+        indexes.invalidateAll();
+    }
+
+    private void evict(String zoneId) {
+        generation.increment();
+        if (zoneId != null) {
+            indexes.invalidate(zoneId);
+        }
+    }
+
     @Override
     public void destroy() {
 
@@ -136,13 +203,37 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
     }
 
     public List<ExtendedMetadataDelegate> getAvailableProviders() {
-        IdentityZone zone = IdentityZoneHolder.get();
         List<ExtendedMetadataDelegate> result = new ArrayList<>();
+        result.add(getLocalServiceProviderUnchecked());
+        result.addAll(getIndex().delegates);
+        return result;
+    }
+
+    private ExtendedMetadataDelegate getLocalServiceProviderUnchecked() {
         try {
-            result.add(getLocalServiceProvider());
+            return getLocalServiceProvider();
         } catch (MetadataProviderException e) {
             throw new IllegalStateException(e);
         }
+    }
+
+    ZoneMetadataIndex getIndex() {
+        IdentityZone zone = IdentityZoneHolder.get();
+        long now = timeService.getCurrentTimeMillis();
+        ZoneMetadataIndex index = metadataIndexExpirationMillis > 0 ? indexes.getIfPresent(zone.getId()) : null;
+        if (index != null && index.expiresAt > now) {
+            return index;
+        }
+        long current = generation.current();
+        index = buildIndex(zone, now);
+        if (metadataIndexExpirationMillis > 0) {
+            generation.putIfUnchanged(indexes, current, zone.getId(), index);
+        }
+        return index;
+    }
+
+    private ZoneMetadataIndex buildIndex(IdentityZone zone, long now) {
+        List<ExtendedMetadataDelegate> delegates = new ArrayList<>();
         for (SamlIdentityProviderDefinition definition : configurator.getIdentityProviderDefinitions()) {
             log.info("Adding SAML IDP zone[" + zone.getId() + "] alias[" + definition.getIdpEntityAlias() + "]");
             try {
@@ -150,12 +241,12 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
                 initializeProvider(delegate);
                 initializeProviderData(delegate);
                 initializeProviderFilters(delegate);
-                result.add(delegate);
+                delegates.add(delegate);
             } catch (RestClientException | MetadataProviderException e) {
                 log.error("Invalid SAML IDP zone[" + zone.getId() + "] alias[" + definition.getIdpEntityAlias() + "]", e);
             }
         }
-        return result;
+        return new ZoneMetadataIndex(delegates, now + metadataIndexExpirationMillis);
     }
 
     @Override
@@ -385,33 +476,23 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
 
     @Override
     public Set<String> getIDPEntityNames() {
-        Set<String> result = new HashSet<>();
-        for (ExtendedMetadataDelegate delegate : getAvailableProviders()) {
-            try {
-                String idp = getProviderIdpAlias(delegate);
-                if (StringUtils.hasText(idp)) {
-                    result.add(idp);
-                }
-            } catch (MetadataProviderException e) {
-                log.error("Unable to get IDP alias for:"+delegate, e);
-            }
-        }
-        return result;
+        //the local service provider never has an IDP role
+        return new HashSet<>(getIndex().idpNames);
     }
 
     @Override
     public Set<String> getSPEntityNames() {
         Set<String> result = new HashSet<>();
-        for (ExtendedMetadataDelegate delegate : getAvailableProviders()) {
-            try {
-                String sp = getHostedSpName(delegate);
-                if (StringUtils.hasText(sp)) {
-                    result.add(sp);
-                }
-            } catch (MetadataProviderException e) {
-                log.error("Unable to get IDP alias for:"+delegate, e);
+        ExtendedMetadataDelegate local = getLocalServiceProviderUnchecked();
+        try {
+            String sp = getHostedSpName(local);
+            if (StringUtils.hasText(sp)) {
+                result.add(sp);
             }
+        } catch (MetadataProviderException e) {
+            log.error("Unable to get IDP alias for:"+local, e);
         }
+        result.addAll(getIndex().spNames);
         return result;
     }
 
@@ -427,17 +508,17 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
 
     @Override
     public String getHostedSPName() {
-        for (ExtendedMetadataDelegate delegate : getAvailableProviders()) {
-            try {
-                String spName = getHostedSpName(delegate);
-                if (StringUtils.hasText(spName)) {
-                    return spName;
-                }
-            } catch (MetadataProviderException e) {
-                log.error("Unable to find hosted SP name:"+delegate, e);
+        ExtendedMetadataDelegate local = getLocalServiceProviderUnchecked();
+        try {
+            String spName = getHostedSpName(local);
+            if (StringUtils.hasText(spName)) {
+                return spName;
             }
+        } catch (MetadataProviderException e) {
+            log.error("Unable to find hosted SP name:"+local, e);
         }
-        return null;
+        Iterator<String> spNames = getIndex().spNames.iterator();
+        return spNames.hasNext() ? spNames.next() : null;
     }
 
     @Override
@@ -462,7 +543,7 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
 
     @Override
     public ExtendedMetadata getExtendedMetadata(String entityID) throws MetadataProviderException {
-        for (MetadataProvider provider : getProviders()) {
+        for (MetadataProvider provider : getProvidersFor(entityID)) {
             ExtendedMetadata extendedMetadata = getExtendedMetadata(entityID, provider);
             if (extendedMetadata != null) {
                 return extendedMetadata;
@@ -471,6 +552,19 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
         return getDefaultExtendedMetadata().clone();
     }
 
+    /**
+     * @return the local service provider followed by the identity provider that declares the entity, if any
+     */
+    private List<MetadataProvider> getProvidersFor(String entityID) {
+        List<MetadataProvider> result = new ArrayList<>(2);
+        result.add(getLocalServiceProviderUnchecked());
+        ExtendedMetadataDelegate delegate = getIndex().entities.get(entityID);
+        if (delegate != null) {
+            result.add(delegate);
+        }
+        return result;
+    }
+
     private ExtendedMetadata getExtendedMetadata(String entityID, MetadataProvider provider) throws MetadataProviderException {
         if (provider instanceof ExtendedMetadataProvider) {
             ExtendedMetadataProvider extendedProvider = (ExtendedMetadataProvider) provider;
@@ -484,10 +578,9 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
 
     @Override
     public EntityDescriptor getEntityDescriptor(byte[] hash) throws MetadataProviderException {
-        for (String idp : getIDPEntityNames()) {
-            if (SAMLUtil.compare(hash, idp)) {
-                return getEntityDescriptor(idp);
-            }
+        String idp = getIndex().idpHashes.get(encode(hash));
+        if (idp != null) {
+            return getEntityDescriptor(idp);
         }
 
         for (String sp : getSPEntityNames()) {
@@ -505,18 +598,11 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
             return null;
         }
 
-        String entityId = null;
-
-        for (String idp : getIDPEntityNames()) {
-            ExtendedMetadata extendedMetadata = getExtendedMetadata(idp);
-            if (extendedMetadata.isLocal() && entityAlias.equals(extendedMetadata.getAlias())) {
-                if (entityId != null && !entityId.equals(idp)) {
-                    throw new MetadataProviderException("Alias " + entityAlias + " is used both for entity " + entityId + " and " + idp);
-                } else {
-                    entityId = idp;
-                }
-            }
+        ZoneMetadataIndex index = getIndex();
+        if (index.conflictingAliases.containsKey(entityAlias)) {
+            throw new MetadataProviderException(index.conflictingAliases.get(entityAlias));
         }
+        String entityId = index.idpAliases.get(entityAlias);
 
         for (String sp : getSPEntityNames()) {
             ExtendedMetadata extendedMetadata = getExtendedMetadata(sp);
@@ -589,7 +675,7 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
     /** {@inheritDoc} */
     public EntityDescriptor getEntityDescriptor(String entityID) {
         EntityDescriptor descriptor = null;
-        for (MetadataProvider provider : getProviders()) {
+        for (MetadataProvider provider : getProvidersFor(entityID)) {
             log.debug("Checking child metadata provider for entity descriptor with entity ID: {}", entityID);
             try {
                 descriptor = provider.getEntityDescriptor(entityID);
@@ -608,7 +694,7 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
     /** {@inheritDoc} */
     public List<RoleDescriptor> getRole(String entityID, QName roleName) {
         List<RoleDescriptor> roleDescriptors = null;
-        for (MetadataProvider provider : getProviders()) {
+        for (MetadataProvider provider : getProvidersFor(entityID)) {
             log.debug("Checking child metadata provider for entity descriptor with entity ID: {}", entityID);
             try {
                 roleDescriptors = provider.getRole(entityID, roleName);
@@ -627,7 +713,7 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
     /** {@inheritDoc} */
     public RoleDescriptor getRole(String entityID, QName roleName, String supportedProtocol) {
         RoleDescriptor roleDescriptor = null;
-        for (MetadataProvider provider : getProviders()) {
+        for (MetadataProvider provider : getProvidersFor(entityID)) {
             log.debug("Checking child metadata provider for entity descriptor with entity ID: {}", entityID);
             try {
                 roleDescriptor = provider.getRole(entityID, roleName, supportedProtocol);
@@ -652,6 +738,89 @@ public class NonSnarlMetadataManager extends MetadataManager implements Extended
         this.generator = generator;
     }
 
+    public void setMetadataIndexExpirationSeconds(int metadataIndexExpirationSeconds) {
+        this.metadataIndexExpirationMillis = metadataIndexExpirationSeconds * 1000L;
+    }
+
+    public void setTimeService(TimeService timeService) {
+        this.timeService = timeService;
+    }
+
+    private static String encode(byte[] hash) {
+        return Base64.getEncoder().encodeToString(hash);
+    }
+
+    private static String sha1(String entityID) {
+        try {
+            return encode(MessageDigest.getInstance("SHA-1").digest(entityID.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The initialized identity providers of a zone. Built once and never modified, so it can be read
+     * by concurrent requests without locking.
+     */
+    class ZoneMetadataIndex {
+
+        final List<ExtendedMetadataDelegate> delegates;
+        final Map<String, ExtendedMetadataDelegate> entities = new HashMap<>();
+        final Set<String> idpNames = new LinkedHashSet<>();
+        final Set<String> spNames = new LinkedHashSet<>();
+        final Map<String, String> idpHashes = new HashMap<>();
+        final Map<String, String> idpAliases = new HashMap<>();
+        final Map<String, String> conflictingAliases = new HashMap<>();
+        final long expiresAt;
+
+        ZoneMetadataIndex(List<ExtendedMetadataDelegate> delegates, long expiresAt) {
+            this.delegates = Collections.unmodifiableList(delegates);
+            long validUntil = expiresAt;
+            for (ExtendedMetadataDelegate delegate : delegates) {
+                try {
+                    for (String entityID : parseProvider(delegate)) {
+                        entities.putIfAbsent(entityID, delegate);
+                        EntityDescriptor descriptor = delegate.getEntityDescriptor(entityID);
+                        if (descriptor != null && descriptor.getValidUntil() != null) {
+                            validUntil = Math.min(validUntil, descriptor.getValidUntil().getMillis());
+                        }
+                    }
+                    String idp = getProviderIdpAlias(delegate);
+                    if (StringUtils.hasText(idp)) {
+                        idpNames.add(idp);
+                    }
+                    String sp = getHostedSpName(delegate);
+                    if (StringUtils.hasText(sp)) {
+                        spNames.add(sp);
+                    }
+                } catch (MetadataProviderException e) {
+                    log.error("Unable to get IDP alias for:"+delegate, e);
+                }
+            }
+            for (String idp : idpNames) {
+                idpHashes.put(sha1(idp), idp);
+                addAlias(idp);
+            }
+            this.expiresAt = validUntil;
+        }
+
+        private void addAlias(String idp) {
+            try {
+                ExtendedMetadata extendedMetadata = getExtendedMetadata(idp, entities.get(idp));
+                if (extendedMetadata == null || !extendedMetadata.isLocal() || extendedMetadata.getAlias() == null) {
+                    return;
+                }
+                String alias = extendedMetadata.getAlias();
+                String existing = idpAliases.putIfAbsent(alias, idp);
+                if (existing != null && !existing.equals(idp)) {
+                    conflictingAliases.put(alias, "Alias " + alias + " is used both for entity " + existing + " and " + idp);
+                }
+            } catch (MetadataProviderException e) {
+                log.error("Unable to get extended metadata for:"+idp, e);
+            }
+        }
+    }
+
     public class ChainingEntitiesDescriptor implements EntitiesDescriptor {
 
         /** Metadata from the child metadata providers. */
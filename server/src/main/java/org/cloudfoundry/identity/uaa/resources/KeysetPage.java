@@ -0,0 +1,37 @@
+package org.cloudfoundry.identity.uaa.resources;
+
+import java.util.List;
+
+/**
+ * One page of a query paged with a cursor instead of an index.
+ */
+public class KeysetPage<T> {
+
+    private final List<T> resources;
+    private final int totalResults;
+    private final String nextCursor;
+
+    public KeysetPage(List<T> resources, int totalResults, String nextCursor) {
+        this.resources = resources;
+        this.totalResults = totalResults;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getResources() {
+        return resources;
+    }
+
+    /**
+     * The number of results when the first page was read, later pages do not count again.
+     */
+    public int getTotalResults() {
+        return totalResults;
+    }
+
+    /**
+     * The cursor of the next page, null if this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
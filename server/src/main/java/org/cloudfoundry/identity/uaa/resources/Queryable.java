@@ -13,6 +13,7 @@
 package org.cloudfoundry.identity.uaa.resources;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface Queryable<T> {
 
@@ -20,4 +21,20 @@ public interface Queryable<T> {
 
     List<T> query(String filter, String sortBy, boolean ascending, String zoneId);
 
+    /**
+     * Returns the page after the cursor, seeking past the previous page rather than skipping it.
+     *
+     * @param cursor the next cursor of the previous page, null or empty for the first page
+     * @throws IllegalArgumentException if the filter, sort or cursor is invalid
+     */
+    KeysetPage<T> queryPage(String filter, String sortBy, boolean ascending, String cursor, int count, String zoneId);
+
+    /**
+     * Reads all results in a single pass and hands them to the consumer in chunks, so that
+     * at most one chunk is held in memory.
+     *
+     * @throws IllegalArgumentException if the filter is invalid
+     */
+    void queryInChunks(String filter, String zoneId, int chunkSize, Consumer<List<T>> consumer);
+
 }
@@ -1,22 +1,47 @@
 package org.cloudfoundry.identity.uaa.resources.jdbc;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.cloudfoundry.identity.uaa.resources.KeysetPage;
 import org.cloudfoundry.identity.uaa.resources.Queryable;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.BadSqlGrammarException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.jdbc.core.namedparam.ParsedSql;
 import org.springframework.util.StringUtils;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static com.google.common.primitives.Ints.tryParse;
 
 public abstract class AbstractQueryable<T> implements Queryable<T> {
 
+    private static final String ID_COLUMN = "id";
+    private static final String SEEK_VALUE = "__keyset_value";
+    private static final String SEEK_ID = "__keyset_id";
+
+    private final JdbcTemplate jdbcTemplate;
+
     private NamedParameterJdbcTemplate namedParameterJdbcTemplate;
 
     private JdbcPagingListFactory pagingListFactory;
@@ -32,6 +57,7 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
     protected AbstractQueryable(final JdbcTemplate jdbcTemplate,
                                 final JdbcPagingListFactory pagingListFactory,
                                 final RowMapper<T> rowMapper) {
+        this.jdbcTemplate = jdbcTemplate;
         this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
         this.pagingListFactory = pagingListFactory;
         this.rowMapper = rowMapper;
@@ -85,6 +111,184 @@ public abstract class AbstractQueryable<T> implements Queryable<T> {
         }
     }
 
+    /**
+     * Pages by seeking past the last row of the previous page, ordered by the sort field and then by id,
+     * so that reading a page does not scan the pages before it. The rows are counted once, for the first
+     * page, and the count is carried in the cursor. The sort field has to be one of
+     * {@link #getKeysetSortFields()}.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public KeysetPage<T> queryPage(String filter, String sortBy, boolean ascending, String cursor, int count, String zoneId) {
+        String sortColumn = StringUtils.hasText(sortBy) ? queryConverter.map(sortBy).trim().toLowerCase() : ID_COLUMN;
+        validateOrderBy(sortColumn);
+        if (!StringUtils.commaDelimitedListToSet(getKeysetSortFields().toLowerCase()).contains(sortColumn)) {
+            throw new IllegalArgumentException("Invalid sort field for paging with a cursor: " + sortBy);
+        }
+        int filterHash = Objects.hash(filter, zoneId);
+        Map<String, Object> position = StringUtils.hasText(cursor) ? decodeCursor(cursor) : null;
+        if (position != null && !(sortColumn.equals(position.get("k")) && ascending == Boolean.TRUE.equals(position.get("a")) &&
+                Objects.equals(filterHash, position.get("f")))) {
+            throw new IllegalArgumentException("The cursor does not match the filter and sort order");
+        }
+
+        SearchQueryConverter.ProcessedFilter where = queryConverter.convert(filter, null, ascending, zoneId);
+        Map<String, Object> params = new HashMap<>(where.getParams());
+        String sql = getQuerySQL(where);
+        String direction = ascending ? " ASC" : " DESC";
+        String operator = ascending ? " > " : " < ";
+        try {
+            int total;
+            if (position == null) {
+                total = pagingListFactory.count(sql, params);
+            } else {
+                total = ((Number) position.get("t")).intValue();
+                params.put(SEEK_ID, position.get("i"));
+                if (ID_COLUMN.equals(sortColumn)) {
+                    sql += " and " + ID_COLUMN + operator + ":" + SEEK_ID;
+                } else {
+                    params.put(SEEK_VALUE, getCursorValue(position));
+                    sql += " and (" + sortColumn + operator + ":" + SEEK_VALUE +
+                            " or (" + sortColumn + " = :" + SEEK_VALUE + " and " + ID_COLUMN + operator + ":" + SEEK_ID + "))";
+                }
+            }
+            sql += SearchQueryConverter.ProcessedFilter.ORDER_BY + (ID_COLUMN.equals(sortColumn) ? "" : sortColumn + direction + ", ") + ID_COLUMN + direction;
+            logger.debug("keyset sql: " + sql + ", params: " + params);
+
+            //one row more than the page tells whether there is a next page
+            List<Object[]> rows = pagingListFactory.queryFirstRows(sql, params,
+                    (rs, rowNum) -> new Object[]{rowMapper.mapRow(rs, rowNum), rs.getObject(sortColumn), rs.getString(ID_COLUMN)},
+                    Math.max(1, count) + 1);
+            List<T> resources = new ArrayList<>();
+            String nextCursor = null;
+            for (int i = 0; i < rows.size() && i < Math.max(1, count); i++) {
+                resources.add((T) rows.get(i)[0]);
+            }
+            if (rows.size() > resources.size()) {
+                Object[] last = rows.get(resources.size() - 1);
+                nextCursor = encodeCursor(sortColumn, ascending, filterHash, total, last[1], (String) last[2]);
+            }
+            return new KeysetPage<>(resources, total, nextCursor);
+        } catch (DataAccessException e) {
+            logger.debug("Filter '" + filter + "' generated invalid SQL", e);
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        }
+    }
+
+    /**
+     * Reads the results through a forward-only cursor that fetches one chunk of rows per round trip.
+     * Postgres only fetches in chunks inside a transaction, so auto-commit is turned off while reading.
+     * MySQL only does with useCursorFetch=true on the connection URL and otherwise reads all rows up
+     * front, though still without mapping them all at once.
+     * <p>
+     * The cursor keeps its pooled connection, and on Postgres an open transaction, until the last
+     * chunk was consumed. Queries made by the consumer through the same pool use a second
+     * connection, so callers must limit how many of these reads run at the same time.
+     * <p>
+     * Invalid filters are reported before the consumer is called, exceptions thrown by the consumer
+     * are passed on unchanged.
+     */
+    @Override
+    public void queryInChunks(String filter, String zoneId, int chunkSize, Consumer<List<T>> consumer) {
+        SearchQueryConverter.ProcessedFilter where = queryConverter.convert(filter, null, true, zoneId);
+        MapSqlParameterSource params = new MapSqlParameterSource(where.getParams());
+        ParsedSql parsedSql = NamedParameterUtils.parseSqlStatement(getQuerySQL(where));
+        String sql = NamedParameterUtils.substituteNamedParameters(parsedSql, params);
+        Object[] args = NamedParameterUtils.buildValueArray(parsedSql, params, null);
+        int size = Math.max(1, chunkSize);
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            if (autoCommit) {
+                connection.setAutoCommit(false);
+            }
+            try (PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                statement.setFetchSize(size);
+                new ArgumentPreparedStatementSetter(args).setValues(statement);
+                try (ResultSet rs = executeFilterQuery(statement, sql, filter)) {
+                    List<T> chunk = new ArrayList<>(size);
+                    int rowNum = 0;
+                    while (rs.next()) {
+                        chunk.add(rowMapper.mapRow(rs, rowNum++));
+                        if (chunk.size() == size) {
+                            consumer.accept(chunk);
+                            chunk = new ArrayList<>(size);
+                        }
+                    }
+                    if (!chunk.isEmpty()) {
+                        consumer.accept(chunk);
+                    }
+                }
+            } finally {
+                if (autoCommit) {
+                    //nothing was written, ending the transaction only closes the cursor
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            }
+            return null;
+        });
+    }
+
+    private ResultSet executeFilterQuery(PreparedStatement statement, String sql, String filter) throws SQLException {
+        try {
+            return statement.executeQuery();
+        } catch (SQLException e) {
+            DataAccessException translated = jdbcTemplate.getExceptionTranslator().translate("queryInChunks", sql, e);
+            if (translated instanceof BadSqlGrammarException) {
+                logger.debug("Filter '" + filter + "' generated invalid SQL", e);
+                throw new IllegalArgumentException("Invalid filter: " + filter);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The fields that pages can be sorted by when paging with a cursor, comma separated. They must not
+     * be null, as rows with a null sort value can not be sought past.
+     */
+    protected String getKeysetSortFields() {
+        return ID_COLUMN;
+    }
+
+    private static String encodeCursor(String sortColumn, boolean ascending, int filterHash, int total, Object value, String id) {
+        Map<String, Object> position = new HashMap<>();
+        position.put("k", sortColumn);
+        position.put("a", ascending);
+        position.put("f", filterHash);
+        position.put("t", total);
+        position.put("i", id);
+        if (value instanceof Timestamp) {
+            //the nanos keep the precision of the database, milliseconds could repeat the last row
+            position.put("v", ((Timestamp) value).getTime());
+            position.put("n", ((Timestamp) value).getNanos());
+        } else if (value != null) {
+            position.put("v", value.toString());
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(JsonUtils.writeValueAsBytes(position));
+    }
+
+    private static Map<String, Object> decodeCursor(String cursor) {
+        try {
+            Map<String, Object> position = JsonUtils.readValue(Base64.getUrlDecoder().decode(cursor), new TypeReference<Map<String, Object>>() {});
+            if (position == null || !(position.get("t") instanceof Number) || !(position.get("i") instanceof String)) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            return position;
+        } catch (IllegalArgumentException | JsonUtils.JsonUtilException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    private static Object getCursorValue(Map<String, Object> position) {
+        Object value = position.get("v");
+        if (position.get("n") instanceof Number && value instanceof Number) {
+            Timestamp timestamp = new Timestamp(((Number) value).longValue());
+            timestamp.setNanos(((Number) position.get("n")).intValue());
+            return timestamp;
+        }
+        return value;
+    }
+
     private String getQuerySQL(SearchQueryConverter.ProcessedFilter where) {
         if (where.hasOrderBy()) {
             return getBaseSqlQuery() + " where (" + where.getSql().replace(where.ORDER_BY, ")" + where.ORDER_BY);
@@ -0,0 +1,297 @@
+package org.cloudfoundry.identity.uaa.resources.jdbc;
+
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Deletes the expired rows of the tables registered by the stores that own them, on a single
+ * background thread instead of the request threads of those stores.
+ * <p>
+ * A table is swept at most once per the interval it was registered with. A sweep deletes at most
+ * {@link #setChunkSize(int) chunk size} rows per statement, using
+ * {@link LimitSqlAdapter#getDeleteExpiredQuery(String, String, String, int)}, until no expired rows
+ * are left or {@link #setMaxRuntime(long) max runtime} is used up, in which case the table is swept
+ * again on the next run.
+ * <p>
+ * With {@link #setLeaderElection(boolean) leader election} enabled, only the node holding the lease on
+ * the sweeper_lock row sweeps. The leader renews the lease on every run, another node takes over once
+ * the lease has not been renewed for {@link #setLeaseTime(long) lease time}.
+ */
+@ManagedResource(
+        objectName = "cloudfoundry.identity:name=ExpiredRowSweeper",
+        description = "UAA Expired Row Sweeper Metrics"
+)
+public class ExpiredRowSweeper implements InitializingBean, DisposableBean {
+
+    static final String LOCK_NAME = "expired_rows";
+    private static final String RENEW_LOCK_QUERY = "UPDATE sweeper_lock SET owner=?, expires_at=? WHERE lock_name=? AND (owner=? OR expires_at<?)";
+    private static final String INSERT_LOCK_QUERY = "INSERT INTO sweeper_lock (lock_name, owner, expires_at) VALUES (?,?,?)";
+    private static final String RELEASE_LOCK_QUERY = "UPDATE sweeper_lock SET expires_at=0 WHERE lock_name=? AND owner=?";
+
+    private static final Logger logger = LoggerFactory.getLogger(ExpiredRowSweeper.class);
+
+    private final JdbcTemplate template;
+    private final LimitSqlAdapter limitSqlAdapter;
+    private final TimeService timeService;
+    private final String owner = UUID.randomUUID().toString();
+    private final List<SweptTable> tables = new CopyOnWriteArrayList<>();
+
+    private boolean enabled = true;
+    private int chunkSize = 500;
+    private Duration maxRuntime = Duration.ofMillis(2500L);
+    private Duration runInterval = Duration.ofSeconds(5L);
+    private boolean leaderElection = false;
+    private Duration leaseTime = Duration.ofSeconds(60L);
+
+    private ScheduledExecutorService backgroundWorker;
+    private volatile boolean leader = false;
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong failedSweeps = new AtomicLong();
+
+    public ExpiredRowSweeper(JdbcTemplate template, LimitSqlAdapter limitSqlAdapter, TimeService timeService) {
+        this.template = template;
+        this.limitSqlAdapter = limitSqlAdapter;
+        this.timeService = timeService;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) {
+            return;
+        }
+        backgroundWorker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "expired-row-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = runInterval.toMillis();
+        backgroundWorker.scheduleWithFixedDelay(this::sweepQuietly, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (backgroundWorker == null) {
+            return;
+        }
+        backgroundWorker.shutdown();
+        backgroundWorker.awaitTermination(5, TimeUnit.SECONDS);
+        if (leader) {
+            try {
+                template.update(RELEASE_LOCK_QUERY, LOCK_NAME, owner);
+            } catch (DataAccessException e) {
+                logger.debug("Unable to release the expired row sweeper lock.", e);
+            }
+            leader = false;
+        }
+    }
+
+    /**
+     * Registers a table whose rows expire once the value of their expires column is less than the cutoff.
+     *
+     * @param interval the minimum time between two sweeps of the table in milliseconds
+     * @param cutoff   supplies the cutoff for each sweep, in the type of the expires column
+     * @return false if the sweeper is disabled or can not delete from this database, in which case
+     * the caller remains responsible for deleting expired rows
+     */
+    public boolean register(String table, String primaryKeyColumn, String expiresColumn, long interval, Supplier<?> cutoff) {
+        if (!enabled) {
+            return false;
+        }
+        try {
+            limitSqlAdapter.getDeleteExpiredQuery(table, primaryKeyColumn, expiresColumn, chunkSize);
+        } catch (UnsupportedOperationException e) {
+            logger.warn("Chunked deletes are not supported by " + limitSqlAdapter.getClass().getSimpleName() + ", not sweeping " + table + ".");
+            return false;
+        }
+        tables.add(new SweptTable(table, primaryKeyColumn, expiresColumn, interval, cutoff));
+        return true;
+    }
+
+    /**
+     * Sweeps every registered table that is due, if this node is the leader.
+     */
+    public void sweep() {
+        if (leaderElection && !acquireLease()) {
+            return;
+        }
+        for (SweptTable table : tables) {
+            if (table.isDue(timeService.getCurrentTimeMillis())) {
+                sweep(table);
+            }
+        }
+    }
+
+    private void sweep(SweptTable table) {
+        long start = timeService.getCurrentTimeMillis();
+        String sql = limitSqlAdapter.getDeleteExpiredQuery(table.name, table.primaryKeyColumn, table.expiresColumn, chunkSize);
+        Object cutoff = table.cutoff.get();
+        int removed = 0;
+        try {
+            do {
+                removed = template.update(sql, cutoff);
+                table.rowsPurged.addAndGet(removed);
+            } while (removed >= chunkSize && (timeService.getCurrentTimeMillis() - start) < maxRuntime.toMillis());
+            logger.debug("Swept expired rows from " + table.name + ".");
+        } catch (DeadlockLoserDataAccessException e) {
+            //another node is deleting the same rows
+            logger.debug("Deadlock sweeping expired rows from " + table.name + ", ignored.");
+            removed = 0;
+        } catch (DataAccessException e) {
+            failedSweeps.incrementAndGet();
+            logger.warn("Unable to sweep expired rows from " + table.name + ".", e);
+            removed = 0;
+        } finally {
+            sweeps.incrementAndGet();
+            table.sweepTime.addAndGet(timeService.getCurrentTimeMillis() - start);
+            table.lastSweep = start;
+            //a full last chunk means expired rows are left
+            table.pending = removed >= chunkSize;
+        }
+    }
+
+    private boolean acquireLease() {
+        long now = timeService.getCurrentTimeMillis();
+        long expiresAt = now + leaseTime.toMillis();
+        try {
+            boolean acquired = template.update(RENEW_LOCK_QUERY, owner, expiresAt, LOCK_NAME, owner, now) == 1;
+            if (!acquired) {
+                try {
+                    acquired = template.update(INSERT_LOCK_QUERY, LOCK_NAME, owner, expiresAt) == 1;
+                } catch (DataIntegrityViolationException held) {
+                    //the row exists and another node holds the lease
+                    acquired = false;
+                }
+            }
+            if (acquired != leader) {
+                logger.info((acquired ? "Acquired" : "Lost") + " the expired row sweeper lease.");
+            }
+            leader = acquired;
+        } catch (DataAccessException e) {
+            logger.warn("Unable to acquire the expired row sweeper lease.", e);
+            leader = false;
+        }
+        return leader;
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (Exception e) {
+            logger.error("Unable to sweep expired rows.", e);
+        }
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Expired Rows Deleted")
+    public long getRowsPurged() {
+        return tables.stream().mapToLong(t -> t.rowsPurged.get()).sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Time Spent Sweeping (ms)")
+    public long getSweepTime() {
+        return tables.stream().mapToLong(t -> t.sweepTime.get()).sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Table Sweeps")
+    public long getSweepCount() {
+        return sweeps.get();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Failed Table Sweeps")
+    public long getFailedSweepCount() {
+        return failedSweeps.get();
+    }
+
+    @ManagedAttribute(description = "Expired rows deleted per table")
+    public Map<String, Long> getRowsPurgedByTable() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        tables.forEach(t -> result.merge(t.name, t.rowsPurged.get(), Long::sum));
+        return result;
+    }
+
+    @ManagedAttribute(description = "Time spent sweeping per table in milliseconds")
+    public Map<String, Long> getSweepTimeByTable() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        tables.forEach(t -> result.merge(t.name, t.sweepTime.get(), Long::sum));
+        return result;
+    }
+
+    @ManagedAttribute(description = "Whether this node sweeps, always true without leader election")
+    public boolean isLeader() {
+        return !leaderElection || leader;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    public void setMaxRuntime(long maxRuntime) {
+        this.maxRuntime = Duration.ofMillis(Math.max(0, maxRuntime));
+    }
+
+    public void setRunInterval(long runInterval) {
+        this.runInterval = Duration.ofMillis(Math.max(1, runInterval));
+    }
+
+    public void setLeaderElection(boolean leaderElection) {
+        this.leaderElection = leaderElection;
+    }
+
+    public void setLeaseTime(long leaseTime) {
+        this.leaseTime = Duration.ofMillis(Math.max(1, leaseTime));
+    }
+
+    private static final class SweptTable {
+        private final String name;
+        private final String primaryKeyColumn;
+        private final String expiresColumn;
+        private final long interval;
+        private final Supplier<?> cutoff;
+        private final AtomicLong rowsPurged = new AtomicLong();
+        private final AtomicLong sweepTime = new AtomicLong();
+        private volatile long lastSweep = 0;
+        private volatile boolean pending = false;
+
+        private SweptTable(String name, String primaryKeyColumn, String expiresColumn, long interval, Supplier<?> cutoff) {
+            this.name = name;
+            this.primaryKeyColumn = primaryKeyColumn;
+            this.expiresColumn = expiresColumn;
+            this.interval = interval;
+            this.cutoff = cutoff;
+        }
+
+        private boolean isDue(long now) {
+            return pending || now - lastSweep >= interval;
+        }
+    }
+}
@@ -38,4 +38,15 @@ public class JdbcPagingListFactory {
     public <T> List<T> createJdbcPagingList(String sql, Map<String, ?> args, RowMapper<T> mapper, int pageSize) {
         return new JdbcPagingList<T>(jdbcTemplate, limitSqlAdapter, sql, args, mapper, pageSize);
     }
+
+    /**
+     * Runs the query for its first rows only, without counting the rows it matches.
+     */
+    public <T> List<T> queryFirstRows(String sql, Map<String, ?> args, RowMapper<T> mapper, int maxRows) {
+        return jdbcTemplate.query(limitSqlAdapter.getLimitSql(sql, 0, maxRows), args, mapper);
+    }
+
+    public int count(String sql, Map<String, ?> args) {
+        return jdbcTemplate.queryForObject(JdbcPagingList.getCountSql(sql), args, Integer.class);
+    }
 }
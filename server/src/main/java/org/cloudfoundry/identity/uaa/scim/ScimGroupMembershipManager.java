@@ -4,7 +4,10 @@ import org.cloudfoundry.identity.uaa.scim.exception.MemberAlreadyExistsException
 import org.cloudfoundry.identity.uaa.scim.exception.MemberNotFoundException;
 import org.cloudfoundry.identity.uaa.scim.exception.ScimResourceNotFoundException;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public interface ScimGroupMembershipManager {
@@ -42,6 +45,38 @@ public interface ScimGroupMembershipManager {
             final boolean transitive,
             final String zoneId) throws ScimResourceNotFoundException;
 
+    /**
+     * Retrieve the groups of several users at once, by user id, including the
+     * default groups of the zone
+     *
+     * @param transitive true means indirect/transitive membership is also
+     *                   processed (nested groups)
+     */
+    default Map<String, Set<ScimGroup>> getGroupsWithUsers(
+            final Collection<String> userIds,
+            final boolean transitive,
+            final String zoneId) throws ScimResourceNotFoundException {
+        Map<String, Set<ScimGroup>> result = new HashMap<>();
+        for (String userId : userIds) {
+            result.put(userId, getGroupsWithMember(userId, transitive, zoneId));
+        }
+        return result;
+    }
+
+    /**
+     * Add the groups that the given groups are nested in, directly or indirectly,
+     * to the groups of each user
+     *
+     * @param groupsByUser groups by user id, as returned by
+     *                     {@link #getGroupsWithUsers(Collection, boolean, String)}
+     *                     without transitive membership. It is not modified
+     */
+    default Map<String, Set<ScimGroup>> addNestedGroups(
+            final Map<String, Set<ScimGroup>> groupsByUser,
+            final String zoneId) throws ScimResourceNotFoundException {
+        return getGroupsWithUsers(groupsByUser.keySet(), true, zoneId);
+    }
+
     /**
      * Retrieve a particular member's membership details
      */
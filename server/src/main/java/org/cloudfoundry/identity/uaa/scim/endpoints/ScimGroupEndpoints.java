@@ -2,6 +2,7 @@ package org.cloudfoundry.identity.uaa.scim.endpoints;
 
 import com.jayway.jsonpath.JsonPathException;
 import org.cloudfoundry.identity.uaa.resources.AttributeNameMapper;
+import org.cloudfoundry.identity.uaa.resources.KeysetPage;
 import org.cloudfoundry.identity.uaa.resources.SearchResults;
 import org.cloudfoundry.identity.uaa.resources.SearchResultsFactory;
 import org.cloudfoundry.identity.uaa.resources.SimpleAttributeNameMapper;
@@ -133,6 +134,10 @@ public class ScimGroupEndpoints {
         return response;
     }
 
+    public SearchResults<?> listGroups(String attributesCommaSeparated, String filter, String sortBy, String sortOrder, int startIndex, int count) {
+        return listGroups(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
+    }
+
     @RequestMapping(value = {"/Groups"}, method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> listGroups(
@@ -141,18 +146,35 @@ public class ScimGroupEndpoints {
             @RequestParam(required = false, defaultValue = "created") String sortBy,
             @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
             @RequestParam(required = false, defaultValue = "1") int startIndex,
-            @RequestParam(required = false, defaultValue = "100") int count) {
+            @RequestParam(required = false, defaultValue = "100") int count,
+            @RequestParam(required = false) String cursor) {
 
         if (count > groupMaxCount) {
             count = groupMaxCount;
         }
 
         List<ScimGroup> result;
+        int total;
+        String nextCursor = null;
         try {
-            result = dao.query(filter,
-                    sortBy,
-                    "ascending".equalsIgnoreCase(sortOrder),
-                    identityZoneManager.getCurrentIdentityZoneId());
+            if (cursor != null) {
+                KeysetPage<ScimGroup> page = dao.queryPage(filter,
+                        sortBy,
+                        "ascending".equalsIgnoreCase(sortOrder),
+                        cursor,
+                        count,
+                        identityZoneManager.getCurrentIdentityZoneId());
+                result = page.getResources();
+                total = page.getTotalResults();
+                nextCursor = page.getNextCursor();
+                startIndex = 1;
+            } else {
+                result = dao.query(filter,
+                        sortBy,
+                        "ascending".equalsIgnoreCase(sortOrder),
+                        identityZoneManager.getCurrentIdentityZoneId());
+                total = result.size();
+            }
         } catch (IllegalArgumentException e) {
             throw new ScimException("Invalid filter expression: [" + HtmlUtils.htmlEscape(filter) + "]",
                     HttpStatus.BAD_REQUEST);
@@ -161,8 +183,10 @@ public class ScimGroupEndpoints {
         List<ScimGroup> input;
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
             input = filterForCurrentUser(result, startIndex, count, true);
-            return new SearchResults<>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count,
-                    result.size());
+            SearchResults<ScimGroup> results = new SearchResults<>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count,
+                    total);
+            results.setNextCursor(nextCursor);
+            return results;
         }
 
         AttributeNameMapper mapper = new SimpleAttributeNameMapper(Collections.emptyMap());
@@ -171,8 +195,10 @@ public class ScimGroupEndpoints {
         input = filterForCurrentUser(result, startIndex, count, Arrays.asList(attributes).contains("members"));
 
         try {
-            return SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, result.size(), attributes,
+            SearchResults<Map<String, Object>> results = SearchResultsFactory.buildSearchResultFrom(input, startIndex, count, total, attributes,
                     mapper, Arrays.asList(ScimCore.SCHEMAS));
+            results.setNextCursor(nextCursor);
+            return results;
         } catch (JsonPathException e) {
             throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
         }
@@ -1,5 +1,6 @@
 package org.cloudfoundry.identity.uaa.scim.endpoints;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.jayway.jsonpath.JsonPathException;
 import org.cloudfoundry.identity.uaa.account.UserAccountStatus;
 import org.cloudfoundry.identity.uaa.account.event.UserAccountUnlockedEvent;
@@ -14,6 +15,7 @@ import org.cloudfoundry.identity.uaa.mfa.UserMfaCredentialsProvisioning;
 import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
 import org.cloudfoundry.identity.uaa.provider.IdentityProviderProvisioning;
 import org.cloudfoundry.identity.uaa.resources.AttributeNameMapper;
+import org.cloudfoundry.identity.uaa.resources.KeysetPage;
 import org.cloudfoundry.identity.uaa.resources.ResourceMonitor;
 import org.cloudfoundry.identity.uaa.resources.SearchResults;
 import org.cloudfoundry.identity.uaa.resources.SearchResultsFactory;
@@ -35,6 +37,7 @@ import org.cloudfoundry.identity.uaa.scim.validate.PasswordValidator;
 import org.cloudfoundry.identity.uaa.security.IsSelfCheck;
 import org.cloudfoundry.identity.uaa.security.ScimUserUpdateDiff;
 import org.cloudfoundry.identity.uaa.util.DomainFilter;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.UaaPagingUtils;
 import org.cloudfoundry.identity.uaa.util.UaaStringUtils;
 import org.cloudfoundry.identity.uaa.web.ConvertingExceptionView;
@@ -78,8 +81,12 @@ import org.springframework.web.util.HtmlUtils;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -87,6 +94,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
@@ -128,6 +136,14 @@ public class ScimUserEndpoints implements InitializingBean, ApplicationEventPubl
     private final AtomicInteger scimDeletes;
     private final Map<String, AtomicInteger> errorCounts;
 
+    @Value("${userExportChunkSize:500}")
+    private int exportChunkSize = 500;
+
+    @Value("${userExportMaxConcurrent:2}")
+    private int maxConcurrentExports = 2;
+
+    private final AtomicInteger activeExports = new AtomicInteger();
+
     private ApplicationEventPublisher publisher;
 
     /**
@@ -380,6 +396,10 @@ public class ScimUserEndpoints implements InitializingBean, ApplicationEventPubl
         }
     }
 
+    public SearchResults<?> findUsers(String attributesCommaSeparated, String filter, String sortBy, String sortOrder, int startIndex, int count) {
+        return findUsers(attributesCommaSeparated, filter, sortBy, sortOrder, startIndex, count, null);
+    }
+
     @RequestMapping(value = "/Users", method = RequestMethod.GET)
     @ResponseBody
     public SearchResults<?> findUsers(
@@ -388,9 +408,10 @@ public class ScimUserEndpoints implements InitializingBean, ApplicationEventPubl
             @RequestParam(required = false, defaultValue = "created") String sortBy,
             @RequestParam(required = false, defaultValue = "ascending") String sortOrder,
             @RequestParam(required = false, defaultValue = "1") int startIndex,
-            @RequestParam(required = false, defaultValue = "100") int count) {
+            @RequestParam(required = false, defaultValue = "100") int count,
+            @RequestParam(required = false) String cursor) {
 
-        if (startIndex < 1) {
+        if (startIndex < 1 || cursor != null) {
             startIndex = 1;
         }
 
@@ -399,11 +420,22 @@ public class ScimUserEndpoints implements InitializingBean, ApplicationEventPubl
         }
 
         List<ScimUser> input = new ArrayList<>();
-        List<ScimUser> result;
+        List<ScimUser> page;
+        int total;
+        String nextCursor = null;
         Set<String> attributes = StringUtils.commaDelimitedListToSet(attributesCommaSeparated);
         try {
-            result = scimUserProvisioning.query(filter, sortBy, sortOrder.equals("ascending"), identityZoneManager.getCurrentIdentityZoneId());
-            for (ScimUser user : UaaPagingUtils.subList(result, startIndex, count)) {
+            if (cursor != null) {
+                KeysetPage<ScimUser> keysetPage = scimUserProvisioning.queryPage(filter, sortBy, sortOrder.equals("ascending"), cursor, count, identityZoneManager.getCurrentIdentityZoneId());
+                page = keysetPage.getResources();
+                total = keysetPage.getTotalResults();
+                nextCursor = keysetPage.getNextCursor();
+            } else {
+                List<ScimUser> result = scimUserProvisioning.query(filter, sortBy, sortOrder.equals("ascending"), identityZoneManager.getCurrentIdentityZoneId());
+                page = UaaPagingUtils.subList(result, startIndex, count);
+                total = result.size();
+            }
+            for (ScimUser user : page) {
                 if (attributes.isEmpty() || attributes.stream().anyMatch("groups"::equalsIgnoreCase)) {
                     syncGroups(user);
                 }
@@ -422,7 +454,9 @@ public class ScimUserEndpoints implements InitializingBean, ApplicationEventPubl
 
         if (!StringUtils.hasLength(attributesCommaSeparated)) {
             // Return all user data
-            return new SearchResults<>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count, result.size());
+            SearchResults<ScimUser> results = new SearchResults<>(Arrays.asList(ScimCore.SCHEMAS), input, startIndex, count, total);
+            results.setNextCursor(nextCursor);
+            return results;
         }
 
         Map<String, String> attributeMap = new HashMap<>();
@@ -432,19 +466,102 @@ public class ScimUserEndpoints implements InitializingBean, ApplicationEventPubl
         AttributeNameMapper mapper = new SimpleAttributeNameMapper(attributeMap);
 
         try {
-            return SearchResultsFactory.buildSearchResultFrom(input,
+            SearchResults<Map<String, Object>> results = SearchResultsFactory.buildSearchResultFrom(input,
                     startIndex,
                     count,
-                    result.size(),
+                    total,
                     attributes.toArray(new String[0]),
                     mapper,
                     Arrays.asList(ScimCore.SCHEMAS)
             );
+            results.setNextCursor(nextCursor);
+            return results;
         } catch (JsonPathException e) {
             throw new ScimException("Invalid attributes: [" + attributesCommaSeparated + "]", HttpStatus.BAD_REQUEST);
         }
     }
 
+    /**
+     * Writes all users matching the filter, one JSON object per line, or as a single JSON array.
+     * Users are read in one pass and their groups and approvals are looked up per chunk of users.
+     * <p>
+     * Every export holds two pooled connections until it finished, one for the cursor over the users
+     * and one for the lookups, so only userExportMaxConcurrent exports run at the same time and
+     * further requests are rejected with 429 Too Many Requests.
+     */
+    @RequestMapping(value = "/Users/export", method = RequestMethod.GET)
+    public void exportUsers(
+            @RequestParam(required = false, defaultValue = "id pr") String filter,
+            @RequestParam(required = false, defaultValue = "true") boolean includeGroups,
+            @RequestParam(required = false, defaultValue = "true") boolean includeApprovals,
+            @RequestParam(required = false, defaultValue = "ndjson") String format,
+            HttpServletResponse response) throws IOException {
+
+        boolean array = "json".equalsIgnoreCase(format);
+        if (!array && !"ndjson".equalsIgnoreCase(format)) {
+            throw new ScimException("Invalid format: [" + HtmlUtils.htmlEscape(format) + "]", HttpStatus.BAD_REQUEST);
+        }
+        if (activeExports.incrementAndGet() > maxConcurrentExports) {
+            activeExports.decrementAndGet();
+            throw new ScimException("Too many concurrent user exports, try again later", HttpStatus.TOO_MANY_REQUESTS);
+        }
+        try {
+            writeUsers(filter, includeGroups, includeApprovals, array, response);
+        } finally {
+            activeExports.decrementAndGet();
+        }
+    }
+
+    private void writeUsers(String filter, boolean includeGroups, boolean includeApprovals, boolean array, HttpServletResponse response) throws IOException {
+        String zoneId = identityZoneManager.getCurrentIdentityZoneId();
+        response.setContentType(array ? "application/json" : "application/x-ndjson");
+        response.setCharacterEncoding("UTF-8");
+        JsonGenerator generator = JsonUtils.createGenerator(response.getOutputStream());
+        generator.setRootValueSeparator(null);
+        if (array) {
+            generator.writeStartArray();
+        }
+        AtomicBoolean writing = new AtomicBoolean();
+        try {
+            scimUserProvisioning.queryInChunks(filter, zoneId, exportChunkSize, users -> {
+                writing.set(true);
+                List<String> ids = users.stream().map(ScimUser::getId).collect(Collectors.toList());
+                Map<String, Set<ScimGroup>> directGroups = includeGroups ? membershipManager.getGroupsWithUsers(ids, false, zoneId) : null;
+                Map<String, Set<ScimGroup>> allGroups = includeGroups ? membershipManager.addNestedGroups(directGroups, zoneId) : null;
+                Map<String, List<Approval>> approvals = includeApprovals && approvalStore != null ? approvalStore.getApprovalsForUsers(ids, zoneId) : null;
+                try {
+                    for (ScimUser user : users) {
+                        if (directGroups != null) {
+                            user.setGroups(getUserGroups(directGroups.get(user.getId()), allGroups.get(user.getId())));
+                        }
+                        if (approvals != null) {
+                            user.setApprovals(getActiveApprovals(approvals.getOrDefault(user.getId(), Collections.emptyList())));
+                        }
+                        generator.writeObject(user);
+                        if (!array) {
+                            generator.writeRaw('\n');
+                        }
+                    }
+                    generator.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            //the filter is converted and run before the first chunk, later errors are not about the filter
+            if (writing.get()) {
+                throw e;
+            }
+            throw new ScimException(HtmlUtils.htmlEscape("Invalid filter expression: [" + filter + "]"), HttpStatus.BAD_REQUEST);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (array) {
+            generator.writeEndArray();
+        }
+        generator.flush();
+    }
+
     @RequestMapping(value = "/Users/{userId}/status", method = RequestMethod.PATCH)
     public UserAccountStatus updateAccountStatus(@RequestBody UserAccountStatus status, @PathVariable String userId) {
         ScimUser user = scimUserProvisioning.retrieve(userId, identityZoneManager.getCurrentIdentityZoneId());
@@ -485,32 +602,40 @@ public class ScimUserEndpoints implements InitializingBean, ApplicationEventPubl
 
         Set<ScimGroup> directGroups = membershipManager.getGroupsWithMember(user.getId(), false, identityZoneManager.getCurrentIdentityZoneId());
         Set<ScimGroup> indirectGroups = membershipManager.getGroupsWithMember(user.getId(), true, identityZoneManager.getCurrentIdentityZoneId());
-        indirectGroups.removeAll(directGroups);
+        user.setGroups(getUserGroups(directGroups, indirectGroups));
+        return user;
+    }
+
+    private static Set<ScimUser.Group> getUserGroups(Set<ScimGroup> directGroups, Set<ScimGroup> allGroups) {
         Set<ScimUser.Group> groups = new HashSet<>();
         for (ScimGroup group : directGroups) {
             groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.DIRECT));
         }
-        for (ScimGroup group : indirectGroups) {
-            groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.INDIRECT));
+        for (ScimGroup group : allGroups) {
+            if (!directGroups.contains(group)) {
+                groups.add(new ScimUser.Group(group.getId(), group.getDisplayName(), ScimUser.Group.Type.INDIRECT));
+            }
         }
-
-        user.setGroups(groups);
-        return user;
+        return groups;
     }
 
     private ScimUser syncApprovals(ScimUser user) {
         if (user == null || approvalStore == null) {
             return user;
         }
-        Set<Approval> approvals = new HashSet<>(approvalStore.getApprovalsForUser(user.getId(), identityZoneManager.getCurrentIdentityZoneId()));
+        user.setApprovals(getActiveApprovals(approvalStore.getApprovalsForUser(user.getId(), identityZoneManager.getCurrentIdentityZoneId())));
+        return user;
+    }
+
+    private static Set<Approval> getActiveApprovals(Collection<Approval> approvalList) {
+        Set<Approval> approvals = new HashSet<>(approvalList);
         Set<Approval> active = new HashSet<>(approvals);
         for (Approval approval : approvals) {
             if (!approval.isActiveAsOf(new Date())) {
                 active.remove(approval);
             }
         }
-        user.setApprovals(active);
-        return user;
+        return active;
     }
 
     @ExceptionHandler(UaaException.class)
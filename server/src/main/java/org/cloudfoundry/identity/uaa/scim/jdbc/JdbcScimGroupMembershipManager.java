@@ -1,6 +1,7 @@
 package org.cloudfoundry.identity.uaa.scim.jdbc;
 
 import org.apache.commons.lang3.ArrayUtils;
+import org.cloudfoundry.identity.uaa.db.Vendor;
 import org.cloudfoundry.identity.uaa.scim.*;
 import org.cloudfoundry.identity.uaa.scim.exception.*;
 import org.cloudfoundry.identity.uaa.util.TimeBasedExpiringValueMap;
@@ -14,6 +15,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.dao.InvalidDataAccessResourceUsageException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 
@@ -42,6 +44,19 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 
     public static final String DYNAMIC_GET_GROUPS_BY_MEMBER_SQL_BASE = String.format("select %s from %s g, %s gm where gm.group_id = g.id and gm.identity_zone_id = g.identity_zone_id and gm.identity_zone_id = ? and gm.member_id in (",  "g."+ JdbcScimGroupProvisioning.GROUP_FIELDS.replace(",", ",g."), JdbcScimGroupProvisioning.GROUP_TABLE, MEMBERSHIP_TABLE);
 
+    private static final String GET_GROUPS_BY_MEMBERS_SQL_BASE = String.format("select %s, gm.member_id from %s g, %s gm where gm.group_id = g.id and gm.identity_zone_id = g.identity_zone_id and gm.identity_zone_id = ? and gm.member_id in (", "g."+ JdbcScimGroupProvisioning.GROUP_FIELDS.replace(",", ",g."), JdbcScimGroupProvisioning.GROUP_TABLE, MEMBERSHIP_TABLE);
+
+    /**
+     * All groups the member belongs to directly or through nested groups, in a single query.
+     * UNION rather than UNION ALL stops the recursion on membership cycles.
+     */
+    static final String GET_GROUPS_BY_MEMBER_TRANSITIVE_SQL = String.format("with recursive ancestors (group_id) as (" +
+                    "select gm.group_id from %1$s gm where gm.member_id = ? and gm.identity_zone_id = ? " +
+                    "union " +
+                    "select gm.group_id from %1$s gm, ancestors a where gm.member_id = a.group_id and gm.identity_zone_id = ?" +
+                    ") select %2$s from %3$s g, ancestors a where g.id = a.group_id and g.identity_zone_id = ?",
+            MEMBERSHIP_TABLE, "g." + JdbcScimGroupProvisioning.GROUP_FIELDS.replace(",", ",g."), JdbcScimGroupProvisioning.GROUP_TABLE);
+
     private static final String GET_MEMBERS_SQL = String.format("select %s from %s where group_id=? and identity_zone_id=?", MEMBERSHIP_FIELDS, MEMBERSHIP_TABLE);
 
     private static final String GET_MEMBER_SQL = String.format("select %s from %s where member_id=? and group_id=? and identity_zone_id=?", MEMBERSHIP_FIELDS, MEMBERSHIP_TABLE);
@@ -75,6 +90,9 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 
     private ScimGroupProvisioning scimGroupProvisioning;
 
+    private volatile boolean recursiveQueries = false;
+    private volatile boolean recursiveQueriesMayFail = false;
+
     public JdbcScimGroupMembershipManager(
             final JdbcTemplate jdbcTemplate,
             final TimeService timeService,
@@ -95,6 +113,17 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
         this.maxSqlParameters = maxSqlParameters;
     }
 
+    /**
+     * Resolves nested groups with a recursive common table expression on databases that
+     * support it. MySQL only does from version 8, on older versions the first query
+     * rejected by the database switches back to resolving one level per query. Other errors,
+     * and any error on the other databases, are thrown as usual.
+     */
+    public void setDatabaseType(final Vendor databaseType) {
+        this.recursiveQueries = databaseType != null;
+        this.recursiveQueriesMayFail = databaseType == Vendor.mysql;
+    }
+
     public void setScimGroupProvisioning(final ScimGroupProvisioning groupProvisioning) {
         this.scimGroupProvisioning = groupProvisioning;
     }
@@ -187,15 +216,93 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
     @Override
     public Set<ScimGroup> getGroupsWithMember(final String memberId, boolean transitive, String zoneId)
             throws ScimResourceNotFoundException {
-        List<ScimGroup> results = new ArrayList<>();
-        getGroupsWithMember(results, Collections.singletonList(memberId), transitive, zoneId);
+        Set<ScimGroup> results = new HashSet<>();
+        if (!transitive || !getTransitiveGroupsWithMember(results, memberId, zoneId)) {
+            getGroupsWithMember(results, Collections.singletonList(memberId), transitive, zoneId);
+        }
         if (isUser(memberId)) {
             results.addAll(getDefaultUserGroups(zoneId));
         }
-        return new HashSet<>(results);
+        return results;
+    }
+
+    @Override
+    public Map<String, Set<ScimGroup>> getGroupsWithUsers(final Collection<String> userIds, boolean transitive, String zoneId) {
+        Map<String, Set<ScimGroup>> direct = getGroupsByMember(userIds, zoneId);
+        Set<ScimGroup> defaultGroups = getDefaultUserGroups(zoneId);
+        Map<String, Set<ScimGroup>> results = new HashMap<>();
+        for (String userId : userIds) {
+            Set<ScimGroup> groups = new HashSet<>(direct.getOrDefault(userId, emptySet()));
+            groups.addAll(defaultGroups);
+            results.put(userId, groups);
+        }
+        return transitive ? addNestedGroups(results, zoneId) : results;
+    }
+
+    /**
+     * Resolves one level of nesting per query for all users at once, rather than
+     * the users one at a time.
+     */
+    @Override
+    public Map<String, Set<ScimGroup>> addNestedGroups(final Map<String, Set<ScimGroup>> groupsByUser, String zoneId) {
+        Map<String, Set<ScimGroup>> parents = new HashMap<>();
+        Set<String> level = groupsByUser.values().stream().flatMap(Set::stream).map(ScimGroup::getId).collect(toSet());
+        while (!level.isEmpty()) {
+            Map<String, Set<ScimGroup>> next = getGroupsByMember(level, zoneId);
+            level.forEach(groupId -> parents.put(groupId, next.getOrDefault(groupId, emptySet())));
+            level = next.values().stream().flatMap(Set::stream).map(ScimGroup::getId)
+                    .filter(groupId -> !parents.containsKey(groupId)).collect(toSet());
+        }
+        Map<String, Set<ScimGroup>> results = new HashMap<>();
+        for (Map.Entry<String, Set<ScimGroup>> entry : groupsByUser.entrySet()) {
+            Set<ScimGroup> groups = new HashSet<>();
+            Deque<ScimGroup> pending = new ArrayDeque<>(entry.getValue());
+            while (!pending.isEmpty()) {
+                ScimGroup group = pending.pop();
+                // the set also stops on nested group cycles
+                if (groups.add(group)) {
+                    pending.addAll(parents.getOrDefault(group.getId(), emptySet()));
+                }
+            }
+            results.put(entry.getKey(), groups);
+        }
+        return results;
+    }
+
+    private Map<String, Set<ScimGroup>> getGroupsByMember(final Collection<String> memberIds, final String zoneId) {
+        Map<String, Set<ScimGroup>> groups = new HashMap<>();
+        ScimGroupRowMapper groupRowMapper = new ScimGroupRowMapper();
+        List<String> memberList = new ArrayList<>(memberIds);
+        while (!memberList.isEmpty()) {
+            int size = maxSqlParameters > 1 ? Math.min(maxSqlParameters - 1, memberList.size()) : memberList.size();
+            String sql = GET_GROUPS_BY_MEMBERS_SQL_BASE + memberList.subList(0, size).stream().map(s -> "?").collect(Collectors.joining(", ")) + ")";
+            Object[] parameterList = ArrayUtils.addAll(new Object[] { zoneId }, memberList.subList(0, size).toArray());
+            jdbcTemplate.query(sql, rs -> {
+                groups.computeIfAbsent(rs.getString("member_id"), k -> new HashSet<>()).add(groupRowMapper.mapRow(rs, 0));
+            }, parameterList);
+            memberList = memberList.subList(size, memberList.size());
+        }
+        return groups;
+    }
+
+    private boolean getTransitiveGroupsWithMember(Set<ScimGroup> results, final String memberId, final String zoneId) {
+        if (!recursiveQueries || !IdentityZoneHolder.get().getId().equals(zoneId)) {
+            return false;
+        }
+        try {
+            results.addAll(jdbcTemplate.query(GET_GROUPS_BY_MEMBER_TRANSITIVE_SQL, new ScimGroupRowMapper(), memberId, zoneId, zoneId, zoneId));
+            return true;
+        } catch (InvalidDataAccessResourceUsageException ex) {
+            if (!recursiveQueriesMayFail) {
+                throw ex;
+            }
+            logger.warn("Recursive group query not supported by the database, resolving nested groups one level at a time.", ex);
+            recursiveQueries = false;
+            return false;
+        }
     }
 
-    private void getGroupsWithMember(List<ScimGroup> results, final List<String> memberId, boolean transitive, final String zoneId) {
+    private void getGroupsWithMember(Set<ScimGroup> results, final List<String> memberId, boolean transitive, final String zoneId) {
         if (results == null) {
             return;
         }
@@ -223,10 +330,9 @@ public class JdbcScimGroupMembershipManager implements ScimGroupMembershipManage
 
         List<String> nextLevel = new ArrayList<>();
         for (ScimGroup group : groups) {
-            if (!results.contains(group)) { // to ensure we don't go into
+            if (results.add(group)) { // to ensure we don't go into
                 // infinite recursion caused by
                 // nested group cycles
-                results.add(group);
                 nextLevel.add(group.getId());
             }
         }
@@ -304,4 +304,9 @@ public class JdbcScimGroupProvisioning extends AbstractQueryable<ScimGroup>
         super.validateOrderBy(orderBy, GROUP_FIELDS);
     }
 
+    @Override
+    protected String getKeysetSortFields() {
+        return "id,displayName,created,lastModified";
+    }
+
 }
@@ -517,6 +517,11 @@ public class JdbcScimUserProvisioning extends AbstractQueryable<ScimUser>
         super.validateOrderBy(orderBy, USER_FIELDS.replace(",salt", ""));
     }
 
+    @Override
+    protected String getKeysetSortFields() {
+        return "id,username,created,lastModified";
+    }
+
     @Override
     public void updateLastLogonTime(String id, String zoneId) {
         jdbcTemplate.update(UPDATE_LAST_LOGON_TIME_SQL, timeService.getCurrentTimeMillis(), id, zoneId);
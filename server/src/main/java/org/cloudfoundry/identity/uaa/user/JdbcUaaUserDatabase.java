@@ -1,6 +1,7 @@
 package org.cloudfoundry.identity.uaa.user;
 
 import org.apache.commons.lang.ArrayUtils;
+import org.cloudfoundry.identity.uaa.db.Vendor;
 import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.util.TimeService;
 import org.cloudfoundry.identity.uaa.zone.beans.IdentityZoneManager;
@@ -10,6 +11,7 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.dao.InvalidDataAccessResourceUsageException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.security.core.GrantedAuthority;
@@ -40,6 +42,12 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
 
     private static final String DEFAULT_USER_BY_ID_QUERY = "select " + USER_FIELDS + "from users where id = ? and active=? and identity_zone_id=?";
 
+    static final String DEFAULT_AUTHORITIES_RECURSIVE_QUERY = "with recursive ancestors (id, displayName) as (" +
+            "select g.id, g.displayName from groups g, group_membership m where g.id = m.group_id and g.identity_zone_id = ? and m.member_id = ? " +
+            "union " +
+            "select g.id, g.displayName from groups g, group_membership m, ancestors a where g.id = m.group_id and g.identity_zone_id = ? and m.member_id = a.id" +
+            ") select displayName from ancestors";
+
     private final TimeService timeService;
     private final JdbcTemplate jdbcTemplate;
     private final boolean caseInsensitive;
@@ -48,6 +56,9 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
     @Value("${database.maxParameters:-1}")
     private int maxSqlParameters;
 
+    private volatile boolean recursiveQueries = false;
+    private volatile boolean recursiveQueriesMayFail = false;
+
     private final RowMapper<UaaUser> mapper = new UaaUserRowMapper();
     private final RowMapper<UserInfo> userInfoMapper = new UserInfoRowMapper();
 
@@ -74,6 +85,17 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
         this.maxSqlParameters = maxSqlParameters;
     }
 
+    /**
+     * Resolves nested group authorities with a recursive common table expression on databases
+     * that support it. MySQL only does from version 8, on older versions the first query
+     * rejected by the database switches back to resolving one level per query. Other errors,
+     * and any error on the other databases, are thrown as usual.
+     */
+    public void setDatabaseType(Vendor databaseType) {
+        this.recursiveQueries = databaseType != null;
+        this.recursiveQueriesMayFail = databaseType == Vendor.mysql;
+    }
+
     @Override
     public UaaUser retrieveUserByName(String username, String origin) throws UsernameNotFoundException {
         try {
@@ -189,11 +211,31 @@ public class JdbcUaaUserDatabase implements UaaUserDatabase {
 
         private String getAuthorities(final String userId) {
             Set<String> authorities = new HashSet<>();
-            getAuthorities(authorities, Collections.singletonList(userId));
+            if (!getTransitiveAuthorities(authorities, userId)) {
+                getAuthorities(authorities, Collections.singletonList(userId));
+            }
             authorities.addAll(identityZoneManager.getCurrentIdentityZone().getConfig().getUserConfig().getDefaultGroups());
             return StringUtils.collectionToCommaDelimitedString(new HashSet<>(authorities));
         }
 
+        private boolean getTransitiveAuthorities(Set<String> authorities, final String userId) {
+            if (!recursiveQueries) {
+                return false;
+            }
+            String zoneId = identityZoneManager.getCurrentIdentityZoneId();
+            try {
+                authorities.addAll(jdbcTemplate.queryForList(DEFAULT_AUTHORITIES_RECURSIVE_QUERY, String.class, zoneId, userId, zoneId));
+                return true;
+            } catch (InvalidDataAccessResourceUsageException e) {
+                if (!recursiveQueriesMayFail) {
+                    throw e;
+                }
+                logger.warn("Recursive group query not supported by the database, resolving nested groups one level at a time.", e);
+                recursiveQueries = false;
+                return false;
+            }
+        }
+
         protected void getAuthorities(Set<String> authorities, final List<String> memberIdList) {
             List<Map<String, Object>> results = new LinkedList<>();
             if (memberIdList.size() == 0) {
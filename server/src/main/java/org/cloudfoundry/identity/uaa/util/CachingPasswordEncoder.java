@@ -2,6 +2,9 @@ package org.cloudfoundry.identity.uaa.util;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.crypto.codec.Hex;
 import org.springframework.security.crypto.codec.Utf8;
@@ -12,41 +15,70 @@ import org.springframework.security.oauth2.common.util.RandomValueStringGenerato
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedHashSet;
-import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.springframework.security.crypto.util.EncodingUtils.concatenate;
 
 /**
  * Wrapper around a slow password encoder that does a fast translation in memory only
  * This uses a hash to as a key to store a list of
+ * <p>
+ * The cache holds at most {@code maxKeys} hashes and evicts the least recently used one
+ * when full. Every thread uses its own digest, so concurrent matches do not block each other.
  */
+@ManagedResource(
+        objectName = "cloudfoundry.identity:name=PasswordEncoderCache",
+        description = "Password Encoder Cache Metrics"
+)
 public class CachingPasswordEncoder implements PasswordEncoder {
 
-    private final MessageDigest messageDigest;
+    static final int DEFAULT_MAX_KEYS = 1000;
+    static final int DEFAULT_EXPIRATION_SECONDS = 300;
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private final ThreadLocal<MessageDigest> messageDigest;
     private final byte[] secret;
     private final byte[] salt;
 
     private final int ITERATIONS = 25;
-    private final int MAX_KEYS = 1000;
     private final int MAX_ENCODED_PASSWORDS = 5;
-    private final Duration CACHE_TTL = Duration.ofMinutes(5L);
+    private final int maxKeys;
+    private final Duration cacheTtl;
 
-    private volatile Cache<CharSequence, Set<String>> cache = null;
+    private final Cache<CharSequence, Set<String>> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
 
     private final PasswordEncoder passwordEncoder;
 
     CachingPasswordEncoder(final PasswordEncoder passwordEncoder) throws NoSuchAlgorithmException {
+        this(passwordEncoder, DEFAULT_MAX_KEYS, DEFAULT_EXPIRATION_SECONDS);
+    }
+
+    CachingPasswordEncoder(final PasswordEncoder passwordEncoder,
+                           final int maxKeys,
+                           final int expirationSeconds) throws NoSuchAlgorithmException {
         this.passwordEncoder = passwordEncoder;
-        this.messageDigest = MessageDigest.getInstance("SHA-256");
+        //fail fast if the algorithm is not available
+        MessageDigest.getInstance(ALGORITHM);
+        this.messageDigest = ThreadLocal.withInitial(CachingPasswordEncoder::newMessageDigest);
         this.secret = Utf8.encode(new RandomValueStringGenerator().generate());
         this.salt = KeyGenerators.secureRandom().generateKey();
-        buildCache();
+        this.maxKeys = maxKeys;
+        this.cacheTtl = Duration.ofSeconds(expirationSeconds);
+        this.cache = CacheBuilder.newBuilder()
+                //a single segment makes the size bound an exact LRU, writes only happen after a slow match
+                .concurrencyLevel(1)
+                .maximumSize(maxKeys)
+                .expireAfterWrite(cacheTtl.getSeconds(), TimeUnit.SECONDS)
+                .recordStats()
+                .build();
     }
 
     @Override
@@ -64,36 +96,29 @@ public class CachingPasswordEncoder implements PasswordEncoder {
     // internal helpers
 
     Set<String> getOrCreateHashList(String cacheKey) {
-        Set<String> result = cache.getIfPresent(cacheKey);
-        if (result == null) {
-            if (cache.size() >= MAX_KEYS) {
-                cache.invalidateAll();
-            }
-            cache.put(cacheKey, Collections.synchronizedSet(new LinkedHashSet<>()));
-        }
-        return cache.getIfPresent(cacheKey);
+        return cache.asMap().computeIfAbsent(cacheKey, key -> new CopyOnWriteArraySet<>());
     }
 
     private boolean internalMatches(String cacheKey, CharSequence rawPassword, String encodedPassword) {
         Set<String> cacheValue = cache.getIfPresent(cacheKey);
-        boolean result = false;
-        List<String> searchList = (cacheValue != null ? new ArrayList<>(cacheValue) : Collections.emptyList());
+        Set<String> searchList = (cacheValue != null ? cacheValue : Collections.emptySet());
         for (String encoded : searchList) {
             if (hashesEquals(encoded, encodedPassword)) {
+                hits.increment();
                 return true;
             }
         }
+        misses.increment();
+        boolean result = false;
         if (passwordEncoder.matches(rawPassword, encodedPassword)) {
             result = true;
             cacheValue = getOrCreateHashList(cacheKey);
-            if (cacheValue != null) {
-                //this list should never grow very long.
-                //Only if you store multiple versions of the same password more than once
-                if (cacheValue.size() >= MAX_ENCODED_PASSWORDS) {
-                    cacheValue.clear();
-                }
-                cacheValue.add(encodedPassword);
+            //this list should never grow very long.
+            //Only if you store multiple versions of the same password more than once
+            if (cacheValue.size() >= MAX_ENCODED_PASSWORDS) {
+                cacheValue.clear();
             }
+            cacheValue.add(encodedPassword);
         }
         return result;
     }
@@ -110,11 +135,18 @@ public class CachingPasswordEncoder implements PasswordEncoder {
     }
 
     private byte[] digest(byte[] value) {
-        synchronized (messageDigest) {
-            for (int i = 0; i < ITERATIONS; i++) {
-                value = messageDigest.digest(value);
-            }
-            return value;
+        MessageDigest digest = messageDigest.get();
+        for (int i = 0; i < ITERATIONS; i++) {
+            value = digest.digest(value);
+        }
+        return value;
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
     }
 
@@ -133,25 +165,35 @@ public class CachingPasswordEncoder implements PasswordEncoder {
         return ret == 0;
     }
 
-    int getMaxKeys() {
-        return MAX_KEYS;
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Encoder Cache Hits")
+    public long getHitCount() {
+        return hits.sum();
     }
 
-    int getMaxEncodedPasswords() {
-        return MAX_ENCODED_PASSWORDS;
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Encoder Cache Misses")
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @ManagedMetric(metricType = MetricType.COUNTER, displayName = "Password Encoder Cache Evictions")
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
     }
 
-    long getNumberOfKeys() {
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Password Encoder Cache Size")
+    public long getNumberOfKeys() {
         return cache.size();
     }
 
-    ConcurrentMap<CharSequence, Set<String>> asMap() {
-        return cache.asMap();
+    int getMaxKeys() {
+        return maxKeys;
     }
 
-    void buildCache() {
-        cache = CacheBuilder.newBuilder()
-                .expireAfterWrite(CACHE_TTL.getSeconds(), TimeUnit.SECONDS)
-                .build();
+    int getMaxEncodedPasswords() {
+        return MAX_ENCODED_PASSWORDS;
+    }
+
+    ConcurrentMap<CharSequence, Set<String>> asMap() {
+        return cache.asMap();
     }
 }
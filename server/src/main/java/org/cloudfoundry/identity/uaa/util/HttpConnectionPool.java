@@ -0,0 +1,98 @@
+package org.cloudfoundry.identity.uaa.util;
+
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedMetric;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.support.MetricType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-alive connections shared by the outbound HTTP clients with the same TLS settings, so calls to
+ * an external identity provider reuse a connection instead of paying a new TCP and TLS handshake.
+ * <p>
+ * Connections are kept per route (scheme, host and port), each route holds at most
+ * {@code maxPerRoute} connections so a slow provider can not take the connections of the others.
+ * A connection is kept for as long as the server allows with its Keep-Alive header, at most
+ * {@code maxKeepAlive} milliseconds, and closed by a background thread once it has been idle for
+ * {@code maxIdle} milliseconds.
+ */
+@ManagedResource(description = "UAA Outbound HTTP Connection Pool")
+public class HttpConnectionPool implements DisposableBean {
+
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+
+    private final boolean skipSslValidation;
+    private final long maxKeepAlive;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final IdleConnectionEvictor evictor;
+
+    public HttpConnectionPool(boolean skipSslValidation, int maxTotal, int maxPerRoute, long maxKeepAlive, long maxIdle) {
+        this.skipSslValidation = skipSslValidation;
+        this.maxKeepAlive = Math.max(1, maxKeepAlive);
+        connectionManager = new PoolingHttpClientConnectionManager(UaaHttpRequestUtils.getSocketFactoryRegistry(skipSslValidation));
+        connectionManager.setMaxTotal(Math.max(1, maxTotal));
+        connectionManager.setDefaultMaxPerRoute(Math.max(1, maxPerRoute));
+        //the server may have closed a connection that was idle for a while
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+        evictor = new IdleConnectionEvictor(connectionManager, Math.max(1, maxIdle), TimeUnit.MILLISECONDS);
+        evictor.start();
+    }
+
+    PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+        return (response, context) -> {
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? Math.min(keepAlive, maxKeepAlive) : maxKeepAlive;
+        };
+    }
+
+    @Override
+    public void destroy() {
+        evictor.shutdown();
+        connectionManager.shutdown();
+    }
+
+    @ManagedAttribute(description = "Whether the connections of this pool skip SSL validation")
+    public boolean isSkipSslValidation() {
+        return skipSslValidation;
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Leased Connections")
+    public int getLeased() {
+        return getTotalStats().getLeased();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Requests Waiting For A Connection")
+    public int getPending() {
+        return getTotalStats().getPending();
+    }
+
+    @ManagedMetric(metricType = MetricType.GAUGE, displayName = "Idle Connections")
+    public int getAvailable() {
+        return getTotalStats().getAvailable();
+    }
+
+    @ManagedAttribute(description = "Maximum number of connections")
+    public int getMaxTotal() {
+        return connectionManager.getMaxTotal();
+    }
+
+    @ManagedAttribute(description = "Maximum number of connections per route")
+    public int getMaxPerRoute() {
+        return connectionManager.getDefaultMaxPerRoute();
+    }
+
+    private PoolStats getTotalStats() {
+        return connectionManager.getTotalStats();
+    }
+}
@@ -0,0 +1,157 @@
+package org.cloudfoundry.identity.uaa.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The redirect URI patterns of a client compiled once, with the same result as trying every pattern
+ * with an {@link AntPathMatcher}.
+ * <p>
+ * Patterns are split into segments the way the {@link AntPathMatcher} splits them and kept in a trie
+ * of their leading literal segments, which are usually the scheme, the host and the start of the
+ * path. A URI is only handed to the {@link AntPathMatcher} together with the patterns found along its
+ * own segments, since a pattern can not match a URI that differs in one of those segments. When the
+ * next segment of a pattern has wildcards, like the host of {@code https://*.example.com/**}, the
+ * corresponding segment of the URI must also start and end with the text around the wildcards. The
+ * {@link AntPathMatcher} is shared, so the patterns it tried are tokenized only once.
+ * <p>
+ * Compiled matchers are cached by their set of patterns. A client whose redirect URIs change gets a
+ * new matcher, the old one expires when it is no longer used.
+ */
+public final class RedirectUriMatcher {
+
+    private static final String PATH_SEPARATOR = "/";
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private static final AntPathMatcher antPathMatcher = new AntPathMatcher(PATH_SEPARATOR);
+    private static final Cache<ImmutableSet<String>, RedirectUriMatcher> compiled = CacheBuilder
+            .newBuilder()
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .maximumSize(DEFAULT_MAX_ENTRIES)
+            .build();
+
+    private final boolean empty;
+    private final Node root = new Node();
+
+    private RedirectUriMatcher(Collection<String> patterns) {
+        this.empty = patterns.isEmpty();
+        for (String pattern : patterns) {
+            Node node = root;
+            String wildcardSegment = null;
+            for (String segment : tokenize(pattern)) {
+                if (!isLiteral(segment)) {
+                    wildcardSegment = segment;
+                    break;
+                }
+                node = node.children.computeIfAbsent(segment, s -> new Node());
+            }
+            node.candidates.add(new Candidate(pattern, wildcardSegment));
+        }
+    }
+
+    /**
+     * @return the compiled matcher of the given patterns, null patterns are left out
+     */
+    public static RedirectUriMatcher forPatterns(Collection<String> patterns) {
+        ImmutableSet<String> key = patterns.stream()
+                .filter(Objects::nonNull)
+                .collect(ImmutableSet.toImmutableSet());
+        try {
+            return compiled.get(key, () -> new RedirectUriMatcher(key));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return whether one of the patterns matches the URI
+     */
+    public boolean matches(String uri) {
+        if (empty || uri == null) {
+            return false;
+        }
+        String[] segments = tokenize(uri);
+        Node node = root;
+        for (int depth = 0; ; depth++) {
+            String next = depth < segments.length ? segments[depth] : null;
+            for (Candidate candidate : node.candidates) {
+                if (candidate.mayMatch(next) && antPathMatcher.match(candidate.pattern, uri)) {
+                    return true;
+                }
+            }
+            node = next == null ? null : node.children.get(next);
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    private static String[] tokenize(String value) {
+        //the same segments the AntPathMatcher compares, it does not trim them and skips empty ones
+        return StringUtils.tokenizeToStringArray(value, PATH_SEPARATOR, false, true);
+    }
+
+    private static boolean isLiteral(String segment) {
+        return segment.indexOf('*') == -1 &&
+                segment.indexOf('?') == -1 &&
+                segment.indexOf('{') == -1 &&
+                segment.indexOf('}') == -1;
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private final List<Candidate> candidates = new ArrayList<>();
+    }
+
+    private static final class Candidate {
+        private final String pattern;
+        private final String prefix;
+        private final String suffix;
+
+        private Candidate(String pattern, String wildcardSegment) {
+            this.pattern = pattern;
+            //only plain * and ? wildcards within the segment keep the text around them literal
+            if (wildcardSegment != null && !"**".equals(wildcardSegment) &&
+                    wildcardSegment.indexOf('{') == -1 && wildcardSegment.indexOf('}') == -1) {
+                int first = indexOfWildcard(wildcardSegment);
+                int last = Math.max(wildcardSegment.lastIndexOf('*'), wildcardSegment.lastIndexOf('?'));
+                this.prefix = wildcardSegment.substring(0, first);
+                this.suffix = wildcardSegment.substring(last + 1);
+            } else {
+                this.prefix = null;
+                this.suffix = null;
+            }
+        }
+
+        /**
+         * @param segment the segment of the URI compared with the first wildcard segment of the pattern,
+         *                null when the URI has no more segments
+         */
+        private boolean mayMatch(String segment) {
+            if (prefix == null || segment == null) {
+                return true;
+            }
+            return segment.length() >= prefix.length() + suffix.length() &&
+                    segment.startsWith(prefix) &&
+                    segment.endsWith(suffix);
+        }
+
+        private static int indexOfWildcard(String segment) {
+            int star = segment.indexOf('*');
+            int question = segment.indexOf('?');
+            return star == -1 ? question : question == -1 ? star : Math.min(star, question);
+        }
+    }
+}
@@ -14,7 +14,12 @@ package org.cloudfoundry.identity.uaa.util;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.conn.ssl.SSLContextBuilder;
 import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.impl.NoConnectionReuseStrategy;
@@ -45,6 +50,13 @@ public abstract class UaaHttpRequestUtils {
         return createRequestFactory(getClientBuilder(skipSslValidation), timeout);
     }
 
+    /**
+     * Creates a request factory whose connections are kept alive and reused from the given pool.
+     */
+    public static ClientHttpRequestFactory createRequestFactory(HttpConnectionPool connectionPool, int timeout) {
+        return createRequestFactory(getClientBuilder(connectionPool), timeout);
+    }
+
     protected static ClientHttpRequestFactory createRequestFactory(HttpClientBuilder builder, int timeoutInMs) {
         HttpComponentsClientHttpRequestFactory httpComponentsClientHttpRequestFactory = new HttpComponentsClientHttpRequestFactory(builder.build());
 
@@ -66,6 +78,26 @@ public abstract class UaaHttpRequestUtils {
         return builder;
     }
 
+    protected static HttpClientBuilder getClientBuilder(HttpConnectionPool connectionPool) {
+        //the pool owns the connections and their TLS settings, it is shut down with the pool
+        return HttpClients.custom()
+            .useSystemProperties()
+            .setRedirectStrategy(new DefaultRedirectStrategy())
+            .setConnectionManager(connectionPool.getConnectionManager())
+            .setConnectionManagerShared(true)
+            .setKeepAliveStrategy(connectionPool.getKeepAliveStrategy());
+    }
+
+    static Registry<ConnectionSocketFactory> getSocketFactoryRegistry(boolean skipSslValidation) {
+        SSLConnectionSocketFactory sslSocketFactory = skipSslValidation ?
+            new SSLConnectionSocketFactory(getNonValidatingSslContext(), NoopHostnameVerifier.INSTANCE) :
+            SSLConnectionSocketFactory.getSystemSocketFactory();
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", sslSocketFactory)
+            .build();
+    }
+
     private static SSLContext getNonValidatingSslContext() {
         try {
             return new SSLContextBuilder().loadTrustMaterial(null, new TrustSelfSignedStrategy()).build();
@@ -1,7 +1,6 @@
 package org.cloudfoundry.identity.uaa.util;
 
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
-import org.springframework.util.AntPathMatcher;
 import org.springframework.util.MultiValueMap;
 import org.springframework.util.StringUtils;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
@@ -94,12 +93,9 @@ public abstract class UaaUrlUtils {
      * @return a redirect URI, either the requested or fallback as described above
      */
     public static String findMatchingRedirectUri(Collection<String> redirectUris, String requestedRedirectUri, String fallbackRedirectUri) {
-        AntPathMatcher matcher = new AntPathMatcher();
-
-        for (String pattern : ofNullable(redirectUris).orElse(emptyList())) {
-            if (matcher.match(pattern, requestedRedirectUri)) {
-                return requestedRedirectUri;
-            }
+        RedirectUriMatcher matcher = RedirectUriMatcher.forPatterns(ofNullable(redirectUris).orElse(emptyList()));
+        if (matcher.matches(requestedRedirectUri)) {
+            return requestedRedirectUri;
         }
 
         return ofNullable(fallbackRedirectUri).orElse(requestedRedirectUri);
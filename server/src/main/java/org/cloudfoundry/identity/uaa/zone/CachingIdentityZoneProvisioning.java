@@ -0,0 +1,157 @@
+package org.cloudfoundry.identity.uaa.zone;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
+import org.cloudfoundry.identity.uaa.cache.CacheGeneration;
+import org.cloudfoundry.identity.uaa.cache.TimeServiceTicker;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.dao.EmptyResultDataAccessException;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache in front of an {@link IdentityZoneProvisioning} for the zone lookups
+ * done on every request. Zones are cached by id and by subdomain, unknown subdomains are
+ * remembered for a shorter period. Entries are evicted when a zone is created, modified or
+ * deleted on this node and expire after a fixed time to bound staleness across nodes.
+ * <p>
+ * Cached zones are shared between requests and must be treated as read-only.
+ */
+public class CachingIdentityZoneProvisioning implements IdentityZoneProvisioning, ApplicationListener<AbstractUaaEvent> {
+
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private final IdentityZoneProvisioning delegate;
+    private final Cache<String, IdentityZone> zonesById;
+    private final Cache<String, IdentityZone> zonesBySubdomain;
+    private final Cache<String, Boolean> unknownSubdomains;
+    private final CacheGeneration generation = new CacheGeneration();
+
+    public CachingIdentityZoneProvisioning(final IdentityZoneProvisioning delegate,
+                                           final TimeService timeService,
+                                           final int expirationSeconds,
+                                           final int notFoundExpirationSeconds) {
+        this.delegate = delegate;
+        Ticker ticker = new TimeServiceTicker(timeService);
+        this.zonesById = buildCache(ticker, expirationSeconds);
+        this.zonesBySubdomain = buildCache(ticker, expirationSeconds);
+        this.unknownSubdomains = buildCache(ticker, notFoundExpirationSeconds);
+    }
+
+    private static <V> Cache<String, V> buildCache(Ticker ticker, int expirationSeconds) {
+        return CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(Math.max(0, expirationSeconds), TimeUnit.SECONDS)
+                .maximumSize(DEFAULT_MAX_ENTRIES)
+                .ticker(ticker)
+                .build();
+    }
+
+    @Override
+    public IdentityZone retrieve(String id) {
+        IdentityZone zone = zonesById.getIfPresent(id);
+        if (zone != null) {
+            return zone;
+        }
+        long current = generation.current();
+        zone = delegate.retrieve(id);
+        cacheIfUnchanged(current, zone);
+        return zone;
+    }
+
+    @Override
+    public IdentityZone retrieveBySubdomain(String subdomain) {
+        if (subdomain == null) {
+            throw new EmptyResultDataAccessException("Subdomain cannot be null", 1);
+        }
+        String key = subdomain.toLowerCase();
+        IdentityZone zone = zonesBySubdomain.getIfPresent(key);
+        if (zone != null) {
+            return zone;
+        }
+        if (unknownSubdomains.getIfPresent(key) != null) {
+            throw new EmptyResultDataAccessException("Unknown subdomain " + key, 1);
+        }
+        long current = generation.current();
+        try {
+            zone = delegate.retrieveBySubdomain(key);
+        } catch (EmptyResultDataAccessException e) {
+            generation.putIfUnchanged(unknownSubdomains, current, key, Boolean.TRUE);
+            throw e;
+        }
+        cacheIfUnchanged(current, zone);
+        return zone;
+    }
+
+    @Override
+    public IdentityZone retrieveIgnoreActiveFlag(String id) {
+        return delegate.retrieveIgnoreActiveFlag(id);
+    }
+
+    @Override
+    public List<IdentityZone> retrieveAll() {
+        return delegate.retrieveAll();
+    }
+
+    @Override
+    public IdentityZone create(IdentityZone identityZone) {
+        IdentityZone created = delegate.create(identityZone);
+        evict(created);
+        return created;
+    }
+
+    @Override
+    public IdentityZone update(IdentityZone identityZone) {
+        IdentityZone updated = delegate.update(identityZone);
+        evict(updated);
+        return updated;
+    }
+
+    @Override
+    public void onApplicationEvent(AbstractUaaEvent event) {
+        if (event instanceof IdentityZoneModifiedEvent) {
+            evict((IdentityZone) event.getSource());
+        } else if (event instanceof EntityDeletedEvent && event.getSource() instanceof IdentityZone) {
+            evict((IdentityZone) event.getSource());
+        }
+    }
+
+    public void clear() {
+        generation.increment();
+        zonesById.invalidateAll();
+        zonesBySubdomain.invalidateAll();
+        unknownSubdomains.invalidateAll();
+    }
+
+    private void cacheIfUnchanged(long expectedGeneration, IdentityZone zone) {
+        if (zone == null) {
+            return;
+        }
+        generation.putIfUnchanged(zonesById, expectedGeneration, zone.getId(), zone);
+        if (zone.getSubdomain() != null) {
+            generation.putIfUnchanged(zonesBySubdomain, expectedGeneration, zone.getSubdomain().toLowerCase(), zone);
+        }
+    }
+
+    private void evict(IdentityZone zone) {
+        generation.increment();
+        if (zone == null) {
+            return;
+        }
+        if (zone.getId() != null) {
+            zonesById.invalidate(zone.getId());
+            //the subdomain may have changed, so look up the old entry by zone id
+            zonesBySubdomain.asMap().values().removeIf(cached -> zone.getId().equals(cached.getId()));
+        }
+        if (zone.getSubdomain() != null) {
+            zonesBySubdomain.invalidate(zone.getSubdomain().toLowerCase());
+            unknownSubdomains.invalidate(zone.getSubdomain().toLowerCase());
+        }
+    }
+}
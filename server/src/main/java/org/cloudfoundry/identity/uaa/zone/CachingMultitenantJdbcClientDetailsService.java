@@ -0,0 +1,236 @@
+package org.cloudfoundry.identity.uaa.zone;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.cloudfoundry.identity.uaa.cache.CacheGeneration;
+import org.cloudfoundry.identity.uaa.cache.TimeServiceTicker;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.zone.beans.IdentityZoneManager;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.security.oauth2.common.exceptions.InvalidClientException;
+import org.springframework.security.oauth2.provider.ClientAlreadyExistsException;
+import org.springframework.security.oauth2.provider.ClientDetails;
+import org.springframework.security.oauth2.provider.NoSuchClientException;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.web.context.request.RequestAttributes.SCOPE_REQUEST;
+
+/**
+ * {@link MultitenantJdbcClientDetailsService} that keeps the clients loaded for authentication and
+ * token requests. Clients are cached per zone and additionally remembered for the duration of the
+ * current request, so a single request loads a client at most once. Entries are evicted when the
+ * client is added, updated, deleted or its secret is changed on this node, including deletes triggered
+ * by client and zone deletion events, and expire after a fixed time to bound how long a secret changed
+ * on another node is still accepted here.
+ * <p>
+ * Adding or deleting a secondary secret always reads the current secret from the database, so a stale
+ * entry can never be written back. Clients are handed out as copies, so callers may modify them.
+ */
+@Component("jdbcClientDetailsService")
+public class CachingMultitenantJdbcClientDetailsService extends MultitenantJdbcClientDetailsService {
+
+    static final String REQUEST_ATTRIBUTE = CachingMultitenantJdbcClientDetailsService.class.getName() + ".CLIENTS";
+
+    private final boolean enabled;
+    private final Cache<String, ClientDetails> clients;
+    private final CacheGeneration generation = new CacheGeneration();
+
+    public CachingMultitenantJdbcClientDetailsService(
+            final JdbcTemplate jdbcTemplate,
+            final IdentityZoneManager identityZoneManager,
+            final @Qualifier("cachingPasswordEncoder") PasswordEncoder passwordEncoder,
+            final TimeService timeService,
+            final @Value("${clients.cache.maxEntries:10000}") int maxEntries,
+            final @Value("${clients.cache.expirationSeconds:10}") int expirationSeconds) {
+        super(jdbcTemplate, identityZoneManager, passwordEncoder);
+        this.enabled = maxEntries > 0 && expirationSeconds > 0;
+        Ticker ticker = new TimeServiceTicker(timeService);
+        this.clients = CacheBuilder
+                .newBuilder()
+                .expireAfterWrite(Math.max(0, expirationSeconds), TimeUnit.SECONDS)
+                .maximumSize(Math.max(0, maxEntries))
+                .ticker(ticker)
+                .build();
+    }
+
+    @Override
+    public ClientDetails loadClientByClientId(String clientId, String zoneId) throws InvalidClientException {
+        if (!enabled) {
+            return super.loadClientByClientId(clientId, zoneId);
+        }
+        String key = key(clientId, zoneId);
+        Map<String, ClientDetails> memo = getRequestMemo();
+        ClientDetails client = memo == null ? null : memo.get(key);
+        if (client == null) {
+            client = clients.getIfPresent(key);
+        }
+        if (client == null) {
+            long current = generation.current();
+            client = super.loadClientByClientId(clientId, zoneId);
+            generation.putIfUnchanged(clients, current, key, client);
+        }
+        if (memo != null) {
+            memo.put(key, client);
+        }
+        return copyOf(client);
+    }
+
+    @Override
+    public void addClientDetails(ClientDetails clientDetails, String zoneId) throws ClientAlreadyExistsException {
+        try {
+            super.addClientDetails(clientDetails, zoneId);
+        } finally {
+            evict(clientDetails.getClientId(), zoneId);
+        }
+    }
+
+    @Override
+    public void updateClientDetails(ClientDetails clientDetails, String zoneId) throws NoSuchClientException {
+        try {
+            super.updateClientDetails(clientDetails, zoneId);
+        } finally {
+            evict(clientDetails.getClientId(), zoneId);
+        }
+    }
+
+    @Override
+    public void updateClientSecret(String clientId, String secret, String zoneId) throws NoSuchClientException {
+        try {
+            super.updateClientSecret(clientId, secret, zoneId);
+        } finally {
+            evict(clientId, zoneId);
+        }
+    }
+
+    @Override
+    public void addClientSecret(String clientId, String newSecret, String zoneId) throws NoSuchClientException {
+        //the new secret is appended to the stored one, which must not come from the cache
+        evict(clientId, zoneId);
+        try {
+            super.addClientSecret(clientId, newSecret, zoneId);
+        } finally {
+            evict(clientId, zoneId);
+        }
+    }
+
+    @Override
+    public void deleteClientSecret(String clientId, String zoneId) throws NoSuchClientException {
+        evict(clientId, zoneId);
+        try {
+            super.deleteClientSecret(clientId, zoneId);
+        } finally {
+            evict(clientId, zoneId);
+        }
+    }
+
+    @Override
+    public int deleteByClient(String clientId, String zoneId) {
+        try {
+            return super.deleteByClient(clientId, zoneId);
+        } finally {
+            evict(clientId, zoneId);
+        }
+    }
+
+    @Override
+    public int deleteByIdentityZone(String zoneId) {
+        try {
+            return super.deleteByIdentityZone(zoneId);
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Evicts a client that was modified without going through this service.
+     */
+    public void evict(String clientId, String zoneId) {
+        generation.increment();
+        String key = key(clientId, zoneId);
+        clients.invalidate(key);
+        Map<String, ClientDetails> memo = getRequestMemo();
+        if (memo != null) {
+            memo.remove(key);
+        }
+    }
+
+    public void clear() {
+        generation.increment();
+        clients.invalidateAll();
+        Map<String, ClientDetails> memo = getRequestMemo();
+        if (memo != null) {
+            memo.clear();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ClientDetails> getRequestMemo() {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if (attributes == null) {
+            return null;
+        }
+        Map<String, ClientDetails> memo = (Map<String, ClientDetails>) attributes.getAttribute(REQUEST_ATTRIBUTE, SCOPE_REQUEST);
+        if (memo == null) {
+            memo = new HashMap<>();
+            attributes.setAttribute(REQUEST_ATTRIBUTE, memo, SCOPE_REQUEST);
+        }
+        return memo;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ClientDetails copyOf(ClientDetails client) {
+        BaseClientDetails copy = new BaseClientDetails(client);
+        copy.setAdditionalInformation((Map<String, ?>) copyValue(client.getAdditionalInformation()));
+        if (client instanceof BaseClientDetails) {
+            copy.setAutoApproveScopes(((BaseClientDetails) client).getAutoApproveScopes());
+        }
+        return copy;
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                copy.put(entry.getKey(), copyValue(entry.getValue()));
+            }
+            return copy;
+        } else if (value instanceof Set) {
+            Set<Object> copy = new LinkedHashSet<>();
+            for (Object element : (Collection<?>) value) {
+                copy.add(copyValue(element));
+            }
+            return copy;
+        } else if (value instanceof Collection) {
+            List<Object> copy = new ArrayList<>();
+            for (Object element : (Collection<?>) value) {
+                copy.add(copyValue(element));
+            }
+            return copy;
+        } else if (value instanceof Timestamp) {
+            return ((Timestamp) value).clone();
+        }
+        return value;
+    }
+
+    private static String key(String clientId, String zoneId) {
+        return zoneId + ":" + clientId;
+    }
+}
@@ -27,7 +27,6 @@ import org.springframework.security.oauth2.provider.ClientAlreadyExistsException
 import org.springframework.security.oauth2.provider.ClientDetails;
 import org.springframework.security.oauth2.provider.NoSuchClientException;
 import org.springframework.security.oauth2.provider.client.BaseClientDetails;
-import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
@@ -50,7 +49,6 @@ import static org.springframework.util.StringUtils.commaDelimitedListToSet;
 /**
  * A copy of JdbcClientDetailsService but with IdentityZone awareness
  */
-@Component("jdbcClientDetailsService")
 public class MultitenantJdbcClientDetailsService extends MultitenantClientServices implements
         ResourceMonitor<ClientDetails>,
         SystemDeletable {
@@ -0,0 +1,6 @@
+CREATE TABLE `revocation_epoch` (
+   `id` INTEGER NOT NULL,
+   `epoch` BIGINT NOT NULL,
+    PRIMARY KEY (`id`)
+);
+INSERT INTO `revocation_epoch` (`id`, `epoch`) VALUES (1, 0);
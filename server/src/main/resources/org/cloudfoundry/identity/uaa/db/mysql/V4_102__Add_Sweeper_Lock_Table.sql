@@ -0,0 +1,6 @@
+CREATE TABLE `sweeper_lock` (
+   `lock_name` VARCHAR(64) NOT NULL,
+   `owner` VARCHAR(255) NOT NULL,
+   `expires_at` BIGINT NOT NULL,
+    PRIMARY KEY (`lock_name`)
+);
@@ -0,0 +1,5 @@
+CREATE TABLE revocation_epoch (
+   id INTEGER NOT NULL PRIMARY KEY,
+   epoch BIGINT NOT NULL
+);
+INSERT INTO revocation_epoch (id, epoch) VALUES (1, 0);
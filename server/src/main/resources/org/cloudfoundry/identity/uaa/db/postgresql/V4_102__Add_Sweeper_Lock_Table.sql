@@ -0,0 +1,5 @@
+CREATE TABLE sweeper_lock (
+   lock_name VARCHAR(64) NOT NULL PRIMARY KEY,
+   owner VARCHAR(255) NOT NULL,
+   expires_at BIGINT NOT NULL
+);
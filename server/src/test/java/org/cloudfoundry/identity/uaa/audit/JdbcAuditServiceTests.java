@@ -3,6 +3,7 @@ package org.cloudfoundry.identity.uaa.audit;
 import org.cloudfoundry.identity.uaa.annotations.WithDatabaseContext;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,6 +14,9 @@ import java.util.List;
 
 import static org.cloudfoundry.identity.uaa.audit.AuditEventType.PrincipalAuthenticationFailure;
 import static org.cloudfoundry.identity.uaa.audit.AuditEventType.UserAuthenticationFailure;
+import static org.cloudfoundry.identity.uaa.audit.JdbcAuditService.OverflowPolicy.CALLER_RUNS;
+import static org.cloudfoundry.identity.uaa.audit.JdbcAuditService.OverflowPolicy.DISCARD_NEWEST;
+import static org.cloudfoundry.identity.uaa.audit.JdbcAuditService.OverflowPolicy.DISCARD_OLDEST;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 @WithDatabaseContext
@@ -32,6 +36,11 @@ class JdbcAuditServiceTests {
         authDetails = "1.1.1.1";
     }
 
+    @AfterEach
+    void stopService() throws Exception {
+        auditService.destroy();
+    }
+
     @Test
     void userAuthenticationFailureAuditSucceeds() throws Exception {
         auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"), getAuditEvent(UserAuthenticationFailure, "1", "joe").getIdentityZoneId());
@@ -68,6 +77,107 @@ class JdbcAuditServiceTests {
         assertEquals(1, events.size());
     }
 
+    @Test
+    void asyncEventsAreFoundBeforeTheyAreWritten() {
+        startAsync(10, CALLER_RUNS);
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"), IdentityZone.getUaaZoneId());
+
+        assertEquals(0, countEvents("clientA"));
+        assertEquals(1, auditService.getQueueDepth());
+        assertEquals(1, auditService.find("clientA", 0, IdentityZone.getUaaZoneId()).size());
+
+        auditService.flush();
+        assertEquals(1, countEvents("clientA"));
+        assertEquals(0, auditService.getQueueDepth());
+        assertEquals(1, auditService.getWrittenEventCount());
+        assertEquals(1, auditService.find("clientA", 0, IdentityZone.getUaaZoneId()).size());
+    }
+
+    @Test
+    void asyncEventsKeepTheirTime() {
+        startAsync(10, CALLER_RUNS);
+        long time = System.currentTimeMillis() - 3600 * 1000;
+        auditService.log(new AuditEvent(PrincipalAuthenticationFailure, "clientA", authDetails, null, time, IdentityZone.getUaaZoneId(), null, null), IdentityZone.getUaaZoneId());
+        auditService.flush();
+
+        List<AuditEvent> events = auditService.find("clientA", 0, IdentityZone.getUaaZoneId());
+        assertEquals(time, events.get(0).getTime());
+        assertEquals(0, auditService.find("clientA", time, IdentityZone.getUaaZoneId()).size());
+    }
+
+    @Test
+    void fullQueueInsertsOnCallingThread() {
+        startAsync(1, CALLER_RUNS);
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"), IdentityZone.getUaaZoneId());
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"), IdentityZone.getUaaZoneId());
+
+        assertEquals(1, countEvents("clientA"));
+        assertEquals(1, auditService.getQueueDepth());
+        assertEquals(1, auditService.getCallerRunsEventCount());
+        assertEquals(2, auditService.find("clientA", 0, IdentityZone.getUaaZoneId()).size());
+    }
+
+    @Test
+    void fullQueueDiscardsNewestEvent() {
+        startAsync(1, DISCARD_NEWEST);
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA", "first"), IdentityZone.getUaaZoneId());
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA", "second"), IdentityZone.getUaaZoneId());
+
+        List<AuditEvent> events = auditService.find("clientA", 0, IdentityZone.getUaaZoneId());
+        assertEquals(1, events.size());
+        assertEquals("first", events.get(0).getData());
+        assertEquals(1, auditService.getDroppedEventCount());
+    }
+
+    @Test
+    void fullQueueDiscardsOldestEvent() {
+        startAsync(1, DISCARD_OLDEST);
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA", "first"), IdentityZone.getUaaZoneId());
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA", "second"), IdentityZone.getUaaZoneId());
+
+        List<AuditEvent> events = auditService.find("clientA", 0, IdentityZone.getUaaZoneId());
+        assertEquals(1, events.size());
+        assertEquals("second", events.get(0).getData());
+        assertEquals(1, auditService.getDroppedEventCount());
+    }
+
+    @Test
+    void fullBatchIsWrittenInBackground() throws Exception {
+        auditService.setBatchSize(2);
+        startAsync(10, CALLER_RUNS);
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"), IdentityZone.getUaaZoneId());
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"), IdentityZone.getUaaZoneId());
+
+        for (int i = 0; i < 100 && countEvents("clientA") < 2; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(2, countEvents("clientA"));
+    }
+
+    @Test
+    void queueIsWrittenOnShutdown() throws Exception {
+        startAsync(10, CALLER_RUNS);
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"), IdentityZone.getUaaZoneId());
+
+        auditService.destroy();
+
+        assertEquals(1, countEvents("clientA"));
+        auditService.log(getAuditEvent(PrincipalAuthenticationFailure, "clientA"), IdentityZone.getUaaZoneId());
+        assertEquals(2, countEvents("clientA"));
+    }
+
+    private void startAsync(int queueSize, JdbcAuditService.OverflowPolicy overflowPolicy) {
+        auditService.setAsync(true);
+        auditService.setQueueSize(queueSize);
+        auditService.setFlushInterval(60_000);
+        auditService.setOverflowPolicy(overflowPolicy);
+        auditService.afterPropertiesSet();
+    }
+
+    private int countEvents(String principalId) {
+        return jdbcTemplate.queryForObject("select count(*) from sec_audit where principal_id=?", Integer.class, principalId);
+    }
+
     private AuditEvent getAuditEvent(AuditEventType type, String principal) {
         return getAuditEvent(type, principal, null);
     }
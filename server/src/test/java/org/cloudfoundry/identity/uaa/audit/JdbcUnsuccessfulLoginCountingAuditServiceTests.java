@@ -1,9 +1,12 @@
 package org.cloudfoundry.identity.uaa.audit;
 
 import org.cloudfoundry.identity.uaa.annotations.WithDatabaseContext;
+import org.cloudfoundry.identity.uaa.resources.jdbc.ExpiredRowSweeper;
+import org.cloudfoundry.identity.uaa.resources.jdbc.HsqlDbLimitSqlAdapter;
 import org.cloudfoundry.identity.uaa.util.TimeService;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
@@ -29,6 +32,7 @@ import static org.hamcrest.core.Is.is;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @WithDatabaseContext
@@ -53,6 +57,11 @@ class JdbcUnsuccessfulLoginCountingAuditServiceTests {
         authDetails = "1.1.1.1";
     }
 
+    @AfterEach
+    void stopService() throws Exception {
+        auditService.destroy();
+    }
+
     @Test
     void userAuthenticationFailureAuditSucceeds() throws Exception {
         auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"), getAuditEvent(UserAuthenticationFailure, "1", "joe").getIdentityZoneId());
@@ -203,6 +212,32 @@ class JdbcUnsuccessfulLoginCountingAuditServiceTests {
         assertThat(auditService.find("1", 0, mfaFailureEvent.getIdentityZoneId()), is(empty()));
     }
 
+    @Test
+    void asyncUserAuthenticationSuccessDiscardsQueuedFailures() {
+        auditService.setAsync(true);
+        auditService.setFlushInterval(60_000);
+        auditService.afterPropertiesSet();
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"), IdentityZone.getUaaZoneId());
+        assertThat(auditService.find("1", 0, IdentityZone.getUaaZoneId()), is(hasSize(1)));
+
+        auditService.log(getAuditEvent(UserAuthenticationSuccess, "1", "joe"), IdentityZone.getUaaZoneId());
+        auditService.flush();
+
+        assertThat(auditService.find("1", 0, IdentityZone.getUaaZoneId()), is(empty()));
+        assertThat(jdbcTemplate.queryForObject("select count(*) from sec_audit where principal_id='1'", Integer.class), is(0));
+    }
+
+    @Test
+    void expiredRowSweeperReplacesInlineDelete() {
+        when(mockTimeService.getCurrentTimeMillis()).thenReturn(System.currentTimeMillis());
+        auditService = new JdbcUnsuccessfulLoginCountingAuditService(template, mockTimeService);
+        auditService.setExpiredRowSweeper(new ExpiredRowSweeper(template, new HsqlDbLimitSqlAdapter(), mockTimeService));
+
+        auditService.log(getAuditEvent(UserAuthenticationFailure, "1", "joe"), IdentityZone.getUaaZoneId());
+
+        verify(template, never()).update(anyString(), any(Timestamp.class));
+    }
+
     private AuditEvent getAuditEvent(AuditEventType type, String principal, String data) {
         return new AuditEvent(type, principal, authDetails, data, System.currentTimeMillis(), IdentityZone.getUaaZoneId(), null, null);
     }
@@ -0,0 +1,184 @@
+package org.cloudfoundry.identity.uaa.authentication.manager;
+
+import org.cloudfoundry.identity.uaa.audit.AuditEvent;
+import org.cloudfoundry.identity.uaa.audit.AuditEventType;
+import org.cloudfoundry.identity.uaa.audit.UaaAuditService;
+import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
+import org.cloudfoundry.identity.uaa.provider.LockoutPolicy;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SlidingWindowLoginPolicyTest {
+    private SlidingWindowLoginPolicy loginPolicy;
+    private LockoutPolicyRetriever lockoutPolicyRetriever;
+    private TimeService timeService;
+    private UaaAuditService auditService;
+    private String zoneId;
+    private long now = 1_000_000L;
+
+    @Before
+    public void setup() {
+        auditService = mock(UaaAuditService.class);
+        timeService = mock(TimeService.class);
+        lockoutPolicyRetriever = mock(LockoutPolicyRetriever.class);
+        when(timeService.getCurrentTimeMillis()).thenAnswer(invocation -> now);
+        when(lockoutPolicyRetriever.getLockoutPolicy()).thenReturn(new LockoutPolicy(3600, 3, 300));
+        zoneId = IdentityZoneHolder.get().getId();
+
+        loginPolicy = policy(60);
+    }
+
+    @Test
+    public void failuresAreReadOnceAndThenCountedFromEvents() {
+        auditEvents(failure(now - 2000), failure(now - 1000));
+
+        LoginPolicy.Result result = loginPolicy.isAllowed("principal");
+        assertTrue(result.isAllowed());
+        assertEquals(2, result.getFailureCount());
+
+        loginPolicy.onApplicationEvent(event(failure(now)));
+        result = loginPolicy.isAllowed("principal");
+        assertFalse(result.isAllowed());
+        assertEquals(3, result.getFailureCount());
+        verify(auditService, times(1)).find(eq("principal"), anyLong(), eq(zoneId));
+    }
+
+    @Test
+    public void onlyFailuresAfterTheLastSuccessAreRead() {
+        auditEvents(failure(now - 1000), success(now - 2000), failure(now - 3000), failure(now - 4000));
+
+        LoginPolicy.Result result = loginPolicy.isAllowed("principal");
+
+        assertTrue(result.isAllowed());
+        assertEquals(1, result.getFailureCount());
+    }
+
+    @Test
+    public void successResetsFailures() {
+        auditEvents(failure(now - 3000), failure(now - 2000), failure(now - 1000));
+        assertFalse(loginPolicy.isAllowed("principal").isAllowed());
+
+        loginPolicy.onApplicationEvent(event(success(now)));
+
+        LoginPolicy.Result result = loginPolicy.isAllowed("principal");
+        assertTrue(result.isAllowed());
+        assertEquals(0, result.getFailureCount());
+        verify(auditService, times(1)).find(eq("principal"), anyLong(), eq(zoneId));
+    }
+
+    @Test
+    public void unlockResetsFailures() {
+        auditEvents(failure(now - 3000), failure(now - 2000), failure(now - 1000));
+        assertFalse(loginPolicy.isAllowed("principal").isAllowed());
+
+        loginPolicy.onApplicationEvent(event(new AuditEvent(AuditEventType.UserAccountUnlockedEvent, "principal", null, null, now, zoneId, null, null)));
+
+        assertTrue(loginPolicy.isAllowed("principal").isAllowed());
+    }
+
+    @Test
+    public void failuresOfUnknownPrincipalsAreNotRecorded() {
+        loginPolicy.onApplicationEvent(event(failure(now)));
+        auditEvents();
+
+        assertEquals(0, loginPolicy.isAllowed("principal").getFailureCount());
+    }
+
+    @Test
+    public void lockoutEndsAfterLockoutPeriod() {
+        auditEvents(failure(now - 3000), failure(now - 2000), failure(now - 1000));
+        assertFalse(loginPolicy.isAllowed("principal").isAllowed());
+
+        now += 300_000L;
+
+        LoginPolicy.Result result = loginPolicy.isAllowed("principal");
+        assertTrue(result.isAllowed());
+        assertEquals(3, result.getFailureCount());
+    }
+
+    @Test
+    public void failuresAreReadAgainAfterRefresh() {
+        auditEvents(failure(now - 1000));
+        loginPolicy.isAllowed("principal");
+
+        now += 61_000L;
+        auditEvents(failure(now - 3000), failure(now - 2000), failure(now - 1000));
+
+        assertFalse(loginPolicy.isAllowed("principal").isAllowed());
+        verify(auditService, times(2)).find(eq("principal"), anyLong(), eq(zoneId));
+    }
+
+    @Test
+    public void highThresholdsAreCheckedAgainstAuditService() {
+        when(lockoutPolicyRetriever.getLockoutPolicy()).thenReturn(new LockoutPolicy(3600, SlidingWindowLoginPolicy.MAX_RECORDED_FAILURES + 1, 300));
+        auditEvents(failure(now - 1000));
+
+        loginPolicy.isAllowed("principal");
+        loginPolicy.isAllowed("principal");
+
+        verify(auditService, times(2)).find(eq("principal"), anyLong(), eq(zoneId));
+    }
+
+    @Test
+    public void disabledRefreshChecksAuditService() {
+        loginPolicy = policy(0);
+        auditEvents(failure(now - 1000));
+
+        loginPolicy.isAllowed("principal");
+        loginPolicy.isAllowed("principal");
+
+        verify(auditService, times(2)).find(eq("principal"), anyLong(), eq(zoneId));
+    }
+
+    @Test
+    public void windowKeepsMostRecentFailures() {
+        SlidingWindowLoginPolicy.FailureWindow window = new SlidingWindowLoginPolicy.FailureWindow();
+        for (int i = 1; i <= 100; i++) {
+            window.add(i);
+        }
+
+        assertEquals(SlidingWindowLoginPolicy.MAX_RECORDED_FAILURES, window.countAfter(0));
+        assertEquals(10, window.countAfter(90));
+        assertEquals(100, window.mostRecent());
+    }
+
+    private SlidingWindowLoginPolicy policy(int refreshSeconds) {
+        return new SlidingWindowLoginPolicy(auditService, lockoutPolicyRetriever, AuditEventType.UserAuthenticationSuccess,
+                AuditEventType.UserAuthenticationFailure, timeService, true, 100, refreshSeconds);
+    }
+
+    private void auditEvents(AuditEvent... events) {
+        List<AuditEvent> list = new ArrayList<>(Arrays.asList(events));
+        when(auditService.find(eq("principal"), anyLong(), eq(zoneId))).thenReturn(list);
+    }
+
+    private AuditEvent failure(long time) {
+        return new AuditEvent(AuditEventType.UserAuthenticationFailure, "principal", null, null, time, zoneId, null, null);
+    }
+
+    private AuditEvent success(long time) {
+        return new AuditEvent(AuditEventType.UserAuthenticationSuccess, "principal", null, null, time, zoneId, null, null);
+    }
+
+    private static AbstractUaaEvent event(AuditEvent auditEvent) {
+        AbstractUaaEvent event = mock(AbstractUaaEvent.class);
+        when(event.getAuditEvent()).thenReturn(auditEvent);
+        return event;
+    }
+}
@@ -0,0 +1,54 @@
+package org.cloudfoundry.identity.uaa.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CacheGenerationTests {
+
+    private CacheGeneration generation;
+    private Cache<String, String> cache;
+
+    @BeforeEach
+    void setUp() {
+        generation = new CacheGeneration();
+        cache = CacheBuilder.newBuilder().build();
+    }
+
+    @Test
+    void cachesValueWithoutEviction() {
+        long current = generation.current();
+        generation.putIfUnchanged(cache, current, "key", "value");
+        assertEquals("value", cache.getIfPresent("key"));
+    }
+
+    @Test
+    void skipsValueReadBeforeEviction() {
+        long current = generation.current();
+        generation.increment();
+        generation.putIfUnchanged(cache, current, "key", "value");
+        assertNull(cache.getIfPresent("key"));
+    }
+
+    @Test
+    void skipsNullValue() {
+        generation.putIfUnchanged(cache, generation.current(), "key", null);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void tickerReadsTimeService() {
+        TimeService timeService = mock(TimeService.class);
+        when(timeService.getCurrentTimeMillis()).thenReturn(1500L);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1500L), new TimeServiceTicker(timeService).read());
+    }
+}
@@ -8,6 +8,11 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
@@ -17,12 +22,19 @@ import java.net.URISyntaxException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTimeout;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
@@ -30,6 +42,8 @@ import static org.mockito.Mockito.same;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpStatus.NOT_MODIFIED;
+import static org.springframework.http.HttpStatus.OK;
 
 class ExpiringUrlCacheTests {
 
@@ -52,13 +66,14 @@ class ExpiringUrlCacheTests {
         when(mockTimeService.getCurrentTimeMillis()).thenAnswer(e -> System.currentTimeMillis());
         cache = new ExpiringUrlCache(CACHE_EXPIRATION, mockTimeService, 2);
         mockRestTemplate = mock(RestTemplate.class);
-        when(mockRestTemplate.getForObject(any(URI.class), any())).thenReturn(content, new byte[1024]);
+        when(mockRestTemplate.exchange(any(URI.class), eq(HttpMethod.GET), any(HttpEntity.class), eq(byte[].class)))
+                .thenReturn(new ResponseEntity<>(content, OK), new ResponseEntity<>(new byte[1024], OK));
     }
 
     @Test
     void correct_method_invoked_on_rest_template() throws URISyntaxException {
         cache.getUrlContent(uri, mockRestTemplate);
-        verify(mockRestTemplate, times(1)).getForObject(eq(new URI(uri)), same(byte[].class));
+        verify(mockRestTemplate, times(1)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same(byte[].class));
     }
 
     @Test
@@ -68,7 +83,7 @@ class ExpiringUrlCacheTests {
 
     @Test
     void rest_client_exception_is_propagated() {
-        when(mockRestTemplate.getForObject(any(URI.class), any())).thenThrow(new RestClientException("mock"));
+        when(mockRestTemplate.exchange(any(URI.class), any(HttpMethod.class), any(HttpEntity.class), eq(byte[].class))).thenThrow(new RestClientException("mock"));
         assertThrows(RestClientException.class, () -> cache.getUrlContent(uri, mockRestTemplate));
     }
 
@@ -76,7 +91,7 @@ class ExpiringUrlCacheTests {
     void calling_twice_uses_cache() throws Exception {
         byte[] c1 = cache.getUrlContent(uri, mockRestTemplate);
         byte[] c2 = cache.getUrlContent(uri, mockRestTemplate);
-        verify(mockRestTemplate, times(1)).getForObject(eq(new URI(uri)), same(byte[].class));
+        verify(mockRestTemplate, times(1)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same(byte[].class));
         assertSame(c1, c2);
         assertEquals(1, cache.size());
     }
@@ -94,10 +109,107 @@ class ExpiringUrlCacheTests {
                 );
         byte[] c1 = cache.getUrlContent(uri, mockRestTemplate);
         byte[] c2 = cache.getUrlContent(uri, mockRestTemplate);
-        verify(mockRestTemplate, times(2)).getForObject(eq(new URI(uri)), same(byte[].class));
+        verify(mockRestTemplate, times(2)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same(byte[].class));
         assertNotSame(c1, c2);
     }
 
+    @Test
+    void entry_is_refreshed_before_it_expires() throws Exception {
+        Instant now = Instant.now();
+        when(mockTimeService.getCurrentTimeMillis()).thenReturn(
+                now.toEpochMilli(),
+                now.plus(Duration.ofMinutes(9)).toEpochMilli());
+        byte[] c1 = cache.getUrlContent(uri, mockRestTemplate);
+        byte[] c2 = cache.getUrlContent(uri, mockRestTemplate);
+        byte[] c3 = cache.getUrlContent(uri, mockRestTemplate);
+
+        assertSame(c1, c2);
+        assertNotSame(c2, c3);
+        verify(mockRestTemplate, times(2)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same(byte[].class));
+        assertEquals(1L, cache.getRefreshCount());
+        assertEquals(2L, cache.getHitCount());
+    }
+
+    @Test
+    void expired_entry_is_used_when_fetching_fails() {
+        Instant now = Instant.now();
+        when(mockTimeService.getCurrentTimeMillis()).thenReturn(
+                now.toEpochMilli(),
+                now.plus(CACHE_EXPIRATION).plus(Duration.ofMinutes(1)).toEpochMilli());
+        when(mockRestTemplate.exchange(any(URI.class), any(HttpMethod.class), any(HttpEntity.class), eq(byte[].class)))
+                .thenReturn(new ResponseEntity<>(content, OK))
+                .thenThrow(new ResourceAccessException("mock"));
+
+        byte[] c1 = cache.getUrlContent(uri, mockRestTemplate);
+        byte[] c2 = cache.getUrlContent(uri, mockRestTemplate);
+
+        assertSame(c1, c2);
+        assertEquals(1L, cache.getStaleHitCount());
+    }
+
+    @Test
+    void entry_is_not_used_after_max_stale() {
+        Instant now = Instant.now();
+        cache = new ExpiringUrlCache(CACHE_EXPIRATION, Duration.ofMinutes(5), mockTimeService, 2);
+        when(mockTimeService.getCurrentTimeMillis()).thenReturn(
+                now.toEpochMilli(),
+                now.plus(CACHE_EXPIRATION).plus(Duration.ofMinutes(6)).toEpochMilli());
+        when(mockRestTemplate.exchange(any(URI.class), any(HttpMethod.class), any(HttpEntity.class), eq(byte[].class)))
+                .thenReturn(new ResponseEntity<>(content, OK))
+                .thenThrow(new ResourceAccessException("mock"));
+
+        cache.getUrlContent(uri, mockRestTemplate);
+
+        assertThrows(ResourceAccessException.class, () -> cache.getUrlContent(uri, mockRestTemplate));
+    }
+
+    @Test
+    void expired_entry_is_fetched_conditionally() {
+        Instant now = Instant.now();
+        when(mockTimeService.getCurrentTimeMillis()).thenReturn(
+                now.toEpochMilli(),
+                now.plus(CACHE_EXPIRATION).plus(Duration.ofMinutes(1)).toEpochMilli());
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.setETag("\"v1\"");
+        when(mockRestTemplate.exchange(any(URI.class), any(HttpMethod.class), any(HttpEntity.class), eq(byte[].class)))
+                .thenReturn(new ResponseEntity<>(content, responseHeaders, OK))
+                .thenReturn(new ResponseEntity<>(NOT_MODIFIED));
+
+        byte[] c1 = cache.getUrlContent(uri, mockRestTemplate);
+        byte[] c2 = cache.getUrlContent(uri, mockRestTemplate);
+
+        assertSame(c1, c2);
+        assertEquals(1L, cache.getNotModifiedCount());
+        ArgumentCaptor<HttpEntity> request = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(mockRestTemplate, times(2)).exchange(any(URI.class), any(HttpMethod.class), request.capture(), eq(byte[].class));
+        assertEquals(Collections.emptyList(), request.getAllValues().get(0).getHeaders().getIfNoneMatch());
+        assertEquals(Collections.singletonList("\"v1\""), request.getAllValues().get(1).getHeaders().getIfNoneMatch());
+    }
+
+    @Test
+    void concurrent_callers_share_one_fetch() throws Exception {
+        CountDownLatch fetching = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(mockRestTemplate.exchange(any(URI.class), any(HttpMethod.class), any(HttpEntity.class), eq(byte[].class))).thenAnswer(invocation -> {
+            fetching.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return new ResponseEntity<>(content, OK);
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<byte[]> first = executor.submit(() -> cache.getUrlContent(uri, mockRestTemplate));
+            assertTrue(fetching.await(10, TimeUnit.SECONDS));
+            Future<byte[]> second = executor.submit(() -> cache.getUrlContent(uri, mockRestTemplate));
+            Thread.sleep(100);
+            release.countDown();
+
+            assertSame(first.get(10, TimeUnit.SECONDS), second.get(10, TimeUnit.SECONDS));
+            verify(mockRestTemplate, times(1)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same(byte[].class));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     void cache_should_start_empty() {
         assertEquals(0, cache.size());
@@ -112,14 +224,14 @@ class ExpiringUrlCacheTests {
         byte[] c2 = new byte[1024];
         byte[] c3 = new byte[1024];
         mockRestTemplate = mock(RestTemplate.class);
-        when(mockRestTemplate.getForObject(eq(new URI(uri1)), any())).thenReturn(c1);
-        when(mockRestTemplate.getForObject(eq(new URI(uri2)), any())).thenReturn(c2);
-        when(mockRestTemplate.getForObject(eq(new URI(uri3)), any())).thenReturn(c3);
+        when(mockRestTemplate.exchange(eq(new URI(uri1)), any(HttpMethod.class), any(HttpEntity.class), eq(byte[].class))).thenReturn(new ResponseEntity<>(c1, OK));
+        when(mockRestTemplate.exchange(eq(new URI(uri2)), any(HttpMethod.class), any(HttpEntity.class), eq(byte[].class))).thenReturn(new ResponseEntity<>(c2, OK));
+        when(mockRestTemplate.exchange(eq(new URI(uri3)), any(HttpMethod.class), any(HttpEntity.class), eq(byte[].class))).thenReturn(new ResponseEntity<>(c3, OK));
         for (String uri : Arrays.asList(uri1, uri1, uri2, uri2, uri3, uri3)) {
             cache.getUrlContent(uri, mockRestTemplate);
         }
         for (String uri : Arrays.asList(uri1, uri2, uri3)) {
-            verify(mockRestTemplate, times(1)).getForObject(eq(new URI(uri)), same(byte[].class));
+            verify(mockRestTemplate, times(1)).exchange(eq(new URI(uri)), eq(HttpMethod.GET), any(HttpEntity.class), same(byte[].class));
         }
         assertEquals(2, cache.size());
     }
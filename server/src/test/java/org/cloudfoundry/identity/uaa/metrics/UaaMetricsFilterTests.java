@@ -204,6 +204,19 @@ class UaaMetricsFilterTests {
         assertEquals(2, metricSummary.getTotals().getCount());
     }
 
+    @Test
+    void snapshot() throws Exception {
+        performTwoSimpleRequests();
+        MetricsSnapshot snapshot = MetricsSnapshot.from(filter.getSnapshot());
+        assertEquals(0, snapshot.getInflightCount());
+        for (String group : Arrays.asList(filter.getUriGroup(request).getGroup(), MetricsUtil.GLOBAL_GROUP)) {
+            MetricsQueue queue = snapshot.getMetrics(group);
+            assertEquals(2, queue.getTotals().getCount(), "Group:" + group);
+            assertEquals(1, queue.getDetailed().get(StatusCodeGroup.SUCCESS).getCount(), "Group:" + group);
+            assertEquals(1, queue.getDetailed().get(StatusCodeGroup.SERVER_ERROR).getLatency().getTotalCount(), "Group:" + group);
+        }
+    }
+
     @Test
     void url_groups() {
         request.setServerName("localhost:8080");
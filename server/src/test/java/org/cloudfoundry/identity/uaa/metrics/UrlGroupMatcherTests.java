@@ -0,0 +1,82 @@
+package org.cloudfoundry.identity.uaa.metrics;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.web.util.matcher.AntPathRequestMatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class UrlGroupMatcherTests {
+
+    private List<UrlGroup> groups;
+    private UrlGroupMatcher matcher;
+
+    @BeforeEach
+    void setup() throws Exception {
+        groups = new UaaMetricsFilter(true, false, null).getUrlGroups();
+        matcher = new UrlGroupMatcher(groups);
+    }
+
+    @Test
+    void matches_like_ant_path_request_matchers() {
+        List<String> paths = new ArrayList<>(Arrays.asList(
+                "/", "//", "//oauth/token", "/oauth", "/oauth/token", "/oauth/token/", "/oauth/tokens",
+                "/oauth/token/list/user", "/oauth/clients/abc/secret", "/oauth/clients/abc/meta/x",
+                "/oauth/clients/tx/secret", "/Groups", "/Groups/", "/Groups/123/members/456", "/groups",
+                "/error", "/error404", "/errors/x", "/login", "/login.do", "/login/callback/oidc",
+                "/saml/idp/initiate", "/saml/login", "/unknown/path", "/Users/abc", "/users", "relative/path",
+                "/.well-known/openid-configuration", "/vendor/font.css", "/resources/oss/images/x.png"
+        ));
+        for (UrlGroup group : groups) {
+            paths.add(group.getPattern().replace("/**", ""));
+            paths.add(group.getPattern().replace("**", "x").replace("*", "abc"));
+        }
+
+        for (String path : paths) {
+            MockHttpServletRequest request = new MockHttpServletRequest();
+            request.setServletPath(path);
+            assertSame(linearMatch(request), matcher.match(request), "Path:" + path);
+        }
+    }
+
+    @Test
+    void uses_servlet_path_and_path_info() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setServletPath("/oauth");
+        request.setPathInfo("/token");
+        assertEquals("/oauth-oidc", matcher.match(request).getGroup());
+    }
+
+    @Test
+    void no_match_returns_null() {
+        UrlGroup group = new UrlGroup().setPattern("/only/**").setGroup("/only").setCategory("test").setLimit(1);
+        UrlGroupMatcher matcher = new UrlGroupMatcher(Arrays.asList(group));
+        assertSame(group, matcher.match("/only/this"));
+        assertNull(matcher.match("/other"));
+        assertNull(matcher.match("/"));
+    }
+
+    @Test
+    void preserves_configuration_order() {
+        UrlGroup wildcard = new UrlGroup().setPattern("/*/token").setGroup("/wildcard").setCategory("test").setLimit(1);
+        UrlGroup literal = new UrlGroup().setPattern("/oauth/**").setGroup("/literal").setCategory("test").setLimit(1);
+        assertSame(wildcard, new UrlGroupMatcher(Arrays.asList(wildcard, literal)).match("/oauth/token"));
+        assertSame(literal, new UrlGroupMatcher(Arrays.asList(literal, wildcard)).match("/oauth/token"));
+    }
+
+    private UrlGroup linearMatch(MockHttpServletRequest request) {
+        for (UrlGroup group : groups) {
+            if (new AntPathRequestMatcher(group.getPattern()).matches(request)) {
+                return group;
+            }
+        }
+        return null;
+    }
+}
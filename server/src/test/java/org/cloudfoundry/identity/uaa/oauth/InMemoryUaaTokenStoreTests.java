@@ -0,0 +1,154 @@
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.cloudfoundry.identity.uaa.annotations.WithDatabaseContext;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.exceptions.InvalidGrantException;
+import org.springframework.security.oauth2.common.util.OAuth2Utils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.TokenRequest;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@WithDatabaseContext
+class InMemoryUaaTokenStoreTests {
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private DataSource dataSource;
+
+    private InMemoryUaaTokenStore store;
+    private OAuth2Authentication authentication;
+    private TimeService timeService;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate.update("delete from oauth_code");
+        timeService = mock(TimeService.class);
+        when(timeService.getCurrentTimeMillis()).thenReturn(1_000_000L);
+        store = new InMemoryUaaTokenStore(dataSource, 10, timeService);
+
+        BaseClientDetails client = new BaseClientDetails("clientid", null, "openid", "authorization_code", "uaa.none");
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(OAuth2Utils.CLIENT_ID, client.getClientId());
+        parameters.put("scope", "openid");
+        TokenRequest tokenRequest = new TokenRequest(parameters, client.getClientId(), client.getScope(), "authorization_code");
+        UaaPrincipal principal = new UaaPrincipal("userid", "username", "username@test.org", OriginKeys.UAA, null, IdentityZone.getUaaZoneId());
+        UaaAuthentication userAuthentication = new UaaAuthentication(principal, Collections.singletonList(new SimpleGrantedAuthority("openid")), UaaAuthenticationDetails.UNKNOWN);
+        authentication = new OAuth2Authentication(tokenRequest.createOAuth2Request(client), userAuthentication);
+    }
+
+    @Test
+    void codesAreNotWrittenToDatabase() {
+        String code = store.createAuthorizationCode(authentication);
+
+        assertEquals(0, countCodes());
+        assertEquals(1, store.getInMemoryCodeCount());
+        OAuth2Authentication consumed = store.consumeAuthorizationCode(code);
+        assertEquals("clientid", consumed.getOAuth2Request().getClientId());
+        assertEquals("userid", ((UaaPrincipal) consumed.getUserAuthentication().getPrincipal()).getId());
+        assertEquals(0, store.getInMemoryCodeCount());
+    }
+
+    @Test
+    void codesAreConsumedOnce() {
+        String code = store.createAuthorizationCode(authentication);
+        store.consumeAuthorizationCode(code);
+
+        assertThrows(InvalidGrantException.class, () -> store.consumeAuthorizationCode(code));
+    }
+
+    @Test
+    void expiredCodesAreRejected() {
+        store = new InMemoryUaaTokenStore(dataSource, 1, 10, timeService);
+        String code = store.createAuthorizationCode(authentication);
+        when(timeService.getCurrentTimeMillis()).thenReturn(1_000_010L);
+
+        assertThrows(InvalidGrantException.class, () -> store.consumeAuthorizationCode(code));
+    }
+
+    @Test
+    void codesFromDatabaseAreConsumed() {
+        String code = new UaaTokenStore(dataSource).createAuthorizationCode(authentication);
+
+        assertEquals("clientid", store.consumeAuthorizationCode(code).getOAuth2Request().getClientId());
+        assertEquals(0, countCodes());
+    }
+
+    @Test
+    void fullStoreWritesToDatabase() {
+        store = new InMemoryUaaTokenStore(dataSource, 1, timeService);
+        String inMemory = store.createAuthorizationCode(authentication);
+        String inDatabase = store.createAuthorizationCode(authentication);
+
+        assertEquals(1, countCodes());
+        store.consumeAuthorizationCode(inDatabase);
+        store.consumeAuthorizationCode(inMemory);
+        assertEquals(0, countCodes());
+    }
+
+    @Test
+    void codesUpToTheLimitAreKeptUntilConsumed() {
+        List<String> issued = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            issued.add(store.createAuthorizationCode(authentication));
+        }
+
+        assertEquals(10, store.getInMemoryCodeCount());
+        assertEquals(0, countCodes());
+        for (String code : issued) {
+            assertEquals("clientid", store.consumeAuthorizationCode(code).getOAuth2Request().getClientId());
+        }
+        assertEquals(0, store.getInMemoryCodeCount());
+        String code = store.createAuthorizationCode(authentication);
+        assertEquals(0, countCodes());
+        store.consumeAuthorizationCode(code);
+    }
+
+    @Test
+    void expiredCodesFreeTheirSlot() {
+        store = new InMemoryUaaTokenStore(dataSource, 1, 1, timeService);
+        store.createAuthorizationCode(authentication);
+        when(timeService.getCurrentTimeMillis()).thenReturn(1_000_010L);
+
+        store.createAuthorizationCode(authentication);
+        assertEquals(0, countCodes());
+        assertEquals(1, store.getInMemoryCodeCount());
+    }
+
+    @Test
+    void disabledStoreWritesToDatabase() {
+        store = new InMemoryUaaTokenStore(dataSource, 0, timeService);
+        String code = store.createAuthorizationCode(authentication);
+
+        assertEquals(1, countCodes());
+        store.consumeAuthorizationCode(code);
+        assertEquals(0, countCodes());
+    }
+
+    private int countCodes() {
+        return jdbcTemplate.queryForObject("select count(*) from oauth_code", Integer.class);
+    }
+}
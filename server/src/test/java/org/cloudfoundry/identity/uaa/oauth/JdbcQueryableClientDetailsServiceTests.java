@@ -128,6 +128,14 @@ class JdbcQueryableClientDetailsServiceTests {
         );
     }
 
+    @Test
+    void pagingWithCursorIsNotSupported() {
+        assertThrowsWithMessageThat(IllegalArgumentException.class,
+                () -> jdbcQueryableClientDetailsService.queryPage("client_id pr", "lastmodified", true, null, 10, "zoneOneId"),
+                is("Paging with a cursor is not supported for clients")
+        );
+    }
+
     private static void verifyScimEquality(
             final JdbcTemplate jdbcTemplate,
             final JdbcQueryableClientDetailsService jdbcQueryableClientDetailsService,
@@ -0,0 +1,151 @@
+package org.cloudfoundry.identity.uaa.oauth;
+
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.authentication.UaaAuthenticationDetails;
+import org.cloudfoundry.identity.uaa.authentication.UaaLoginHint;
+import org.cloudfoundry.identity.uaa.authentication.UaaPrincipal;
+import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.common.util.OAuth2Utils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.TokenRequest;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+import org.springframework.util.LinkedMultiValueMap;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class OAuth2AuthenticationCodecTests {
+
+    private UaaTokenStore jsonStore;
+    private UaaPrincipal principal;
+    private OAuth2Request request;
+
+    @BeforeEach
+    void setUp() {
+        jsonStore = new UaaTokenStore(mock(DataSource.class));
+        principal = new UaaPrincipal("userid", "username", "username@test.org", OriginKeys.UAA, "external-id", IdentityZone.getUaaZoneId());
+        BaseClientDetails client = new BaseClientDetails("clientid", "resource", "openid,profile", "authorization_code", "uaa.none", "http://localhost/callback");
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put(OAuth2Utils.CLIENT_ID, client.getClientId());
+        parameters.put(OAuth2Utils.STATE, "\u00e9tat");
+        TokenRequest tokenRequest = new TokenRequest(parameters, client.getClientId(), client.getScope(), "authorization_code");
+        request = tokenRequest.createOAuth2Request(client).createOAuth2Request(parameters);
+    }
+
+    @Test
+    void uaaAuthenticationRoundTrips() {
+        UaaAuthenticationDetails details = new UaaAuthenticationDetails(true, "clientid", "uaa", "session-id");
+        details.setLoginHint(new UaaLoginHint("ldap"));
+        UaaAuthentication userAuthentication = new UaaAuthentication(principal, null, Collections.singletonList(new SimpleGrantedAuthority("openid")),
+                new HashSet<>(Arrays.asList("group1", "group2")), Collections.emptyMap(), details, true, 1000L, -1);
+        LinkedMultiValueMap<String, String> userAttributes = new LinkedMultiValueMap<>();
+        userAttributes.put("cost_center", Arrays.asList("one", "two"));
+        userAuthentication.setUserAttributes(userAttributes);
+        userAuthentication.setAuthenticationMethods(new HashSet<>(Arrays.asList("pwd", "mfa")));
+        userAuthentication.setAuthContextClassRef(Collections.singleton("urn:oasis:names:tc:SAML:2.0:ac:classes:Password"));
+        userAuthentication.setLastLoginSuccessTime(500L);
+        OAuth2Authentication authentication = new OAuth2Authentication(request, userAuthentication);
+
+        OAuth2Authentication decoded = OAuth2AuthenticationCodec.decode(OAuth2AuthenticationCodec.encode(authentication));
+        OAuth2Authentication fromJson = jsonStore.deserializeOauth2Authentication(jsonStore.serializeOauth2Authentication(authentication));
+
+        assertEquals(fromJson.getOAuth2Request(), decoded.getOAuth2Request());
+        UaaAuthentication expected = (UaaAuthentication) fromJson.getUserAuthentication();
+        UaaAuthentication actual = (UaaAuthentication) decoded.getUserAuthentication();
+        assertEquals(expected, actual);
+        assertEquals("external-id", actual.getPrincipal().getExternalId());
+        assertEquals(expected.getExternalGroups(), actual.getExternalGroups());
+        assertEquals(expected.getUserAttributesAsMap(), actual.getUserAttributesAsMap());
+        assertEquals(expected.getAuthenticationMethods(), actual.getAuthenticationMethods());
+        assertEquals(expected.getAuthContextClassRef(), actual.getAuthContextClassRef());
+        assertEquals(expected.getLastLoginSuccessTime(), actual.getLastLoginSuccessTime());
+        assertEquals(expected.getAuthenticatedTime(), actual.getAuthenticatedTime());
+        assertEquals(expected.getExpiresAt(), actual.getExpiresAt());
+        assertEquals(expected.isAuthenticated(), actual.isAuthenticated());
+        assertEquals(expected.getDetails(), actual.getDetails());
+        assertEquals("ldap", ((UaaAuthenticationDetails) actual.getDetails()).getLoginHint().getOrigin());
+    }
+
+    @Test
+    void principalAuthenticationRoundTrips() {
+        UsernamePasswordAuthenticationToken userAuthentication = new UsernamePasswordAuthenticationToken(principal, null, Collections.singletonList(new SimpleGrantedAuthority("openid")));
+        OAuth2Authentication authentication = new OAuth2Authentication(request, userAuthentication);
+
+        OAuth2Authentication decoded = OAuth2AuthenticationCodec.decode(OAuth2AuthenticationCodec.encode(authentication));
+
+        assertEquals(principal, decoded.getUserAuthentication().getPrincipal());
+        assertEquals(new ArrayList<>(userAuthentication.getAuthorities()), new ArrayList<>(decoded.getUserAuthentication().getAuthorities()));
+    }
+
+    @Test
+    void clientAuthenticationRoundTrips() {
+        OAuth2Authentication authentication = new OAuth2Authentication(request, null);
+
+        OAuth2Authentication decoded = OAuth2AuthenticationCodec.decode(OAuth2AuthenticationCodec.encode(authentication));
+
+        assertTrue(decoded.isClientOnly());
+        assertNull(decoded.getUserAuthentication());
+        assertEquals(request, decoded.getOAuth2Request());
+    }
+
+    @Test
+    void encodingIsSmallerThanJson() {
+        UaaAuthentication userAuthentication = new UaaAuthentication(principal, Collections.singletonList(new SimpleGrantedAuthority("openid")), new UaaAuthenticationDetails(false, "clientid", "uaa", "session-id"));
+        OAuth2Authentication authentication = new OAuth2Authentication(request, userAuthentication);
+
+        byte[] encoded = OAuth2AuthenticationCodec.encode(authentication);
+        byte[] json = jsonStore.serializeOauth2Authentication(authentication);
+
+        assertTrue(encoded.length * 2 < json.length, encoded.length + " bytes encoded, " + json.length + " bytes as JSON");
+    }
+
+    @Test
+    void jsonIsNotEncoded() {
+        OAuth2Authentication authentication = new OAuth2Authentication(request, null);
+
+        assertFalse(OAuth2AuthenticationCodec.isEncoded(jsonStore.serializeOauth2Authentication(authentication)));
+        assertFalse(OAuth2AuthenticationCodec.isEncoded(new byte[0]));
+        assertFalse(OAuth2AuthenticationCodec.isEncoded(null));
+    }
+
+    @Test
+    void otherPrincipalsCannotBeEncoded() {
+        OAuth2Authentication authentication = new OAuth2Authentication(request, new UsernamePasswordAuthenticationToken("username", null));
+
+        assertFalse(OAuth2AuthenticationCodec.canEncode(authentication));
+        assertThrows(IllegalArgumentException.class, () -> OAuth2AuthenticationCodec.encode(authentication));
+    }
+
+    @Test
+    void unknownVersionIsRejected() {
+        byte[] encoded = OAuth2AuthenticationCodec.encode(new OAuth2Authentication(request, null));
+        encoded[1] = OAuth2AuthenticationCodec.VERSION + 1;
+
+        assertThrows(IllegalArgumentException.class, () -> OAuth2AuthenticationCodec.decode(encoded));
+    }
+
+    @Test
+    void truncatedEncodingIsRejected() {
+        byte[] encoded = OAuth2AuthenticationCodec.encode(new OAuth2Authentication(request, null));
+
+        assertThrows(IllegalArgumentException.class, () -> OAuth2AuthenticationCodec.decode(Arrays.copyOf(encoded, encoded.length / 2)));
+    }
+}
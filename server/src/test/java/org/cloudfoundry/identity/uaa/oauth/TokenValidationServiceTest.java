@@ -1,10 +1,14 @@
 package org.cloudfoundry.identity.uaa.oauth;
 
 import com.google.common.collect.Lists;
+import org.cloudfoundry.identity.uaa.oauth.token.RevocableToken;
 import org.cloudfoundry.identity.uaa.oauth.token.RevocableTokenProvisioning;
 import org.cloudfoundry.identity.uaa.user.UaaAuthority;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.user.UaaUserDatabase;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.util.TimeServiceImpl;
+import org.cloudfoundry.identity.uaa.util.TokenValidation;
 import org.cloudfoundry.identity.uaa.util.UaaTokenUtils;
 import org.cloudfoundry.identity.uaa.zone.MultitenantClientServices;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
@@ -13,6 +17,7 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.jwt.crypto.sign.RsaSigner;
@@ -26,6 +31,8 @@ import static org.cloudfoundry.identity.uaa.config.IdentityZoneConfigurationBoot
 import static org.cloudfoundry.identity.uaa.oauth.token.ClaimConstants.*;
 import static org.cloudfoundry.identity.uaa.util.UaaMapUtils.entry;
 import static org.cloudfoundry.identity.uaa.util.UaaMapUtils.map;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -150,6 +157,73 @@ public class TokenValidationServiceTest {
         tokenValidationService.validateToken(refreshToken, false);
     }
 
+    @Test
+    public void validatedAccessToken_isCachedUntilExpiry() {
+        TimeService timeService = mock(TimeService.class);
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000_000L);
+        tokenValidationService = cachingTokenValidationService(timeService);
+        content.put(EXP, 2000);
+        String accessToken = UaaTokenUtils.constructToken(header, content, signer);
+
+        TokenValidation first = tokenValidationService.validateToken(accessToken, true);
+        assertSame(first, tokenValidationService.validateToken(accessToken, true));
+
+        when(timeService.getCurrentTimeMillis()).thenReturn(2000_000L);
+        assertNotSame(first, tokenValidationService.validateToken(accessToken, true));
+    }
+
+    @Test
+    public void cachedAccessToken_isStillCheckedForRevocation() {
+        tokenValidationService = cachingTokenValidationService(new TimeServiceImpl());
+        content.put(EXP, Integer.MAX_VALUE);
+        content.put(REVOCABLE, true);
+        String accessToken = UaaTokenUtils.constructToken(header, content, signer);
+        when(revocableTokenProvisioning.retrieve("abcdefg", IdentityZoneHolder.get().getId())).thenReturn(new RevocableToken());
+        tokenValidationService.validateToken(accessToken, true);
+
+        when(revocableTokenProvisioning.retrieve("abcdefg", IdentityZoneHolder.get().getId())).thenThrow(new EmptyResultDataAccessException(1));
+        expectedException.expect(TokenRevokedException.class);
+
+        tokenValidationService.validateToken(accessToken, true);
+    }
+
+    @Test
+    public void cachedAccessToken_isVerifiedAgainWhenSigningKeyChanges() {
+        tokenValidationService = cachingTokenValidationService(new TimeServiceImpl());
+        content.put(EXP, Integer.MAX_VALUE);
+        String accessToken = UaaTokenUtils.constructToken(header, content, signer);
+        tokenValidationService.validateToken(accessToken, true);
+
+        IdentityZoneHolder.get().getConfig().getTokenPolicy().setKeys(Collections.singletonMap("key1", "other-key"));
+        expectedException.expect(InvalidTokenException.class);
+        expectedException.expectMessage("Could not verify token signature.");
+
+        tokenValidationService.validateToken(accessToken, true);
+    }
+
+    @Test
+    public void refreshToken_isNotCached() {
+        tokenValidationService = cachingTokenValidationService(new TimeServiceImpl());
+        content.put(EXP, Integer.MAX_VALUE);
+        content.put(JTI, "abcdefg-r");
+        String refreshToken = UaaTokenUtils.constructToken(header, content, signer);
+
+        TokenValidation first = tokenValidationService.validateToken(refreshToken, false);
+        assertNotSame(first, tokenValidationService.validateToken(refreshToken, false));
+    }
+
+    private TokenValidationService cachingTokenValidationService(TimeService timeService) {
+        return new TokenValidationService(
+                revocableTokenProvisioning,
+                tokenEndpointBuilder,
+                userDatabase,
+                mockMultitenantClientServices,
+                new KeyInfoService("http://localhost:8080/uaa"),
+                timeService,
+                10
+        );
+    }
+
     private ArrayList<GrantedAuthority> buildGrantedAuthorities(String authority) {
         ArrayList<GrantedAuthority> grantedAuthorities = new ArrayList<>();
         grantedAuthorities.add(UaaAuthority.authority(authority));
@@ -187,6 +187,18 @@ class UaaTokenStoreTests {
         assertNotNull(authentication);
     }
 
+    @Test
+    void retrieveTokenWithCompactEncoding() {
+        String jsonCode = store.createAuthorizationCode(uaaAuthentication);
+        store.setCompactEncoding(true);
+        String code = store.createAuthorizationCode(uaaAuthentication);
+
+        byte[] data = jdbcTemplate.queryForObject("SELECT authentication FROM oauth_code WHERE code = ?", byte[].class, code);
+        assertTrue(OAuth2AuthenticationCodec.isEncoded(data));
+        assertEquals(principal, store.consumeAuthorizationCode(code).getUserAuthentication().getPrincipal());
+        assertEquals(principal, store.consumeAuthorizationCode(jsonCode).getUserAuthentication().getPrincipal());
+    }
+
     @Test
     void retrieveExpiredToken() {
         String code = store.createAuthorizationCode(clientAuthentication);
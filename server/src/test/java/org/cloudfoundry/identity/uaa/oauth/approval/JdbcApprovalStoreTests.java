@@ -5,6 +5,7 @@ import org.cloudfoundry.identity.uaa.approval.Approval;
 import org.cloudfoundry.identity.uaa.approval.Approval.ApprovalStatus;
 import org.cloudfoundry.identity.uaa.approval.JdbcApprovalStore;
 import org.cloudfoundry.identity.uaa.audit.event.ApprovalModifiedEvent;
+import org.cloudfoundry.identity.uaa.db.Vendor;
 import org.cloudfoundry.identity.uaa.test.MockAuthentication;
 import org.cloudfoundry.identity.uaa.test.TestApplicationEventPublisher;
 import org.cloudfoundry.identity.uaa.test.UaaTestAccounts;
@@ -13,13 +14,19 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 
 import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.cloudfoundry.identity.uaa.approval.Approval.ApprovalStatus.APPROVED;
@@ -42,6 +49,9 @@ class JdbcApprovalStoreTests {
     @Autowired
     private JdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private Environment environment;
+
     private String defaultZoneId;
     private String otherZoneId;
     private RandomValueStringGenerator generator;
@@ -129,6 +139,28 @@ class JdbcApprovalStoreTests {
         assertEquals(0, countClientApprovals(jdbcTemplate, "c1", otherZoneId));
     }
 
+    @Test
+    void getApprovalsForUsers() {
+        Map<String, List<Approval>> approvals = jdbcApprovalStore.getApprovalsForUsers(Arrays.asList("u1", "u2", "u3"), defaultZoneId);
+
+        assertEquals(2, approvals.size());
+        assertEquals(2, approvals.get("u1").size());
+        assertEquals(1, approvals.get("u2").size());
+        assertEquals("openid", approvals.get("u2").get(0).getScope());
+        assertTrue(jdbcApprovalStore.getApprovalsForUsers(Arrays.asList("u1", "u2"), otherZoneId).isEmpty());
+        assertTrue(jdbcApprovalStore.getApprovalsForUsers(Collections.emptyList(), defaultZoneId).isEmpty());
+    }
+
+    @Test
+    void getApprovalsForUsersInChunks() {
+        jdbcApprovalStore.setMaxSqlParameters(2);
+        Map<String, List<Approval>> approvals = jdbcApprovalStore.getApprovalsForUsers(Arrays.asList("u1", "u2", "u3"), defaultZoneId);
+
+        assertEquals(2, approvals.size());
+        assertEquals(2, approvals.get("u1").size());
+        assertEquals(1, approvals.get("u2").size());
+    }
+
     @Test
     void deleteUser() {
         assertEquals(2, countUserApprovals(jdbcTemplate, "u1", defaultZoneId));
@@ -346,6 +378,73 @@ class JdbcApprovalStoreTests {
         assertEquals("{\"scope\":\"cloud_controller.read\",\"status\":\"DENIED\"}", addEvent.getAuditEvent().getData());
     }
 
+    @Test
+    void batchedUpsertInsertsAndUpdatesApprovals() {
+        jdbcApprovalStore.setDatabaseType(activeVendor());
+        eventPublisher.clearEvents();
+
+        jdbcApprovalStore.addApprovals(Arrays.asList(
+                new Approval().setUserId("u1").setClientId("c1").setScope("uaa.user").setExpiresAt(Approval.timeFromNow(6000)).setStatus(DENIED),
+                new Approval().setUserId("u1").setClientId("c1").setScope("openid").setExpiresAt(Approval.timeFromNow(6000)).setStatus(APPROVED)
+        ), defaultZoneId);
+
+        Map<String, ApprovalStatus> statuses = jdbcApprovalStore.getApprovals("u1", "c1", defaultZoneId)
+                .stream()
+                .collect(Collectors.toMap(Approval::getScope, Approval::getStatus));
+        assertEquals(2, statuses.size());
+        assertEquals(DENIED, statuses.get("uaa.user"));
+        assertEquals(APPROVED, statuses.get("openid"));
+        assertEquals(2, eventPublisher.getEventCount());
+    }
+
+    @Test
+    void batchedUpsertDoesNotModifyApprovalOfOtherZone() {
+        jdbcApprovalStore.setDatabaseType(activeVendor());
+
+        assertThrows(DataIntegrityViolationException.class, () -> addApproval(jdbcApprovalStore, "u1", "c1", "uaa.user", 6000, DENIED, otherZoneId));
+
+        assertEquals(APPROVED, jdbcApprovalStore.getApprovals("u1", "c1", defaultZoneId).get(0).getStatus());
+        assertEquals(0, countZoneApprovals(jdbcTemplate, otherZoneId));
+    }
+
+    @Test
+    void mysqlDoesNotModifyApprovalOfOtherZone() {
+        jdbcApprovalStore.setDatabaseType(Vendor.mysql);
+
+        assertThrows(DataIntegrityViolationException.class, () -> jdbcApprovalStore.addApprovals(Collections.singletonList(
+                new Approval().setUserId("u1").setClientId("c1").setScope("uaa.user").setExpiresAt(Approval.timeFromNow(6000)).setStatus(DENIED)
+        ), otherZoneId));
+
+        assertEquals(APPROVED, jdbcApprovalStore.getApprovals("u1", "c1", defaultZoneId).get(0).getStatus());
+        assertEquals(0, countZoneApprovals(jdbcTemplate, otherZoneId));
+    }
+
+    @Test
+    void cachedApprovalsAreEvictedWhenModified() {
+        jdbcApprovalStore.setCacheExpirationSeconds(60);
+        assertEquals(1, jdbcApprovalStore.getApprovals("u1", "c1", defaultZoneId).size());
+
+        jdbcTemplate.update("delete from authz_approvals where user_id = 'u1' and client_id = 'c1'");
+        assertEquals(1, jdbcApprovalStore.getApprovals("u1", "c1", defaultZoneId).size());
+
+        addApproval(jdbcApprovalStore, "u1", "c1", "openid", 6000, APPROVED, defaultZoneId);
+        List<Approval> approvals = jdbcApprovalStore.getApprovals("u1", "c1", defaultZoneId);
+        assertEquals(1, approvals.size());
+        assertEquals("openid", approvals.get(0).getScope());
+
+        String currentZoneId = IdentityZoneHolder.get().getId();
+        addApproval(jdbcApprovalStore, "u3", "c1", "openid", 6000, APPROVED, currentZoneId);
+        assertEquals(1, jdbcApprovalStore.getApprovals("u3", "c1", currentZoneId).size());
+        jdbcTemplate.update("delete from authz_approvals where user_id = 'u3'");
+        Approval modified = new Approval().setUserId("u3").setClientId("c1").setScope("openid");
+        jdbcApprovalStore.onApplicationEvent(new ApprovalModifiedEvent(modified, new MockAuthentication()));
+        assertEquals(0, jdbcApprovalStore.getApprovals("u3", "c1", currentZoneId).size());
+
+        assertEquals(1, jdbcApprovalStore.getApprovals("u2", "c1", defaultZoneId).size());
+        jdbcApprovalStore.revokeApprovalsForUser("u2", defaultZoneId);
+        assertEquals(0, jdbcApprovalStore.getApprovals("u2", "c1", defaultZoneId).size());
+    }
+
     private static void addApproval(
             final JdbcApprovalStore jdbcApprovalStore,
             final String userId,
@@ -366,6 +465,13 @@ class JdbcApprovalStoreTests {
         jdbcApprovalStore.addApproval(newApproval, zoneId);
     }
 
+    private Vendor activeVendor() {
+        return Arrays.stream(Vendor.values())
+                .filter(vendor -> environment.acceptsProfiles(vendor.name()))
+                .findFirst()
+                .orElse(Vendor.hsqldb);
+    }
+
     private static int countClientApprovals(
             final JdbcTemplate jdbcTemplate,
             final String clientId,
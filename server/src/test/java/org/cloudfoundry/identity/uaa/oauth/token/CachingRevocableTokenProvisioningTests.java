@@ -0,0 +1,169 @@
+package org.cloudfoundry.identity.uaa.oauth.token;
+
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
+import org.cloudfoundry.identity.uaa.user.UaaUser;
+import org.cloudfoundry.identity.uaa.user.UaaUserPrototype;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.core.Authentication;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CachingRevocableTokenProvisioningTests {
+
+    private JdbcRevocableTokenProvisioning delegate;
+    private JdbcTemplate jdbcTemplate;
+    private TimeService timeService;
+    private CachingRevocableTokenProvisioning provisioning;
+    private RevocableToken token;
+
+    @BeforeEach
+    void setUp() {
+        delegate = mock(JdbcRevocableTokenProvisioning.class);
+        jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.queryForObject(anyString(), eq(Long.class))).thenReturn(0L);
+        timeService = mock(TimeService.class);
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L);
+        provisioning = new CachingRevocableTokenProvisioning(delegate, jdbcTemplate, timeService, 10, 5, 1000);
+
+        token = new RevocableToken().setTokenId("token-id").setUserId("user-id").setClientId("client-id").setExpiresAt(60_000L);
+        when(delegate.retrieve("token-id", "zone-id")).thenReturn(token);
+    }
+
+    @Test
+    void retrieveIsCachedUntilTokenExpires() {
+        assertSame(token, provisioning.retrieve("token-id", "zone-id"));
+        assertSame(token, provisioning.retrieve("token-id", "zone-id"));
+        verify(delegate, times(1)).retrieve("token-id", "zone-id");
+
+        when(timeService.getCurrentTimeMillis()).thenReturn(60_001L);
+        provisioning.retrieve("token-id", "zone-id");
+        verify(delegate, times(2)).retrieve("token-id", "zone-id");
+    }
+
+    @Test
+    void tokensAreCachedPerZone() {
+        when(delegate.retrieve("token-id", "other-zone")).thenThrow(new EmptyResultDataAccessException(1));
+        provisioning.retrieve("token-id", "zone-id");
+
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieve("token-id", "other-zone"));
+    }
+
+    @Test
+    void unknownTokenIsCachedForShorterPeriod() {
+        when(delegate.retrieve("unknown", "zone-id")).thenThrow(new EmptyResultDataAccessException(1));
+
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieve("unknown", "zone-id"));
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieve("unknown", "zone-id"));
+        verify(delegate, times(1)).retrieve("unknown", "zone-id");
+
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L + 6_000L);
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieve("unknown", "zone-id"));
+        verify(delegate, times(2)).retrieve("unknown", "zone-id");
+    }
+
+    @Test
+    void createReplacesUnknownEntry() {
+        when(delegate.retrieve("new-token", "zone-id")).thenThrow(new EmptyResultDataAccessException(1));
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieve("new-token", "zone-id"));
+        RevocableToken created = new RevocableToken().setTokenId("new-token").setExpiresAt(60_000L);
+        when(delegate.create(created, "zone-id")).thenReturn(created);
+
+        provisioning.create(created, "zone-id");
+
+        assertSame(created, provisioning.retrieve("new-token", "zone-id"));
+    }
+
+    @Test
+    void deleteEvictsTokenAndIncrementsEpoch() {
+        provisioning.retrieve("token-id", "zone-id");
+        provisioning.delete("token-id", -1, "zone-id");
+        when(delegate.retrieve("token-id", "zone-id")).thenThrow(new EmptyResultDataAccessException(1));
+
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieve("token-id", "zone-id"));
+        verify(jdbcTemplate).update("UPDATE revocation_epoch SET epoch=epoch+1 WHERE id=1");
+    }
+
+    @Test
+    void deleteByUserEvictsTokens() {
+        provisioning.retrieve("token-id", "zone-id");
+        provisioning.deleteByUser("user-id", "zone-id");
+        provisioning.retrieve("token-id", "zone-id");
+
+        verify(delegate).deleteByUser("user-id", "zone-id");
+        verify(delegate, times(2)).retrieve("token-id", "zone-id");
+        verify(jdbcTemplate, times(1)).update("UPDATE revocation_epoch SET epoch=epoch+1 WHERE id=1");
+    }
+
+    @Test
+    void deletionEventsOnlyEvictTokens() {
+        provisioning.retrieve("token-id", "zone-id");
+        UaaUser user = new UaaUser(new UaaUserPrototype().withId("user-id").withUsername("user").withEmail("user@example.com").withZoneId("zone-id"));
+        provisioning.onApplicationEvent(new EntityDeletedEvent<>(user, mock(Authentication.class), "zone-id"));
+        provisioning.retrieve("token-id", "zone-id");
+
+        verify(delegate, never()).deleteByUser(anyString(), anyString());
+        verify(delegate, times(2)).retrieve("token-id", "zone-id");
+        verify(jdbcTemplate, times(1)).update("UPDATE revocation_epoch SET epoch=epoch+1 WHERE id=1");
+    }
+
+    @Test
+    void deleteByClientEvictsTokens() {
+        provisioning.retrieve("token-id", "zone-id");
+        provisioning.deleteByClient("client-id", "zone-id");
+        provisioning.retrieve("token-id", "zone-id");
+
+        verify(delegate, times(2)).retrieve("token-id", "zone-id");
+    }
+
+    @Test
+    void deleteRefreshTokensEvictsOnlyWhenTokensWereDeleted() {
+        provisioning.retrieve("token-id", "zone-id");
+        when(delegate.deleteRefreshTokensForClientAndUserId("client-id", "user-id", "zone-id")).thenReturn(0, 1);
+
+        provisioning.deleteRefreshTokensForClientAndUserId("client-id", "user-id", "zone-id");
+        provisioning.retrieve("token-id", "zone-id");
+        verify(delegate, times(1)).retrieve("token-id", "zone-id");
+
+        provisioning.deleteRefreshTokensForClientAndUserId("client-id", "user-id", "zone-id");
+        provisioning.retrieve("token-id", "zone-id");
+        verify(delegate, times(2)).retrieve("token-id", "zone-id");
+    }
+
+    @Test
+    void changedEpochEvictsTokens() {
+        provisioning.retrieve("token-id", "zone-id");
+        when(jdbcTemplate.queryForObject(anyString(), eq(Long.class))).thenReturn(1L);
+
+        provisioning.retrieve("token-id", "zone-id");
+        verify(delegate, times(1)).retrieve("token-id", "zone-id");
+
+        when(timeService.getCurrentTimeMillis()).thenReturn(2000L);
+        provisioning.retrieve("token-id", "zone-id");
+        verify(delegate, times(2)).retrieve("token-id", "zone-id");
+        verify(jdbcTemplate, times(2)).queryForObject(anyString(), eq(Long.class));
+    }
+
+    @Test
+    void disabledCacheDelegates() {
+        provisioning = new CachingRevocableTokenProvisioning(delegate, jdbcTemplate, timeService, 0, 5, 1000);
+        provisioning.retrieve("token-id", "zone-id");
+        provisioning.retrieve("token-id", "zone-id");
+        provisioning.delete("token-id", -1, "zone-id");
+
+        verify(delegate, times(2)).retrieve("token-id", "zone-id");
+        verify(jdbcTemplate, never()).queryForObject(anyString(), eq(Long.class));
+        verify(jdbcTemplate, never()).update(anyString());
+    }
+}
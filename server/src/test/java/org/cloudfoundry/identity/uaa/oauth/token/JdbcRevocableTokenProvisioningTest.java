@@ -4,6 +4,7 @@ import org.cloudfoundry.identity.uaa.annotations.WithDatabaseContext;
 import org.cloudfoundry.identity.uaa.audit.event.AbstractUaaEvent;
 import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
 import org.cloudfoundry.identity.uaa.authentication.UaaAuthentication;
+import org.cloudfoundry.identity.uaa.resources.jdbc.ExpiredRowSweeper;
 import org.cloudfoundry.identity.uaa.resources.jdbc.LimitSqlAdapter;
 import org.cloudfoundry.identity.uaa.user.UaaUser;
 import org.cloudfoundry.identity.uaa.user.UaaUserPrototype;
@@ -22,6 +23,7 @@ import org.junit.jupiter.params.provider.ArgumentsSource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.TransientDataAccessResourceException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.security.oauth2.provider.client.BaseClientDetails;
@@ -294,6 +296,174 @@ class JdbcRevocableTokenProvisioningTest {
                 () -> jdbcRevocableTokenProvisioning.retrieve(revocableToken.getTokenId(), IdentityZoneHolder.get().getId()));
     }
 
+    @Test
+    void writeBehindReturnsTokenWithoutReadingItBack() {
+        jdbcRevocableTokenProvisioning.setWriteBehind(true);
+
+        RevocableToken createdToken = jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+
+        assertSame(revocableToken, createdToken);
+        assertEquals(0, getCountOfTokens(jdbcTemplate));
+        assertSame(revocableToken, jdbcRevocableTokenProvisioning.retrieve(revocableToken.getTokenId(), IdentityZoneHolder.get().getId()));
+        verify(jdbcRevocableTokenProvisioning, never()).retrieve(anyString(), eq(false), anyString());
+    }
+
+    @Test
+    void writeBehindInsertsInBatches() {
+        jdbcRevocableTokenProvisioning.setWriteBehind(true);
+        jdbcRevocableTokenProvisioning.setBatchSize(5);
+        for (int i = 0; i < 4; i++) {
+            jdbcRevocableTokenProvisioning.create(createRevocableToken(generator.generate(), TEST_USER_ID, TEST_CLIENT_ID, random), IdentityZoneHolder.get().getId());
+        }
+        assertEquals(0, getCountOfTokens(jdbcTemplate));
+
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+
+        assertEquals(5, getCountOfTokens(jdbcTemplate));
+        assertEquals(0, jdbcRevocableTokenProvisioning.getPendingInsertCount());
+        assertTokensAreEqual(revocableToken, jdbcRevocableTokenProvisioning.retrieve(revocableToken.getTokenId(), IdentityZoneHolder.get().getId()));
+    }
+
+    @Test
+    void writeBehindFlushesBeforeOtherOperations() {
+        jdbcRevocableTokenProvisioning.setWriteBehind(true);
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+
+        assertEquals(1, jdbcRevocableTokenProvisioning.getUserTokens(TEST_USER_ID, IdentityZoneHolder.get().getId()).size());
+        assertEquals(1, getCountOfTokens(jdbcTemplate));
+
+        jdbcRevocableTokenProvisioning.create(createRevocableToken(generator.generate(), TEST_USER_ID, TEST_CLIENT_ID, random), IdentityZoneHolder.get().getId());
+        assertEquals(2, jdbcRevocableTokenProvisioning.deleteByUser(TEST_USER_ID, IdentityZoneHolder.get().getId()));
+    }
+
+    @Test
+    void writeBehindRejectsPendingDuplicate() {
+        jdbcRevocableTokenProvisioning.setWriteBehind(true);
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+        assertThrows(DuplicateKeyException.class,
+                () -> jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId()));
+    }
+
+    @Test
+    void writeBehindKeepsValidRowsWhenBatchFails() {
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+        jdbcRevocableTokenProvisioning.setWriteBehind(true);
+        RevocableToken other = createRevocableToken(generator.generate(), TEST_USER_ID, TEST_CLIENT_ID, random);
+        jdbcRevocableTokenProvisioning.create(other, IdentityZoneHolder.get().getId());
+        jdbcRevocableTokenProvisioning.create(createRevocableToken(revocableToken.getTokenId(), TEST_USER_ID, TEST_CLIENT_ID, random), IdentityZoneHolder.get().getId());
+
+        jdbcRevocableTokenProvisioning.flush();
+
+        assertEquals(2, getCountOfTokens(jdbcTemplate));
+        assertEquals(1, getCountOfTokensById(jdbcTemplate, other.getTokenId()));
+        assertEquals(0, jdbcRevocableTokenProvisioning.getPendingInsertCount());
+        assertEquals(1, jdbcRevocableTokenProvisioning.getDroppedInsertCount());
+    }
+
+    @Test
+    void writeBehindRetriesFailedInserts() {
+        JdbcTemplate template = spy(jdbcTemplate);
+        TransientDataAccessResourceException unavailable = new TransientDataAccessResourceException("unavailable");
+        doThrow(unavailable).doCallRealMethod().when(template).batchUpdate(anyString(), anyList());
+        doThrow(unavailable).doCallRealMethod().when(template).update(startsWith("INSERT"), (Object[]) any());
+        jdbcRevocableTokenProvisioning = new JdbcRevocableTokenProvisioning(template, limitSqlAdapter, new TimeServiceImpl());
+        jdbcRevocableTokenProvisioning.setWriteBehind(true);
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+
+        jdbcRevocableTokenProvisioning.flush();
+        assertEquals(0, getCountOfTokens(jdbcTemplate));
+        assertEquals(1, jdbcRevocableTokenProvisioning.getPendingInsertCount());
+
+        jdbcRevocableTokenProvisioning.flush();
+        assertEquals(1, getCountOfTokens(jdbcTemplate));
+        assertEquals(0, jdbcRevocableTokenProvisioning.getPendingInsertCount());
+        assertEquals(0, jdbcRevocableTokenProvisioning.getDroppedInsertCount());
+    }
+
+    @Test
+    void writeBehindDropsTokensAfterMaxInsertAttempts() {
+        JdbcTemplate template = spy(jdbcTemplate);
+        TransientDataAccessResourceException unavailable = new TransientDataAccessResourceException("unavailable");
+        doThrow(unavailable).when(template).batchUpdate(anyString(), anyList());
+        doThrow(unavailable).when(template).update(startsWith("INSERT"), (Object[]) any());
+        jdbcRevocableTokenProvisioning = new JdbcRevocableTokenProvisioning(template, limitSqlAdapter, new TimeServiceImpl());
+        jdbcRevocableTokenProvisioning.setWriteBehind(true);
+        jdbcRevocableTokenProvisioning.setMaxInsertAttempts(2);
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+
+        jdbcRevocableTokenProvisioning.flush();
+        assertEquals(1, jdbcRevocableTokenProvisioning.getPendingInsertCount());
+        assertEquals(0, jdbcRevocableTokenProvisioning.getDroppedInsertCount());
+
+        jdbcRevocableTokenProvisioning.flush();
+        assertEquals(0, jdbcRevocableTokenProvisioning.getPendingInsertCount());
+        assertEquals(1, jdbcRevocableTokenProvisioning.getDroppedInsertCount());
+    }
+
+    @Test
+    void writeBehindDeletesRemoveTokensWaitingForRetry() {
+        JdbcTemplate template = spy(jdbcTemplate);
+        TransientDataAccessResourceException unavailable = new TransientDataAccessResourceException("unavailable");
+        doThrow(unavailable).doCallRealMethod().when(template).batchUpdate(anyString(), anyList());
+        doThrow(unavailable, unavailable).doCallRealMethod().when(template).update(startsWith("INSERT"), (Object[]) any());
+        jdbcRevocableTokenProvisioning = new JdbcRevocableTokenProvisioning(template, limitSqlAdapter, new TimeServiceImpl());
+        jdbcRevocableTokenProvisioning.setWriteBehind(true);
+        RevocableToken other = createRevocableToken(generator.generate(), "other-user", TEST_CLIENT_ID, random);
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+        jdbcRevocableTokenProvisioning.create(other, IdentityZoneHolder.get().getId());
+
+        jdbcRevocableTokenProvisioning.flush();
+        assertEquals(2, jdbcRevocableTokenProvisioning.getPendingInsertCount());
+
+        assertEquals(1, jdbcRevocableTokenProvisioning.deleteByUser(TEST_USER_ID, IdentityZoneHolder.get().getId()));
+        assertSame(other, jdbcRevocableTokenProvisioning.delete(other.getTokenId(), 0, IdentityZoneHolder.get().getId()));
+        assertEquals(0, jdbcRevocableTokenProvisioning.getPendingInsertCount());
+
+        jdbcRevocableTokenProvisioning.flush();
+        assertEquals(0, getCountOfTokens(jdbcTemplate));
+    }
+
+    @Test
+    void writeBehindInsertsDirectlyWhenQueueIsFull() {
+        jdbcRevocableTokenProvisioning.setWriteBehind(true);
+        jdbcRevocableTokenProvisioning.setMaxPendingInserts(1);
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+        RevocableToken other = createRevocableToken(generator.generate(), TEST_USER_ID, TEST_CLIENT_ID, random);
+        jdbcRevocableTokenProvisioning.create(other, IdentityZoneHolder.get().getId());
+
+        assertEquals(1, jdbcRevocableTokenProvisioning.getPendingInsertCount());
+        assertEquals(1, getCountOfTokensById(jdbcTemplate, other.getTokenId()));
+        assertEquals(1, jdbcRevocableTokenProvisioning.getDirectInsertCount());
+    }
+
+    @Test
+    void writeBehindFlushesOnDestroy() throws Exception {
+        jdbcRevocableTokenProvisioning.setWriteBehind(true);
+        jdbcRevocableTokenProvisioning.setFlushInterval(60_000);
+        jdbcRevocableTokenProvisioning.afterPropertiesSet();
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+        assertEquals(0, getCountOfTokens(jdbcTemplate));
+
+        jdbcRevocableTokenProvisioning.destroy();
+
+        assertEquals(1, getCountOfTokens(jdbcTemplate));
+    }
+
+    @Test
+    void expiredRowSweeperReplacesInlineDeletion() {
+        jdbcRevocableTokenProvisioning.setExpiredRowSweeper(new ExpiredRowSweeper(jdbcTemplate, limitSqlAdapter, new TimeServiceImpl()));
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+        revocableToken.setTokenId(generator.generate());
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+        jdbcTemplate.update("UPDATE revocable_tokens SET expires_at=?", System.currentTimeMillis() - 10000);
+        jdbcRevocableTokenProvisioning.resetLastExpiredCheck();
+
+        revocableToken.setTokenId(generator.generate());
+        jdbcRevocableTokenProvisioning.create(revocableToken, IdentityZoneHolder.get().getId());
+
+        assertEquals(3, getCountOfTokens(jdbcTemplate));
+    }
+
     @Test
     void deleteByOrigin() {
         //no op - doesn't affect tokens
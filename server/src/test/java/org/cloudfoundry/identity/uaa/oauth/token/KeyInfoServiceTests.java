@@ -9,6 +9,7 @@ import org.cloudfoundry.identity.uaa.zone.IdentityZoneConfiguration;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
 import org.cloudfoundry.identity.uaa.zone.IdentityZoneProvisioning;
 import org.cloudfoundry.identity.uaa.zone.TokenPolicy;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -22,6 +23,8 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -140,6 +143,52 @@ class KeyInfoServiceTests {
         assertEquals(keyInfoService.getActiveKey().verifierKey(), "testLegacyKey");
     }
 
+    @Test
+    void testKeysAreCachedForUnchangedZone() {
+        String keyId = generator.generate();
+        configureDefaultZoneKeys(Collections.singletonMap(keyId, SIGNING_KEY));
+
+        KeyInfo key = keyInfoService.getKey(keyId);
+
+        assertSame(key, keyInfoService.getKey(keyId));
+        assertSame(key, keyInfoService.getActiveKey());
+    }
+
+    @Test
+    void testKeysAreRebuiltWhenZoneKeysChange() {
+        String keyId = generator.generate();
+        configureDefaultZoneKeys(Collections.singletonMap(keyId, SIGNING_KEY));
+        KeyInfo key = keyInfoService.getKey(keyId);
+
+        IdentityZoneHolder.get().getConfig().getTokenPolicy().setKeys(Collections.singletonMap(keyId, "testkey"));
+
+        KeyInfo rebuilt = keyInfoService.getKey(keyId);
+        assertNotSame(key, rebuilt);
+        assertEquals("testkey", rebuilt.verifierKey());
+    }
+
+    @Test
+    void testKeysAreRebuiltWhenZoneVersionChanges() {
+        String keyId = generator.generate();
+        configureDefaultZoneKeys(Collections.singletonMap(keyId, SIGNING_KEY));
+        KeyInfo key = keyInfoService.getKey(keyId);
+
+        IdentityZoneHolder.get().setVersion(IdentityZoneHolder.get().getVersion() + 1);
+
+        assertNotSame(key, keyInfoService.getKey(keyId));
+    }
+
+    @Test
+    void testZoneModifiedEventEvictsCachedKeys() {
+        String keyId = generator.generate();
+        configureDefaultZoneKeys(Collections.singletonMap(keyId, SIGNING_KEY));
+        KeyInfo key = keyInfoService.getKey(keyId);
+
+        keyInfoService.onApplicationEvent(new IdentityZoneModifiedEvent(IdentityZoneHolder.get(), null, null, IdentityZone.getUaaZoneId()));
+
+        assertNotSame(key, keyInfoService.getKey(keyId));
+    }
+
     private void configureDefaultZoneKeys(Map<String,String> keys) {
         IdentityZoneHolder.clear();
         IdentityZoneProvisioning provisioning = mock(IdentityZoneProvisioning.class);
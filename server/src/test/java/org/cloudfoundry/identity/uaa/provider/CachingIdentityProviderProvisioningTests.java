@@ -0,0 +1,139 @@
+package org.cloudfoundry.identity.uaa.provider;
+
+import org.cloudfoundry.identity.uaa.annotations.WithDatabaseContext;
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityProviderModifiedEvent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@WithDatabaseContext
+class CachingIdentityProviderProvisioningTests {
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private TimeService timeService;
+    private CachingIdentityProviderProvisioning provisioning;
+    private String zoneId;
+    private IdentityProvider provider;
+
+    @BeforeEach
+    void setUp() {
+        timeService = mock(TimeService.class);
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L);
+        provisioning = new CachingIdentityProviderProvisioning(jdbcTemplate, timeService, 30);
+        zoneId = "zone-" + new RandomValueStringGenerator().generate();
+        IdentityProvider<AbstractIdentityProviderDefinition> idp = MultitenancyFixture.identityProvider("origin", zoneId);
+        idp.setConfig(new AbstractIdentityProviderDefinition().setEmailDomain(Collections.singletonList("example.com")));
+        provider = provisioning.create(idp, zoneId);
+    }
+
+    @Test
+    void providersAreCachedPerZone() {
+        assertEquals(1, provisioning.retrieveActive(zoneId).size());
+        setName(provider.getId(), "changed-outside");
+
+        assertEquals(provider.getName(), provisioning.retrieveByOrigin("origin", zoneId).getName());
+        assertEquals(provider.getName(), provisioning.retrieve(provider.getId(), zoneId).getName());
+        assertEquals(provider.getName(), provisioning.retrieveAll(false, zoneId).get(0).getName());
+    }
+
+    @Test
+    void cachedProvidersAreCopies() {
+        IdentityProvider first = provisioning.retrieveByOrigin("origin", zoneId);
+        first.setName("modified");
+        first.getConfig().setEmailDomain(null);
+
+        IdentityProvider second = provisioning.retrieveByOrigin("origin", zoneId);
+        assertNotSame(first, second);
+        assertEquals(provider.getName(), second.getName());
+        assertEquals(Collections.singletonList("example.com"), second.getConfig().getEmailDomain());
+    }
+
+    @Test
+    void entriesExpire() {
+        provisioning.retrieveActive(zoneId);
+        setName(provider.getId(), "changed-outside");
+
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L + 31_000L);
+        assertEquals("changed-outside", provisioning.retrieveByOrigin("origin", zoneId).getName());
+    }
+
+    @Test
+    void updateEvictsZone() {
+        provisioning.retrieveActive(zoneId);
+        provider.setActive(false);
+
+        provisioning.update(provider, zoneId);
+
+        assertTrue(provisioning.retrieveActive(zoneId).isEmpty());
+        assertFalse(provisioning.retrieveAll(false, zoneId).get(0).isActive());
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieveByOrigin("origin", zoneId));
+    }
+
+    @Test
+    void createEvictsZone() {
+        provisioning.retrieveActive(zoneId);
+        provisioning.create(MultitenancyFixture.identityProvider("other-origin", zoneId), zoneId);
+
+        List<IdentityProvider> providers = provisioning.retrieveActive(zoneId);
+        assertEquals(2, providers.size());
+    }
+
+    @Test
+    void providerModifiedEventEvictsZone() {
+        provisioning.retrieveActive(zoneId);
+        setName(provider.getId(), "changed-outside");
+
+        provisioning.onApplicationEvent(IdentityProviderModifiedEvent.identityProviderModified(provider, zoneId));
+
+        assertEquals("changed-outside", provisioning.retrieveByOrigin("origin", zoneId).getName());
+    }
+
+    @Test
+    void providerDeletedEventEvictsZone() {
+        provisioning.retrieveActive(zoneId);
+
+        provisioning.onApplicationEvent(new EntityDeletedEvent<>(provider, null, zoneId));
+
+        assertTrue(provisioning.retrieveActive(zoneId).isEmpty());
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieve(provider.getId(), zoneId));
+    }
+
+    @Test
+    void unknownOriginFallsBackToDatabase() {
+        provisioning.retrieveActive(zoneId);
+
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieveByOrigin("unknown", zoneId));
+    }
+
+    @Test
+    void disabledCacheReadsDatabase() {
+        provisioning = new CachingIdentityProviderProvisioning(jdbcTemplate, timeService, 0);
+        provisioning.retrieveActive(zoneId);
+        setName(provider.getId(), "changed-outside");
+
+        assertEquals("changed-outside", provisioning.retrieveByOrigin("origin", zoneId).getName());
+    }
+
+    private void setName(String id, String name) {
+        jdbcTemplate.update("update identity_provider set name=? where id=?", name, id);
+    }
+}
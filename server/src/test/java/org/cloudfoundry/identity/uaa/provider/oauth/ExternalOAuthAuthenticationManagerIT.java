@@ -645,6 +645,18 @@ class ExternalOAuthAuthenticationManagerIT {
         externalOAuthAuthenticationManager.authenticate(xCodeToken);
     }
 
+    @Test
+    void token_keys_are_cached_between_logins() throws Exception {
+        externalOAuthAuthenticationManager.setTokenKeyCache(new TokenKeyCache(new TimeServiceImpl(), 3600));
+        configureTokenKeyResponse("http://localhost/token_key", PRIVATE_KEY, "testKey");
+        mockToken();
+        addTheUserOnAuth();
+
+        externalOAuthAuthenticationManager.authenticate(xCodeToken);
+        externalOAuthAuthenticationManager.authenticate(xCodeToken);
+        mockUaaServer.verify();
+    }
+
     @Test
     void single_key_response_without_value() throws Exception {
         String json = getKeyJson(PRIVATE_KEY, "correctKey", false);
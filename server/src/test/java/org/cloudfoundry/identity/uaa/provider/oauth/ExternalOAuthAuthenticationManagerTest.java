@@ -18,6 +18,7 @@ import org.springframework.security.jwt.crypto.sign.Signer;
 import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
 import org.springframework.web.client.RestTemplate;
 
+import java.net.URL;
 import java.util.Collections;
 import java.util.Map;
 
@@ -26,6 +27,9 @@ import static org.cloudfoundry.identity.uaa.oauth.jwk.JsonWebKey.KID;
 import static org.cloudfoundry.identity.uaa.oauth.token.ClaimConstants.*;
 import static org.cloudfoundry.identity.uaa.util.UaaMapUtils.entry;
 import static org.cloudfoundry.identity.uaa.util.UaaMapUtils.map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -202,4 +206,19 @@ public class ExternalOAuthAuthenticationManagerTest {
         authManager.getExternalAuthenticationDetails(oidcAuthentication);
         // no exception expected
     }
-}
\ No newline at end of file
+
+    @Test
+    public void tokenKeyCacheKey_isPerZoneProviderAndCredentials() throws Exception {
+        oidcConfig.setTokenKeyUrl(new URL("http://issuer.com/token_keys"));
+        oidcConfig.setRelyingPartySecret("secret");
+        String key = ExternalOAuthAuthenticationManager.getTokenKeyCacheKey(zoneId, origin, oidcConfig);
+
+        assertEquals(key, ExternalOAuthAuthenticationManager.getTokenKeyCacheKey(zoneId, origin, oidcConfig));
+        assertNotEquals(key, ExternalOAuthAuthenticationManager.getTokenKeyCacheKey("other-zone", origin, oidcConfig));
+        assertNotEquals(key, ExternalOAuthAuthenticationManager.getTokenKeyCacheKey(zoneId, "other-origin", oidcConfig));
+        assertFalse(key.contains("secret"));
+
+        oidcConfig.setRelyingPartySecret("other-secret");
+        assertNotEquals(key, ExternalOAuthAuthenticationManager.getTokenKeyCacheKey(zoneId, origin, oidcConfig));
+    }
+}
@@ -0,0 +1,142 @@
+package org.cloudfoundry.identity.uaa.provider.oauth;
+
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.jwt.crypto.sign.MacSigner;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TokenKeyCacheTests {
+
+    private static final String KEY_URL = "nontrusting:http://localhost/token_keys";
+    private static final byte[] CONTENT = "header.claims".getBytes(StandardCharsets.UTF_8);
+
+    private TokenKeyCache cache;
+    private long now;
+    private AtomicInteger fetches;
+    private String keys;
+    private String cacheControl;
+    private RuntimeException outage;
+    private Supplier<ResponseEntity<String>> fetcher;
+
+    @BeforeEach
+    void setUp() {
+        now = 1_000_000L;
+        TimeService timeService = mock(TimeService.class);
+        when(timeService.getCurrentTimeMillis()).thenAnswer(invocation -> now);
+        cache = new TokenKeyCache(timeService, 3600);
+        fetches = new AtomicInteger();
+        keys = keySet("key-1", "secret-1");
+        cacheControl = null;
+        outage = null;
+        fetcher = () -> {
+            fetches.incrementAndGet();
+            if (outage != null) {
+                throw outage;
+            }
+            HttpHeaders headers = new HttpHeaders();
+            if (cacheControl != null) {
+                headers.setCacheControl(cacheControl);
+            }
+            return new ResponseEntity<>(keys, headers, HttpStatus.OK);
+        };
+    }
+
+    @Test
+    void keysAreFetchedOnce() {
+        verify(cache.getVerifier(KEY_URL, "key-1", fetcher), "secret-1");
+        verify(cache.getVerifier(KEY_URL, "key-1", fetcher), "secret-1");
+        verify(cache.getVerifier(KEY_URL, null, fetcher), "secret-1");
+
+        assertEquals(1, fetches.get());
+        assertEquals(1L, cache.getMissCount());
+        assertEquals(2L, cache.getHitCount());
+    }
+
+    @Test
+    void keysAreRefreshedAfterMaxAge() {
+        cacheControl = "public, max-age=60";
+        cache.getVerifier(KEY_URL, "key-1", fetcher);
+
+        now += 59_000L;
+        cache.getVerifier(KEY_URL, "key-1", fetcher);
+        assertEquals(1, fetches.get());
+
+        now += 1_000L;
+        keys = keySet("key-2", "secret-2");
+        cache.getVerifier(KEY_URL, "key-1", fetcher);
+        assertEquals(2, fetches.get());
+        assertEquals(1L, cache.getRefreshCount());
+        verify(cache.getVerifier(KEY_URL, "key-2", fetcher), "secret-2");
+    }
+
+    @Test
+    void staleKeysAreUsedWhileTheProviderIsDown() {
+        cache.getVerifier(KEY_URL, "key-1", fetcher);
+        outage = new ResourceAccessException("I/O error");
+
+        now += 300_000L;
+        verify(cache.getVerifier(KEY_URL, "key-1", fetcher), "secret-1");
+
+        assertEquals(2, fetches.get());
+        assertEquals(1L, cache.getFailedRefreshCount());
+    }
+
+    @Test
+    void unknownKidIsFetchedAtMostOncePerMinRefresh() {
+        cache.getVerifier(KEY_URL, "key-1", fetcher);
+        keys = keySet("key-2", "secret-2");
+
+        cache.getVerifier(KEY_URL, "key-2", fetcher);
+        assertEquals(1, fetches.get());
+
+        now += 30_000L;
+        verify(cache.getVerifier(KEY_URL, "key-2", fetcher), "secret-2");
+        cache.getVerifier(KEY_URL, "key-3", fetcher);
+        assertEquals(2, fetches.get());
+        assertEquals(1L, cache.getUnknownKeyFetchCount());
+    }
+
+    @Test
+    void firstFetchFailureIsThrown() {
+        outage = new ResourceAccessException("I/O error");
+
+        assertThrows(ResourceAccessException.class, () -> cache.getVerifier(KEY_URL, "key-1", fetcher));
+    }
+
+    @Test
+    void refreshIntervalHonoursCacheControl() {
+        assertEquals(300_000L, cache.getRefreshMillis(new HttpHeaders()));
+        assertEquals(120_000L, cache.getRefreshMillis(cacheControl("max-age=120")));
+        assertEquals(30_000L, cache.getRefreshMillis(cacheControl("max-age=0")));
+        assertEquals(30_000L, cache.getRefreshMillis(cacheControl("no-cache")));
+        assertEquals(3_600_000L, cache.getRefreshMillis(cacheControl("public, max-age=86400")));
+    }
+
+    private static HttpHeaders cacheControl(String value) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setCacheControl(value);
+        return headers;
+    }
+
+    private static String keySet(String kid, String secret) {
+        return "{\"keys\":[{\"kty\":\"MAC\",\"kid\":\"" + kid + "\",\"value\":\"" + secret + "\"}]}";
+    }
+
+    private static void verify(SignatureVerifier verifier, String secret) {
+        verifier.verify(CONTENT, new MacSigner(secret).sign(CONTENT));
+    }
+}
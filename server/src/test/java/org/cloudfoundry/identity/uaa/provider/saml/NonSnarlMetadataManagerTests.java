@@ -0,0 +1,176 @@
+package org.cloudfoundry.identity.uaa.provider.saml;
+
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
+import org.cloudfoundry.identity.uaa.extensions.PollutionPreventionExtension;
+import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
+import org.cloudfoundry.identity.uaa.provider.SamlIdentityProviderDefinition;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.cloudfoundry.identity.uaa.zone.IdentityZoneHolder;
+import org.cloudfoundry.identity.uaa.zone.MultitenancyFixture;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityProviderModifiedEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.opensaml.DefaultBootstrap;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.xml.parse.BasicParserPool;
+import org.springframework.security.saml.metadata.ExtendedMetadata;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+
+import static org.cloudfoundry.identity.uaa.provider.saml.SamlIdentityProviderConfiguratorTests.xmlWithoutID;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.opensaml.common.xml.SAMLConstants.SAML20P_NS;
+
+@ExtendWith(PollutionPreventionExtension.class)
+class NonSnarlMetadataManagerTests {
+
+    private static final String IDP_ENTITY_ID = "http://idp.example.com";
+    private static final String SP_ENTITY_ID = "http://sp.example.com";
+    private static final String SP_METADATA = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"" + SP_ENTITY_ID + "\"><md:SPSSODescriptor protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\"><md:AssertionConsumerService Binding=\"urn:oasis:names:tc:SAML:2.0:bindings:HTTP-POST\" Location=\"http://sp.example.com/saml/SSO\" index=\"0\"/></md:SPSSODescriptor></md:EntityDescriptor>";
+
+    private SamlIdentityProviderConfigurator configurator;
+    private TimeService timeService;
+    private NonSnarlMetadataManager manager;
+    private SamlIdentityProviderDefinition definition;
+
+    @BeforeAll
+    static void initializeOpenSAML() throws Exception {
+        if (!org.apache.xml.security.Init.isInitialized()) {
+            DefaultBootstrap.bootstrap();
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        SamlIdentityProviderConfigurator realConfigurator = new SamlIdentityProviderConfigurator(new BasicParserPool(), null, null);
+        definition = new SamlIdentityProviderDefinition()
+                .setMetaDataLocation(String.format(xmlWithoutID, IDP_ENTITY_ID))
+                .setIdpEntityAlias("idp-alias")
+                .setZoneId(IdentityZone.getUaaZoneId());
+        configurator = mock(SamlIdentityProviderConfigurator.class);
+        when(configurator.getIdentityProviderDefinitions()).thenReturn(Collections.singletonList(definition));
+        when(configurator.getExtendedMetadataDelegate(any())).thenAnswer(invocation -> realConfigurator.getExtendedMetadataDelegate(invocation.getArgument(0)));
+
+        ZoneAwareMetadataGenerator generator = mock(ZoneAwareMetadataGenerator.class);
+        ConfigMetadataProvider spMetadata = new ConfigMetadataProvider(IdentityZone.getUaaZoneId(), "sp-alias", SP_METADATA);
+        spMetadata.setParserPool(new BasicParserPool());
+        spMetadata.initialize();
+        ExtendedMetadata spExtendedMetadata = new ExtendedMetadata();
+        spExtendedMetadata.setLocal(true);
+        spExtendedMetadata.setAlias("sp-alias");
+        when(generator.generateMetadata()).thenAnswer(invocation -> spMetadata.getEntityDescriptor(SP_ENTITY_ID));
+        when(generator.generateExtendedMetadata()).thenAnswer(invocation -> spExtendedMetadata.clone());
+
+        timeService = mock(TimeService.class);
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L);
+
+        manager = new NonSnarlMetadataManager(configurator);
+        manager.setMetadataGenerator(generator);
+        manager.setTimeService(timeService);
+        manager.setMetadataIndexExpirationSeconds(60);
+    }
+
+    @AfterEach
+    void tearDown() {
+        IdentityZoneHolder.clear();
+    }
+
+    @Test
+    void identityProvidersAreInitializedOncePerZone() throws Exception {
+        assertEquals(Collections.singleton(IDP_ENTITY_ID), manager.getIDPEntityNames());
+        assertTrue(manager.isIDPValid(IDP_ENTITY_ID));
+        assertNotNull(manager.getEntityDescriptor(IDP_ENTITY_ID));
+        assertNotNull(manager.getRole(IDP_ENTITY_ID, IDPSSODescriptor.DEFAULT_ELEMENT_NAME, SAML20P_NS));
+        assertFalse(manager.getExtendedMetadata(IDP_ENTITY_ID).isLocal());
+        assertEquals(2, manager.getAvailableProviders().size());
+
+        verify(configurator, times(1)).getIdentityProviderDefinitions();
+        verify(configurator, times(1)).getExtendedMetadataDelegate(definition);
+    }
+
+    @Test
+    void entityDescriptorIsFoundByHash() throws Exception {
+        EntityDescriptor idp = manager.getEntityDescriptor(sha1(IDP_ENTITY_ID));
+        EntityDescriptor sp = manager.getEntityDescriptor(sha1(SP_ENTITY_ID));
+
+        assertEquals(IDP_ENTITY_ID, idp.getEntityID());
+        assertEquals(SP_ENTITY_ID, sp.getEntityID());
+        assertEquals(null, manager.getEntityDescriptor(sha1("unknown")));
+    }
+
+    @Test
+    void localServiceProviderIsFoundByAlias() throws Exception {
+        assertEquals(SP_ENTITY_ID, manager.getEntityIdForAlias("sp-alias"));
+        assertEquals(SP_ENTITY_ID, manager.getHostedSPName());
+        assertEquals(null, manager.getEntityIdForAlias("idp-alias"));
+    }
+
+    @Test
+    void identityProviderModifiedEventRebuildsIndex() {
+        manager.getIDPEntityNames();
+        IdentityProvider provider = new IdentityProvider().setIdentityZoneId(IdentityZone.getUaaZoneId());
+
+        manager.onApplicationEvent(IdentityProviderModifiedEvent.identityProviderModified(provider, IdentityZone.getUaaZoneId()));
+        manager.getIDPEntityNames();
+
+        verify(configurator, times(2)).getIdentityProviderDefinitions();
+    }
+
+    @Test
+    void identityProviderDeletedEventRebuildsIndex() {
+        manager.getIDPEntityNames();
+        IdentityProvider provider = new IdentityProvider().setIdentityZoneId(IdentityZone.getUaaZoneId());
+
+        manager.onApplicationEvent(new EntityDeletedEvent<>(provider, null, IdentityZone.getUaaZoneId()));
+        manager.getIDPEntityNames();
+
+        verify(configurator, times(2)).getIdentityProviderDefinitions();
+    }
+
+    @Test
+    void indexExpires() {
+        manager.getIDPEntityNames();
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L + 60_000L);
+        manager.getIDPEntityNames();
+
+        verify(configurator, times(2)).getIdentityProviderDefinitions();
+    }
+
+    @Test
+    void zonesAreIndexedSeparately() {
+        manager.getIDPEntityNames();
+        IdentityZoneHolder.set(MultitenancyFixture.identityZone("other-zone", "other"));
+        manager.getIDPEntityNames();
+        manager.getIDPEntityNames();
+
+        verify(configurator, times(2)).getIdentityProviderDefinitions();
+    }
+
+    @Test
+    void disabledIndexInitializesProvidersOnEveryCall() throws Exception {
+        manager.setMetadataIndexExpirationSeconds(0);
+        manager.getIDPEntityNames();
+        manager.getIDPEntityNames();
+
+        verify(configurator, times(2)).getExtendedMetadataDelegate(definition);
+    }
+
+    private static byte[] sha1(String entityID) throws Exception {
+        return MessageDigest.getInstance("SHA-1").digest(entityID.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,171 @@
+package org.cloudfoundry.identity.uaa.resources.jdbc;
+
+import org.cloudfoundry.identity.uaa.annotations.WithDatabaseContext;
+import org.cloudfoundry.identity.uaa.codestore.JdbcExpiringCodeStore;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.zone.IdentityZone;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@WithDatabaseContext
+class ExpiredRowSweeperTests {
+
+    private static final long INTERVAL = 60_000L;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private LimitSqlAdapter limitSqlAdapter;
+
+    private TimeService timeService;
+    private long now;
+    private ExpiredRowSweeper sweeper;
+
+    @BeforeEach
+    void setUp() {
+        now = System.currentTimeMillis();
+        timeService = mock(TimeService.class);
+        when(timeService.getCurrentTimeMillis()).thenAnswer(invocation -> now);
+        jdbcTemplate.update("DELETE FROM expiring_code_store");
+        jdbcTemplate.update("DELETE FROM sweeper_lock");
+        sweeper = new ExpiredRowSweeper(jdbcTemplate, limitSqlAdapter, timeService);
+        sweeper.setChunkSize(2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.update("DELETE FROM expiring_code_store");
+        jdbcTemplate.update("DELETE FROM sweeper_lock");
+    }
+
+    @Test
+    void sweepDeletesExpiredRowsInChunks() {
+        insertCodes(5, now - 1000);
+        insertCodes(1, now + 100_000);
+        register(sweeper);
+
+        sweeper.sweep();
+
+        assertEquals(1, countCodes());
+        assertEquals(5L, sweeper.getRowsPurged());
+        assertEquals(5L, (long) sweeper.getRowsPurgedByTable().get(JdbcExpiringCodeStore.tableName));
+        assertEquals(1L, sweeper.getSweepCount());
+        assertEquals(0L, sweeper.getFailedSweepCount());
+    }
+
+    @Test
+    void tableIsSweptOncePerInterval() {
+        register(sweeper);
+        sweeper.sweep();
+        insertCodes(1, now - 1000);
+
+        sweeper.sweep();
+        assertEquals(1, countCodes());
+
+        now += INTERVAL;
+        sweeper.sweep();
+        assertEquals(0, countCodes());
+        assertEquals(2L, sweeper.getSweepCount());
+    }
+
+    @Test
+    void tableWithRowsLeftIsSweptAgainOnTheNextRun() {
+        insertCodes(5, now - 1000);
+        sweeper.setMaxRuntime(0);
+        register(sweeper);
+
+        sweeper.sweep();
+        assertEquals(3, countCodes());
+
+        sweeper.sweep();
+        assertEquals(1, countCodes());
+
+        sweeper.sweep();
+        sweeper.sweep();
+        assertEquals(0, countCodes());
+        assertEquals(3L, sweeper.getSweepCount());
+    }
+
+    @Test
+    void onlyTheLeaderSweeps() {
+        ExpiredRowSweeper other = new ExpiredRowSweeper(jdbcTemplate, limitSqlAdapter, timeService);
+        sweeper.setLeaderElection(true);
+        sweeper.setLeaseTime(INTERVAL);
+        other.setLeaderElection(true);
+        other.setLeaseTime(INTERVAL);
+        register(sweeper);
+        register(other);
+        insertCodes(1, now - 1000);
+
+        other.sweep();
+        assertTrue(other.isLeader());
+        assertEquals(0, countCodes());
+
+        insertCodes(1, now - 1000);
+        now += INTERVAL / 2;
+        sweeper.sweep();
+        assertFalse(sweeper.isLeader());
+        assertEquals(1, countCodes());
+
+        //the lease of the other node ran out
+        now += INTERVAL;
+        sweeper.sweep();
+        assertTrue(sweeper.isLeader());
+        assertEquals(0, countCodes());
+        other.sweep();
+        assertFalse(other.isLeader());
+    }
+
+    @Test
+    void leaseIsReleasedOnDestroy() throws Exception {
+        ExpiredRowSweeper other = new ExpiredRowSweeper(jdbcTemplate, limitSqlAdapter, timeService);
+        sweeper.setLeaderElection(true);
+        other.setLeaderElection(true);
+        sweeper.afterPropertiesSet();
+        sweeper.sweep();
+        assertTrue(sweeper.isLeader());
+
+        sweeper.destroy();
+        other.sweep();
+
+        assertTrue(other.isLeader());
+    }
+
+    @Test
+    void registerFailsWhenDisabled() {
+        sweeper.setEnabled(false);
+
+        assertFalse(register(sweeper));
+    }
+
+    @Test
+    void registerFailsWithoutChunkedDeletes() {
+        sweeper = new ExpiredRowSweeper(jdbcTemplate, new OracleLimitSqlAdapter(), timeService);
+
+        assertFalse(register(sweeper));
+    }
+
+    private boolean register(ExpiredRowSweeper sweeper) {
+        return sweeper.register(JdbcExpiringCodeStore.tableName, "code", "expiresat", INTERVAL, () -> now);
+    }
+
+    private void insertCodes(int count, long expiresAt) {
+        for (int i = 0; i < count; i++) {
+            jdbcTemplate.update("INSERT INTO expiring_code_store (code, expiresat, data, intent, identity_zone_id) VALUES (?,?,?,?,?)", "code-" + expiresAt + "-" + i, expiresAt, "{}", null, IdentityZone.getUaaZoneId());
+        }
+    }
+
+    private int countCodes() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM expiring_code_store", Integer.class);
+    }
+}
@@ -3,6 +3,7 @@ package org.cloudfoundry.identity.uaa.scim.jdbc;
 import org.cloudfoundry.identity.uaa.annotations.WithDatabaseContext;
 import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.db.Vendor;
 import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
 import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.resources.jdbc.LimitSqlAdapter;
@@ -23,16 +24,20 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.BadSqlGrammarException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -41,6 +46,7 @@ import static org.cloudfoundry.identity.uaa.constants.OriginKeys.LDAP;
 import static org.cloudfoundry.identity.uaa.constants.OriginKeys.LOGIN_SERVER;
 import static org.cloudfoundry.identity.uaa.constants.OriginKeys.UAA;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsCollectionContaining.hasItem;
 import static org.hamcrest.core.IsEqual.equalTo;
@@ -49,7 +55,9 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
@@ -384,6 +392,54 @@ class JdbcScimGroupMembershipManagerTests {
         assertEquals(4, groups.size());
     }
 
+    @Test
+    void canGetGroupsForMemberWithRecursiveQuery() {
+        JdbcTemplate spiedJdbcTemplate = spy(jdbcTemplate);
+        jdbcScimGroupMembershipManager = new JdbcScimGroupMembershipManager(spiedJdbcTemplate, new TimeServiceImpl(), new JdbcScimUserProvisioning(jdbcTemplate, new JdbcPagingListFactory(jdbcTemplate, limitSqlAdapter), passwordEncoder), null);
+        jdbcScimGroupMembershipManager.setDatabaseType(Vendor.hsqldb);
+        addMember("g1", "m3", "USER", "READER", jdbcTemplate, uaaIdentityZone.getId());
+        addMember("g1", "g2", "GROUP", "READER", jdbcTemplate, uaaIdentityZone.getId());
+        addMember("g2", "g3", "GROUP", "READER", jdbcTemplate, uaaIdentityZone.getId());
+        addMember("g3", "g1", "GROUP", "READER", jdbcTemplate, uaaIdentityZone.getId());
+        addMember("g1", "m3", "USER", "READER", jdbcTemplate, otherIdentityZone.getId());
+
+        Set<ScimGroup> groups = jdbcScimGroupMembershipManager.getGroupsWithMember("g3", true, uaaIdentityZone.getId());
+
+        assertThat(groups.stream().map(ScimGroup::getId).collect(Collectors.toSet()), containsInAnyOrder("g1", "g2", "g3"));
+        verify(spiedJdbcTemplate, times(1)).query(eq(JdbcScimGroupMembershipManager.GET_GROUPS_BY_MEMBER_TRANSITIVE_SQL), any(ScimGroupRowMapper.class), eq("g3"), eq(uaaIdentityZone.getId()), eq(uaaIdentityZone.getId()), eq(uaaIdentityZone.getId()));
+    }
+
+    @Test
+    void canGetGroupsForMemberWhenRecursiveQueryFails() {
+        JdbcTemplate spiedJdbcTemplate = spy(jdbcTemplate);
+        doThrow(new BadSqlGrammarException("recursive", JdbcScimGroupMembershipManager.GET_GROUPS_BY_MEMBER_TRANSITIVE_SQL, new SQLException()))
+                .when(spiedJdbcTemplate).query(eq(JdbcScimGroupMembershipManager.GET_GROUPS_BY_MEMBER_TRANSITIVE_SQL), any(ScimGroupRowMapper.class), any(), any(), any(), any());
+        jdbcScimGroupMembershipManager = new JdbcScimGroupMembershipManager(spiedJdbcTemplate, new TimeServiceImpl(), new JdbcScimUserProvisioning(jdbcTemplate, new JdbcPagingListFactory(jdbcTemplate, limitSqlAdapter), passwordEncoder), null);
+        jdbcScimGroupMembershipManager.setDatabaseType(Vendor.mysql);
+        addMember("g1", "g2", "GROUP", "READER", jdbcTemplate, uaaIdentityZone.getId());
+        addMember("g2", "g3", "GROUP", "READER", jdbcTemplate, uaaIdentityZone.getId());
+
+        assertEquals(2, jdbcScimGroupMembershipManager.getGroupsWithMember("g3", true, uaaIdentityZone.getId()).size());
+        assertEquals(2, jdbcScimGroupMembershipManager.getGroupsWithMember("g3", true, uaaIdentityZone.getId()).size());
+        verify(spiedJdbcTemplate, times(1)).query(eq(JdbcScimGroupMembershipManager.GET_GROUPS_BY_MEMBER_TRANSITIVE_SQL), any(ScimGroupRowMapper.class), any(), any(), any(), any());
+    }
+
+    @Test
+    void transientErrorsDoNotDisableRecursiveQuery() {
+        JdbcTemplate spiedJdbcTemplate = spy(jdbcTemplate);
+        doThrow(new QueryTimeoutException("timeout"))
+                .doCallRealMethod()
+                .when(spiedJdbcTemplate).query(eq(JdbcScimGroupMembershipManager.GET_GROUPS_BY_MEMBER_TRANSITIVE_SQL), any(ScimGroupRowMapper.class), any(), any(), any(), any());
+        jdbcScimGroupMembershipManager = new JdbcScimGroupMembershipManager(spiedJdbcTemplate, new TimeServiceImpl(), new JdbcScimUserProvisioning(jdbcTemplate, new JdbcPagingListFactory(jdbcTemplate, limitSqlAdapter), passwordEncoder), null);
+        jdbcScimGroupMembershipManager.setDatabaseType(Vendor.mysql);
+        addMember("g1", "g2", "GROUP", "READER", jdbcTemplate, uaaIdentityZone.getId());
+        addMember("g2", "g3", "GROUP", "READER", jdbcTemplate, uaaIdentityZone.getId());
+
+        assertThrows(QueryTimeoutException.class, () -> jdbcScimGroupMembershipManager.getGroupsWithMember("g3", true, uaaIdentityZone.getId()));
+        assertEquals(2, jdbcScimGroupMembershipManager.getGroupsWithMember("g3", true, uaaIdentityZone.getId()).size());
+        verify(spiedJdbcTemplate, times(2)).query(eq(JdbcScimGroupMembershipManager.GET_GROUPS_BY_MEMBER_TRANSITIVE_SQL), any(ScimGroupRowMapper.class), any(), any(), any(), any());
+    }
+
     @Test
     void canAddMember() {
         validateCount(0, jdbcTemplate, uaaIdentityZone.getId());
@@ -617,6 +673,30 @@ class JdbcScimGroupMembershipManagerTests {
         jdbcScimGroupMembershipManager.setMaxSqlParameters(oldValue);
     }
 
+    @Test
+    void groupsWithUsersMatchGroupsWithMember() {
+        addMembers(jdbcTemplate, uaaIdentityZone.getId());
+        addMember("g2", "m1", "USER", UAA, jdbcTemplate, uaaIdentityZone.getId());
+        //a cycle
+        addMember("g2", "g1", "GROUP", UAA, jdbcTemplate, uaaIdentityZone.getId());
+        jdbcScimGroupMembershipManager.setMaxSqlParameters(3);
+        List<String> users = Arrays.asList("m1", "m2", "m3", "m4", "m5");
+
+        for (boolean transitive : new boolean[]{false, true}) {
+            Map<String, Set<ScimGroup>> groups = jdbcScimGroupMembershipManager.getGroupsWithUsers(users, transitive, uaaIdentityZone.getId());
+
+            assertEquals(users.size(), groups.size());
+            for (String user : users) {
+                assertEquals(jdbcScimGroupMembershipManager.getGroupsWithMember(user, transitive, uaaIdentityZone.getId()), groups.get(user), user);
+            }
+        }
+        assertEquals(3, jdbcScimGroupMembershipManager.getGroupsWithUsers(users, true, uaaIdentityZone.getId()).get("m1").size());
+
+        Map<String, Set<ScimGroup>> direct = jdbcScimGroupMembershipManager.getGroupsWithUsers(users, false, uaaIdentityZone.getId());
+        assertEquals(jdbcScimGroupMembershipManager.getGroupsWithUsers(users, true, uaaIdentityZone.getId()),
+                jdbcScimGroupMembershipManager.addNestedGroups(direct, uaaIdentityZone.getId()));
+    }
+
     private void validateM5(int i, Set<ScimGroup> m5, int prefix) {
         int count = 0;
         for (ScimGroup g: m5) {
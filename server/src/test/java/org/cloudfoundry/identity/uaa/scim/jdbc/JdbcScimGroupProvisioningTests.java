@@ -1,6 +1,7 @@
 package org.cloudfoundry.identity.uaa.scim.jdbc;
 
 import org.cloudfoundry.identity.uaa.annotations.WithDatabaseContext;
+import org.cloudfoundry.identity.uaa.resources.KeysetPage;
 import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.resources.jdbc.LimitSqlAdapter;
 import org.cloudfoundry.identity.uaa.scim.ScimGroup;
@@ -205,6 +206,21 @@ class JdbcScimGroupProvisioningTests {
         assertEquals(1, dao.query("id co \"2\"", "displayName", false, zoneId).size());
     }
 
+    @Test
+    void canPageThroughGroupsWithCursor() {
+        KeysetPage<ScimGroup> first = dao.queryPage("displayName pr", "displayName", true, null, 2, zoneId);
+        KeysetPage<ScimGroup> second = dao.queryPage("displayName pr", "displayName", true, first.getNextCursor(), 2, zoneId);
+
+        assertEquals(3, first.getTotalResults());
+        assertEquals(3, second.getTotalResults());
+        assertEquals(2, first.getResources().size());
+        assertEquals(1, second.getResources().size());
+        assertNull(second.getNextCursor());
+        List<String> names = new ArrayList<>();
+        dao.query("displayName pr", "displayName", true, zoneId).forEach(g -> names.add(g.getDisplayName()));
+        assertEquals(names, Arrays.asList(first.getResources().get(0).getDisplayName(), first.getResources().get(1).getDisplayName(), second.getResources().get(0).getDisplayName()));
+    }
+
     @Test
     void cannotRetrieveGroupsWithIllegalQuotesFilter() {
         assertThrows(
@@ -4,6 +4,7 @@ import org.cloudfoundry.identity.uaa.annotations.WithDatabaseContext;
 import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
 import org.cloudfoundry.identity.uaa.provider.IdentityProvider;
+import org.cloudfoundry.identity.uaa.resources.KeysetPage;
 import org.cloudfoundry.identity.uaa.resources.SimpleAttributeNameMapper;
 import org.cloudfoundry.identity.uaa.resources.jdbc.JdbcPagingListFactory;
 import org.cloudfoundry.identity.uaa.resources.jdbc.LimitSqlAdapter;
@@ -24,18 +25,23 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.BadSqlGrammarException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.cloudfoundry.identity.uaa.constants.OriginKeys.LOGIN_SERVER;
@@ -49,6 +55,7 @@ import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
@@ -940,6 +947,95 @@ class JdbcScimUserProvisioningTests {
         assertEquals(2, jdbcScimUserProvisioning.query("username pr", "emails.value", true, currentIdentityZoneId).size());
     }
 
+    @Test
+    void canPageThroughUsersWithCursor() {
+        for (int i = 0; i < 5; i++) {
+            createRandomUserInZone(jdbcTemplate, generator, currentIdentityZoneId);
+        }
+        List<String> expected = new ArrayList<>();
+        jdbcScimUserProvisioning.query("id pr", "created", true, currentIdentityZoneId).forEach(u -> expected.add(u.getId()));
+
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            KeysetPage<ScimUser> page = jdbcScimUserProvisioning.queryPage("id pr", "created", true, cursor, 3, currentIdentityZoneId);
+            assertEquals(7, page.getTotalResults());
+            page.getResources().forEach(u -> ids.add(u.getId()));
+            cursor = page.getNextCursor();
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(3, pages);
+        assertEquals(new HashSet<>(expected), new HashSet<>(ids));
+        assertEquals(7, ids.size());
+    }
+
+    @Test
+    void canPageThroughUsersWithCursorDescending() {
+        for (int i = 0; i < 3; i++) {
+            createRandomUserInZone(jdbcTemplate, generator, currentIdentityZoneId);
+        }
+        List<String> expected = new ArrayList<>();
+        jdbcScimUserProvisioning.query("id pr", "userName", false, currentIdentityZoneId).forEach(u -> expected.add(u.getUserName()));
+
+        KeysetPage<ScimUser> first = jdbcScimUserProvisioning.queryPage("id pr", "userName", false, "", 2, currentIdentityZoneId);
+        KeysetPage<ScimUser> second = jdbcScimUserProvisioning.queryPage("id pr", "userName", false, first.getNextCursor(), 2, currentIdentityZoneId);
+        KeysetPage<ScimUser> third = jdbcScimUserProvisioning.queryPage("id pr", "userName", false, second.getNextCursor(), 2, currentIdentityZoneId);
+
+        List<String> usernames = new ArrayList<>();
+        first.getResources().forEach(u -> usernames.add(u.getUserName()));
+        second.getResources().forEach(u -> usernames.add(u.getUserName()));
+        third.getResources().forEach(u -> usernames.add(u.getUserName()));
+        assertEquals(expected, usernames);
+        assertNull(third.getNextCursor());
+    }
+
+    @Test
+    void canReadUsersInChunks() {
+        for (int i = 0; i < 5; i++) {
+            createRandomUserInZone(jdbcTemplate, generator, currentIdentityZoneId);
+        }
+        List<Integer> chunkSizes = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+
+        jdbcScimUserProvisioning.queryInChunks("id pr", currentIdentityZoneId, 3, users -> {
+            chunkSizes.add(users.size());
+            users.forEach(u -> ids.add(u.getId()));
+        });
+
+        assertEquals(Arrays.asList(3, 3, 1), chunkSizes);
+        assertEquals(7, ids.size());
+        assertTrue(ids.contains(joeId));
+        assertThrows(IllegalArgumentException.class,
+                () -> jdbcScimUserProvisioning.queryInChunks("invalid eq \"x\"", currentIdentityZoneId, 3, users -> {}));
+    }
+
+    @Test
+    void queryInChunksPassesOnErrorsOfTheConsumer() {
+        BadSqlGrammarException error = new BadSqlGrammarException("lookup", "select", new SQLException());
+
+        assertSame(error, assertThrows(BadSqlGrammarException.class,
+                () -> jdbcScimUserProvisioning.queryInChunks("id pr", currentIdentityZoneId, 3, users -> {
+                    throw error;
+                })));
+    }
+
+    @Test
+    void cursorMustMatchTheQuery() {
+        String cursor = jdbcScimUserProvisioning.queryPage("id pr", "created", true, null, 1, currentIdentityZoneId).getNextCursor();
+        assertNotNull(cursor);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> jdbcScimUserProvisioning.queryPage("id pr", "created", false, cursor, 1, currentIdentityZoneId));
+        assertThrows(IllegalArgumentException.class,
+                () -> jdbcScimUserProvisioning.queryPage("username pr", "created", true, cursor, 1, currentIdentityZoneId));
+        assertThrows(IllegalArgumentException.class,
+                () -> jdbcScimUserProvisioning.queryPage("id pr", "created", true, "not-a-cursor", 1, currentIdentityZoneId));
+        assertThrows(IllegalArgumentException.class,
+                () -> jdbcScimUserProvisioning.queryPage("id pr", "emails.value", true, null, 1, currentIdentityZoneId));
+    }
+
     @Test
     void canRetrieveUsersWithFilterBooleanAnd() {
         assertEquals(2, jdbcScimUserProvisioning.query("username pr and emails.value co \".com\"", currentIdentityZoneId).size());
@@ -2,6 +2,7 @@ package org.cloudfoundry.identity.uaa.user;
 
 import org.cloudfoundry.identity.uaa.annotations.WithDatabaseContext;
 import org.cloudfoundry.identity.uaa.constants.OriginKeys;
+import org.cloudfoundry.identity.uaa.db.Vendor;
 import org.cloudfoundry.identity.uaa.test.TestUtils;
 import org.cloudfoundry.identity.uaa.util.TimeService;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
@@ -17,6 +18,7 @@ import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.env.Environment;
+import org.springframework.jdbc.BadSqlGrammarException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -24,6 +26,7 @@ import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
 import org.springframework.util.LinkedMultiValueMap;
 
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -106,6 +109,8 @@ class JdbcUaaUserDatabaseTests {
     @AfterEach
     void tearDown() {
         TestUtils.deleteFrom(jdbcTemplate, "users");
+        TestUtils.deleteFrom(jdbcTemplate, "group_membership");
+        TestUtils.deleteFrom(jdbcTemplate, "groups");
     }
 
     @Test
@@ -291,6 +296,45 @@ class JdbcUaaUserDatabaseTests {
         evaluateNestedJoe(jdbcUaaUserDatabase, defaultAuthorities);
     }
 
+    @Test
+    void getUserWithNestedAuthoritiesUsesSingleRecursiveQuery() {
+        JdbcTemplate spiedJdbcTemplate = Mockito.spy(jdbcTemplate);
+        jdbcUaaUserDatabase = new JdbcUaaUserDatabase(spiedJdbcTemplate, timeService, false, mockIdentityZoneManager);
+        jdbcUaaUserDatabase.setDatabaseType(Vendor.hsqldb);
+
+        String directId = new RandomValueStringGenerator().generate();
+        String indirectId = new RandomValueStringGenerator().generate();
+        jdbcTemplate.update(ADD_GROUP_SQL, directId, "direct", "zone-the-first");
+        jdbcTemplate.update(ADD_GROUP_SQL, indirectId, "indirect", "zone-the-first");
+        jdbcTemplate.update(ADD_MEMBER_SQL, indirectId, directId, "GROUP", "MEMBER");
+        jdbcTemplate.update(ADD_MEMBER_SQL, directId, JOE_ID, "USER", "MEMBER");
+        jdbcTemplate.update(ADD_MEMBER_SQL, directId, indirectId, "GROUP", "MEMBER");
+
+        evaluateNestedJoe(jdbcUaaUserDatabase, defaultAuthorities);
+        verify(spiedJdbcTemplate).queryForList(eq(DEFAULT_AUTHORITIES_RECURSIVE_QUERY), eq(String.class), ArgumentMatchers.<Object>any());
+        verify(spiedJdbcTemplate, never()).queryForList(anyString(), ArgumentMatchers.<Object>any());
+    }
+
+    @Test
+    void getUserWithNestedAuthoritiesFallsBackWhenRecursiveQueryFails() {
+        JdbcTemplate spiedJdbcTemplate = Mockito.spy(jdbcTemplate);
+        doThrow(new BadSqlGrammarException("recursive", DEFAULT_AUTHORITIES_RECURSIVE_QUERY, new SQLException()))
+                .when(spiedJdbcTemplate).queryForList(eq(DEFAULT_AUTHORITIES_RECURSIVE_QUERY), eq(String.class), ArgumentMatchers.<Object>any());
+        jdbcUaaUserDatabase = new JdbcUaaUserDatabase(spiedJdbcTemplate, timeService, false, mockIdentityZoneManager);
+        jdbcUaaUserDatabase.setDatabaseType(Vendor.mysql);
+
+        String directId = new RandomValueStringGenerator().generate();
+        String indirectId = new RandomValueStringGenerator().generate();
+        jdbcTemplate.update(ADD_GROUP_SQL, directId, "direct", "zone-the-first");
+        jdbcTemplate.update(ADD_GROUP_SQL, indirectId, "indirect", "zone-the-first");
+        jdbcTemplate.update(ADD_MEMBER_SQL, indirectId, directId, "GROUP", "MEMBER");
+        jdbcTemplate.update(ADD_MEMBER_SQL, directId, JOE_ID, "USER", "MEMBER");
+
+        evaluateNestedJoe(jdbcUaaUserDatabase, defaultAuthorities);
+        evaluateNestedJoe(jdbcUaaUserDatabase, defaultAuthorities);
+        verify(spiedJdbcTemplate, times(1)).queryForList(eq(DEFAULT_AUTHORITIES_RECURSIVE_QUERY), eq(String.class), ArgumentMatchers.<Object>any());
+    }
+
     @Test
     void updatePreviousAndLastLogonTime() {
         when(timeService.getCurrentTimeMillis()).thenReturn(1000L);
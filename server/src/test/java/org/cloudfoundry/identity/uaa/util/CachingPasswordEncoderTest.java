@@ -5,13 +5,13 @@ import org.junit.jupiter.api.Test;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
-import org.springframework.test.util.ReflectionTestUtils;
 
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
@@ -60,8 +60,7 @@ class CachingPasswordEncoderTest {
     @Test
     void matchesButExpires() throws Exception {
         Duration shortTTL = Duration.ofSeconds(1);
-        ReflectionTestUtils.setField(cachingPasswordEncoder, "CACHE_TTL", shortTTL);
-        cachingPasswordEncoder.buildCache();
+        cachingPasswordEncoder = new CachingPasswordEncoder(passwordEncoder, CachingPasswordEncoder.DEFAULT_MAX_KEYS, (int) shortTTL.getSeconds());
         String encoded = cachingPasswordEncoder.encode(password);
         String cacheKey = cachingPasswordEncoder.cacheEncode(password);
 
@@ -121,6 +120,62 @@ class CachingPasswordEncoderTest {
         );
     }
 
+    @Test
+    void evictsLeastRecentlyUsed() throws Exception {
+        cachingPasswordEncoder = new CachingPasswordEncoder(passwordEncoder, 2, CachingPasswordEncoder.DEFAULT_EXPIRATION_SECONDS);
+        String first = "first", second = "second", third = "third";
+        String firstEncoded = passwordEncoder.encode(first);
+        String secondEncoded = passwordEncoder.encode(second);
+
+        assertTrue(cachingPasswordEncoder.matches(first, firstEncoded));
+        assertTrue(cachingPasswordEncoder.matches(second, secondEncoded));
+        assertTrue(cachingPasswordEncoder.matches(first, firstEncoded));
+        assertTrue(cachingPasswordEncoder.matches(third, passwordEncoder.encode(third)));
+
+        assertEquals(2, cachingPasswordEncoder.getNumberOfKeys());
+        assertTrue(cachingPasswordEncoder.asMap().containsKey(cachingPasswordEncoder.cacheEncode(first)));
+        assertFalse(cachingPasswordEncoder.asMap().containsKey(cachingPasswordEncoder.cacheEncode(second)));
+        assertEquals(1, cachingPasswordEncoder.getEvictionCount());
+    }
+
+    @Test
+    void hitAndMissCounts() {
+        String encoded = cachingPasswordEncoder.encode(password);
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertTrue(cachingPasswordEncoder.matches(password, encoded));
+        assertFalse(cachingPasswordEncoder.matches("wrong", encoded));
+
+        assertEquals(2, cachingPasswordEncoder.getHitCount());
+        assertEquals(2, cachingPasswordEncoder.getMissCount());
+        assertEquals(0, cachingPasswordEncoder.getEvictionCount());
+    }
+
+    @Test
+    void concurrentMatches() throws Exception {
+        String encoded = cachingPasswordEncoder.encode(password);
+        String expectedKey = cachingPasswordEncoder.cacheEncode(password);
+        Thread[] threads = new Thread[8];
+        AtomicBoolean failed = new AtomicBoolean();
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 50; j++) {
+                    if (!cachingPasswordEncoder.matches(password, encoded) ||
+                            !expectedKey.equals(cachingPasswordEncoder.cacheEncode(password))) {
+                        failed.set(true);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(failed.get());
+        assertEquals(1, cachingPasswordEncoder.getNumberOfKeys());
+        assertEquals(400, cachingPasswordEncoder.getHitCount() + cachingPasswordEncoder.getMissCount());
+    }
+
     @Test
     // TODO: This test takes a long time to run :(
     void ensureNoMemoryLeak() {
@@ -136,8 +191,9 @@ class CachingPasswordEncoderTest {
         String password = new RandomValueStringGenerator().generate();
         String encoded = cachingPasswordEncoder.encode(password);
         assertTrue(cachingPasswordEncoder.matches(password, encoded));
-        //overflow happened
-        assertEquals(1, cachingPasswordEncoder.getNumberOfKeys());
+        //overflow evicted a single entry
+        assertEquals(cachingPasswordEncoder.getMaxKeys(), cachingPasswordEncoder.getNumberOfKeys());
+        assertEquals(1, cachingPasswordEncoder.getEvictionCount());
 
 
         for (int j = 1; j < cachingPasswordEncoder.getMaxEncodedPasswords(); j++) {
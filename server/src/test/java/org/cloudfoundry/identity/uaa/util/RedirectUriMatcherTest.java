@@ -0,0 +1,102 @@
+package org.cloudfoundry.identity.uaa.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.AntPathMatcher;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RedirectUriMatcherTest {
+
+    private static final List<String> PATTERNS = Arrays.asList(
+            "http://matching.redirect/*",
+            "http://matching.redirect/**",
+            "http://matching.redirect/?",
+            "http://exact.example.com/callback",
+            "http://exact.example.com/callback/",
+            "https://*.example.com/**",
+            "http*://wildcard.scheme.com/path",
+            "https://example.com:8443/app/{id}/done",
+            "https://example.com/app/**/callback?state=*",
+            "https://example.com/a b/c",
+            "myapp://callback",
+            "*://any.scheme/**",
+            "**/catch-all",
+            "/relative/**"
+    );
+
+    private static final List<String> URIS = Arrays.asList(
+            "http://matching.redirect/",
+            "http://matching.redirect",
+            "http://matching.redirect/t",
+            "http://matching.redirect/anything/below",
+            "http://exact.example.com/callback",
+            "http://exact.example.com/callback/",
+            "http:/exact.example.com//callback",
+            "http://exact.example.com/callback/more",
+            "http://EXACT.example.com/callback",
+            "https://sub.example.com/some/path",
+            "https://.example.com/some/path",
+            "https://sub.example.org/some/path",
+            "https://example.com/app/x/y/callbackXstate=abc",
+            "https://example.com/app/callback?state=",
+            "https://example.com/some/path",
+            "https://wildcard.scheme.com/path",
+            "http://wildcard.scheme.com/path",
+            "https://example.com:8443/app/42/done",
+            "https://example.com:8443/app/42/43/done",
+            "https://example.com/app/x/y/callback?state=abc",
+            "https://example.com/a b/c",
+            "https://example.com/a%20b/c",
+            "myapp://callback",
+            "myapp://other",
+            "ftp://any.scheme/file",
+            "http://does.not.match/redirect/catch-all",
+            "/relative/path",
+            "relative/path",
+            "",
+            "/"
+    );
+
+    @Test
+    void matchesLikeAntPathMatcher() {
+        AntPathMatcher antPathMatcher = new AntPathMatcher();
+        for (String pattern : PATTERNS) {
+            RedirectUriMatcher matcher = RedirectUriMatcher.forPatterns(Collections.singleton(pattern));
+            for (String uri : URIS) {
+                assertEquals(antPathMatcher.match(pattern, uri), matcher.matches(uri), pattern + " and " + uri);
+            }
+        }
+        RedirectUriMatcher all = RedirectUriMatcher.forPatterns(PATTERNS);
+        for (String uri : URIS) {
+            boolean expected = PATTERNS.stream().anyMatch(pattern -> antPathMatcher.match(pattern, uri));
+            assertEquals(expected, all.matches(uri), uri);
+        }
+    }
+
+    @Test
+    void noPatternsMatchNothing() {
+        RedirectUriMatcher matcher = RedirectUriMatcher.forPatterns(Collections.emptyList());
+        assertFalse(matcher.matches("http://localhost/"));
+        assertFalse(matcher.matches(null));
+        assertFalse(RedirectUriMatcher.forPatterns(PATTERNS).matches(null));
+    }
+
+    @Test
+    void matchersAreCachedByPatterns() {
+        RedirectUriMatcher matcher = RedirectUriMatcher.forPatterns(Arrays.asList("http://a.example.com/**", "http://b.example.com/**"));
+
+        assertSame(matcher, RedirectUriMatcher.forPatterns(new HashSet<>(Arrays.asList("http://b.example.com/**", "http://a.example.com/**"))));
+
+        RedirectUriMatcher updated = RedirectUriMatcher.forPatterns(Collections.singleton("http://a.example.com/**"));
+        assertTrue(updated.matches("http://a.example.com/callback"));
+        assertFalse(updated.matches("http://b.example.com/callback"));
+    }
+}
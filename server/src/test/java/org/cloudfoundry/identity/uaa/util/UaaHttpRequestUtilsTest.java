@@ -163,6 +163,34 @@ public class UaaHttpRequestUtilsTest {
     }
 
 
+    @Test
+    public void pooledConnectionIsKeptAlive() {
+        HttpConnectionPool connectionPool = new HttpConnectionPool(true, 10, 2, 60_000, 60_000);
+        try {
+            RestTemplate restTemplate = new RestTemplate(createRequestFactory(connectionPool, 10_000));
+            assertEquals(OK, restTemplate.getForEntity(httpsUrl, String.class).getStatusCode());
+            assertEquals(OK, restTemplate.getForEntity(httpsUrl, String.class).getStatusCode());
+            assertEquals(0, connectionPool.getLeased());
+            assertEquals(1, connectionPool.getAvailable());
+        } finally {
+            connectionPool.destroy();
+        }
+    }
+
+    @Test
+    public void pooledTrustedOnly() {
+        HttpConnectionPool connectionPool = new HttpConnectionPool(false, 10, 2, 60_000, 60_000);
+        try {
+            RestTemplate restTemplate = new RestTemplate(createRequestFactory(connectionPool, 10_000));
+            restTemplate.getForEntity(httpsUrl, String.class);
+            fail("We should not reach this step if the above URL is using a self signed certificate");
+        } catch (RestClientException e) {
+            assertEquals(SSLHandshakeException.class, e.getCause().getClass());
+        } finally {
+            connectionPool.destroy();
+        }
+    }
+
     public static class SystemProxyRoutePlanner implements HttpRoutePlanner {
 
         private final HttpRoutePlanner delegate;
@@ -0,0 +1,112 @@
+package org.cloudfoundry.identity.uaa.zone;
+
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.zone.event.IdentityZoneModifiedEvent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.EmptyResultDataAccessException;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CachingIdentityZoneProvisioningTests {
+
+    private IdentityZoneProvisioning delegate;
+    private TimeService timeService;
+    private CachingIdentityZoneProvisioning provisioning;
+    private IdentityZone zone;
+
+    @BeforeEach
+    void setUp() {
+        delegate = mock(IdentityZoneProvisioning.class);
+        timeService = mock(TimeService.class);
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L);
+        provisioning = new CachingIdentityZoneProvisioning(delegate, timeService, 30, 5);
+
+        zone = MultitenancyFixture.identityZone("zone-id", "myzone");
+        when(delegate.retrieveBySubdomain("myzone")).thenReturn(zone);
+        when(delegate.retrieve("zone-id")).thenReturn(zone);
+    }
+
+    @Test
+    void retrieveBySubdomainIsCached() {
+        assertSame(zone, provisioning.retrieveBySubdomain("myzone"));
+        assertSame(zone, provisioning.retrieveBySubdomain("MyZone"));
+        assertSame(zone, provisioning.retrieve("zone-id"));
+
+        verify(delegate, times(1)).retrieveBySubdomain("myzone");
+        verify(delegate, times(0)).retrieve("zone-id");
+    }
+
+    @Test
+    void entriesExpire() {
+        provisioning.retrieveBySubdomain("myzone");
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L + 31_000L);
+        provisioning.retrieveBySubdomain("myzone");
+
+        verify(delegate, times(2)).retrieveBySubdomain("myzone");
+    }
+
+    @Test
+    void unknownSubdomainIsCachedForShorterPeriod() {
+        when(delegate.retrieveBySubdomain("unknown")).thenThrow(new EmptyResultDataAccessException(1));
+
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieveBySubdomain("unknown"));
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieveBySubdomain("unknown"));
+        verify(delegate, times(1)).retrieveBySubdomain("unknown");
+
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L + 6_000L);
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieveBySubdomain("unknown"));
+        verify(delegate, times(2)).retrieveBySubdomain("unknown");
+    }
+
+    @Test
+    void zoneModifiedEventEvictsZone() {
+        provisioning.retrieveBySubdomain("myzone");
+
+        provisioning.onApplicationEvent(IdentityZoneModifiedEvent.identityZoneModified(zone));
+        provisioning.retrieveBySubdomain("myzone");
+
+        verify(delegate, times(2)).retrieveBySubdomain("myzone");
+    }
+
+    @Test
+    void zoneCreatedEventEvictsUnknownSubdomain() {
+        IdentityZone created = MultitenancyFixture.identityZone("new-id", "newzone");
+        when(delegate.retrieveBySubdomain("newzone"))
+                .thenThrow(new EmptyResultDataAccessException(1))
+                .thenReturn(created);
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieveBySubdomain("newzone"));
+
+        provisioning.onApplicationEvent(IdentityZoneModifiedEvent.identityZoneCreated(created));
+
+        assertSame(created, provisioning.retrieveBySubdomain("newzone"));
+    }
+
+    @Test
+    void zoneDeletedEventEvictsZone() {
+        provisioning.retrieveBySubdomain("myzone");
+
+        provisioning.onApplicationEvent(new EntityDeletedEvent<>(zone, null, zone.getId()));
+        provisioning.retrieveBySubdomain("myzone");
+
+        verify(delegate, times(2)).retrieveBySubdomain("myzone");
+    }
+
+    @Test
+    void updateEvictsOldSubdomain() {
+        provisioning.retrieveBySubdomain("myzone");
+        IdentityZone renamed = MultitenancyFixture.identityZone("zone-id", "renamed");
+        when(delegate.update(renamed)).thenReturn(renamed);
+
+        provisioning.update(renamed);
+        when(delegate.retrieveBySubdomain("myzone")).thenThrow(new EmptyResultDataAccessException(1));
+
+        assertThrows(EmptyResultDataAccessException.class, () -> provisioning.retrieveBySubdomain("myzone"));
+    }
+}
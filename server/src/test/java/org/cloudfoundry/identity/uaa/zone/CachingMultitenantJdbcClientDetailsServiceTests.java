@@ -0,0 +1,201 @@
+package org.cloudfoundry.identity.uaa.zone;
+
+import org.cloudfoundry.identity.uaa.annotations.WithDatabaseContext;
+import org.cloudfoundry.identity.uaa.audit.event.EntityDeletedEvent;
+import org.cloudfoundry.identity.uaa.util.TimeService;
+import org.cloudfoundry.identity.uaa.zone.beans.IdentityZoneManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.security.oauth2.common.util.RandomValueStringGenerator;
+import org.springframework.security.oauth2.provider.ClientDetails;
+import org.springframework.security.oauth2.provider.NoSuchClientException;
+import org.springframework.security.oauth2.provider.client.BaseClientDetails;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@WithDatabaseContext
+class CachingMultitenantJdbcClientDetailsServiceTests {
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PasswordEncoder passwordEncoder;
+
+    private TimeService timeService;
+    private CachingMultitenantJdbcClientDetailsService service;
+    private String zoneId;
+    private String clientId;
+
+    @BeforeEach
+    void setUp() {
+        //tests that need a request set their own
+        RequestContextHolder.resetRequestAttributes();
+        timeService = mock(TimeService.class);
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L);
+        service = new CachingMultitenantJdbcClientDetailsService(jdbcTemplate, mock(IdentityZoneManager.class), passwordEncoder, timeService, 100, 10);
+        zoneId = "zone-" + new RandomValueStringGenerator().generate();
+        clientId = "client-" + new RandomValueStringGenerator().generate();
+
+        BaseClientDetails client = new BaseClientDetails(clientId, null, "openid", "client_credentials", "uaa.none");
+        client.setClientSecret("secret");
+        client.setAdditionalInformation(Collections.singletonMap("allowedproviders", Collections.singletonList("uaa")));
+        service.addClientDetails(client, zoneId);
+    }
+
+    @AfterEach
+    void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    void clientsAreCached() {
+        String secret = service.loadClientByClientId(clientId, zoneId).getClientSecret();
+        setSecret("changed-outside");
+
+        assertEquals(secret, service.loadClientByClientId(clientId, zoneId).getClientSecret());
+    }
+
+    @Test
+    void clientsAreCachedPerZone() {
+        service.loadClientByClientId(clientId, zoneId);
+
+        assertThrows(NoSuchClientException.class, () -> service.loadClientByClientId(clientId, "other-zone"));
+    }
+
+    @Test
+    void cachedClientsAreCopies() {
+        ClientDetails first = service.loadClientByClientId(clientId, zoneId);
+        first.getScope().clear();
+        ((List<?>) first.getAdditionalInformation().get("allowedproviders")).clear();
+
+        ClientDetails second = service.loadClientByClientId(clientId, zoneId);
+        assertNotSame(first, second);
+        assertEquals(Collections.singleton("openid"), second.getScope());
+        assertEquals(Collections.singletonList("uaa"), second.getAdditionalInformation().get("allowedproviders"));
+    }
+
+    @Test
+    void entriesExpire() {
+        service.loadClientByClientId(clientId, zoneId);
+        setSecret("changed-outside");
+
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L + 11_000L);
+        assertEquals("changed-outside", service.loadClientByClientId(clientId, zoneId).getClientSecret());
+    }
+
+    @Test
+    void updateClientDetailsEvictsClient() {
+        BaseClientDetails client = (BaseClientDetails) service.loadClientByClientId(clientId, zoneId);
+        client.setScope(Collections.singleton("uaa.user"));
+
+        service.updateClientDetails(client, zoneId);
+
+        assertEquals(Collections.singleton("uaa.user"), service.loadClientByClientId(clientId, zoneId).getScope());
+    }
+
+    @Test
+    void updateClientSecretEvictsClient() {
+        service.loadClientByClientId(clientId, zoneId);
+
+        service.updateClientSecret(clientId, "new-secret", zoneId);
+
+        assertTrue(passwordEncoder.matches("new-secret", service.loadClientByClientId(clientId, zoneId).getClientSecret()));
+    }
+
+    @Test
+    void addClientSecretReadsStoredSecret() {
+        service.loadClientByClientId(clientId, zoneId);
+        String stored = passwordEncoder.encode("rotated-outside");
+        setSecret(stored);
+
+        service.addClientSecret(clientId, "second-secret", zoneId);
+
+        String[] secrets = service.loadClientByClientId(clientId, zoneId).getClientSecret().split(" ");
+        assertEquals(2, secrets.length);
+        assertEquals(stored, secrets[0]);
+        assertTrue(passwordEncoder.matches("second-secret", secrets[1]));
+    }
+
+    @Test
+    void deleteClientSecretReadsStoredSecret() {
+        service.addClientSecret(clientId, "second-secret", zoneId);
+        service.loadClientByClientId(clientId, zoneId);
+        String first = passwordEncoder.encode("rotated-outside");
+        String second = passwordEncoder.encode("second-outside");
+        setSecret(first + " " + second);
+
+        service.deleteClientSecret(clientId, zoneId);
+
+        assertEquals(second, service.loadClientByClientId(clientId, zoneId).getClientSecret());
+    }
+
+    @Test
+    void removeClientDetailsEvictsClient() {
+        service.loadClientByClientId(clientId, zoneId);
+
+        service.removeClientDetails(clientId, zoneId);
+
+        assertThrows(NoSuchClientException.class, () -> service.loadClientByClientId(clientId, zoneId));
+    }
+
+    @Test
+    void clientDeletedEventEvictsClient() {
+        ClientDetails client = service.loadClientByClientId(clientId, zoneId);
+
+        service.onApplicationEvent(new EntityDeletedEvent<>(client, null, zoneId));
+
+        assertThrows(NoSuchClientException.class, () -> service.loadClientByClientId(clientId, zoneId));
+    }
+
+    @Test
+    void clientIsLoadedOncePerRequest() {
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        String secret = service.loadClientByClientId(clientId, zoneId).getClientSecret();
+        setSecret("changed-outside");
+
+        when(timeService.getCurrentTimeMillis()).thenReturn(1000L + 11_000L);
+        assertEquals(secret, service.loadClientByClientId(clientId, zoneId).getClientSecret());
+
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        assertEquals("changed-outside", service.loadClientByClientId(clientId, zoneId).getClientSecret());
+    }
+
+    @Test
+    void writesEvictRequestMemo() {
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        service.loadClientByClientId(clientId, zoneId);
+
+        service.updateClientSecret(clientId, "new-secret", zoneId);
+
+        assertTrue(passwordEncoder.matches("new-secret", service.loadClientByClientId(clientId, zoneId).getClientSecret()));
+    }
+
+    @Test
+    void disabledCacheReadsDatabase() {
+        service = new CachingMultitenantJdbcClientDetailsService(jdbcTemplate, mock(IdentityZoneManager.class), passwordEncoder, timeService, 100, 0);
+        service.loadClientByClientId(clientId, zoneId);
+        setSecret("changed-outside");
+
+        assertEquals("changed-outside", service.loadClientByClientId(clientId, zoneId).getClientSecret());
+    }
+
+    private void setSecret(String secret) {
+        jdbcTemplate.update("update oauth_client_details set client_secret=? where client_id=? and identity_zone_id=?", secret, clientId, zoneId);
+    }
+}
@@ -13,11 +13,12 @@
 package org.cloudfoundry.identity.statsd;
 
 import com.timgroup.statsd.StatsDClient;
+import org.cloudfoundry.identity.uaa.metrics.LatencyHistogram;
 import org.cloudfoundry.identity.uaa.metrics.MetricsQueue;
+import org.cloudfoundry.identity.uaa.metrics.MetricsSnapshot;
+import org.cloudfoundry.identity.uaa.metrics.MetricsUtil;
 import org.cloudfoundry.identity.uaa.metrics.RequestMetricSummary;
 import org.cloudfoundry.identity.uaa.metrics.StatusCodeGroup;
-import org.cloudfoundry.identity.uaa.metrics.UaaMetrics;
-import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.expression.MapAccessor;
@@ -48,12 +49,13 @@ import static org.springframework.util.ReflectionUtils.findMethod;
 public class UaaMetricsEmitter {
     private static Logger logger = LoggerFactory.getLogger(UaaMetricsEmitter.class);
 
-    private static final RequestMetricSummary MISSING_METRICS = new RequestMetricSummary(0L, 0d, 0L, 0d, 0L, 0d, 0L, 0d);
+    private static final RequestMetricSummary MISSING_METRICS = new RequestMetricSummary();
     private final StatsDClient statsDClient;
     private final MBeanServerConnection server;
     private final MetricsUtils metricsUtils;
     private boolean notificationsEnabled;
     private ConcurrentMap<String, Long> delta = new ConcurrentHashMap<>();
+    private ConcurrentMap<String, LatencyHistogram> latencyDelta = new ConcurrentHashMap<>();
 
     public UaaMetricsEmitter(MetricsUtils metricsUtils, StatsDClient statsDClient, MBeanServerConnection server) {
         this.statsDClient = statsDClient;
@@ -83,49 +85,38 @@ public class UaaMetricsEmitter {
     }
 
     @Scheduled(fixedRate = 5000, initialDelay = 1000)
-    public void emitGlobalRequestMetrics() throws Exception {
+    public void emitRequestMetrics() throws Exception {
         try {
-            UaaMetrics metrics = metricsUtils.getUaaMetrics(server);
-            emitGlobalRequestMetrics(metrics);
-            emitGlobalServerStats(metrics);
+            MetricsSnapshot snapshot = MetricsSnapshot.from(metricsUtils.getUaaMetrics(server).getSnapshot());
+            emitGlobalRequestMetrics(snapshot);
+            emitGlobalServerStats(snapshot);
+            emitUrlGroupRequestMetrics(snapshot);
         } catch (Exception x) {
             throwIfOtherThanNotFound(x);
         }
     }
 
-
-    @Scheduled(fixedRate = 5000, initialDelay = 1000)
-    public void emitUrlGroupRequestMetrics() throws Exception {
-        try {
-            UaaMetrics metrics = metricsUtils.getUaaMetrics(server);
-            emitUrlGroupRequestMetrics(metrics);
-        } catch (Exception x) {
-            throwIfOtherThanNotFound(x);
-        }
-    }
-
-    private void emitUrlGroupRequestMetrics(UaaMetrics metrics) {
-        Map<String,String> perUrlMetrics = metrics.getSummary();
+    private void emitUrlGroupRequestMetrics(MetricsSnapshot snapshot) {
         String prefix = "requests.%s.";
-        for(String key : perUrlMetrics.keySet()) {
+        for(String key : snapshot.getUrlGroups()) {
             String prefixName = key.startsWith("/") ? key.substring(1) : key;
-            MetricsQueue metric = JsonUtils.readValue(perUrlMetrics.get(key), MetricsQueue.class);
-            RequestMetricSummary metricTotals = metric.getTotals();
+            RequestMetricSummary metricTotals = snapshot.getMetrics(key).getTotals();
             statsDClient.gauge(String.format(prefix + "completed.count", prefixName), metricTotals.getCount());
             statsDClient.gauge(String.format(prefix + "completed.time", prefixName), (long) metricTotals.getAverageTime());
+            emitLatencyPercentiles(String.format(prefix + "completed.", prefixName), metricTotals.getLatency());
         }
     }
 
-    public void emitGlobalServerStats(UaaMetrics metrics) {
+    public void emitGlobalServerStats(MetricsSnapshot snapshot) {
         //server statistics
-        statsDClient.gauge("server.inflight.count", metrics.getInflightCount());
-        statsDClient.gauge("server.up.time", metrics.getUpTime());
-        statsDClient.gauge("server.idle.time", metrics.getIdleTime());
+        statsDClient.gauge("server.inflight.count", snapshot.getInflightCount());
+        statsDClient.gauge("server.up.time", snapshot.getUpTime());
+        statsDClient.gauge("server.idle.time", snapshot.getIdleTime());
     }
 
-    public void emitGlobalRequestMetrics(UaaMetrics metrics) {
+    public void emitGlobalRequestMetrics(MetricsSnapshot snapshot) {
         //global request statistics
-        MetricsQueue globals = JsonUtils.readValue(metrics.getGlobals(), MetricsQueue.class);
+        MetricsQueue globals = snapshot.getMetrics(MetricsUtil.GLOBAL_GROUP);
 
         String prefix = "requests.global.";
         RequestMetricSummary totals = globals.getTotals();
@@ -133,11 +124,13 @@ public class UaaMetricsEmitter {
         statsDClient.count(prefix + "completed.count", getMetricDelta(prefix + "completed.count",totals.getCount()));
         statsDClient.count(prefix + "unhealthy.count",getMetricDelta(prefix + "unhealthy.count",totals.getIntolerableCount()));
         statsDClient.gauge(prefix + "unhealthy.time", (long) totals.getAverageIntolerableTime());
+        emitLatencyPercentiles(prefix + "completed.", totals.getLatency());
         //status codes
         for (StatusCodeGroup family : StatusCodeGroup.values()) {
             RequestMetricSummary summary = ofNullable(globals.getDetailed().get(family)).orElse(MISSING_METRICS);
             String aspect = prefix + "status_" + family.getName() + ".count";
             statsDClient.count(aspect, getMetricDelta(aspect,summary.getCount()));
+            emitLatencyPercentiles(prefix + "status_" + family.getName() + ".", summary.getLatency());
         }
         //database metrics
         prefix = "database.global.";
@@ -242,6 +235,21 @@ public class UaaMetricsEmitter {
 
     }
 
+    /**
+     * Emits the latency percentiles of the requests completed since the previous call
+     * for the same prefix. Nothing is emitted for an interval without requests.
+     */
+    public void emitLatencyPercentiles(String prefix, LatencyHistogram histogram) {
+        LatencyHistogram interval = histogram.minus(latencyDelta.put(prefix, histogram.copy()));
+        if (interval.getTotalCount() == 0) {
+            return;
+        }
+        statsDClient.gauge(prefix + "time_p50", interval.getValueAtPercentile(50.0));
+        statsDClient.gauge(prefix + "time_p95", interval.getValueAtPercentile(95.0));
+        statsDClient.gauge(prefix + "time_p99", interval.getValueAtPercentile(99.0));
+        statsDClient.gauge(prefix + "time_p999", interval.getValueAtPercentile(99.9));
+    }
+
     public boolean isNotificationEnabled() {
         return notificationsEnabled;
     }
@@ -2,7 +2,13 @@ package org.cloudfoundry.identity.statsd;
 
 import com.timgroup.statsd.ConvenienceMethodProvidingStatsDClient;
 import com.timgroup.statsd.StatsDClient;
+import org.cloudfoundry.identity.uaa.metrics.MetricsQueue;
+import org.cloudfoundry.identity.uaa.metrics.MetricsSnapshot;
+import org.cloudfoundry.identity.uaa.metrics.MetricsUtil;
+import org.cloudfoundry.identity.uaa.metrics.RequestMetric;
 import org.cloudfoundry.identity.uaa.metrics.UaaMetrics;
+import org.cloudfoundry.identity.uaa.metrics.UrlGroup;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
@@ -10,6 +16,7 @@ import org.mockito.Mockito;
 import javax.management.MBeanServerConnection;
 import javax.management.Notification;
 import javax.management.NotificationBroadcasterSupport;
+import javax.management.openmbean.CompositeData;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -39,18 +46,10 @@ class UaaMetricsEmitterTest {
         urlGroupJsonMap.put("/static-content", staticContentJson);
 
         uaaMetrics1 = mock(UaaMetrics.class);
-        when(uaaMetrics1.getGlobals()).thenReturn(globalsJson1);
-        when(uaaMetrics1.getSummary()).thenReturn(urlGroupJsonMap);
-        when(uaaMetrics1.getIdleTime()).thenReturn(12349L);
-        when(uaaMetrics1.getUpTime()).thenReturn(12349843L);
-        when(uaaMetrics1.getInflightCount()).thenReturn(3L);
+        when(uaaMetrics1.getSnapshot()).thenReturn(snapshot(globalsJson1, urlGroupJsonMap));
 
         uaaMetrics2 = mock(UaaMetrics.class);
-        when(uaaMetrics2.getGlobals()).thenReturn(globalsJson2);
-        when(uaaMetrics2.getSummary()).thenReturn(urlGroupJsonMap);
-        when(uaaMetrics2.getIdleTime()).thenReturn(12349L);
-        when(uaaMetrics2.getUpTime()).thenReturn(12349843L);
-        when(uaaMetrics2.getInflightCount()).thenReturn(3L);
+        when(uaaMetrics2.getSnapshot()).thenReturn(snapshot(globalsJson2, urlGroupJsonMap));
 
         server = mock(MBeanServerConnection.class);
 
@@ -89,7 +88,7 @@ class UaaMetricsEmitterTest {
     @Test
     void requestCount_metrics_emitted() throws Exception {
         Mockito.when(metricsUtils.getUaaMetrics(any())).thenReturn(uaaMetrics1, uaaMetrics2);
-        uaaMetricsEmitter.emitGlobalRequestMetrics();
+        uaaMetricsEmitter.emitRequestMetrics();
         Mockito.verify(statsDClient).count("requests.global.completed.count", 3087L);
         Mockito.verify(statsDClient).gauge("requests.global.completed.time", 29L);
         Mockito.verify(statsDClient).count("requests.global.unhealthy.count", 1L);
@@ -107,7 +106,7 @@ class UaaMetricsEmitterTest {
         Mockito.verify(statsDClient).count("database.global.unhealthy.count", 17549L);
         Mockito.verify(statsDClient).gauge("database.global.unhealthy.time", 0L);
         reset(statsDClient);
-        uaaMetricsEmitter.emitGlobalRequestMetrics();
+        uaaMetricsEmitter.emitRequestMetrics();
         Mockito.verify(statsDClient).count("requests.global.completed.count", 4L);
         Mockito.verify(statsDClient).count("requests.global.unhealthy.count", 1L);
         Mockito.verify(statsDClient).count("requests.global.status_1xx.count", 0L);
@@ -118,7 +117,7 @@ class UaaMetricsEmitterTest {
         Mockito.verify(statsDClient).count("database.global.completed.count", 2L);
         Mockito.verify(statsDClient).count("database.global.unhealthy.count", 5L);
         reset(statsDClient);
-        uaaMetricsEmitter.emitGlobalRequestMetrics();
+        uaaMetricsEmitter.emitRequestMetrics();
         Mockito.verify(statsDClient).count("requests.global.completed.count", 0L);
         Mockito.verify(statsDClient).count("requests.global.unhealthy.count", 0L);
         Mockito.verify(statsDClient).count("requests.global.status_1xx.count", 0L);
@@ -151,7 +150,7 @@ class UaaMetricsEmitterTest {
     @Test
     void perUrlGroup_request_metrics() throws Exception {
         Mockito.when(metricsUtils.getUaaMetrics(any())).thenReturn(uaaMetrics1);
-        uaaMetricsEmitter.emitUrlGroupRequestMetrics();
+        uaaMetricsEmitter.emitRequestMetrics();
         Mockito.verify(statsDClient).gauge(eq("requests.ui.completed.count"), gt(0L));
         Mockito.verify(statsDClient).gauge(eq("requests.ui.completed.time"), geq(300L));
 
@@ -159,6 +158,36 @@ class UaaMetricsEmitterTest {
         Mockito.verify(statsDClient).gauge(eq("requests.static-content.completed.time"), geq(23L));
     }
 
+    @Test
+    void latency_percentiles_emitted_per_interval() throws Exception {
+        UrlGroup group = new UrlGroup().setGroup("/oauth-token").setPattern("/oauth/token/**").setLimit(1000).setCategory("api");
+        MetricsQueue queue = new MetricsQueue();
+        for (int i = 1; i <= 100; i++) {
+            RequestMetric metric = RequestMetric.start("/oauth/token", group, 0);
+            metric.stop(i == 100 ? 500 : 200, i);
+            queue.offer(metric);
+        }
+        Map<String, MetricsQueue> queues = new HashMap<>();
+        queues.put(MetricsUtil.GLOBAL_GROUP, queue);
+        queues.put("/oauth-token", queue);
+        UaaMetrics metrics = mock(UaaMetrics.class);
+        when(metrics.getSnapshot()).thenReturn(new MetricsSnapshot(0, 0, 0, queues).toCompositeData());
+        when(metricsUtils.getUaaMetrics(any())).thenReturn(metrics);
+
+        uaaMetricsEmitter.emitRequestMetrics();
+        Mockito.verify(statsDClient).gauge("requests.global.completed.time_p50", 50L);
+        Mockito.verify(statsDClient).gauge("requests.global.completed.time_p99", 99L);
+        Mockito.verify(statsDClient).gauge("requests.global.completed.time_p999", 101L);
+        Mockito.verify(statsDClient).gauge("requests.global.status_2xx.time_p99", 99L);
+        Mockito.verify(statsDClient).gauge("requests.global.status_5xx.time_p50", 101L);
+        Mockito.verify(statsDClient, never()).gauge(eq("requests.global.status_4xx.time_p50"), anyLong());
+        Mockito.verify(statsDClient).gauge("requests.oauth-token.completed.time_p95", 95L);
+
+        reset(statsDClient);
+        uaaMetricsEmitter.emitRequestMetrics();
+        Mockito.verify(statsDClient, never()).gauge(eq("requests.global.completed.time_p50"), anyLong());
+    }
+
     @Test
     void sendNotification() {
         uaaMetricsEmitter.enableNotification();
@@ -198,6 +227,21 @@ class UaaMetricsEmitterTest {
         Mockito.verify(statsDClient, times(0)).gauge(anyString(), anyLong());
     }
 
+    @Test
+    void metrics_bean_read_once_per_cycle() throws Exception {
+        Mockito.when(metricsUtils.getUaaMetrics(any())).thenReturn(uaaMetrics1);
+        uaaMetricsEmitter.emitRequestMetrics();
+        verify(uaaMetrics1, times(1)).getSnapshot();
+        verifyNoMoreInteractions(uaaMetrics1);
+    }
+
+    private static CompositeData snapshot(String globalsJson, Map<String, String> urlGroupJson) {
+        Map<String, MetricsQueue> queues = new HashMap<>();
+        queues.put(MetricsUtil.GLOBAL_GROUP, JsonUtils.readValue(globalsJson, MetricsQueue.class));
+        urlGroupJson.forEach((group, json) -> queues.put(group, JsonUtils.readValue(json, MetricsQueue.class)));
+        return new MetricsSnapshot(3L, 12349L, 12349843L, queues).toCompositeData();
+    }
+
     private String staticContentJson = "{\n" +
             "   \"lastRequests\":[\n" +
             "      {\n" +
@@ -395,6 +395,48 @@ public class ScimGroupEndpointsMockMvcTests {
         assertThat("Search results: " + body, searchResults.getResources(), hasSize(4));
     }
 
+    @Test
+    void getGroups_withCursor_returnsEveryGroupOnce() throws Exception {
+        String filter = "displayName eq \"clients.read\" or displayName eq \"clients.write\" or displayName eq \"zones.read\" or displayName eq \"zones.write\"";
+
+        SearchResults<ScimGroup> firstPage = getGroupsPage(filter, "");
+        assertThat(firstPage.getResources(), hasSize(3));
+        assertEquals(4, firstPage.getTotalResults());
+        assertNotNull(firstPage.getNextCursor());
+
+        SearchResults<ScimGroup> secondPage = getGroupsPage(filter, firstPage.getNextCursor());
+        assertThat(secondPage.getResources(), hasSize(1));
+        assertNull(secondPage.getNextCursor());
+
+        List<String> displayNames = new ArrayList<>();
+        firstPage.getResources().forEach(group -> displayNames.add(group.getDisplayName()));
+        secondPage.getResources().forEach(group -> displayNames.add(group.getDisplayName()));
+        assertThat(displayNames, containsInAnyOrder("clients.read", "clients.write", "zones.read", "zones.write"));
+    }
+
+    @Test
+    void getGroups_withInvalidCursor_returnsBadRequest() throws Exception {
+        mockMvc.perform(get("/Groups")
+                .header("Authorization", "Bearer " + scimReadToken)
+                .param("cursor", "not-a-cursor")
+                .accept(APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+    }
+
+    private SearchResults<ScimGroup> getGroupsPage(String filter, String cursor) throws Exception {
+        MockHttpServletRequestBuilder get = get("/Groups")
+                .header("Authorization", "Bearer " + scimReadToken)
+                .param("filter", filter)
+                .param("sortBy", "displayName")
+                .param("count", "3")
+                .param("cursor", cursor)
+                .accept(APPLICATION_JSON);
+        String body = mockMvc.perform(get)
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        return JsonUtils.readValue(body, new TypeReference<SearchResults<ScimGroup>>() {});
+    }
+
     @Nested
     @DefaultTestContext
     @TestPropertySource(properties = {
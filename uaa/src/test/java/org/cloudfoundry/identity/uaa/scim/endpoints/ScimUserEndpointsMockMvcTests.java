@@ -61,10 +61,12 @@ import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.web.context.WebApplicationContext;
 
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import static org.cloudfoundry.identity.uaa.codestore.ExpiringCodeType.REGISTRATION;
 import static org.cloudfoundry.identity.uaa.invitations.InvitationsEndpoint.USER_ID;
@@ -73,6 +75,7 @@ import static org.cloudfoundry.identity.uaa.zone.IdentityZoneSwitchingFilter.HEA
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertEquals;
@@ -546,6 +549,56 @@ class ScimUserEndpointsMockMvcTests {
         assertThat(searchResults.getTotalResults(), is(usersMaxCountWithOffset));
     }
 
+    @Test
+    void listUsers_withCursor_returnsEveryUserOnce() throws Exception {
+        List<String> userNames = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            userNames.add(createUser(getScimUser(), scimReadWriteToken, null).getUserName());
+        }
+        String filter = userNames.stream().map(userName -> "userName eq \"" + userName + "\"").collect(Collectors.joining(" or "));
+
+        SearchResults<ScimUser> firstPage = getUsersPage(filter, "");
+        assertEquals(2, firstPage.getResources().size());
+        assertEquals(3, firstPage.getTotalResults());
+        assertNotNull(firstPage.getNextCursor());
+
+        SearchResults<ScimUser> secondPage = getUsersPage(filter, firstPage.getNextCursor());
+        assertEquals(1, secondPage.getResources().size());
+        assertNull(secondPage.getNextCursor());
+
+        List<String> listed = new ArrayList<>();
+        firstPage.getResources().forEach(user -> listed.add(user.getUserName()));
+        secondPage.getResources().forEach(user -> listed.add(user.getUserName()));
+        assertThat(listed, containsInAnyOrder(userNames.toArray()));
+    }
+
+    @Test
+    void listUsers_withCursorOfOtherQuery_returnsBadRequest() throws Exception {
+        String cursor = getUsersPage("id pr", "").getNextCursor();
+        assertNotNull(cursor);
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/Users")
+                .header("Authorization", "Bearer " + scimReadWriteToken)
+                .param("filter", "userName pr")
+                .param("count", "2")
+                .param("cursor", cursor)
+                .accept(APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+    }
+
+    private SearchResults<ScimUser> getUsersPage(String filter, String cursor) throws Exception {
+        MockHttpServletRequestBuilder get = MockMvcRequestBuilders.get("/Users")
+                .header("Authorization", "Bearer " + scimReadWriteToken)
+                .param("filter", filter)
+                .param("count", "2")
+                .param("cursor", cursor)
+                .accept(APPLICATION_JSON);
+        String body = mockMvc.perform(get)
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        return JsonUtils.readValue(body, new TypeReference<SearchResults<ScimUser>>() {});
+    }
+
     @Test
     void testVerifyUser() throws Exception {
         verifyUser(scimReadWriteToken);
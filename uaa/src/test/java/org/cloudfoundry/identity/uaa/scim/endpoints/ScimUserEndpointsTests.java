@@ -1,5 +1,6 @@
 package org.cloudfoundry.identity.uaa.scim.endpoints;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.unboundid.scim.sdk.AttributePath;
 import com.unboundid.scim.sdk.SCIMFilter;
 import org.cloudfoundry.identity.uaa.DefaultTestContext;
@@ -35,6 +36,7 @@ import org.cloudfoundry.identity.uaa.scim.validate.PasswordValidator;
 import org.cloudfoundry.identity.uaa.security.IsSelfCheck;
 import org.cloudfoundry.identity.uaa.test.ZoneSeeder;
 import org.cloudfoundry.identity.uaa.test.ZoneSeederExtension;
+import org.cloudfoundry.identity.uaa.util.JsonUtils;
 import org.cloudfoundry.identity.uaa.web.ConvertingExceptionView;
 import org.cloudfoundry.identity.uaa.zone.IdentityZone;
 import org.cloudfoundry.identity.uaa.zone.MfaConfig;
@@ -559,6 +561,54 @@ class ScimUserEndpointsTests {
         verify(mockApprovalStore).getApprovalsForUser(dale.getId(), identityZone.getId());
     }
 
+    @Test
+    void exportUsersLooksUpGroupsAndApprovalsPerChunk() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        scimUserEndpoints.exportUsers("id pr", true, true, "ndjson", response);
+
+        String[] lines = response.getContentAsString().trim().split("\n");
+        assertEquals(2, lines.length);
+        ScimUser exported = JsonUtils.readValue(lines[0], ScimUser.class);
+        assertNotNull(exported.getId());
+        assertTrue(exported.getGroups().stream().anyMatch(g -> "uaa.user".equals(g.getDisplay())));
+        verify(spiedScimGroupMembershipManager, never()).getGroupsWithMember(anyString(), anyBoolean(), anyString());
+        verify(mockApprovalStore, never()).getApprovalsForUser(anyString(), anyString());
+    }
+
+    @Test
+    void exportUsersAsJsonArray() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        scimUserEndpoints.exportUsers("id pr", false, false, "json", response);
+
+        List<ScimUser> exported = JsonUtils.readValue(response.getContentAsString(), new TypeReference<List<ScimUser>>() {});
+        assertEquals(2, exported.size());
+        assertNull(exported.get(0).getGroups());
+    }
+
+    @Test
+    void exportUsersRejectsInvalidFilter() {
+        ScimException e = assertThrows(ScimException.class,
+                () -> scimUserEndpoints.exportUsers("invalid eq \"x\"", false, false, "ndjson", new MockHttpServletResponse()));
+        assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+    }
+
+    @Test
+    void exportUsersDoesNotReportLookupErrorsAsInvalidFilter() {
+        when(mockApprovalStore.getApprovalsForUsers(any(), anyString())).thenThrow(new IllegalArgumentException("lookup failed"));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> scimUserEndpoints.exportUsers("id pr", false, true, "ndjson", new MockHttpServletResponse()));
+    }
+
+    @Test
+    void exportUsersLimitsConcurrentExports() {
+        ReflectionTestUtils.setField(scimUserEndpoints, "maxConcurrentExports", 0);
+
+        ScimException e = assertThrows(ScimException.class,
+                () -> scimUserEndpoints.exportUsers("id pr", false, false, "ndjson", new MockHttpServletResponse()));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, e.getStatus());
+    }
+
     @Test
     void findPageOfIds() {
         SearchResults<?> results = scimUserEndpoints.findUsers("id", "id pr", null, "ascending", 1, 1);